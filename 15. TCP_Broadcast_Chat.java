@@ -0,0 +1,997 @@
+// ===================================================================
+// EXPERIMENT: TCP BROADCAST CHAT – BACKPRESSURE & SLOW CONSUMERS
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Multi-client chat server using NIO (Selector)
+// ===================================================================
+// AIM:
+// Extend the one-to-one chat of experiments 5 and 7 into a broadcast
+// chat where every message is sent to all connected clients, without
+// letting one slow client block everyone or grow server memory forever.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – OutboundQueue.java
+// ==========================================================
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+public class OutboundQueue {
+
+    // What to do with a consumer that cannot keep up
+    public enum Policy { DROP_OLDEST, COALESCE, DISCONNECT }
+
+    // Outcome of offer()
+    public enum Result { QUEUED, SHED, OVERFLOW }
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[64];
+    private final int[] positions = new int[64];
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int capacity;
+    private final Policy policy;
+
+    private long queuedBytes;
+    private long drops;
+
+    public OutboundQueue(int lowWatermark, int highWatermark, int capacity, Policy policy) {
+        if (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("need 0 <= low < high <= capacity");
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Add a message to the tail. If the hard capacity would be exceeded the
+    // policy is applied right away: DISCONNECT reports OVERFLOW, the other
+    // policies shed old messages down to the low watermark first.
+    public Result offer(ByteBuffer message) {
+        int size = message.remaining();
+        Result result = Result.QUEUED;
+        if (queuedBytes + size > capacity) {
+            if (policy == Policy.DISCONNECT) {
+                return Result.OVERFLOW;
+            }
+            shed();
+            result = Result.SHED;
+            if (queuedBytes + size > capacity) {
+                drops++; // a single message larger than the whole queue
+                return result;
+            }
+        }
+        queue.addLast(message);
+        queuedBytes += size;
+        return result;
+    }
+
+    // Drop (or coalesce) messages that have not started being written until
+    // the queue is back under the low watermark. A partially written head is
+    // always kept, otherwise the client would receive half a line.
+    public void shed() {
+        ByteBuffer head = queue.peekFirst();
+        boolean keepHead = head != null && head.position() > 0;
+        if (keepHead) {
+            queue.pollFirst();
+        }
+
+        int removed = 0;
+        if (policy == Policy.COALESCE) {
+            // Replace everything unsent with one notice line
+            while (!queue.isEmpty()) {
+                queuedBytes -= queue.pollFirst().remaining();
+                removed++;
+            }
+            if (removed > 0) {
+                ByteBuffer notice = ByteBuffer.wrap(("*** " + removed
+                        + " messages skipped (slow connection) ***\n").getBytes(StandardCharsets.UTF_8));
+                queue.addLast(notice);
+                queuedBytes += notice.remaining();
+            }
+        } else {
+            // DROP_OLDEST (and DISCONNECT, when called by the stall timer)
+            while (!queue.isEmpty() && queuedBytes > lowWatermark) {
+                queuedBytes -= queue.pollFirst().remaining();
+                removed++;
+            }
+        }
+
+        if (keepHead) {
+            queue.addFirst(head);
+        }
+        drops += removed;
+    }
+
+    // Write as much as the socket accepts with gathering writes.
+    // Returns the number of bytes written.
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        return writeTo(channel, null, null);
+    }
+
+    // Same, and records every written slice in the packet capture
+    // (experiment 26) while it is enabled
+    public long writeTo(GatheringByteChannel channel, PacketCapture capture, PacketCapture.Flow flow)
+            throws IOException {
+        long total = 0;
+        while (!queue.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : queue) {
+                if (n == batch.length) {
+                    break;
+                }
+                batch[n++] = b;
+            }
+            boolean capturing = capture != null && capture.enabled();
+            if (capturing) {
+                for (int i = 0; i < n; i++) {
+                    positions[i] = batch[i].position();
+                }
+            }
+            long written = channel.write(batch, 0, n);
+            if (capturing) {
+                for (int i = 0; i < n && batch[i].position() > positions[i]; i++) {
+                    capture.record(flow, false, batch[i], positions[i], batch[i].position());
+                }
+            }
+            Arrays.fill(batch, 0, n, null);
+            total += written;
+            queuedBytes -= written;
+            while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+                queue.pollFirst();
+            }
+            // Head still has bytes left: the socket send buffer is full
+            if (!queue.isEmpty() && queue.peekFirst().position() > 0) {
+                break;
+            }
+            if (written == 0) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    public boolean isEmpty() { return queue.isEmpty(); }
+    public int depth() { return queue.size(); }
+    public long queuedBytes() { return queuedBytes; }
+    public long drops() { return drops; }
+    public boolean aboveHighWatermark() { return queuedBytes >= highWatermark; }
+    public boolean belowLowWatermark() { return queuedBytes <= lowWatermark; }
+    public Policy policy() { return policy; }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – ChatServer.java
+// ==========================================================
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+public class ChatServer implements Runnable {
+
+    // One connected client. A connection is both a producer (its reads are
+    // broadcast) and a consumer (it receives everyone's messages).
+    static final class Connection {
+        final int id;
+        final SocketChannel channel;
+        final TlsChannel tls;  // null for plain TCP (TLS: experiment 19)
+        final SelectionKey key;
+        final OutboundQueue out;
+        final PacketCapture.Flow flow;   // addresses for the packet capture (experiment 26)
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+        final Set<Connection> blockedProducers = new LinkedHashSet<>();
+        int pauseCount;        // congested consumers currently holding our reads
+        boolean draining;      // inside drainLines(), guards against re-entry
+        long congestedSince;   // System.nanoTime() when we crossed the high watermark, 0 = not congested
+        boolean closed;
+        long lastRead;         // loop time of the last received bytes
+        long lastPing;         // loop time of the last heartbeat we sent
+        long lastWrite;        // loop time of the last write progress (or when output became pending)
+        TimingWheel.Timeout idleTimer;   // heartbeat + idle timeout (experiment 35)
+        TimingWheel.Timeout writeTimer;  // write deadline, only while output is pending
+
+        Connection(int id, SocketChannel channel, TlsChannel tls, SelectionKey key, OutboundQueue out)
+                throws IOException {
+            this.id = id;
+            this.channel = channel;
+            this.tls = tls;
+            this.key = key;
+            this.out = out;
+            this.flow = PacketCapture.Flow.tcp(channel.getLocalAddress(), channel.getRemoteAddress());
+        }
+
+        int read(ByteBuffer dst) throws IOException {
+            return tls != null ? tls.read(dst) : channel.read(dst);
+        }
+
+        GatheringByteChannel output() {
+            return tls != null ? tls : channel;
+        }
+
+        boolean ready() {
+            return tls == null || tls.isHandshakeDone();
+        }
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final OutboundQueue.Policy policy;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int capacity;
+    private final long maxStallNanos;
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final Set<Connection> congested = new LinkedHashSet<>();
+    private volatile boolean running = true;
+    private int nextId = 1;
+    private Consumer<String> messageListener;
+    private SSLContext sslContext;
+
+    // Timeouts on a hashed timing wheel (experiment 35): 100 ms ticks, so
+    // resetting or cancelling a connection's timer is O(1) at any count
+    private final TimingWheel wheel = new TimingWheel(100, 512);
+    private long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.heartbeatMillis", 60_000));
+    private long idleNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idleMillis", 300_000));
+    private long writeNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.writeMillis", 30_000));
+    private long loopTime = System.nanoTime();  // System.nanoTime() of the current selector round
+
+    // Metrics (only touched by the selector thread)
+    private long messagesIn;
+    private long bytesOut;
+    private long readPauses;
+    private long slowConsumerEvents;
+    private long slowConsumerDisconnects;
+    private long heartbeatsSent;
+    private long idleDisconnects;
+    private long writeTimeouts;
+
+    // Snapshots for the metrics endpoint (experiment 21), refreshed once a
+    // second by the selector thread so the scrape thread never walks the
+    // connection list while it is being modified, nor reads the plain
+    // counters above.
+    private volatile long publishedConnections;
+    private volatile long publishedQueuedBytes;
+    private volatile long publishedMaxDepth;
+    private volatile long publishedDrops;
+    private volatile long publishedCongested;
+    private volatile long publishedTimers;
+    private volatile long publishedMessagesIn;
+    private volatile long publishedBytesOut;
+    private volatile long publishedReadPauses;
+    private volatile long publishedSlowConsumers;
+    private volatile long publishedSlowDisconnects;
+    private volatile long publishedHeartbeats;
+    private volatile long publishedIdleDisconnects;
+    private volatile long publishedWriteTimeouts;
+    // Connection churn and slow-consumer lines can come in storms (load
+    // tests, reconnect waves), so they are logged asynchronously (experiment 22)
+    private static final AsyncLog.Limiter CONNECT_LOG =
+            AsyncLog.limiter("Client connected/disconnected", AsyncLog.Level.INFO, 20);
+    private static final AsyncLog.Limiter SLOW_LOG =
+            AsyncLog.limiter("Slow consumer", AsyncLog.Level.WARN, 20);
+
+    private final LatencyHistogram handleTime =
+            Metrics.histogram("chat_message_handle_micros", "Time to log and broadcast one message");
+
+    // Recent traffic as a pcap download (experiment 26); off unless -Dcapture=on
+    // or /pcap/start, and then the only cost is one volatile read per read/write
+    private final PacketCapture capture = PacketCapture.shared();
+
+    public ChatServer(int port, OutboundQueue.Policy policy, int lowWatermark, int highWatermark,
+                      int capacity, long maxStallMillis) throws IOException {
+        this.policy = policy;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.capacity = capacity;
+        this.maxStallNanos = maxStallMillis * 1_000_000L;
+
+        // Open a non-blocking server channel and register it with the selector
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        Metrics.gauge("chat_active_connections", "Clients currently connected", () -> publishedConnections);
+        Metrics.counter("chat_messages_in_total", "Chat messages received", () -> publishedMessagesIn);
+        Metrics.counter("chat_bytes_out_total", "Bytes written to clients", () -> publishedBytesOut);
+        Metrics.counter("chat_read_pauses_total", "Times a producer was paused by backpressure", () -> publishedReadPauses);
+        Metrics.counter("chat_slow_consumers_total", "Slow-consumer policy activations", () -> publishedSlowConsumers);
+        Metrics.counter("chat_slow_consumer_disconnects_total", "Clients disconnected for being too slow",
+                () -> publishedSlowDisconnects);
+        Metrics.gauge("chat_queued_bytes", "Bytes waiting in all outbound queues", () -> publishedQueuedBytes);
+        Metrics.gauge("chat_max_queue_depth", "Deepest outbound queue (messages)", () -> publishedMaxDepth);
+        Metrics.gauge("chat_dropped_messages", "Messages shed by outbound queues of connected clients",
+                () -> publishedDrops);
+        Metrics.gauge("chat_congested_connections", "Clients above the high watermark", () -> publishedCongested);
+        Metrics.counter("chat_heartbeats_total", "PING lines sent to silent clients", () -> publishedHeartbeats);
+        Metrics.counter("chat_idle_disconnects_total", "Clients closed after the idle timeout",
+                () -> publishedIdleDisconnects);
+        Metrics.counter("chat_write_timeouts_total", "Clients closed because their socket accepted no data",
+                () -> publishedWriteTimeouts);
+        Metrics.gauge("chat_pending_timers", "Timers waiting in the timing wheel", () -> publishedTimers);
+    }
+
+    private void publishMetrics() {
+        publishedConnections = connections.size();
+        publishedQueuedBytes = totalQueuedBytes();
+        publishedMaxDepth = maxQueueDepth();
+        publishedDrops = totalDrops();
+        publishedCongested = congested.size();
+        publishedTimers = wheel.size();
+        publishedMessagesIn = messagesIn;
+        publishedBytesOut = bytesOut;
+        publishedReadPauses = readPauses;
+        publishedSlowConsumers = slowConsumerEvents;
+        publishedSlowDisconnects = slowConsumerDisconnects;
+        publishedHeartbeats = heartbeatsSent;
+        publishedIdleDisconnects = idleDisconnects;
+        publishedWriteTimeouts = writeTimeouts;
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Called on the selector thread with every chat message before it is
+    // broadcast (used by the message log of experiment 16). Must not block.
+    public void setMessageListener(Consumer<String> listener) {
+        this.messageListener = listener;
+    }
+
+    // Wrap every new connection in TLS (experiment 19). Call before run().
+    public void setTls(SSLContext context) {
+        this.sslContext = context;
+    }
+
+    // Send PING after heartbeatMillis of silence, close after idleMillis
+    // without any data, close when output has been stuck for writeMillis.
+    // 0 switches a timeout off. Call before run().
+    public void setTimeouts(long idleMillis, long heartbeatMillis, long writeMillis) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.writeNanos = TimeUnit.MILLISECONDS.toNanos(writeMillis);
+    }
+
+    @Override
+    public void run() {
+        long nextReport = System.nanoTime() + 10_000_000_000L;
+        long nextPublish = System.nanoTime();
+        try {
+            while (running) {
+                // Wake up at least every 100 ms to check stalled consumers
+                // and to move the timing wheel on by one tick
+                selector.select(100);
+                loopTime = System.nanoTime();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        // Empty the accept backlog, not just one connection per wake-up
+                        while (accept()) {
+                            // keep accepting
+                        }
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            onWritable(c);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            onReadable(c);
+                        }
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                loopTime = now;
+                wheel.advance(now);
+                checkStalledConsumers(now);
+                if (now >= nextPublish) {
+                    publishMetrics();
+                    nextPublish = now + 1_000_000_000L;
+                }
+                if (now >= nextReport) {
+                    AsyncLog.info("[stats] " + stats());
+                    nextReport = now + 10_000_000_000L;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Connection c : new ArrayList<>(connections)) {
+                close(c);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private boolean accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return false;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        TlsChannel tls = null;
+        if (sslContext != null) {
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            tls = new TlsChannel(channel, engine);
+        }
+        Connection c = new Connection(nextId++, channel, tls, key,
+                new OutboundQueue(lowWatermark, highWatermark, capacity, policy));
+        key.attach(c);
+        connections.add(c);
+        c.lastRead = loopTime;
+        c.lastPing = loopTime;
+        scheduleIdleTimer(c);
+        if (CONNECT_LOG.allow()) {
+            AsyncLog.info("Client #" + c.id + " connected from " + channel.getRemoteAddress());
+        }
+        ServerEvents.accept("ChatServer", channel.getRemoteAddress());
+
+        // Same greeting as experiments 5 and 7, so TCPClient/Client work unchanged
+        enqueue(c, line("Hello from Server!"), null);
+        return true;
+    }
+
+    private void onReadable(Connection c) throws IOException {
+        while (true) {
+            int n = c.read(c.in);
+            if (n < 0) {
+                close(c);
+                return;
+            }
+            if (n > 0) {
+                c.lastRead = loopTime;  // the idle timer checks this when it fires
+            }
+            if (n > 0 && capture.enabled()) {
+                capture.record(c.flow, true, c.in, c.in.position() - n, c.in.position());
+            }
+            drainLines(c);
+            // TLS may have decrypted more than one read() returns
+            if (n == 0 || c.tls == null || c.pauseCount > 0 || c.closed) {
+                break;
+            }
+        }
+        if (!c.closed) {
+            updateWriteInterest(c); // handshake may have finished or need to send
+        }
+    }
+
+    // Process complete lines from the input buffer until it is empty or the
+    // producer gets paused by a congested consumer.
+    private void drainLines(Connection c) {
+        if (c.draining) {
+            return; // the outer drainLines() call will continue once we return
+        }
+        c.draining = true;
+        ByteBuffer in = c.in;
+        in.flip();
+        while (!c.closed && c.pauseCount == 0) {
+            int end = -1;
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                if (in.position() == 0 && in.limit() == in.capacity()) {
+                    end = in.limit(); // over-long line: treat the full buffer as one message
+                } else {
+                    break;
+                }
+            }
+            byte[] bytes = new byte[end - in.position()];
+            in.get(bytes);
+            if (in.hasRemaining() && end < in.limit()) {
+                in.get(); // skip '\n'
+            }
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            handleLine(c, text);
+        }
+        in.compact();
+        c.draining = false;
+    }
+
+    private void handleLine(Connection from, String text) {
+        if (text.equalsIgnoreCase("exit")) {
+            close(from);
+            return;
+        }
+        if (text.equals("/stats")) {
+            enqueue(from, line(stats()), null);
+            return;
+        }
+        // Heartbeats are not chat: PONG only proves the client is alive,
+        // and a client may check on us with PING as well
+        if (text.equals("PONG")) {
+            return;
+        }
+        if (text.equals("PING")) {
+            enqueue(from, line("PONG"), null);
+            return;
+        }
+        messagesIn++;
+        long start = System.nanoTime();
+        String message = "client#" + from.id + ": " + text;
+        if (messageListener != null) {
+            messageListener.accept(message);
+        }
+        broadcast(from, line(message));
+        handleTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    // One shared buffer per message; each consumer gets its own duplicate
+    // (independent position, same bytes) so broadcasting does not copy.
+    private void broadcast(Connection from, ByteBuffer message) {
+        for (Connection to : new ArrayList<>(connections)) {
+            enqueue(to, message.duplicate(), from);
+        }
+    }
+
+    private void enqueue(Connection to, ByteBuffer message, Connection producer) {
+        if (to.closed) {
+            return;
+        }
+        OutboundQueue.Result result = to.out.offer(message);
+        if (result == OutboundQueue.Result.OVERFLOW) {
+            slowConsumerDisconnects++;
+            if (SLOW_LOG.allow()) {
+                AsyncLog.warn("Client #" + to.id + " is too slow, disconnecting.");
+            }
+            close(to);
+            return;
+        }
+        updateWriteInterest(to);
+
+        // High watermark crossed: pause the producer that filled us up
+        if (to.out.aboveHighWatermark()) {
+            if (to.congestedSince == 0) {
+                to.congestedSince = System.nanoTime();
+                congested.add(to);
+            }
+            if (producer != null && to.blockedProducers.add(producer)) {
+                pauseReads(producer);
+            }
+        }
+    }
+
+    private void onWritable(Connection c) throws IOException {
+        if (c.tls != null && !c.tls.isHandshakeDone()) {
+            c.tls.handshake();
+        } else {
+            long written = c.out.writeTo(c.output(), capture, c.flow);
+            bytesOut += written;
+            if (written > 0) {
+                c.lastWrite = loopTime;
+            }
+        }
+        updateWriteInterest(c);
+        if (c.congestedSince != 0 && c.out.belowLowWatermark()) {
+            uncongest(c);
+        }
+    }
+
+    // OP_WRITE only while there is something we can actually send
+    private void updateWriteInterest(Connection c) {
+        boolean pending = (c.ready() && !c.out.isEmpty()) || (c.tls != null && c.tls.hasPendingOutput());
+        int ops = c.key.interestOps();
+        if (pending && (ops & SelectionKey.OP_WRITE) == 0) {
+            // Output just became pending: the write deadline starts now
+            c.lastWrite = loopTime;
+            if (writeNanos > 0 && c.writeTimer == null) {
+                c.writeTimer = wheel.schedule(() -> onWriteTimer(c), writeNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        c.key.interestOps(pending ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    // Next heartbeat or idle deadline, whichever comes first
+    private void scheduleIdleTimer(Connection c) {
+        long due = Long.MAX_VALUE;
+        if (idleNanos > 0) {
+            due = c.lastRead + idleNanos;
+        }
+        if (heartbeatNanos > 0) {
+            due = Math.min(due, Math.max(c.lastRead, c.lastPing) + heartbeatNanos);
+        }
+        if (due != Long.MAX_VALUE) {
+            c.idleTimer = wheel.schedule(() -> onIdleTimer(c), due - loopTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Reads never touch the wheel; they only move lastRead. When the timer
+    // fires it decides from lastRead whether to ping, reap or just re-arm.
+    private void onIdleTimer(Connection c) {
+        c.idleTimer = null;
+        long silent = loopTime - c.lastRead;
+        if (idleNanos > 0 && silent >= idleNanos) {
+            idleDisconnects++;
+            if (CONNECT_LOG.allow()) {
+                AsyncLog.info("Client #" + c.id + " silent for " + silent / 1_000_000_000L + " s, disconnecting.");
+            }
+            close(c);
+            return;
+        }
+        if (heartbeatNanos > 0 && silent >= heartbeatNanos && loopTime - c.lastPing >= heartbeatNanos) {
+            heartbeatsSent++;
+            c.lastPing = loopTime;
+            enqueue(c, line("PING"), null);
+            if (c.closed) {
+                return;
+            }
+        }
+        scheduleIdleTimer(c);
+    }
+
+    // Output pending and no progress since lastWrite: the peer stopped
+    // reading. Otherwise re-arm for the rest of the deadline.
+    private void onWriteTimer(Connection c) {
+        c.writeTimer = null;
+        if ((c.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            return;  // everything was sent; the next pending output re-arms
+        }
+        long stuck = loopTime - c.lastWrite;
+        if (stuck >= writeNanos) {
+            writeTimeouts++;
+            if (SLOW_LOG.allow()) {
+                AsyncLog.warn("Client #" + c.id + " accepted no data for " + stuck / 1_000_000 + " ms, disconnecting.");
+            }
+            close(c);
+            return;
+        }
+        c.writeTimer = wheel.schedule(() -> onWriteTimer(c), writeNanos - stuck, TimeUnit.NANOSECONDS);
+    }
+
+    // A consumer that stays above the high watermark too long is a slow
+    // consumer: apply the policy so paused producers are not held forever.
+    private void checkStalledConsumers(long now) {
+        for (Connection c : new ArrayList<>(congested)) {
+            if (now - c.congestedSince < maxStallNanos) {
+                continue;
+            }
+            slowConsumerEvents++;
+            if (policy == OutboundQueue.Policy.DISCONNECT) {
+                slowConsumerDisconnects++;
+                if (SLOW_LOG.allow()) {
+                    AsyncLog.warn("Client #" + c.id + " stalled, disconnecting.");
+                }
+                close(c);
+            } else {
+                c.out.shed();
+                uncongest(c);
+            }
+        }
+    }
+
+    private void uncongest(Connection c) {
+        c.congestedSince = 0;
+        congested.remove(c);
+        List<Connection> producers = new ArrayList<>(c.blockedProducers);
+        c.blockedProducers.clear();
+        for (Connection p : producers) {
+            resumeReads(p);
+        }
+    }
+
+    private void pauseReads(Connection p) {
+        if (p.pauseCount++ == 0 && !p.closed) {
+            readPauses++;
+            p.key.interestOps(p.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeReads(Connection p) {
+        if (--p.pauseCount == 0 && !p.closed) {
+            p.key.interestOps(p.key.interestOps() | SelectionKey.OP_READ);
+            drainLines(p); // lines that arrived before the pause
+            if (p.tls != null && p.tls.hasBufferedInput() && p.pauseCount == 0) {
+                try {
+                    onReadable(p); // decrypted data the selector cannot see
+                } catch (IOException e) {
+                    close(p);
+                }
+            }
+        }
+    }
+
+    private void close(Connection c) {
+        if (c.closed) {
+            return;
+        }
+        c.closed = true;
+        connections.remove(c);
+        c.key.cancel();
+        if (c.idleTimer != null) {
+            c.idleTimer.cancel();
+        }
+        if (c.writeTimer != null) {
+            c.writeTimer.cancel();
+        }
+        try {
+            c.output().close(); // TlsChannel sends close_notify first
+        } catch (IOException ignored) {
+        }
+        if (c.congestedSince != 0) {
+            uncongest(c);
+        }
+        if (CONNECT_LOG.allow()) {
+            AsyncLog.info("Client #" + c.id + " disconnected.");
+        }
+    }
+
+    private static ByteBuffer line(String text) {
+        return ByteBuffer.wrap((text + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ---- Metrics ----
+
+    public int connectionCount() { return connections.size(); }
+    public long messagesIn() { return messagesIn; }
+    public long bytesOut() { return bytesOut; }
+    public long readPauses() { return readPauses; }
+    public long slowConsumerEvents() { return slowConsumerEvents; }
+    public long slowConsumerDisconnects() { return slowConsumerDisconnects; }
+    public long heartbeatsSent() { return heartbeatsSent; }
+    public long idleDisconnects() { return idleDisconnects; }
+    public long writeTimeouts() { return writeTimeouts; }
+
+    public long totalQueuedBytes() {
+        long sum = 0;
+        for (Connection c : connections) {
+            sum += c.out.queuedBytes();
+        }
+        return sum;
+    }
+
+    public int maxQueueDepth() {
+        int max = 0;
+        for (Connection c : connections) {
+            max = Math.max(max, c.out.depth());
+        }
+        return max;
+    }
+
+    public long totalDrops() {
+        long sum = 0;
+        for (Connection c : connections) {
+            sum += c.out.drops();
+        }
+        return sum;
+    }
+
+    public String stats() {
+        return "connections=" + connections.size()
+                + " messagesIn=" + messagesIn
+                + " bytesOut=" + bytesOut
+                + " queuedBytes=" + totalQueuedBytes()
+                + " maxDepth=" + maxQueueDepth()
+                + " drops=" + totalDrops()
+                + " congested=" + congested.size()
+                + " readPauses=" + readPauses
+                + " slowConsumers=" + slowConsumerEvents
+                + " slowDisconnects=" + slowConsumerDisconnects
+                + " timers=" + wheel.size()
+                + " heartbeats=" + heartbeatsSent
+                + " idleDisconnects=" + idleDisconnects
+                + " writeTimeouts=" + writeTimeouts;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Usage: java ChatServer [DROP_OLDEST|COALESCE|DISCONNECT]
+        OutboundQueue.Policy policy = args.length > 0
+                ? OutboundQueue.Policy.valueOf(args[0].toUpperCase())
+                : OutboundQueue.Policy.DROP_OLDEST;
+
+        // low 64 KB, high 256 KB, hard cap 1 MB per client, 2 s max stall
+        ChatServer server = new ChatServer(8080, policy, 64 * 1024, 256 * 1024, 1024 * 1024, 2000);
+        System.out.println("Chat server started on port " + server.port() + " (policy " + policy + ")");
+        MetricsEndpoint.start();
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – ChatFloodClient.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+
+public class ChatFloodClient {
+    public static void main(String[] args) throws Exception {
+        // Usage: java ChatFloodClient flood   -> send messages as fast as possible
+        //        java ChatFloodClient slow    -> read only one line per second
+        String mode = args.length > 0 ? args[0] : "flood";
+
+        try (Socket socket = new Socket("localhost", 8080)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream())), false);
+            System.out.println("Server: " + in.readLine());
+
+            if (mode.equals("slow")) {
+                // A slow consumer: its queue on the server fills up
+                String line;
+                while ((line = in.readLine()) != null) {
+                    System.out.println(line);
+                    Thread.sleep(1000);
+                }
+                return;
+            }
+
+            // A noisy producer: discard everything we receive on a background thread
+            Thread drain = new Thread(() -> {
+                try {
+                    while (in.readLine() != null) {
+                        // ignore
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+
+            String padding = "x".repeat(200);
+            for (long i = 0; ; i++) {
+                out.println("flood " + i + " " + padding);
+                if (i % 1000 == 0) {
+                    out.flush();
+                    System.out.println("Sent " + i + " messages");
+                }
+            }
+        }
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in the same directory:
+//         -> OutboundQueue.java
+//         -> ChatServer.java
+//         -> ChatFloodClient.java
+//         -> TlsChannel.java (from experiment 19, used for optional TLS)
+//         -> Metrics.java, ServerEvents.java, MetricsEndpoint.java and
+//            LatencyHistogram.java (experiments 20 – 21, metrics endpoint)
+//         -> AsyncLog.java (experiment 22, server log lines)
+//         -> PacketCapture.java (experiment 26; java -Dcapture=on ChatServer
+//            keeps recent traffic, download it from /pcap on the metrics port)
+//         -> TimingWheel.java (experiment 35, idle/heartbeat/write timeouts)
+//         (TCPClient.java from experiment 5 or Client.java from
+//          experiment 7 can be used as normal chat clients.)
+//
+// Step 2: Compile:
+//         javac OutboundQueue.java TlsChannel.java ChatServer.java ChatFloodClient.java \
+//               Metrics.java ServerEvents.java MetricsEndpoint.java LatencyHistogram.java \
+//               AsyncLog.java PacketCapture.java TimingWheel.java
+//
+// Step 3: Start the server with a slow-consumer policy:
+//         java ChatServer DROP_OLDEST      (or COALESCE / DISCONNECT)
+//
+// Step 4: In other terminals start:
+//         java TCPClient                   (normal chat client)
+//         java ChatFloodClient slow        (reads one line per second)
+//         java ChatFloodClient flood       (sends as fast as it can)
+//
+// Step 5: Watch the "[stats]" line printed by the server every 10 s,
+//         or type /stats in TCPClient. queuedBytes stays bounded,
+//         drops / slowDisconnects grow, and TCPClient keeps chatting.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why the simple chat breaks with broadcast:**
+//    `PrintWriter.println` on a blocking socket waits whenever the
+//    receiver's TCP window is full. In a broadcast loop one slow client
+//    then blocks the sender thread, and with it every other client.
+//    Queuing without limits instead lets memory grow forever.
+//
+// 2. **Non-blocking I/O (NIO):**
+//    - One thread and a `Selector` serve all clients.
+//    - `OP_READ` / `OP_WRITE` tell us when a socket can be read / written.
+//    - A write only copies what fits in the socket buffer, the rest
+//      waits in the connection's outbound queue.
+//
+// 3. **Bounded outbound queue with watermarks:**
+//    - Every connection has an `OutboundQueue` limited in bytes.
+//    - High watermark: the producer whose message pushed a queue over it
+//      stops being read (OP_READ removed). TCP flow control then slows
+//      that producer down naturally.
+//    - Low watermark: once the queue drains below it, paused producers
+//      are read again. Two thresholds avoid flapping (hysteresis).
+//
+// 4. **Slow-consumer policies** (when a queue stays above the high
+//    watermark longer than the stall limit, or hits its hard capacity):
+//    - DROP_OLDEST: discard the oldest unsent messages.
+//    - COALESCE: replace all unsent messages with one "N skipped" line.
+//    - DISCONNECT: close the slow connection.
+//
+// 5. **Zero-copy broadcast:**
+//    The message bytes are encoded once; each consumer queues a
+//    `ByteBuffer.duplicate()` which shares the bytes but keeps its own
+//    position. Gathering writes send several queued messages per syscall.
+//
+// 6. **Metrics exposed:**
+//    connections, queued bytes, maximum queue depth, drops, congested
+//    consumers, read pauses and slow-consumer disconnects.
+//
+// 7. **Timeouts:**
+//    A client silent for 60 s gets a "PING" line (answer "PONG"), one
+//    silent for 5 min is closed, and one whose socket accepts no data for
+//    30 s is closed. The timers live in a timing wheel (experiment 35);
+//    set them with -Dchat.heartbeatMillis, -Dchat.idleMillis and
+//    -Dchat.writeMillis (0 = off).
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
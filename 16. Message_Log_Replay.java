@@ -0,0 +1,573 @@
+// ===================================================================
+// EXPERIMENT: PERSISTENT CHAT LOG WITH MEMORY-MAPPED SEGMENTS & REPLAY
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Append-only log + replay server for the chat of experiment 15
+// ===================================================================
+// AIM:
+// Store every chat message on disk in an append-only, segmented log and
+// let a reconnecting client replay all messages from a given offset,
+// sending the file bytes straight from the page cache to the socket.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – MessageLog.java
+// ==========================================================
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class MessageLog implements Closeable {
+
+    // One file of the log, named after the offset of its first record.
+    // Records are text lines "<offset> <message>\n"; the unused tail of the
+    // pre-allocated file is zero bytes. append() turns newlines and NUL
+    // characters in a message into spaces, so recovery can rely on both.
+    private static final class Segment {
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        int size;     // bytes of valid records
+        int forced;   // bytes already flushed to disk
+
+        // Sparse index: every indexInterval-th offset -> file position
+        long[] indexOffsets = new long[64];
+        int[] indexPositions = new int[64];
+        int indexCount;
+
+        Segment(long baseOffset, FileChannel channel, MappedByteBuffer map) {
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        void addIndex(long offset, int position) {
+            if (indexCount == indexOffsets.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexOffsets[indexCount] = offset;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        // Position of the closest indexed record at or before offset
+        int floorPosition(long offset) {
+            int i = Arrays.binarySearch(indexOffsets, 0, indexCount, offset);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return i < 0 ? 0 : indexPositions[i];
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final long commitIntervalMillis;
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Segment> sealed = new ArrayList<>(); // full segments the flusher still has to force
+    private final Thread flusher;
+
+    private Segment active;
+    private long nextOffset;
+    private long durableOffset;
+    private boolean closed;
+
+    public MessageLog(Path directory, int segmentBytes, int indexInterval, long commitIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        this.commitIntervalMillis = commitIntervalMillis;
+
+        // Re-open existing segments (oldest first) and rebuild their indexes
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            segments.add(recover(file));
+        }
+        if (segments.isEmpty()) {
+            segments.add(openSegment(0));
+        }
+        active = segments.get(segments.size() - 1);
+        durableOffset = nextOffset - 1;
+
+        // Background thread for group commit
+        flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Append one message and return its offset. Only copies into the mapped
+    // segment; the flusher thread makes it durable shortly afterwards.
+    public synchronized long append(String message) throws IOException {
+        if (closed) {
+            throw new IOException("Message log is closed");
+        }
+        long offset = nextOffset;
+        byte[] record = (offset + " " + message.replace('\n', ' ').replace('\0', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+        if (record.length > segmentBytes) {
+            throw new IllegalArgumentException("Message larger than a log segment");
+        }
+        if (active.size + record.length > active.map.capacity()) {
+            roll();
+        }
+        if (active.size == 0 || offset % indexInterval == 0) {
+            active.addIndex(offset, active.size);
+        }
+        active.map.put(active.size, record);
+        active.size += record.length;
+        nextOffset++;
+        notifyAll(); // wake the flusher
+        return offset;
+    }
+
+    // Block until every record up to and including offset is on disk
+    public synchronized void awaitDurable(long offset) throws InterruptedException {
+        while (durableOffset < offset && !closed) {
+            wait();
+        }
+    }
+
+    public synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    // Send all records starting at fromOffset to target using
+    // FileChannel.transferTo (sendfile), so the bytes never enter the heap.
+    // target should be a blocking channel. Returns the bytes sent.
+    public long transferTo(long fromOffset, WritableByteChannel target) throws IOException {
+        List<Segment> snapshot;
+        int[] sizes;
+        int first;
+        int startPosition;
+        synchronized (this) {
+            if (fromOffset >= nextOffset) {
+                return 0;
+            }
+            snapshot = new ArrayList<>(segments);
+            sizes = new int[snapshot.size()];
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = snapshot.get(i).size;
+            }
+            first = 0;
+            while (first + 1 < snapshot.size() && snapshot.get(first + 1).baseOffset <= fromOffset) {
+                first++;
+            }
+            startPosition = locate(snapshot.get(first), fromOffset, sizes[first]);
+        }
+
+        long total = 0;
+        for (int i = first; i < snapshot.size(); i++) {
+            FileChannel channel = snapshot.get(i).channel;
+            long position = (i == first) ? startPosition : 0;
+            while (position < sizes[i]) {
+                long n = channel.transferTo(position, sizes[i] - position, target);
+                if (n <= 0) {
+                    return total; // peer stopped reading
+                }
+                position += n;
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment s : segments) {
+                s.map.force();
+                s.channel.close();
+            }
+        }
+    }
+
+    // ---- internals ----
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && nextOffset - 1 == durableOffset) {
+                        wait();
+                    }
+                    if (closed) {
+                        return; // close() forces everything itself
+                    }
+                }
+
+                // Group commit: let more appends pile up, then one fsync for all
+                Thread.sleep(commitIntervalMillis);
+
+                List<Segment> full;
+                Segment segment;
+                int from;
+                int to;
+                long upTo;
+                synchronized (this) {
+                    full = new ArrayList<>(sealed);
+                    sealed.clear();
+                    segment = active;
+                    from = segment.forced;
+                    to = segment.size;
+                    upTo = nextOffset - 1;
+                }
+                // outside the lock: appends continue
+                for (Segment s : full) {
+                    s.map.force(s.forced, s.size - s.forced);
+                }
+                if (to > from) {
+                    segment.map.force(from, to - from);
+                }
+                synchronized (this) {
+                    for (Segment s : full) {
+                        s.forced = s.size;
+                    }
+                    segment.forced = Math.max(segment.forced, to);
+                    durableOffset = Math.max(durableOffset, upTo);
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Start a new segment. The old one no longer changes; the flusher
+    // forces its remaining bytes before it reports them durable.
+    private void roll() throws IOException {
+        if (active.forced < active.size) {
+            sealed.add(active);
+        }
+        active = openSegment(nextOffset);
+        segments.add(active);
+    }
+
+    private Segment openSegment(long baseOffset) throws IOException {
+        Path file = directory.resolve(String.format("%020d.log", baseOffset));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = Math.max(channel.size(), segmentBytes);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        return new Segment(baseOffset, channel, map);
+    }
+
+    // Scan a segment written by an earlier run: rebuild the index, find the
+    // end of the valid data and wipe a torn (half written) last record.
+    private Segment recover(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        Segment segment = openSegment(Long.parseLong(name.substring(0, name.length() - 4)));
+        MappedByteBuffer map = segment.map;
+        nextOffset = segment.baseOffset;
+
+        int position = 0;
+        while (position < map.capacity() && map.get(position) != 0) {
+            int end = position;
+            while (end < map.capacity() && map.get(end) != '\n' && map.get(end) != 0) {
+                end++;
+            }
+            if (end == map.capacity() || map.get(end) != '\n') {
+                break; // torn record
+            }
+            long offset = parseOffset(map, position);
+            if (segment.indexCount == 0 || offset % indexInterval == 0) {
+                segment.addIndex(offset, position);
+            }
+            nextOffset = offset + 1;
+            position = end + 1;
+        }
+        segment.size = position;
+        segment.forced = position;
+        for (int i = position; i < map.capacity() && map.get(i) != 0; i++) {
+            map.put(i, (byte) 0);
+        }
+        return segment;
+    }
+
+    // File position of the first record with offset >= fromOffset
+    private static int locate(Segment segment, long fromOffset, int size) {
+        int position = segment.floorPosition(fromOffset);
+        while (position < size && parseOffset(segment.map, position) < fromOffset) {
+            while (segment.map.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    private static long parseOffset(MappedByteBuffer map, int position) {
+        long value = 0;
+        byte b;
+        while ((b = map.get(position++)) != ' ') {
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – ReplayServer.java
+// ==========================================================
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+public class ReplayServer implements Runnable {
+
+    private final ServerSocketChannel serverChannel;
+    private final MessageLog log;
+
+    public ReplayServer(int port, MessageLog log) throws IOException {
+        this.log = log;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // Blocking accept; one short-lived thread per replay request
+                SocketChannel client = serverChannel.accept();
+                Thread t = new Thread(() -> serve(client), "replay-" + client.socket().getPort());
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Request: one line with the first offset wanted, e.g. "120\n".
+    // Response: the raw log records from that offset, then the server closes.
+    private void serve(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            ByteBuffer request = ByteBuffer.allocate(32);
+            while (request.hasRemaining() && !containsNewline(request)) {
+                if (channel.read(request) < 0) {
+                    return;
+                }
+            }
+            request.flip();
+            String text = StandardCharsets.US_ASCII.decode(request).toString().trim();
+            long fromOffset = Long.parseLong(text);
+
+            long bytes = log.transferTo(fromOffset, channel);
+            System.out.println("Replayed " + bytes + " bytes from offset " + fromOffset
+                    + " to " + channel.getRemoteAddress());
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Replay failed: " + e.getMessage());
+        }
+    }
+
+    private static boolean containsNewline(ByteBuffer buffer) {
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Usage: java ReplayServer [logDirectory]
+        String directory = args.length > 0 ? args[0] : "chatlog";
+
+        // 16 MB segments, index every 64th message, group commit every 5 ms
+        MessageLog log = new MessageLog(Paths.get(directory), 16 * 1024 * 1024, 64, 5);
+        System.out.println("Message log opened in " + directory + ", next offset " + log.nextOffset());
+
+        // Chat server from experiment 15 with every message appended to the log
+        ChatServer chat = new ChatServer(8080, OutboundQueue.Policy.DROP_OLDEST,
+                64 * 1024, 256 * 1024, 1024 * 1024, 2000);
+        chat.setMessageListener(message -> {
+            try {
+                log.append(message);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+
+        Thread replay = new Thread(new ReplayServer(8081, log), "replay-acceptor");
+        replay.setDaemon(true);
+        replay.start();
+
+        System.out.println("Chat on port 8080, replay on port 8081");
+        try {
+            chat.run();
+        } finally {
+            log.close();
+        }
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – ReplayClient.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+
+public class ReplayClient {
+    public static void main(String[] args) throws IOException {
+        // Resume from the offset saved by the previous run unless one is given
+        Path saved = Paths.get(".replay_offset");
+        long fromOffset = 0;
+        if (args.length > 0) {
+            fromOffset = Long.parseLong(args[0]);
+        } else if (Files.exists(saved)) {
+            fromOffset = Long.parseLong(Files.readString(saved).trim());
+        }
+
+        try (Socket socket = new Socket("localhost", 8081)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+
+            // Ask for all messages starting at fromOffset
+            out.println(fromOffset);
+
+            long next = fromOffset;
+            String record;
+            while ((record = in.readLine()) != null) {
+                System.out.println(record);
+                next = Long.parseLong(record.substring(0, record.indexOf(' '))) + 1;
+            }
+
+            // Remember where we stopped for the next reconnect
+            Files.writeString(saved, Long.toString(next));
+            System.out.println("Replay finished, next offset " + next);
+        }
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in one directory together with
+//         OutboundQueue.java and ChatServer.java from experiment 15:
+//         -> MessageLog.java
+//         -> ReplayServer.java
+//         -> ReplayClient.java
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Start the chat server with logging and replay:
+//         java ReplayServer chatlog
+//         (chat on port 8080, replay on port 8081, log files in ./chatlog)
+//
+// Step 4: Chat a little with TCPClient (experiment 5) from two terminals.
+//
+// Step 5: Replay everything, or from a chosen offset:
+//         java ReplayClient 0
+//         java ReplayClient 120
+//         Running "java ReplayClient" without an offset continues from
+//         where the previous replay stopped.
+//
+// Step 6: Stop and restart ReplayServer – old messages are still there
+//         and new ones continue with the next offset.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Append-only log:**
+//    Messages are only ever added at the end. Every message gets an
+//    increasing number (offset) so a client can say "send me everything
+//    after message 120".
+//
+// 2. **Segments:**
+//    The log is split into fixed-size files (16 MB here) named after
+//    their first offset, e.g. 00000000000000000000.log. Old segments can
+//    be deleted or archived without touching the active one.
+//
+// 3. **Memory-mapped files:**
+//    `FileChannel.map()` maps the file into memory. Appending a message is
+//    a memory copy – no write() system call per message.
+//
+// 4. **Group commit:**
+//    `MappedByteBuffer.force()` (fsync) is slow. A background thread waits
+//    a few milliseconds, then flushes everything appended meanwhile with
+//    one call, so many messages share the cost of one fsync.
+//
+// 5. **Sparse offset index:**
+//    Only every 64th offset is remembered with its file position. To find
+//    offset N: binary-search the index for the closest entry <= N, then
+//    scan at most 63 records forward.
+//
+// 6. **Zero-copy replay:**
+//    `FileChannel.transferTo(socket)` uses sendfile(): the kernel copies
+//    page-cache pages straight to the socket, the JVM heap is not used.
+//
+// 7. **Recovery:**
+//    On restart every segment is scanned once to rebuild the index and
+//    find the end of valid data; a half-written last record is erased.
+//    The first zero byte marks the end, which is why append() replaces
+//    NUL characters inside a message with spaces.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,417 @@
+// ===================================================================
+// EXPERIMENT: MULTIPLEXED REQUEST/RESPONSE STREAMS OVER ONE TCP SOCKET
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Framed protocol with stream IDs (like HTTP/2)
+// ===================================================================
+// AIM:
+// In experiment 5 the client sends one message and waits for the reply
+// before it can send the next. Here many requests share one connection:
+// every frame carries a stream ID, the server works on the streams in
+// parallel and responses may come back in any order.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – VirtualThreads.java
+// ==========================================================
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class VirtualThreads {
+
+    // One virtual thread per task on Java 21+, a cached pool of platform
+    // threads on older JDKs. Looked up by reflection so this file still
+    // compiles with Java 17.
+    public static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
+
+
+
+// ==========================================================
+// HELPER CODE – MuxFrame.java
+// ==========================================================
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class MuxFrame {
+
+    // Frame layout: [int streamId][byte type][int length][length bytes]
+    public static final byte REQUEST = 1;
+    public static final byte RESPONSE = 2;
+    public static final byte ERROR = 3;
+
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    public final int streamId;
+    public final byte type;
+    public final byte[] payload;
+
+    public MuxFrame(int streamId, byte type, byte[] payload) {
+        this.streamId = streamId;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    // Returns null at end of stream
+    public static MuxFrame read(DataInputStream in) throws IOException {
+        int streamId;
+        try {
+            streamId = in.readInt();
+        } catch (java.io.EOFException e) {
+            return null;
+        }
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new MuxFrame(streamId, type, payload);
+    }
+
+    // Frames from different threads must not interleave, so writers lock
+    // the stream and flush the whole frame at once.
+    public static void write(DataOutputStream out, int streamId, byte type, byte[] payload) throws IOException {
+        synchronized (out) {
+            out.writeInt(streamId);
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        }
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – MuxServer.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+public class MuxServer {
+
+    private final ServerSocket serverSocket;
+    private final Function<byte[], byte[]> handler;
+    private final ExecutorService streams = VirtualThreads.newExecutor();
+    static final int IDLE_TIMEOUT_MILLIS = 5 * 60_000;   // no frame for this long closes the connection
+
+    public MuxServer(int port, Function<byte[], byte[]> handler) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.handler = handler;
+    }
+
+    public void run() throws IOException {
+        while (true) {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            streams.execute(() -> serve(socket));
+        }
+    }
+
+    // One reader per connection; every REQUEST frame becomes its own task
+    private void serve(Socket socket) {
+        System.out.println("Client connected: " + socket.getRemoteSocketAddress());
+        try (Socket s = socket) {
+            s.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            MuxFrame frame;
+            while ((frame = MuxFrame.read(in)) != null) {
+                if (frame.type != MuxFrame.REQUEST) {
+                    continue;
+                }
+                MuxFrame request = frame;
+                streams.execute(() -> respond(out, request));
+            }
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e.getMessage());
+        }
+        System.out.println("Client disconnected: " + socket.getRemoteSocketAddress());
+    }
+
+    private void respond(DataOutputStream out, MuxFrame request) {
+        try {
+            byte[] response;
+            byte type = MuxFrame.RESPONSE;
+            try {
+                response = handler.apply(request.payload);
+            } catch (RuntimeException e) {
+                response = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                type = MuxFrame.ERROR;
+            }
+            MuxFrame.write(out, request.streamId, type, response);
+        } catch (IOException e) {
+            // connection is gone; the reader loop will notice and clean up
+        }
+    }
+
+    // Demo handler: "delay:<ms>:<text>" sleeps <ms> then upper-cases <text>,
+    // anything else is upper-cased immediately.
+    static byte[] demoHandler(byte[] request) {
+        String text = new String(request, StandardCharsets.UTF_8);
+        if (text.startsWith("delay:")) {
+            int colon = text.indexOf(':', 6);
+            long millis = Long.parseLong(text.substring(6, colon));
+            text = text.substring(colon + 1);
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return text.toUpperCase().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        MuxServer server = new MuxServer(8090, MuxServer::demoHandler);
+        System.out.println("Multiplexing server listening on port 8090...");
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – MuxClient.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MuxClient implements Closeable {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private final Semaphore streamLimit;
+    private volatile IOException failure;
+
+    public MuxClient(String host, int port, int maxConcurrentStreams) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        streamLimit = new Semaphore(maxConcurrentStreams);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread reader = new Thread(() -> readLoop(in), "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // Send a request on a new stream. The future completes when the response
+    // for this stream ID arrives, whatever order the server answers in.
+    // Blocks only if maxConcurrentStreams requests are already in flight.
+    public CompletableFuture<byte[]> send(byte[] request) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            streamLimit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((r, e) -> streamLimit.release());
+
+        // Odd IDs for client-initiated streams, as in HTTP/2
+        int streamId = nextStreamId.getAndAdd(2);
+        pending.put(streamId, future);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            MuxFrame.write(out, streamId, MuxFrame.REQUEST, request);
+        } catch (IOException e) {
+            pending.remove(streamId);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<String> send(String request) {
+        return send(request.getBytes(StandardCharsets.UTF_8))
+                .thenApply(b -> new String(b, StandardCharsets.UTF_8));
+    }
+
+    private void readLoop(DataInputStream in) {
+        IOException error = new EOFException("Connection closed");
+        try {
+            MuxFrame frame;
+            while ((frame = MuxFrame.read(in)) != null) {
+                CompletableFuture<byte[]> future = pending.remove(frame.streamId);
+                if (future == null) {
+                    continue;
+                }
+                if (frame.type == MuxFrame.ERROR) {
+                    future.completeExceptionally(new IOException(
+                            "Server error: " + new String(frame.payload, StandardCharsets.UTF_8)));
+                } else {
+                    future.complete(frame.payload);
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        // Fail every stream still waiting, and all later sends
+        failure = error;
+        for (Integer id : pending.keySet()) {
+            CompletableFuture<byte[]> future = pending.remove(id);
+            if (future != null) {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (MuxClient client = new MuxClient("localhost", 8090, 1000)) {
+            System.out.println("Connected to the server.");
+
+            // Part 1: five requests at once, the slow ones finish last
+            int[] delays = {500, 100, 300, 0, 200};
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < delays.length; i++) {
+                String request = "delay:" + delays[i] + ":request " + i;
+                futures.add(client.send(request).thenApply(response -> {
+                    System.out.printf("%4d ms  %s%n", (System.nanoTime() - start) / 1_000_000, response);
+                    return response;
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            System.out.println("All 5 done in " + (System.nanoTime() - start) / 1_000_000
+                    + " ms on one socket (sequential would take 1100 ms)");
+
+            // Part 2: throughput with many streams in flight
+            int total = 100_000;
+            byte[] payload = "hello".getBytes(StandardCharsets.UTF_8);
+            CompletableFuture<?>[] all = new CompletableFuture<?>[total];
+            long t0 = System.nanoTime();
+            for (int i = 0; i < total; i++) {
+                all[i] = client.send(payload);
+            }
+            CompletableFuture.allOf(all).join();
+            double seconds = (System.nanoTime() - t0) / 1e9;
+            System.out.printf("%d requests in %.2f s = %.0f req/s%n", total, seconds, total / seconds);
+        }
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in the same directory:
+//         -> VirtualThreads.java
+//         -> MuxFrame.java
+//         -> MuxServer.java
+//         -> MuxClient.java
+//
+// Step 2: Compile:
+//         javac VirtualThreads.java MuxFrame.java MuxServer.java MuxClient.java
+//
+// Step 3: Start the server:
+//         java MuxServer
+//
+// Step 4: In another terminal run the client:
+//         java MuxClient
+//
+// Step 5: Observe that the responses print in order of their delay
+//         (request 3, 1, 4, 2, 0), all five finish in about 500 ms, and
+//         the throughput test runs 100,000 requests over the same socket.
+//
+// Note: On Java 21+ every stream runs on a virtual thread; on older
+//       JDKs a cached thread pool is used instead.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Head-of-line blocking:**
+//    With "send, then wait for the reply" only one exchange can be in
+//    progress per socket. A slow request blocks everything behind it, so
+//    clients open many sockets (more handshakes, more memory).
+//
+// 2. **Framing and stream IDs:**
+//    Each message is a frame: stream ID, type, length, payload. The
+//    length tells the reader where a frame ends; the stream ID tells the
+//    client which request a response belongs to.
+//
+// 3. **Multiplexing:**
+//    Many streams share one TCP connection. Frames of different streams
+//    may interleave, and responses can return out of order.
+//    HTTP/2 and gRPC work this way.
+//
+// 4. **Server concurrency:**
+//    The connection's reader only decodes frames; each request runs in its
+//    own task. Virtual threads (Java 21) make a thread per stream cheap.
+//    Writers lock the output stream so frames never get mixed up.
+//
+// 5. **Async client API:**
+//    `send()` returns a `CompletableFuture` immediately. A reader thread
+//    looks up the future by stream ID and completes it. A semaphore caps
+//    the number of streams in flight (simple flow control).
+//
+// 6. **Odd/even stream IDs:**
+//    Client-started streams use odd IDs (1, 3, 5 ...) like HTTP/2, leaving
+//    even IDs free for server-initiated streams.
+//
+// 7. **Idle timeout:**
+//    The server's reader has a 5 minute read timeout. A client that sends
+//    no frame for that long (or vanished without a FIN) is disconnected
+//    instead of holding a socket and a thread forever.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,575 @@
+// ===================================================================
+// EXPERIMENT: CLIENT-SIDE TCP CONNECTION POOL WITH KEEPALIVE & RECONNECT
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Reusable client library + benchmark
+// ===================================================================
+// AIM:
+// TCPClient, Client and FileSenderClient open a new Socket every run and
+// throw it away. For short request/response exchanges the TCP handshake
+// costs more than the exchange itself. This experiment keeps connections
+// open in a pool per host:port and reuses them.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – PooledConnection.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+
+public class PooledConnection implements Closeable {
+
+    final String host;
+    final int port;
+    final Socket socket;
+    final BufferedInputStream rawIn;
+    final DataInputStream in;
+    final DataOutputStream out;
+    private final ConnectionPool pool;
+
+    long lastUsed = System.nanoTime();
+    boolean broken;
+    boolean reused;            // handed out from the idle pool, not freshly connected
+    boolean failedUnanswered;  // last exchange failed before any response byte arrived
+
+    static final int MAX_RESPONSE = 16 << 20;   // larger length prefixes are a protocol error
+
+    PooledConnection(ConnectionPool pool, String host, int port, Socket socket) throws IOException {
+        this.pool = pool;
+        this.host = host;
+        this.port = port;
+        this.socket = socket;
+        this.rawIn = new BufferedInputStream(socket.getInputStream());
+        this.in = new DataInputStream(rawIn);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // One length-prefixed request/response: [int length][bytes] each way
+    public byte[] exchange(byte[] request) throws IOException {
+        failedUnanswered = true;
+        try {
+            out.writeInt(request.length);
+            out.write(request);
+            out.flush();
+            int first = in.read();
+            if (first < 0) {
+                throw new EOFException("connection closed before the response");
+            }
+            failedUnanswered = false;   // the server has started answering
+            int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                    | in.readUnsignedByte();
+            if (length < 0 || length > MAX_RESPONSE) {
+                throw new IOException("bad response length " + length);
+            }
+            byte[] response = new byte[length];
+            in.readFully(response);
+            return response;
+        } catch (Throwable t) {
+            broken = true;      // any failure (even OutOfMemoryError) leaves the stream mid-frame
+            throw t;
+        }
+    }
+
+    public DataInputStream input() { return in; }
+    public DataOutputStream output() { return out; }
+
+    // Do not reuse this connection (protocol error, half-read response ...)
+    public void markBroken() {
+        broken = true;
+    }
+
+    // Give the connection back to the pool instead of closing the socket
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    // Cheap liveness probe for an idle connection: wait 1 ms for a byte.
+    // A timeout means "alive and quiet"; EOF or unexpected data means the
+    // connection must not be reused.
+    boolean probe() {
+        try {
+            socket.setSoTimeout(1);
+            rawIn.read();
+            return false; // EOF (-1) or unsolicited data
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
+
+
+
+// ==========================================================
+// HELPER CODE – ConnectionPool.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionPool implements Closeable {
+
+    private final int maxIdlePerHost;
+    private final long maxIdleNanos;
+    private final long probeAfterNanos;
+    private final int connectTimeoutMillis;
+    private final int maxConnectAttempts;
+    private final long backoffBaseMillis;
+    private final long backoffCapMillis;
+
+    // "host:port" -> idle connections, most recently used at the head
+    private final Map<String, ArrayDeque<PooledConnection>> idle = new ConcurrentHashMap<>();
+    private final Thread evictor;
+    private volatile boolean closed;
+
+    // Metrics
+    public final LongAdder created = new LongAdder();
+    public final LongAdder reused = new LongAdder();
+    public final LongAdder evicted = new LongAdder();
+    public final LongAdder failedProbes = new LongAdder();
+    public final LongAdder connectRetries = new LongAdder();
+
+    public ConnectionPool(int maxIdlePerHost, long maxIdleMillis, long probeAfterMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.maxIdleNanos = maxIdleMillis * 1_000_000L;
+        this.probeAfterNanos = probeAfterMillis * 1_000_000L;
+        this.connectTimeoutMillis = 2000;
+        this.maxConnectAttempts = 6;
+        this.backoffBaseMillis = 50;
+        this.backoffCapMillis = 5000;
+
+        // Background eviction of connections idle for too long
+        evictor = new Thread(this::evictLoop, "pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    public ConnectionPool() {
+        this(8, 30_000, 1_000);
+    }
+
+    // Get a connection to host:port: a healthy idle one if possible,
+    // otherwise a new one (with retries and jittered backoff).
+    public PooledConnection borrow(String host, int port) throws IOException {
+        if (closed) {
+            throw new IOException("Pool is closed");
+        }
+        ArrayDeque<PooledConnection> deque = idle.computeIfAbsent(host + ":" + port, k -> new ArrayDeque<>());
+        while (true) {
+            PooledConnection c;
+            synchronized (deque) {
+                c = deque.pollFirst();
+            }
+            if (c == null) {
+                break;
+            }
+            // Only probe connections that sat idle for a while; probing costs ~1 ms
+            if (System.nanoTime() - c.lastUsed > probeAfterNanos && !c.probe()) {
+                failedProbes.increment();
+                c.closeSocket();
+                continue;
+            }
+            reused.increment();
+            c.reused = true;
+            return c;
+        }
+        return connect(host, port);
+    }
+
+    // Run one exchange, retrying once on a fresh connection if a pooled
+    // connection turned out to be stale (server closed it while idle).
+    // Only then is a replay safe: the write failed or the connection was
+    // closed before any response byte, so the server never handled the
+    // request. Read timeouts and failures on new connections are rethrown.
+    public byte[] exchange(String host, int port, byte[] request) throws IOException {
+        PooledConnection c = borrow(host, port);
+        try {
+            return c.exchange(request);
+        } catch (IOException e) {
+            if (!c.reused || !c.failedUnanswered || e instanceof SocketTimeoutException) {
+                throw e;
+            }
+            PooledConnection fresh = connect(host, port);
+            try (fresh) {
+                return fresh.exchange(request);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    void release(PooledConnection c) {
+        if (c.broken || closed || c.socket.isClosed()) {
+            c.closeSocket();
+            return;
+        }
+        c.lastUsed = System.nanoTime();
+        ArrayDeque<PooledConnection> deque = idle.computeIfAbsent(c.host + ":" + c.port, k -> new ArrayDeque<>());
+        synchronized (deque) {
+            if (deque.contains(c)) {
+                return; // released twice
+            }
+            if (deque.size() < maxIdlePerHost) {
+                deque.addFirst(c);
+                return;
+            }
+        }
+        c.closeSocket();
+    }
+
+    private PooledConnection connect(String host, int port) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt < maxConnectAttempts; attempt++) {
+            if (attempt > 0) {
+                connectRetries.increment();
+                sleepBackoff(attempt);
+            }
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true); // TCP keepalive detects dead peers while idle
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                created.increment();
+                return new PooledConnection(this, host, port, socket);
+            } catch (IOException e) {
+                last = e;
+                socket.close();
+            }
+        }
+        throw last;
+    }
+
+    // "Full jitter" exponential backoff: random(0, min(cap, base * 2^attempt)).
+    // Random delays keep many clients from reconnecting in lock-step.
+    private void sleepBackoff(int attempt) throws InterruptedIOException {
+        long ceiling = Math.min(backoffCapMillis, backoffBaseMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during reconnect backoff");
+        }
+    }
+
+    private void evictLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(Math.max(100, maxIdleNanos / 1_000_000L / 4));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (ArrayDeque<PooledConnection> deque : idle.values()) {
+                synchronized (deque) {
+                    // Oldest connections are at the tail
+                    Iterator<PooledConnection> it = deque.descendingIterator();
+                    while (it.hasNext()) {
+                        PooledConnection c = it.next();
+                        if (now - c.lastUsed < maxIdleNanos) {
+                            break;
+                        }
+                        it.remove();
+                        c.closeSocket();
+                        evicted.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    public int idleCount() {
+        int n = 0;
+        for (ArrayDeque<PooledConnection> deque : idle.values()) {
+            synchronized (deque) {
+                n += deque.size();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        evictor.interrupt();
+        for (ArrayDeque<PooledConnection> deque : idle.values()) {
+            synchronized (deque) {
+                for (PooledConnection c : deque) {
+                    c.closeSocket();
+                }
+                deque.clear();
+            }
+        }
+    }
+
+    public String stats() {
+        return "created=" + created.sum() + " reused=" + reused.sum() + " idle=" + idleCount()
+                + " evicted=" + evicted.sum() + " failedProbes=" + failedProbes.sum()
+                + " connectRetries=" + connectRetries.sum();
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – FrameEchoServer.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+
+public class FrameEchoServer implements Runnable {
+
+    // Longer than the pool's idle limit, so normally the client closes first
+    static final int IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private final ServerSocket serverSocket;
+
+    public FrameEchoServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 1024);
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread t = new Thread(() -> serve(socket));
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            // server socket closed
+        }
+    }
+
+    // Echo length-prefixed frames until the client closes (keep-alive)
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                int length = in.readInt();
+                byte[] data = new byte[length];
+                in.readFully(data);
+                out.writeInt(length);
+                out.write(data);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client closed the connection
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        FrameEchoServer server = new FrameEchoServer(9000);
+        System.out.println("Echo server listening on port 9000...");
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – PoolBenchmark.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+public class PoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int requestsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        // In-process echo server on a free port
+        FrameEchoServer server = new FrameEchoServer(0);
+        Thread serverThread = new Thread(server);
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        byte[] request = new byte[1024];
+        System.out.println("1 KB request/response, " + threads + " threads x " + requestsPerThread + " requests");
+
+        // Warm up the JIT once for both paths
+        run("warm-up", threads, 200, () -> fresh(server.port(), request));
+        try (ConnectionPool warmPool = new ConnectionPool(threads, 30_000, 1_000)) {
+            run("warm-up", threads, 200, () -> warmPool.exchange("localhost", server.port(), request));
+        }
+        System.out.println();
+
+        run("fresh ", threads, requestsPerThread, () -> fresh(server.port(), request));
+        try (ConnectionPool pool = new ConnectionPool(threads, 30_000, 1_000)) {
+            run("pooled", threads, requestsPerThread, () -> pool.exchange("localhost", server.port(), request));
+            System.out.println("pool: " + pool.stats());
+        }
+        server.close();
+    }
+
+    interface Exchange {
+        byte[] call() throws IOException;
+    }
+
+    // A new socket for every exchange, as the lab programs do
+    static byte[] fresh(int port, byte[] request) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeInt(request.length);
+            out.write(request);
+            out.flush();
+            byte[] response = new byte[in.readInt()];
+            in.readFully(response);
+            return response;
+        }
+    }
+
+    static void run(String label, int threads, int perThread, Exchange exchange) throws Exception {
+        long[] latencies = new long[threads * perThread];
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            pool.execute(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        long t0 = System.nanoTime();
+                        exchange.call();
+                        latencies[base + i] = System.nanoTime() - t0;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        if (label.startsWith("warm")) {
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%s: %8.0f req/s   p50 %6.1f us   p99 %7.1f us   max %8.1f us%n",
+                label, latencies.length / seconds,
+                latencies[latencies.length / 2] / 1e3,
+                latencies[(int) (latencies.length * 0.99)] / 1e3,
+                latencies[latencies.length - 1] / 1e3);
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in the same directory:
+//         -> PooledConnection.java
+//         -> ConnectionPool.java
+//         -> FrameEchoServer.java
+//         -> PoolBenchmark.java
+//
+// Step 2: Compile:
+//         javac PooledConnection.java ConnectionPool.java FrameEchoServer.java PoolBenchmark.java
+//
+// Step 3: Run the benchmark (starts its own echo server):
+//         java PoolBenchmark            (8 threads x 2000 requests)
+//         java PoolBenchmark 32 5000
+//
+// Step 4: Compare the "fresh" and "pooled" lines. The pool line also
+//         shows how many sockets were created versus reused.
+//
+// Using the pool in your own client:
+//         ConnectionPool pool = new ConnectionPool();
+//         try (PooledConnection c = pool.borrow("localhost", 9000)) {
+//             byte[] reply = c.exchange(data);
+//         }                                // returned to the pool, not closed
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Cost of a new TCP connection:**
+//    SYN, SYN-ACK, ACK = one round trip before any data, plus socket
+//    setup in the kernel, plus a TIME_WAIT entry after closing. On a LAN
+//    this dominates a 1 KB exchange; over a WAN it is much worse.
+//
+// 2. **Connection pool:**
+//    Connections are kept open after use and handed to the next request
+//    for the same host:port (as HTTP keep-alive does).
+//
+// 3. **Keepalive & health checks:**
+//    - SO_KEEPALIVE lets the OS detect peers that vanished while idle.
+//    - Before reusing a connection that sat idle, the pool reads with a
+//      1 ms timeout: timeout = healthy, EOF = server closed it.
+//    - If a request still fails on a reused socket it is retried once on
+//      a fresh connection.
+//
+// 4. **Max-idle eviction:**
+//    A background thread closes connections unused for longer than the
+//    idle limit, so servers are not holding sockets for nothing.
+//    The echo server has its own, longer read timeout (60 s) for clients
+//    that never close; the pool's health check notices when it fires.
+//
+// 5. **Reconnect with jittered exponential backoff:**
+//    Failed connects are retried after random(0, min(cap, base * 2^n))
+//    milliseconds. The randomness spreads out many clients that lost the
+//    same server at the same moment (avoids a "thundering herd").
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,791 @@
+// ===================================================================
+// EXPERIMENT: TLS FOR TCP CHAT & FILE TRANSFER USING SSLEngine
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: TLS layer for blocking and non-blocking SocketChannels
+// ===================================================================
+// AIM:
+// Experiments 5 and 8 send everything in plaintext (anyone running
+// Wireshark can read it, see experiment 13). Here the same chat and
+// file transfer run over TLS. SSLEngine is used instead of SSLSocket
+// because it also works with the non-blocking Selector server of
+// experiment 15. Sessions are cached so reconnecting clients skip the
+// expensive full handshake.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – TlsChannel.java
+// ==========================================================
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer[] NOTHING = { ByteBuffer.allocate(0) };
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;   // encrypted bytes read from the socket (write mode)
+    private ByteBuffer netOut;  // encrypted bytes waiting for the socket (read mode)
+    private ByteBuffer appIn;   // decrypted bytes not yet returned by read() (read mode)
+    private boolean handshakeDone;
+    private boolean inboundDone;
+
+    // Works with blocking and non-blocking channels. In non-blocking mode
+    // read()/write() return 0 when the socket cannot make progress; call
+    // them again (or flush()) when the Selector says so.
+    public TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut.flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        appIn.flip();
+        engine.beginHandshake();
+    }
+
+    public SocketChannel socketChannel() { return channel; }
+    public SSLEngine engine() { return engine; }
+    public boolean isHandshakeDone() { return handshakeDone; }
+
+    // Encrypted bytes still waiting to go out (keep OP_WRITE set)
+    public boolean hasPendingOutput() { return netOut.hasRemaining(); }
+
+    // Decrypted or undecoded bytes already pulled from the socket; the
+    // Selector will not report these as readable, so keep reading.
+    public boolean hasBufferedInput() { return appIn.hasRemaining() || netIn.position() > 0; }
+
+    // Drive the handshake as far as possible. Returns true when finished,
+    // false if it has to wait for the socket (non-blocking mode only).
+    // Records produced by consecutive NEED_WRAP steps are sent together,
+    // right before we wait for the peer, so a flight is one TCP segment.
+    public boolean handshake() throws IOException {
+        while (true) {
+            if (inboundDone) {
+                throw new SSLException("Connection closed during handshake");
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    SSLEngineResult result = wrap(NOTHING, 0, 1);
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        return false; // netOut full and the socket is not writable
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!flush() || !unwrap()) {
+                        return false;
+                    }
+                    break;
+                case NEED_TASK:
+                    // Certificate checks and key exchange math; cheap enough inline
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                default: // FINISHED or NOT_HANDSHAKING
+                    handshakeDone = true;
+                    return flush();
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshakeDone && !handshake()) {
+            return 0;
+        }
+        while (!appIn.hasRemaining()) {
+            if (inboundDone) {
+                return -1;
+            }
+            if (!unwrap()) {
+                return 0;
+            }
+            // Post-handshake messages (TLS 1.3 session tickets, key updates)
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (!inboundDone && status != HandshakeStatus.NOT_HANDSHAKING
+                    && status != HandshakeStatus.FINISHED) {
+                handshake();
+            }
+        }
+        int n = Math.min(dst.remaining(), appIn.remaining());
+        ByteBuffer chunk = appIn.slice();
+        chunk.limit(n);
+        dst.put(chunk);
+        appIn.position(appIn.position() + n);
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    // Encrypts as much as fits; bytes that are consumed but not yet on the
+    // wire stay in netOut and go out with the next write()/flush().
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshakeDone && !handshake()) {
+            return 0;
+        }
+        if (!flush()) {
+            return 0;
+        }
+        long consumed = 0;
+        while (hasRemaining(srcs, offset, length)) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new ClosedChannelException();
+            }
+            consumed += result.bytesConsumed();
+            if (!flush() || result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    // Push pending encrypted bytes to the socket. True when nothing is left.
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    // Half-close: send close_notify and a TCP FIN but keep reading. Closing
+    // a socket that still has unread data (e.g. a TLS 1.3 session ticket)
+    // makes the kernel send RST, and the peer may lose the last records.
+    public void shutdownOutput() throws IOException {
+        engine.closeOutbound();
+        wrap(NOTHING, 0, 1);
+        flush();
+        channel.shutdownOutput();
+    }
+
+    // Send close_notify (best effort) and close the socket
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            engine.closeOutbound();
+            if (handshakeDone) {
+                wrap(NOTHING, 0, 1);
+                flush();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            channel.close();
+        }
+    }
+
+    // ---- internals ----
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            if (netOut.hasRemaining()) {
+                if (!flush()) {
+                    return result; // socket full, caller retries later
+                }
+            } else {
+                netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+                netOut.flip();
+            }
+        }
+    }
+
+    // Decrypt one TLS record into appIn. Returns false if more network data
+    // is needed and the (non-blocking) socket has none right now.
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+                appIn.flip();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    return true;
+                case CLOSED:
+                    inboundDone = true;
+                    return true;
+                case BUFFER_OVERFLOW:
+                    if (appIn.hasRemaining()) {
+                        return true; // let the caller consume what we have first
+                    }
+                    appIn = ByteBuffer.allocate(appIn.capacity() * 2);
+                    appIn.flip();
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() * 2);
+                        netIn.flip();
+                        bigger.put(netIn);
+                        netIn = bigger;
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        inboundDone = true;
+                        if (!handshakeDone) {
+                            throw new SSLException("Connection closed during handshake");
+                        }
+                        try {
+                            engine.closeInbound();
+                        } catch (SSLException ignored) {
+                            // peer closed without close_notify
+                        }
+                        return true;
+                    }
+                    if (n == 0) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+
+
+// ==========================================================
+// HELPER CODE – TlsContexts.java
+// ==========================================================
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+public class TlsContexts {
+
+    public static final String KEYSTORE = "tls-selfsigned.p12";
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    // Server context with a large session cache, so returning clients can
+    // resume (TLS 1.2 session IDs; TLS 1.3 uses session tickets).
+    public static SSLContext server() throws Exception {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(loadKeyStore(), PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionCacheSize(20_000);
+        context.getServerSessionContext().setSessionTimeout(24 * 3600);
+        return context;
+    }
+
+    // Client context that trusts our self-signed certificate. Keep ONE
+    // instance per process: its session cache is what makes resumption work.
+    public static SSLContext client() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(loadKeyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        context.getClientSessionContext().setSessionCacheSize(1_000);
+        return context;
+    }
+
+    public static SSLEngine serverEngine(SSLContext context) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // Passing host and port lets JSSE look up a cached session for that
+    // peer and resume it; the host name is also checked against the cert.
+    public static SSLEngine clientEngine(SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    // Create a self-signed certificate for localhost with keytool if needed
+    private static KeyStore loadKeyStore() throws Exception {
+        Path file = Paths.get(KEYSTORE);
+        if (!Files.exists(file)) {
+            String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+            Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server",
+                    "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "365",
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                    "-keystore", KEYSTORE, "-storetype", "PKCS12",
+                    "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD))
+                    .inheritIO().start();
+            if (p.waitFor() != 0) {
+                throw new IOException("keytool failed");
+            }
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(file)) {
+            store.load(in, PASSWORD);
+        }
+        return store;
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – TlsChatServer.java
+// ==========================================================
+
+public class TlsChatServer {
+    public static void main(String[] args) throws Exception {
+        // The broadcast chat of experiment 15, with TLS on every connection
+        ChatServer server = new ChatServer(8443, OutboundQueue.Policy.DROP_OLDEST,
+                64 * 1024, 256 * 1024, 1024 * 1024, 2000);
+        server.setTls(TlsContexts.server());
+        System.out.println("TLS chat server started on port " + server.port());
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – TlsChatClient.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import javax.net.ssl.SSLContext;
+
+public class TlsChatClient {
+    public static void main(String[] args) throws Exception {
+        SSLContext context = TlsContexts.client();
+
+        // Blocking SocketChannel + TlsChannel, then ordinary streams on top
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", 8443));
+        channel.socket().setTcpNoDelay(true);
+        try (TlsChannel tls = new TlsChannel(channel, TlsContexts.clientEngine(context, "localhost", 8443))) {
+            tls.handshake();
+            System.out.println("Connected to the server using " + tls.engine().getSession().getProtocol()
+                    + " / " + tls.engine().getSession().getCipherSuite());
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(tls),
+                    StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(tls),
+                    StandardCharsets.UTF_8), true);
+
+            // Same conversation as TCPClient in experiment 5
+            System.out.println("Server: " + in.readLine());
+            out.println("Hello from Client!");
+
+            BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
+            String message;
+            while (true) {
+                System.out.print("Enter message to server: ");
+                message = userInput.readLine();
+                out.println(message);
+                if (message.equalsIgnoreCase("exit")) {
+                    System.out.println("Client closed connection.");
+                    break;
+                }
+                System.out.println("Server: " + in.readLine());
+            }
+        }
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – TlsFileReceiverServer.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import javax.net.ssl.SSLContext;
+
+public class TlsFileReceiverServer {
+    public static void main(String[] args) throws Exception {
+        int port = 12443;
+        String saveFilePath = "received_file.txt";
+        SSLContext context = TlsContexts.server();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("TLS file server listening on port " + port + "...");
+
+            while (true) {
+                SocketChannel socket = server.accept();
+                try (TlsChannel tls = new TlsChannel(socket, TlsContexts.serverEngine(context));
+                     FileChannel file = FileChannel.open(Paths.get(saveFilePath),
+                             StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                             StandardOpenOption.TRUNCATE_EXISTING)) {
+                    tls.handshake();
+                    System.out.println("Client connected (" + tls.engine().getSession().getProtocol() + ").");
+
+                    // Decrypt and write until the client sends close_notify
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    long total = 0;
+                    while (tls.read(buffer) != -1) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            total += file.write(buffer);
+                        }
+                        buffer.clear();
+                    }
+                    System.out.println("Received " + total + " bytes, saved as: " + saveFilePath);
+                } catch (IOException e) {
+                    System.out.println("Transfer failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – TlsFileSenderClient.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import javax.net.ssl.SSLContext;
+
+public class TlsFileSenderClient {
+    public static void main(String[] args) throws Exception {
+        String hostname = "localhost";
+        int port = 12443;
+        String filePath = args.length > 0 ? args[0] : "file_to_send.txt";
+        SSLContext context = TlsContexts.client();
+
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(hostname, port));
+        try (TlsChannel tls = new TlsChannel(socket, TlsContexts.clientEngine(context, hostname, port));
+             FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            tls.handshake();
+            System.out.println("Connected to server.");
+
+            // Read file and send it encrypted in 64 KB chunks
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (file.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    tls.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            // Tell the server we are done and wait until it has closed too
+            tls.shutdownOutput();
+            buffer.clear();
+            while (tls.read(buffer) != -1) {
+                buffer.clear();
+            }
+            System.out.println("File sent successfully over TLS!");
+        }
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – TlsBenchmark.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.*;
+
+public class TlsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        SSLContext serverContext = TlsContexts.server();
+        SSLContext clientContext = TlsContexts.client();
+
+        // ---- Part 1: handshake rate against the TLS chat server ----
+        ChatServer chat = new ChatServer(0, OutboundQueue.Policy.DROP_OLDEST,
+                64 * 1024, 256 * 1024, 1024 * 1024, 2000);
+        chat.setTls(serverContext);
+        Thread chatThread = new Thread(chat);
+        chatThread.setDaemon(true);
+        chatThread.start();
+        int port = chat.port();
+
+        handshakes("warm-up", threads, 1, clientContext, port, false);
+        handshakes("full handshakes   ", threads, 3, clientContext, port, false);
+        handshakes("resumed handshakes", threads, 3, clientContext, port, true);
+        chat.shutdown();
+
+        // ---- Part 2: bulk throughput, plain TCP vs TLS ----
+        bulk("warm-up", serverContext, clientContext, 64, true);
+        bulk("plain TCP", null, null, megabytes, false);
+        bulk("TLS      ", serverContext, clientContext, megabytes, false);
+    }
+
+    // Connect, handshake, read the greeting line, close – as fast as possible.
+    // Without host/port JSSE has no cache key, so every handshake is full.
+    static void handshakes(String label, int threads, int seconds, SSLContext context,
+                           int port, boolean resume) throws Exception {
+        AtomicLong count = new AtomicLong();
+        AtomicLong resumed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long started = System.currentTimeMillis();
+                        SSLEngine engine = resume
+                                ? TlsContexts.clientEngine(context, "localhost", port)
+                                : context.createSSLEngine();
+                        engine.setUseClientMode(true);
+                        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                        channel.socket().setTcpNoDelay(true);
+                        try (TlsChannel tls = new TlsChannel(channel, engine)) {
+                            tls.handshake();
+                            readLine(tls);
+                            // A resumed session keeps the creation time of the original one
+                            if (engine.getSession().getCreationTime() < started) {
+                                resumed.incrementAndGet();
+                            }
+                        }
+                        count.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 30, TimeUnit.SECONDS);
+        if (!label.startsWith("warm")) {
+            System.out.printf("%s: %7.0f handshakes/s (%d connections, %d resumed)%n",
+                    label, count.get() / (double) seconds, count.get(), resumed.get());
+        }
+    }
+
+    static void readLine(TlsChannel tls) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (true) {
+            one.clear();
+            if (tls.read(one) < 0 || one.get(0) == '\n') {
+                return;
+            }
+        }
+    }
+
+    // Send `megabytes` MB to an in-process sink which acknowledges with one
+    // byte once everything arrived.
+    static void bulk(String label, SSLContext serverContext, SSLContext clientContext,
+                     int megabytes, boolean quiet) throws Exception {
+        long total = megabytes * 1024L * 1024L;
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+
+        Thread sink = new Thread(() -> {
+            try (SocketChannel socket = server.accept()) {
+                ByteChannel io = socket;
+                if (serverContext != null) {
+                    TlsChannel tls = new TlsChannel(socket, TlsContexts.serverEngine(serverContext));
+                    tls.handshake();
+                    io = tls;
+                }
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                long received = 0;
+                while (received < total) {
+                    int n = io.read(buffer);
+                    if (n < 0) {
+                        break;
+                    }
+                    received += n;
+                    buffer.clear();
+                }
+                io.write(ByteBuffer.wrap(new byte[] { 1 }));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        sink.start();
+
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", port));
+        ByteChannel io = socket;
+        if (clientContext != null) {
+            TlsChannel tls = new TlsChannel(socket, TlsContexts.clientEngine(clientContext, "localhost", port));
+            tls.handshake();
+            io = tls;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        long start = System.nanoTime();
+        for (long sent = 0; sent < total; sent += chunk.capacity()) {
+            chunk.clear();
+            while (chunk.hasRemaining()) {
+                io.write(chunk);
+            }
+        }
+        ByteBuffer ack = ByteBuffer.allocate(1);
+        while (ack.hasRemaining() && io.read(ack) >= 0) {
+            // wait for the sink
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        io.close();
+        sink.join();
+        server.close();
+        if (!quiet) {
+            System.out.printf("%s: %5d MB in %.2f s = %7.1f MB/s%n", label, megabytes, seconds, megabytes / seconds);
+        }
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in one directory together with
+//         OutboundQueue.java and ChatServer.java from experiment 15:
+//         -> TlsChannel.java, TlsContexts.java
+//         -> TlsChatServer.java, TlsChatClient.java
+//         -> TlsFileReceiverServer.java, TlsFileSenderClient.java
+//         -> TlsBenchmark.java
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: The first program started creates "tls-selfsigned.p12", a
+//         self-signed certificate for localhost, using keytool from the
+//         JDK. Server and client both load it (the client as trust store).
+//
+// Step 4: TLS chat:
+//         java TlsChatServer          (terminal 1)
+//         java TlsChatClient          (terminal 2, 3 ...)
+//
+// Step 5: TLS file transfer (compare with experiment 8):
+//         java TlsFileReceiverServer  (terminal 1)
+//         java TlsFileSenderClient file_to_send.txt
+//
+// Step 6: Benchmark (full vs resumed handshakes, plain vs TLS throughput):
+//         java TlsBenchmark            (4 threads, 512 MB)
+//         java TlsBenchmark 8 1024
+//
+// Step 7: Capture port 8443 in Wireshark with filter "tls" – only the
+//         handshake is readable, the chat text is encrypted.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **TLS (Transport Layer Security):**
+//    Runs on top of TCP and provides encryption, integrity and server
+//    authentication (certificate). HTTPS = HTTP over TLS.
+//
+// 2. **SSLSocket vs SSLEngine:**
+//    - SSLSocket is a blocking socket: easy, but one thread per client.
+//    - SSLEngine only transforms bytes (wrap = encrypt, unwrap = decrypt)
+//      and leaves the I/O to us, so it works with Selector/NIO servers.
+//
+// 3. **TlsChannel buffers:**
+//    netIn  – encrypted bytes read from the socket, not yet decrypted
+//    appIn  – decrypted bytes not yet handed to the application
+//    netOut – encrypted bytes not yet written to the socket
+//    A Selector only knows about the socket, so data sitting in netIn /
+//    appIn must be drained explicitly (hasBufferedInput()).
+//
+// 4. **Handshake:**
+//    Full handshake = key exchange + certificate verification (public-key
+//    crypto, the expensive part). The engine tells us what to do next:
+//    NEED_WRAP, NEED_UNWRAP or NEED_TASK.
+//
+// 5. **Session resumption:**
+//    - Server keeps a session cache (or issues session tickets, TLS 1.3).
+//    - Client keeps its own cache keyed by host:port; that is why the
+//      client SSLContext must be shared and createSSLEngine(host, port)
+//      must be used.
+//    - A resumed handshake skips certificate checks and most public-key
+//      operations, so the handshake rate is much higher.
+//    - The cache lives in memory: a program that runs once and exits
+//      (like TlsFileSenderClient) always does a full handshake.
+//
+// 6. **Cost of TLS for bulk data:**
+//    After the handshake AES-GCM runs with CPU instructions (AES-NI), so
+//    bulk throughput is close to plain TCP; the extra copies through
+//    the TLS buffers also rule out zero-copy transferTo().
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,638 @@
+// ===================================================================
+// EXPERIMENT: LOAD TESTING THE TCP CHAT SERVER WITH SIMULATED CLIENTS
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Headless load generator (NIO) with JSON report
+// ===================================================================
+// AIM:
+// TCPClient reads from the keyboard, so the servers can only ever be
+// tried with a couple of hand-typed messages. This tool opens thousands
+// of connections, sends messages at a fixed rate, and measures how long
+// each message takes to be delivered to the other clients.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – LatencyHistogram.java
+// ==========================================================
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+    // Log-linear buckets: values 0..31 are exact, above that every power of
+    // two is split into 32 sub-buckets (about 3 % relative error). Covers
+    // the whole long range in 1920 counters, no resizing, no allocation.
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB + (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Thread-safe; uncontended recording is a few atomic adds
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long m;
+        long value = other.max.get();
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    public long count() { return total.sum(); }
+    public long max() { return max.get(); }
+    public long sum() { return sum.sum(); }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    // Value at the given percentile (0..100), reported as the upper edge
+    // of its bucket so results are never optimistic.
+    public long percentile(double percent) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) - SUB;
+        return SUB + shift * SUB + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int shift = (index - SUB) / SUB;
+        int sub = (index - SUB) % SUB;
+        return ((long) (SUB + sub + 1) << shift) - 1;
+    }
+}
+
+
+
+// ==========================================================
+// LOAD TESTER CODE – ChatLoadTester.java
+// ==========================================================
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChatLoadTester {
+
+    // ---- configuration (key=value arguments) ----
+    final String host;
+    final int port;
+    final int connections;
+    final int rate;          // messages per second, all connections together
+    final int size;          // bytes per message (including the header)
+    final int durationSeconds;
+    final int warmupSeconds;
+    final int threads;
+    final String output;
+
+    // ---- results ----
+    final LatencyHistogram latency = new LatencyHistogram();   // nanoseconds, send -> delivery
+    final LatencyHistogram setup = new LatencyHistogram();     // nanoseconds, connect -> greeting
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder ioErrors = new LongAdder();
+    final LongAdder skippedSends = new LongAdder();    // connection still busy writing
+    final LongAdder scheduledMeasured = new LongAdder(); // sends due after warm-up, skipped or not
+    final LongAdder skippedMeasured = new LongAdder();   // ... of which skipped: no latency sample
+    final LongAdder established = new LongAdder();
+
+    volatile long measureFrom;   // System.nanoTime() after warm-up
+
+    // One simulated client
+    static final class Client {
+        final int id;
+        SocketChannel channel;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer out;              // unsent rest of the last message
+        long connectStart;
+        boolean greeted;
+        boolean dead;
+
+        Client(int id) {
+            this.id = id;
+        }
+    }
+
+    ChatLoadTester(Map<String, String> args) {
+        host = args.getOrDefault("host", "localhost");
+        port = Integer.parseInt(args.getOrDefault("port", "8080"));
+        connections = Integer.parseInt(args.getOrDefault("connections", "1000"));
+        rate = Integer.parseInt(args.getOrDefault("rate", "1000"));
+        size = Math.max(64, Integer.parseInt(args.getOrDefault("size", "100")));
+        durationSeconds = Integer.parseInt(args.getOrDefault("duration", "20"));
+        warmupSeconds = Integer.parseInt(args.getOrDefault("warmup", "2"));
+        threads = Integer.parseInt(args.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        output = args.get("out");
+    }
+
+    void run() throws Exception {
+        System.err.printf("Load test: %d connections, %d msg/s, %d bytes, %d s (+%d s warm-up), %d I/O threads%n",
+                connections, rate, size, durationSeconds, warmupSeconds, threads);
+
+        // Each I/O thread owns a Selector and a slice of the connections
+        CountDownLatch connected = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        long[] endAt = new long[1];
+        for (int t = 0; t < threads; t++) {
+            int first = t * connections / threads;
+            int last = (t + 1) * connections / threads;
+            Thread worker = new Thread(() -> {
+                try {
+                    ioLoop(first, last, connected, go, endAt);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "load-io-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        connected.await();
+        System.err.printf("Connected %d of %d clients%n", established.sum(), connections);
+
+        long start = System.nanoTime();
+        measureFrom = start + warmupSeconds * 1_000_000_000L;
+        endAt[0] = measureFrom + durationSeconds * 1_000_000_000L;
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long omitted = skippedMeasured.sum();
+        if (omitted > 0) {
+            System.err.printf("WARNING: %d of %d scheduled sends (%.1f%%) were skipped because the connection "
+                    + "was still writing; the latency percentiles do not include them%n",
+                    omitted, scheduledMeasured.sum(), 100.0 * omitted / scheduledMeasured.sum());
+        }
+        String json = report();
+        System.out.println(json);
+        if (output != null) {
+            Files.writeString(Paths.get(output), json);
+            System.err.println("Report written to " + output);
+        }
+    }
+
+    private void ioLoop(int first, int last, CountDownLatch connected, CountDownLatch go, long[] endAt)
+            throws Exception {
+        Selector selector = Selector.open();
+        List<Client> clients = new ArrayList<>();
+
+        // Phase 1: open all connections (non-blocking connect)
+        for (int i = first; i < last; i++) {
+            Client c = new Client(i);
+            try {
+                c.channel = SocketChannel.open();
+                c.channel.configureBlocking(false);
+                c.channel.socket().setTcpNoDelay(true);
+                c.connectStart = System.nanoTime();
+                c.channel.connect(new InetSocketAddress(host, port));
+                c.key = c.channel.register(selector, SelectionKey.OP_CONNECT, c);
+                clients.add(c);
+            } catch (IOException e) {
+                connectFailures.increment();
+            }
+        }
+        long connectDeadline = System.nanoTime() + 15_000_000_000L;
+        int pending = clients.size();
+        while (pending > 0 && System.nanoTime() < connectDeadline) {
+            selector.select(100);
+            pending -= handleKeys(selector, false);
+        }
+        for (Client c : clients) {
+            if (!c.greeted && !c.dead) {
+                connectFailures.increment(); // timed out
+                kill(c);
+            }
+        }
+        connected.countDown();
+        go.await();
+
+        // Phase 2: send at a fixed rate, round-robin over our connections
+        List<Client> live = new ArrayList<>();
+        for (Client c : clients) {
+            if (!c.dead) {
+                live.add(c);
+            }
+        }
+        double threadRate = rate / (double) threads;
+        long interval = threadRate > 0 ? (long) (1e9 / threadRate) : Long.MAX_VALUE;
+        long nextSend = System.nanoTime();
+        int next = 0;
+        byte[] padding = new byte[size];
+        Arrays.fill(padding, (byte) 'x');
+
+        while (System.nanoTime() < endAt[0]) {
+            long now = System.nanoTime();
+            while (now >= nextSend && !live.isEmpty()) {
+                Client c = live.get(next++ % live.size());
+                // The intended send time goes into the message, so a
+                // stalled sender cannot hide latency (coordinated omission)
+                send(c, nextSend, padding);
+                nextSend += interval;
+            }
+            long waitMillis = Math.max(1, (nextSend - System.nanoTime()) / 1_000_000);
+            selector.select(Math.min(waitMillis, 100));
+            handleKeys(selector, true);
+        }
+
+        // Phase 3: collect messages still in flight, then close
+        long drainUntil = System.nanoTime() + 1_000_000_000L;
+        while (System.nanoTime() < drainUntil) {
+            selector.select(50);
+            handleKeys(selector, true);
+        }
+        for (Client c : clients) {
+            kill(c);
+        }
+        selector.close();
+    }
+
+    // Returns the number of clients that finished connecting (greeting received)
+    private int handleKeys(Selector selector, boolean running) {
+        int greetedNow = 0;
+        for (SelectionKey key : selector.selectedKeys()) {
+            Client c = (Client) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    c.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    continue;
+                }
+                if (key.isWritable()) {
+                    flush(c);
+                }
+                if (key.isReadable()) {
+                    boolean wasGreeted = c.greeted;
+                    if (!read(c)) {
+                        if (running) {
+                            disconnects.increment();
+                        }
+                        kill(c);
+                        if (!wasGreeted) {
+                            connectFailures.increment();
+                            greetedNow++; // stop waiting for it
+                        }
+                        continue;
+                    }
+                    if (!wasGreeted && c.greeted) {
+                        greetedNow++;
+                    }
+                }
+            } catch (IOException e) {
+                if (!c.greeted) {
+                    connectFailures.increment();
+                    greetedNow++;
+                } else {
+                    ioErrors.increment();
+                }
+                kill(c);
+            }
+        }
+        selector.selectedKeys().clear();
+        return greetedNow;
+    }
+
+    // Message: "LT <client> <sendNanos> xxxx...\n", padded to `size` bytes
+    private void send(Client c, long sendNanos, byte[] padding) {
+        if (c.dead) {
+            return;
+        }
+        boolean measured = sendNanos >= measureFrom;
+        if (measured) {
+            scheduledMeasured.increment();
+        }
+        if (c.out != null && c.out.hasRemaining()) {
+            // Never sent, so never delivered: this is exactly the slow case
+            // the percentiles cannot see. Counted and reported next to them.
+            skippedSends.increment();
+            if (measured) {
+                skippedMeasured.increment();
+            }
+            return;
+        }
+        byte[] header = ("LT " + c.id + " " + sendNanos + " ").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer message = ByteBuffer.allocate(size);
+        message.put(header, 0, Math.min(header.length, size - 1));
+        message.put(padding, 0, size - 1 - message.position());
+        message.put((byte) '\n');
+        message.flip();
+        c.out = message;
+        sent.increment();
+        try {
+            flush(c);
+        } catch (IOException e) {
+            ioErrors.increment();
+            kill(c);
+        }
+    }
+
+    // Write what the socket takes; wait for OP_WRITE for the rest
+    private void flush(Client c) throws IOException {
+        if (c.out == null) {
+            return;
+        }
+        bytesOut.add(c.channel.write(c.out));
+        if (c.out.hasRemaining()) {
+            c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            c.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    // Read and parse complete lines; false on EOF
+    private boolean read(Client c) throws IOException {
+        int n = c.channel.read(c.in);
+        if (n < 0) {
+            return false;
+        }
+        bytesIn.add(n);
+        long now = System.nanoTime();
+        ByteBuffer in = c.in;
+        in.flip();
+        int lineStart = in.position();
+        for (int i = in.position(); i < in.limit(); i++) {
+            if (in.get(i) != '\n') {
+                continue;
+            }
+            onLine(c, in, lineStart, i, now);
+            lineStart = i + 1;
+        }
+        in.position(lineStart);
+        if (in.position() == 0 && in.limit() == in.capacity()) {
+            in.clear(); // line longer than the buffer: drop it
+        } else {
+            in.compact();
+        }
+        return true;
+    }
+
+    private void onLine(Client c, ByteBuffer in, int start, int end, long now) {
+        if (!c.greeted) {
+            c.greeted = true;
+            established.increment();
+            setup.record(now - c.connectStart);
+            return;
+        }
+        // Broadcast lines look like "client#7: LT 12 123456789 xxx"
+        int lt = indexOf(in, start, end, (byte) 'L', (byte) 'T', (byte) ' ');
+        if (lt < 0) {
+            return;
+        }
+        int p = lt + 3;
+        while (p < end && in.get(p) != ' ') {
+            p++; // skip sender id
+        }
+        long sendNanos = 0;
+        for (p++; p < end && in.get(p) >= '0' && in.get(p) <= '9'; p++) {
+            sendNanos = sendNanos * 10 + (in.get(p) - '0');
+        }
+        if (sendNanos >= measureFrom) {
+            delivered.increment();
+            latency.record(now - sendNanos);
+        }
+    }
+
+    private static int indexOf(ByteBuffer in, int start, int end, byte a, byte b, byte c) {
+        for (int i = start; i + 2 < end; i++) {
+            if (in.get(i) == a && in.get(i + 1) == b && in.get(i + 2) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void kill(Client c) {
+        if (c.dead) {
+            return;
+        }
+        c.dead = true;
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ---- machine-readable report ----
+
+    private String report() {
+        double seconds = durationSeconds;
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"config\": {\"host\": \"").append(host).append("\", \"port\": ").append(port)
+            .append(", \"connections\": ").append(connections).append(", \"rate\": ").append(rate)
+            .append(", \"size\": ").append(size).append(", \"durationSeconds\": ").append(durationSeconds)
+            .append(", \"warmupSeconds\": ").append(warmupSeconds).append(", \"threads\": ").append(threads)
+            .append("},\n");
+        json.append("  \"connections\": {\"established\": ").append(established.sum())
+            .append(", \"failed\": ").append(connectFailures.sum())
+            .append(", \"setupMillis\": ").append(summary(setup, 1e6)).append("},\n");
+        json.append("  \"throughput\": {\"sentPerSecond\": ").append(fmt(sent.sum() / (seconds + warmupSeconds)))
+            .append(", \"deliveredPerSecond\": ").append(fmt(delivered.sum() / seconds))
+            .append(", \"bytesInPerSecond\": ").append(fmt(bytesIn.sum() / (seconds + warmupSeconds)))
+            .append(", \"bytesOutPerSecond\": ").append(fmt(bytesOut.sum() / (seconds + warmupSeconds)))
+            .append("},\n");
+        json.append("  \"messages\": {\"sent\": ").append(sent.sum())
+            .append(", \"delivered\": ").append(delivered.sum())
+            .append(", \"skippedSends\": ").append(skippedSends.sum()).append("},\n");
+        json.append("  \"latencyMillis\": ")
+            .append(summary(latency, 1e6, skippedMeasured.sum(), scheduledMeasured.sum())).append(",\n");
+        json.append("  \"errors\": {\"connectFailures\": ").append(connectFailures.sum())
+            .append(", \"disconnects\": ").append(disconnects.sum())
+            .append(", \"ioErrors\": ").append(ioErrors.sum()).append("}\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String summary(LatencyHistogram h, double unit) {
+        return summary(h, unit, -1, 0);
+    }
+
+    // omitted >= 0: samples that could not be taken (skipped sends), shown
+    // next to the percentiles so an optimistic tail is visible
+    private static String summary(LatencyHistogram h, double unit, long omitted, long scheduled) {
+        return "{\"count\": " + h.count()
+                + (omitted < 0 ? "" : ", \"omitted\": " + omitted
+                        + ", \"omittedPercent\": " + fmt(100.0 * omitted / Math.max(1, scheduled)))
+                + ", \"mean\": " + fmt(h.mean() / unit)
+                + ", \"p50\": " + fmt(h.percentile(50) / unit)
+                + ", \"p90\": " + fmt(h.percentile(90) / unit)
+                + ", \"p99\": " + fmt(h.percentile(99) / unit)
+                + ", \"p999\": " + fmt(h.percentile(99.9) / unit)
+                + ", \"max\": " + fmt(h.max() / unit) + "}";
+    }
+
+    private static String fmt(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Usage: java ChatLoadTester connections=1000 rate=1000 size=100 duration=20 out=run1.json
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Arguments must look like key=value, got: " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new ChatLoadTester(options).run();
+    }
+}
+
+
+
+
+
+
+
+
+
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save LatencyHistogram.java and ChatLoadTester.java in the
+//         same directory and compile:
+//         javac LatencyHistogram.java ChatLoadTester.java
+//
+// Step 2: Start the server under test, e.g. the broadcast chat server of
+//         experiment 15 (TCPServer and Server accept only one client):
+//         java ChatServer DROP_OLDEST
+//
+// Step 3: Run the load test:
+//         java ChatLoadTester connections=1000 rate=200 size=100 duration=20 out=run1.json
+//
+//         Options (all key=value, all optional):
+//           host, port         server address          (localhost, 8080)
+//           connections        simulated clients       (1000)
+//           rate               messages/s in total     (1000)
+//           size               bytes per message       (100, minimum 64)
+//           duration, warmup   seconds                 (20, 2)
+//           threads            NIO I/O threads         (CPU count)
+//           out                JSON report file        (stdout only)
+//
+// Step 4: Compare two runs (e.g. before/after a server change):
+//         diff run1.json run2.json
+//
+// Note: every message is broadcast to every client, so the server sends
+//       connections x rate messages per second. Start small.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why a load generator:**
+//    A server that works with 2 clients may collapse with 2000. Only a
+//    reproducible, automated load shows throughput limits and latency.
+//
+// 2. **NIO instead of a thread per client:**
+//    A few threads with Selectors drive thousands of non-blocking sockets,
+//    so the load tester itself is not the bottleneck.
+//
+// 3. **End-to-end latency with embedded timestamps:**
+//    Each message carries its send time (System.nanoTime()). When any
+//    client receives the broadcast copy, latency = now - send time.
+//    Works because all simulated clients run in the same JVM (same clock).
+//
+// 4. **Coordinated omission:**
+//    If the sender falls behind schedule, using the actual send time would
+//    hide the delay. The tool stamps the *intended* send time instead.
+//    A send that is skipped because the connection is still writing (TCP
+//    backpressure) produces no sample at all. Those are counted as
+//    "omitted" next to the percentiles, with a warning on stderr. If the
+//    count is not zero, the real tail is worse than the reported one.
+//
+// 5. **Percentiles, not averages:**
+//    p50 = typical message, p99 / p99.9 = the slow tail users notice.
+//    LatencyHistogram stores counts in log-linear buckets (~3 % error), so
+//    recording is cheap and memory is fixed.
+//
+// 6. **Connection setup time:**
+//    Measured from connect() to the server's greeting line, which shows
+//    accept backlog and handshake delays under load.
+//
+// 7. **Machine-readable output:**
+//    JSON results can be stored per run and compared by scripts.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,526 @@
+// ===================================================================
+// EXPERIMENT: METRICS AND JFR EVENTS FOR THE SOCKET SERVERS
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Shared metrics registry + JFR events + scrape endpoint
+// ===================================================================
+// AIM:
+// The servers of experiments 5 – 9 and 15 only report what they do
+// with System.out.println, which is slow and cannot be collected by a
+// monitoring system. This experiment adds one cheap metrics layer
+// (counters, gauges, latency histograms), custom Java Flight Recorder
+// events, and a small HTTP endpoint that prints everything in the
+// Prometheus text format.
+// ===================================================================
+
+
+// ==========================================================
+// METRICS CODE – Metrics.java
+// ==========================================================
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public final class Metrics {
+
+    // Monotonic counter. LongAdder keeps one cell per contending thread,
+    // so increments from many threads never fight over one cache line.
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() { adder.increment(); }
+        public void add(long n) { adder.add(n); }
+        public long get() { return adder.sum(); }
+    }
+
+    // Value that goes up and down (active connections, queue depth)
+    public static final class Gauge {
+        private final LongAdder adder = new LongAdder();
+
+        public void increment() { adder.increment(); }
+        public void decrement() { adder.decrement(); }
+        public void add(long n) { adder.add(n); }
+        public long get() { return adder.sum(); }
+    }
+
+    // Counter whose value is kept elsewhere (a field owned by one thread)
+    private static final class CounterFunction {
+        final LongSupplier supplier;
+
+        CounterFunction(LongSupplier supplier) {
+            this.supplier = supplier;
+        }
+    }
+
+    private static final class Entry {
+        final String help;
+        final Object metric;   // Counter, CounterFunction, Gauge, LongSupplier or LatencyHistogram
+
+        Entry(String help, Object metric) {
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    // Sorted so the scrape output is stable and easy to read
+    private static final Map<String, Entry> REGISTRY = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    // Lookups take a map access, so callers fetch a metric once and keep
+    // the reference instead of calling this inside their loops.
+    public static Counter counter(String name, String help) {
+        return (Counter) REGISTRY.computeIfAbsent(name, n -> new Entry(help, new Counter())).metric;
+    }
+
+    // For code that already counts in a single-threaded field: the value
+    // is read on demand when scraped instead of being counted twice. The
+    // supplier runs on the scrape thread, so the field must be volatile
+    // or a snapshot the owning thread publishes.
+    public static void counter(String name, String help, LongSupplier supplier) {
+        REGISTRY.put(name, new Entry(help, new CounterFunction(supplier)));
+    }
+
+    public static Gauge gauge(String name, String help) {
+        return (Gauge) REGISTRY.computeIfAbsent(name, n -> new Entry(help, new Gauge())).metric;
+    }
+
+    // Gauge read on demand when scraped; replaces an earlier one of the
+    // same name (a restarted server re-registers its own state).
+    public static void gauge(String name, String help, LongSupplier supplier) {
+        REGISTRY.put(name, new Entry(help, supplier));
+    }
+
+    // Values are recorded in microseconds
+    public static LatencyHistogram histogram(String name, String help) {
+        return (LatencyHistogram) REGISTRY.computeIfAbsent(name, n -> new Entry(help, new LatencyHistogram())).metric;
+    }
+
+    // Prometheus text exposition format (version 0.0.4)
+    public static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, Entry> e : REGISTRY.entrySet()) {
+            String name = e.getKey();
+            Object m = e.getValue().metric;
+            sb.append("# HELP ").append(name).append(' ').append(e.getValue().help).append('\n');
+            if (m instanceof Counter) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(((Counter) m).get()).append('\n');
+            } else if (m instanceof CounterFunction) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(read(((CounterFunction) m).supplier)).append('\n');
+            } else if (m instanceof Gauge) {
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                sb.append(name).append(' ').append(((Gauge) m).get()).append('\n');
+            } else if (m instanceof LongSupplier) {
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                sb.append(name).append(' ').append(read((LongSupplier) m)).append('\n');
+            } else {
+                LatencyHistogram h = (LatencyHistogram) m;
+                sb.append("# TYPE ").append(name).append(" summary\n");
+                for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+                    sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                      .append(h.percentile(q * 100)).append('\n');
+                }
+                sb.append(name).append("_sum ").append(h.sum()).append('\n');
+                sb.append(name).append("_count ").append(h.count()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long read(LongSupplier supplier) {
+        try {
+            return supplier.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // ---- kernel counters (Linux /proc; -1 elsewhere) ----
+
+    // Datagrams the kernel dropped for the UDP socket bound to this port
+    // because its receive buffer was full – the application never sees them.
+    public static long udpDrops(int port) {
+        return udpSocketField(port, 12);
+    }
+
+    // Bytes waiting in the UDP socket's receive queue
+    public static long udpReceiveQueue(int port) {
+        return udpSocketField(port, 4);
+    }
+
+    private static long udpSocketField(int port, int column) {
+        String hexPort = String.format(Locale.ROOT, ":%04X", port);
+        long total = -1;
+        for (String file : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Path.of(file));
+            } catch (IOException | RuntimeException e) {
+                continue;
+            }
+            for (int i = 1; i < lines.size(); i++) {
+                String[] f = lines.get(i).trim().split("\\s+");
+                if (f.length <= 12 || !f[1].endsWith(hexPort)) {
+                    continue;
+                }
+                // column 4 is "tx_queue:rx_queue" in hex, column 12 is drops
+                long v = column == 4
+                        ? Long.parseLong(f[4].substring(f[4].indexOf(':') + 1), 16)
+                        : Long.parseLong(f[12]);
+                total = Math.max(total, 0) + v;
+            }
+        }
+        return total;
+    }
+
+    // Bytes println() puts on the wire for one line: the text encoded in
+    // the platform charset (what PrintWriter and InputStreamReader use)
+    // plus the line separator.
+    public static long lineBytes(String line) {
+        return (line + System.lineSeparator()).getBytes().length;
+    }
+
+    // TCP segments retransmitted by this host since boot (all sockets)
+    public static long tcpRetransmittedSegments() {
+        try {
+            List<String> lines = Files.readAllLines(Path.of("/proc/net/snmp"));
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (lines.get(i).startsWith("Tcp:") && lines.get(i + 1).startsWith("Tcp:")) {
+                    String[] names = lines.get(i).split("\\s+");
+                    String[] values = lines.get(i + 1).split("\\s+");
+                    for (int k = 1; k < names.length && k < values.length; k++) {
+                        if (names[k].equals("RetransSegs")) {
+                            return Long.parseLong(values[k]);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux, or /proc not mounted
+        }
+        return -1;
+    }
+}
+
+
+
+// ==========================================================
+// JFR EVENTS CODE – ServerEvents.java
+// ==========================================================
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+public final class ServerEvents {
+
+    @Name("cn.Accept")
+    @Label("Connection Accepted")
+    @Category({"CN Lab", "Network"})
+    @StackTrace(false)
+    public static class Accept extends Event {
+        @Label("Server") String server;
+        @Label("Remote Address") String remote;
+    }
+
+    // Duration event: begin() at the first byte, commit() at the last, so
+    // the recording shows both when the transfer started and when it ended.
+    @Name("cn.Transfer")
+    @Label("Transfer")
+    @Category({"CN Lab", "Network"})
+    @StackTrace(false)
+    public static class Transfer extends Event {
+        @Label("Server") String server;
+        @Label("Peer") String peer;
+        @Label("Direction") String direction;
+        @Label("Bytes") @DataAmount long bytes;
+        @Label("Packets") long packets;
+    }
+
+    @Name("cn.TcpRetransmits")
+    @Label("TCP Retransmits")
+    @Description("Segments retransmitted by the kernel since the previous sample")
+    @Category({"CN Lab", "Network"})
+    @Period("1 s")
+    @StackTrace(false)
+    public static class TcpRetransmits extends Event {
+        @Label("Retransmitted Segments") long segments;
+        @Label("Total Since Boot") long total;
+    }
+
+    private static long lastRetrans = -1;
+
+    static {
+        FlightRecorder.addPeriodicEvent(TcpRetransmits.class, () -> {
+            long now = Metrics.tcpRetransmittedSegments();
+            if (now < 0) {
+                return;
+            }
+            TcpRetransmits e = new TcpRetransmits();
+            e.total = now;
+            e.segments = lastRetrans < 0 ? 0 : now - lastRetrans;
+            lastRetrans = now;
+            e.commit();
+        });
+    }
+
+    private ServerEvents() {
+    }
+
+    // Loads the class so the periodic event is registered
+    public static void init() {
+    }
+
+    // When no recording is running the events are disabled and these
+    // helpers cost one allocation the JIT usually removes.
+    public static void accept(String server, Object remote) {
+        Accept e = new Accept();
+        if (e.isEnabled()) {
+            e.server = server;
+            e.remote = String.valueOf(remote);
+            e.commit();
+        }
+    }
+
+    public static Transfer beginTransfer(String server, Object peer, String direction) {
+        Transfer t = new Transfer();
+        if (t.isEnabled()) {
+            t.server = server;
+            t.peer = String.valueOf(peer);
+            t.direction = direction;
+            t.begin();
+        }
+        return t;
+    }
+
+    public static void endTransfer(Transfer t, long bytes, long packets) {
+        if (t.isEnabled()) {
+            t.bytes = bytes;
+            t.packets = packets;
+            t.commit();
+        }
+    }
+}
+
+
+
+// ==========================================================
+// ENDPOINT CODE – MetricsEndpoint.java
+// ==========================================================
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public final class MetricsEndpoint {
+
+    public static final int DEFAULT_PORT = 9100;
+
+    private static final class Handler {
+        final String contentType;
+        final Supplier<byte[]> body;
+        final String method;
+
+        Handler(String contentType, Supplier<byte[]> body, String method) {
+            this.contentType = contentType;
+            this.body = body;
+            this.method = method;
+        }
+    }
+
+    private static final Map<String, Handler> HANDLERS = new ConcurrentHashMap<>();
+    private static ServerSocket serverSocket;
+
+    static {
+        register("/metrics", "text/plain; version=0.0.4; charset=utf-8",
+                () -> Metrics.render().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MetricsEndpoint() {
+    }
+
+    // Other experiments can publish extra pages on the same port
+    public static void register(String path, String contentType, Supplier<byte[]> body) {
+        HANDLERS.put(path, new Handler(contentType, body, "GET"));
+    }
+
+    // Pages that change state answer POST only, so a link, a prefetch or
+    // an <img> on some web page cannot trigger them
+    public static void registerAction(String path, String contentType, Supplier<byte[]> body) {
+        HANDLERS.put(path, new Handler(contentType, body, "POST"));
+    }
+
+    // Starts the endpoint once per JVM. The port comes from
+    // -Dmetrics.port (default 9100, 0 disables). A busy port is reported
+    // and ignored so that two servers on one machine still run.
+    public static synchronized void start() {
+        ServerEvents.init();
+        Metrics.counter("host_tcp_retransmitted_segments_total", "TCP segments retransmitted by this host since boot",
+                Metrics::tcpRetransmittedSegments);
+        if (serverSocket != null) {
+            return;
+        }
+        int port = Integer.getInteger("metrics.port", DEFAULT_PORT);
+        if (port <= 0) {
+            return;
+        }
+        try {
+            ServerSocket ss = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+            serverSocket = ss;
+            Thread t = new Thread(() -> serve(ss), "metrics-endpoint");
+            t.setDaemon(true);     // never keeps a finished server alive
+            t.start();
+            System.out.println("[metrics] http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            System.out.println("[metrics] endpoint disabled, port " + port + ": " + e.getMessage());
+        }
+    }
+
+    // One request per connection, handled inline: scrapes are rare and
+    // small, so a thread pool would only add moving parts.
+    private static void serve(ServerSocket ss) {
+        while (!ss.isClosed()) {
+            try (Socket s = ss.accept()) {
+                s.setSoTimeout(2000);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), StandardCharsets.ISO_8859_1));
+                String requestLine = in.readLine();
+                String header;
+                while ((header = in.readLine()) != null && !header.isEmpty()) {
+                    // headers are not needed
+                }
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                String[] parts = requestLine == null ? new String[0] : requestLine.split(" ");
+                Handler h = parts.length >= 2 ? HANDLERS.get(parts[1].split("\\?", 2)[0]) : null;
+                if (h == null) {
+                    writeResponse(out, "404 Not Found", "text/plain",
+                            "not found\n".getBytes(StandardCharsets.US_ASCII));
+                } else if (!parts[0].equals(h.method)) {
+                    writeResponse(out, "405 Method Not Allowed", "text/plain",
+                            ("use " + h.method + "\n").getBytes(StandardCharsets.US_ASCII));
+                } else {
+                    writeResponse(out, "200 OK", h.contentType, h.body.get());
+                }
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                if (ss.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void writeResponse(OutputStream out, String status, String type, byte[] body)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + type + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save Metrics.java, ServerEvents.java and MetricsEndpoint.java
+//         in the same directory as the servers of experiments 5 – 9 and
+//         15 (and LatencyHistogram.java from experiment 20). Those
+//         servers call them directly.
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Start any server as usual, e.g.
+//         java UDPServer
+//         and scrape it from another terminal:
+//         curl http://127.0.0.1:9100/metrics
+//
+// Step 4: Running two servers at once? Give the second one its own port:
+//         java -Dmetrics.port=9101 FileReceiverServer
+//         (-Dmetrics.port=0 turns the endpoint off)
+//
+// Step 5: Record JFR events:
+//         java -XX:StartFlightRecording=filename=server.jfr,settings=profile ChatServer
+//         ... run some clients, stop the server ...
+//         jfr print --events cn.Accept,cn.Transfer,cn.TcpRetransmits server.jfr
+//         or open server.jfr in JDK Mission Control (category "CN Lab").
+//
+// Metrics exported (prefix per server):
+//   tcp_server_*          TCPServer (experiment 5)
+//   hello_server_*        Server (experiment 7)
+//   udp_server_*          UDPServer (experiment 6), incl. kernel drops
+//   file_receiver_*       FileReceiverServer (experiment 8)
+//   udp_file_server_*     FileServer (experiment 9)
+//   chat_*                ChatServer (experiment 15)
+//   host_tcp_retransmitted_segments_total   whole host, from /proc
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why not println:**
+//    System.out is synchronized and, on a terminal, flushes every line.
+//    A server printing per packet spends more time printing than
+//    networking, and the numbers are lost when the window closes.
+//
+// 2. **Striped counters:**
+//    AtomicLong makes every thread update the same cache line. LongAdder
+//    gives contending threads separate cells and only sums them when the
+//    value is read, which happens once per scrape.
+//
+// 3. **Counters, gauges, histograms:**
+//    - Counter: only goes up (bytes, packets). Rates are computed by the
+//      monitoring system from two scrapes.
+//    - Gauge: current level (active connections, queue depth, drops the
+//      kernel reports).
+//    - Histogram: distribution of latencies; averages hide the slow
+//      requests that users actually notice, percentiles do not.
+//
+// 4. **Kernel view:**
+//    Some numbers only the OS knows: UDP datagrams dropped because the
+//    socket buffer was full (/proc/net/udp) and TCP retransmissions
+//    (/proc/net/snmp). They are read only when scraped or sampled.
+//
+// 5. **Java Flight Recorder:**
+//    Custom events (extends jdk.jfr.Event) are written to a binary ring
+//    buffer with timestamps and thread information. When no recording is
+//    running, isEnabled() is false and the event costs almost nothing.
+//    Transfer is a duration event (begin/commit); TcpRetransmits is a
+//    periodic event sampled every second by the recorder itself.
+//
+// 6. **Scrape endpoint:**
+//    A plain HTTP GET /metrics in the Prometheus text format. It binds to
+//    127.0.0.1 only, so the counters are not exposed to the network.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
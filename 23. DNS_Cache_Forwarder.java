@@ -0,0 +1,1240 @@
+// ===================================================================
+// EXPERIMENT: CACHING DNS FORWARDER OVER UDP
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Non-blocking UDP server (NIO) + fake upstream + tools
+// ===================================================================
+// AIM:
+// "12. DNS_Lookup.py" resolves names with the system resolver, and our
+// Java clients call InetAddress.getByName for every connection. This
+// experiment builds a small DNS server on top of the UDP ideas from
+// experiment 6: it reads DNS messages in wire format, answers A, AAAA
+// and PTR questions from a TTL-aware cache (including negative answers)
+// and forwards everything else to an upstream resolver.
+// ===================================================================
+
+
+// ==========================================================
+// HELPER CODE – DnsMessage.java
+// ==========================================================
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public final class DnsMessage {
+
+    public static final int HEADER = 12;
+
+    public static final int TYPE_A = 1;
+    public static final int TYPE_NS = 2;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_PTR = 12;
+    public static final int TYPE_MX = 15;
+    public static final int TYPE_TXT = 16;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int CLASS_IN = 1;
+
+    public static final int NOERROR = 0;
+    public static final int FORMERR = 1;
+    public static final int SERVFAIL = 2;
+    public static final int NXDOMAIN = 3;
+    public static final int NOTIMP = 4;
+
+    private DnsMessage() {
+    }
+
+    // ---- header fields ----
+
+    public static int u16(byte[] m, int pos) {
+        return ((m[pos] & 0xff) << 8) | (m[pos + 1] & 0xff);
+    }
+
+    public static long u32(byte[] m, int pos) {
+        return ((long) u16(m, pos) << 16) | u16(m, pos + 2);
+    }
+
+    public static void putU16(byte[] m, int pos, int value) {
+        m[pos] = (byte) (value >>> 8);
+        m[pos + 1] = (byte) value;
+    }
+
+    public static void putU32(byte[] m, int pos, long value) {
+        putU16(m, pos, (int) (value >>> 16));
+        putU16(m, pos + 2, (int) value);
+    }
+
+    public static int id(byte[] m) { return u16(m, 0); }
+    public static void setId(byte[] m, int id) { putU16(m, 0, id); }
+    public static boolean isResponse(byte[] m) { return (m[2] & 0x80) != 0; }
+    public static int opcode(byte[] m) { return (m[2] >>> 3) & 0x0f; }
+    public static boolean truncated(byte[] m) { return (m[2] & 0x02) != 0; }
+    public static int rcode(byte[] m) { return m[3] & 0x0f; }
+    public static int questions(byte[] m) { return u16(m, 4); }
+    public static int answers(byte[] m) { return u16(m, 6); }
+    public static int authorities(byte[] m) { return u16(m, 8); }
+    public static int additionals(byte[] m) { return u16(m, 10); }
+
+    // ---- names ----
+
+    // Offset just after the name at pos, or -1 if it runs past the end.
+    // A compression pointer (two bytes, top bits 11) ends the name.
+    public static int skipName(byte[] m, int pos, int limit) {
+        while (pos < limit) {
+            int len = m[pos] & 0xff;
+            if (len == 0) {
+                return pos + 1;
+            }
+            if ((len & 0xc0) == 0xc0) {
+                return pos + 2 <= limit ? pos + 2 : -1;
+            }
+            if ((len & 0xc0) != 0) {
+                return -1;
+            }
+            pos += len + 1;
+        }
+        return -1;
+    }
+
+    // Name as lower-case dotted text, following compression pointers.
+    // Returns null for malformed names (including pointer loops).
+    public static String readName(byte[] m, int pos, int limit) {
+        StringBuilder sb = new StringBuilder(64);
+        int jumps = 0;
+        while (pos < limit) {
+            int len = m[pos] & 0xff;
+            if (len == 0) {
+                return sb.length() == 0 ? "." : sb.toString();
+            }
+            if ((len & 0xc0) == 0xc0) {
+                if (pos + 1 >= limit || ++jumps > 16) {
+                    return null;
+                }
+                pos = ((len & 0x3f) << 8) | (m[pos + 1] & 0xff);
+                continue;
+            }
+            if ((len & 0xc0) != 0 || pos + 1 + len > limit) {
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = pos + 1; i <= pos + len; i++) {
+                char ch = (char) (m[i] & 0xff);
+                sb.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + 32) : ch);
+            }
+            pos += len + 1;
+        }
+        return null;
+    }
+
+    public static int writeName(byte[] m, int pos, String name) {
+        if (!name.isEmpty() && !name.equals(".")) {
+            for (String label : name.split("\\.")) {
+                byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+                m[pos++] = (byte) bytes.length;
+                System.arraycopy(bytes, 0, m, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+        m[pos++] = 0;
+        return pos;
+    }
+
+    // ---- question section ----
+
+    // Offset after the (single) question, or -1 if malformed
+    public static int questionEnd(byte[] m, int length) {
+        if (length < HEADER || questions(m) != 1) {
+            return -1;
+        }
+        int end = skipName(m, HEADER, length);
+        return end < 0 || end + 4 > length ? -1 : end + 4;
+    }
+
+    public static int questionType(byte[] m, int questionEnd) {
+        return u16(m, questionEnd - 4);
+    }
+
+    // "name/type/class" – the same question always maps to the same key,
+    // whatever upper/lower case the client used
+    public static String cacheKey(byte[] m, int questionEnd) {
+        String name = readName(m, HEADER, questionEnd);
+        if (name == null) {
+            return null;
+        }
+        return name + '/' + u16(m, questionEnd - 4) + '/' + u16(m, questionEnd - 2);
+    }
+
+    // ---- building messages ----
+
+    public static int writeQuery(byte[] m, int id, String name, int type) {
+        putU16(m, 0, id);
+        putU16(m, 2, 0x0100);              // standard query, recursion desired
+        putU16(m, 4, 1);
+        putU16(m, 6, 0);
+        putU16(m, 8, 0);
+        putU16(m, 10, 0);
+        int pos = writeName(m, HEADER, name);
+        putU16(m, pos, type);
+        putU16(m, pos + 2, CLASS_IN);
+        return pos + 4;
+    }
+
+    // Header + question of the query with QR, RA and the given RCODE set
+    public static int errorResponse(byte[] query, int questionEnd, int rcode, byte[] out) {
+        int end = Math.max(questionEnd, HEADER);
+        System.arraycopy(query, 0, out, 0, end);
+        out[2] = (byte) ((query[2] | 0x80) & ~0x02);   // response, not truncated
+        out[3] = (byte) (0x80 | rcode);                // recursion available
+        putU16(out, 4, questionEnd > 0 ? 1 : 0);
+        putU16(out, 6, 0);
+        putU16(out, 8, 0);
+        putU16(out, 10, 0);
+        return end;
+    }
+
+    // ---- presentation helpers ----
+
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_A: return "A";
+            case TYPE_NS: return "NS";
+            case TYPE_CNAME: return "CNAME";
+            case TYPE_SOA: return "SOA";
+            case TYPE_PTR: return "PTR";
+            case TYPE_MX: return "MX";
+            case TYPE_TXT: return "TXT";
+            case TYPE_AAAA: return "AAAA";
+            default: return "TYPE" + type;
+        }
+    }
+
+    public static int typeCode(String name) {
+        switch (name.toUpperCase(Locale.ROOT)) {
+            case "A": return TYPE_A;
+            case "NS": return TYPE_NS;
+            case "CNAME": return TYPE_CNAME;
+            case "SOA": return TYPE_SOA;
+            case "PTR": return TYPE_PTR;
+            case "MX": return TYPE_MX;
+            case "TXT": return TYPE_TXT;
+            case "AAAA": return TYPE_AAAA;
+            default: return Integer.parseInt(name.replaceFirst("(?i)^TYPE", ""));
+        }
+    }
+
+    public static String rcodeName(int rcode) {
+        switch (rcode) {
+            case NOERROR: return "NOERROR";
+            case FORMERR: return "FORMERR";
+            case SERVFAIL: return "SERVFAIL";
+            case NXDOMAIN: return "NXDOMAIN";
+            case NOTIMP: return "NOTIMP";
+            default: return "RCODE" + rcode;
+        }
+    }
+
+    // 192.168.1.10 -> 10.1.168.192.in-addr.arpa (IPv6: nibbles in ip6.arpa)
+    public static String reverseName(String ip) throws UnknownHostException {
+        byte[] a = InetAddress.getByName(ip).getAddress();
+        StringBuilder sb = new StringBuilder();
+        if (a.length == 4) {
+            for (int i = 3; i >= 0; i--) {
+                sb.append(a[i] & 0xff).append('.');
+            }
+            return sb.append("in-addr.arpa").toString();
+        }
+        for (int i = 15; i >= 0; i--) {
+            sb.append(Character.forDigit(a[i] & 0x0f, 16)).append('.')
+              .append(Character.forDigit((a[i] >>> 4) & 0x0f, 16)).append('.');
+        }
+        return sb.append("ip6.arpa").toString();
+    }
+}
+
+
+
+// ==========================================================
+// CACHE CODE – DnsCache.java
+// ==========================================================
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DnsCache {
+
+    // A stored response (ID zeroed) and where its TTL fields are, so the
+    // remaining lifetime can be written in when it is served again.
+    static final class Entry {
+        final byte[] response;
+        final int[] ttlOffsets;
+        final long[] ttls;
+        final long storedAt;      // nanoTime
+        final long expiresAt;     // nanoTime
+        final boolean negative;
+
+        Entry(byte[] response, int[] ttlOffsets, long[] ttls, long storedAt, long expiresAt, boolean negative) {
+            this.response = response;
+            this.ttlOffsets = ttlOffsets;
+            this.ttls = ttls;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.negative = negative;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxTtlSeconds;
+    private final Map<String, Entry> entries;
+
+    // Statistics (single-threaded, like the cache itself; volatile so the
+    // metrics scrape thread sees the latest values)
+    volatile long hits;
+    volatile long negativeHits;
+    volatile long misses;
+    long expired;
+    long evicted;
+
+    public DnsCache(int maxEntries, long maxTtlSeconds) {
+        this.maxEntries = maxEntries;
+        this.maxTtlSeconds = maxTtlSeconds;
+        // Access order + removeEldestEntry = least recently used eviction
+        this.entries = new LinkedHashMap<>(Math.min(maxEntries, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > DnsCache.this.maxEntries) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Entry get(String key, long now) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        if (now >= e.expiresAt) {
+            entries.remove(key);
+            expired++;
+            misses++;
+            return null;
+        }
+        if (e.negative) {
+            negativeHits++;
+        } else {
+            hits++;
+        }
+        return e;
+    }
+
+    // Stores a response if it is cacheable: positive answers live for
+    // the smallest answer TTL, NXDOMAIN/NODATA for the SOA negative TTL
+    // (RFC 2308). SERVFAIL, truncated and TTL-0 answers are not kept.
+    public boolean put(String key, byte[] m, int length, long now) {
+        if (DnsMessage.truncated(m)) {
+            return false;
+        }
+        int rcode = DnsMessage.rcode(m);
+        if (rcode != DnsMessage.NOERROR && rcode != DnsMessage.NXDOMAIN) {
+            return false;
+        }
+        int pos = DnsMessage.questionEnd(m, length);
+        if (pos < 0) {
+            return false;
+        }
+        int an = DnsMessage.answers(m);
+        int ns = DnsMessage.authorities(m);
+        int total = an + ns + DnsMessage.additionals(m);
+        int[] offsets = new int[total];
+        long[] ttls = new long[total];
+        int count = 0;
+        long minAnswerTtl = Long.MAX_VALUE;
+        long negativeTtl = -1;
+
+        for (int i = 0; i < total; i++) {
+            pos = DnsMessage.skipName(m, pos, length);
+            if (pos < 0 || pos + 10 > length) {
+                return false;
+            }
+            int type = DnsMessage.u16(m, pos);
+            long ttl = DnsMessage.u32(m, pos + 4);
+            int rdStart = pos + 10;
+            int rdEnd = rdStart + DnsMessage.u16(m, pos + 8);
+            if (rdEnd > length) {
+                return false;
+            }
+            if (type != DnsMessage.TYPE_OPT) {       // OPT "TTL" holds EDNS flags
+                offsets[count] = pos + 4;
+                ttls[count++] = ttl;
+                if (i < an) {
+                    minAnswerTtl = Math.min(minAnswerTtl, ttl);
+                } else if (i < an + ns && type == DnsMessage.TYPE_SOA) {
+                    int p = DnsMessage.skipName(m, rdStart, rdEnd);
+                    p = p < 0 ? -1 : DnsMessage.skipName(m, p, rdEnd);
+                    if (p >= 0 && p + 20 <= rdEnd) {
+                        negativeTtl = Math.min(ttl, DnsMessage.u32(m, p + 16));
+                    }
+                }
+            }
+            pos = rdEnd;
+        }
+
+        boolean negative = rcode == DnsMessage.NXDOMAIN || an == 0;
+        long ttl = negative ? negativeTtl : minAnswerTtl;
+        ttl = Math.min(ttl, maxTtlSeconds);
+        if (ttl <= 0) {
+            return false;                            // no SOA, or "do not cache"
+        }
+        byte[] copy = java.util.Arrays.copyOf(m, length);
+        DnsMessage.setId(copy, 0);
+        entries.put(key, new Entry(copy, java.util.Arrays.copyOf(offsets, count),
+                java.util.Arrays.copyOf(ttls, count), now, now + ttl * 1_000_000_000L, negative));
+        return true;
+    }
+
+    // Writes the cached response for this query into out: the client's ID
+    // and question bytes (keeps its 0x20 case mix), TTLs counted down.
+    public int answer(Entry e, byte[] query, int questionEnd, long now, byte[] out) {
+        byte[] r = e.response;
+        System.arraycopy(r, 0, out, 0, r.length);
+        System.arraycopy(query, 0, out, 0, 2);
+        out[2] = (byte) ((out[2] & ~0x01) | (query[2] & 0x01));   // echo the RD bit
+        System.arraycopy(query, DnsMessage.HEADER, out, DnsMessage.HEADER, questionEnd - DnsMessage.HEADER);
+        long elapsed = (now - e.storedAt) / 1_000_000_000L;
+        for (int i = 0; i < e.ttlOffsets.length; i++) {
+            DnsMessage.putU32(out, e.ttlOffsets[i], Math.max(0, e.ttls[i] - elapsed));
+        }
+        return r.length;
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – DnsForwarder.java
+// ==========================================================
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+
+public class DnsForwarder implements Runnable {
+
+    // A client waiting for an upstream answer
+    static final class Waiter {
+        final SocketAddress address;
+        final int id;
+        final byte[] question;      // header not included
+
+        Waiter(SocketAddress address, int id, byte[] question) {
+            this.address = address;
+            this.id = id;
+            this.question = question;
+        }
+    }
+
+    // One query in flight to the upstream resolver. Identical questions
+    // arriving meanwhile join its waiter list instead of being sent again.
+    static final class Pending {
+        final int upstreamId;
+        final String key;
+        final boolean cacheable;
+        final byte[] query;
+        final List<Waiter> waiters = new ArrayList<>(1);
+        long sentAt;
+        int attempts;
+
+        Pending(int upstreamId, String key, boolean cacheable, byte[] query) {
+            this.upstreamId = upstreamId;
+            this.key = key;
+            this.cacheable = cacheable;
+            this.query = query;
+        }
+    }
+
+    private static final long RETRY_NANOS = 1_000_000_000L;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_WAITERS = 64;
+    private static final int BATCH = 256;      // datagrams per channel per wake-up
+
+    private final Selector selector;
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel upstreamChannel;
+    private final DnsCache cache;
+    private final Map<Integer, Pending> pendingById = new HashMap<>();
+    private final Map<String, Pending> pendingByKey = new HashMap<>();
+    private final SplittableRandom random = new SplittableRandom();
+    private final ByteBuffer in = ByteBuffer.allocate(4096);
+    private final byte[] out = new byte[4096];
+    private final ByteBuffer outBuffer = ByteBuffer.wrap(out);
+    private final LatencyHistogram upstreamRtt =
+            Metrics.histogram("dns_upstream_rtt_micros", "Round trip to the upstream resolver");
+    private volatile boolean running = true;
+
+    // Statistics (written by the selector thread only; volatile so the
+    // metrics scrape thread sees the latest values)
+    private volatile long queries;
+    private volatile long forwarded;
+    private volatile long coalesced;
+    private volatile long timeouts;
+    private long malformed;
+    private volatile long sendDrops;
+
+    public DnsForwarder(int port, InetSocketAddress upstream, int cacheEntries) throws IOException {
+        cache = new DnsCache(cacheEntries, 86_400);
+        selector = Selector.open();
+
+        clientChannel = DatagramChannel.open();
+        clientChannel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+        clientChannel.bind(new InetSocketAddress(port));
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, SelectionKey.OP_READ);
+
+        // Connected: the kernel drops datagrams from anyone but the upstream
+        upstreamChannel = DatagramChannel.open();
+        upstreamChannel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        upstreamChannel.connect(upstream);
+        upstreamChannel.configureBlocking(false);
+        upstreamChannel.register(selector, SelectionKey.OP_READ);
+
+        Metrics.counter("dns_queries_total", "Queries received", () -> queries);
+        Metrics.counter("dns_cache_hits_total", "Answered from cache", () -> cache.hits);
+        Metrics.counter("dns_negative_hits_total", "NXDOMAIN/NODATA answered from cache", () -> cache.negativeHits);
+        Metrics.counter("dns_cache_misses_total", "Cache lookups that missed", () -> cache.misses);
+        Metrics.counter("dns_forwarded_total", "Queries sent upstream", () -> forwarded);
+        Metrics.counter("dns_coalesced_total", "Queries that joined one already in flight", () -> coalesced);
+        Metrics.counter("dns_upstream_timeouts_total", "Queries answered SERVFAIL after retries", () -> timeouts);
+        Metrics.counter("dns_send_drops_total", "Replies dropped, socket buffer full", () -> sendDrops);
+        Metrics.gauge("dns_cache_entries", "Entries in the cache", () -> cache.size());
+        Metrics.gauge("dns_pending_upstream", "Queries waiting for the upstream", () -> pendingById.size());
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) clientChannel.getLocalAddress()).getPort();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextCheck = System.nanoTime();
+        long nextReport = nextCheck + 10_000_000_000L;
+        try {
+            while (running) {
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.channel() == clientChannel) {
+                        readQueries();
+                    } else {
+                        readUpstream();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                if (now >= nextCheck) {
+                    checkTimeouts(now);
+                    nextCheck = now + 100_000_000L;
+                }
+                if (now >= nextReport) {
+                    AsyncLog.info("[dns] " + stats());
+                    nextReport = now + 10_000_000_000L;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                clientChannel.close();
+                upstreamChannel.close();
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // ---- client side ----
+
+    private void readQueries() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            in.clear();
+            SocketAddress from = clientChannel.receive(in);
+            if (from == null) {
+                return;
+            }
+            handleQuery(from, in.array(), in.position());
+        }
+    }
+
+    private void handleQuery(SocketAddress from, byte[] m, int length) throws IOException {
+        queries++;
+        if (length < DnsMessage.HEADER || DnsMessage.isResponse(m)) {
+            malformed++;
+            return;                                  // not a query: ignore silently
+        }
+        int qEnd = DnsMessage.questionEnd(m, length);
+        String key = qEnd < 0 ? null : DnsMessage.cacheKey(m, qEnd);
+        if (key == null) {
+            malformed++;
+            send(from, DnsMessage.errorResponse(m, -1, DnsMessage.FORMERR, out));
+            return;
+        }
+        if (DnsMessage.opcode(m) != 0) {
+            send(from, DnsMessage.errorResponse(m, qEnd, DnsMessage.NOTIMP, out));
+            return;
+        }
+
+        int type = DnsMessage.questionType(m, qEnd);
+        boolean cacheable = type == DnsMessage.TYPE_A || type == DnsMessage.TYPE_AAAA
+                || type == DnsMessage.TYPE_PTR;
+        long now = System.nanoTime();
+        if (cacheable) {
+            DnsCache.Entry e = cache.get(key, now);
+            if (e != null) {
+                send(from, cache.answer(e, m, qEnd, now, out));
+                return;
+            }
+        }
+
+        Waiter waiter = new Waiter(from, DnsMessage.id(m), Arrays.copyOfRange(m, DnsMessage.HEADER, qEnd));
+        Pending p = pendingByKey.get(key);
+        if (p != null && p.waiters.size() < MAX_WAITERS) {
+            p.waiters.add(waiter);
+            coalesced++;
+            return;
+        }
+        if (p != null || pendingById.size() >= 60_000) {
+            send(from, DnsMessage.errorResponse(m, qEnd, DnsMessage.SERVFAIL, out));
+            return;
+        }
+
+        // Random upstream IDs make forged answers harder to guess
+        int id;
+        do {
+            id = random.nextInt(65536);
+        } while (pendingById.containsKey(id));
+        byte[] query = Arrays.copyOf(m, length);
+        DnsMessage.setId(query, id);
+        p = new Pending(id, key, cacheable, query);
+        p.waiters.add(waiter);
+        pendingById.put(id, p);
+        pendingByKey.put(key, p);
+        sendUpstream(p, now);
+    }
+
+    private void sendUpstream(Pending p, long now) throws IOException {
+        p.sentAt = now;
+        p.attempts++;
+        forwarded++;
+        upstreamChannel.write(ByteBuffer.wrap(p.query));
+    }
+
+    private void send(SocketAddress to, int length) throws IOException {
+        outBuffer.clear().limit(length);
+        if (clientChannel.send(outBuffer, to) == 0) {
+            sendDrops++;                             // UDP: a reply lost here is like one lost on the wire
+        }
+    }
+
+    // ---- upstream side ----
+
+    private void readUpstream() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            in.clear();
+            int length;
+            try {
+                length = upstreamChannel.read(in);
+            } catch (java.net.PortUnreachableException e) {
+                continue;                            // ICMP from a dead upstream; retries handle it
+            }
+            if (length <= 0) {
+                return;
+            }
+            handleUpstream(in.array(), length);
+        }
+    }
+
+    private void handleUpstream(byte[] m, int length) throws IOException {
+        if (length < DnsMessage.HEADER || !DnsMessage.isResponse(m)) {
+            return;
+        }
+        Pending p = pendingById.get(DnsMessage.id(m));
+        int qEnd = DnsMessage.questionEnd(m, length);
+        // Must answer the question we asked, not just carry a known ID
+        if (p == null || qEnd < 0 || !p.key.equals(DnsMessage.cacheKey(m, qEnd))) {
+            return;
+        }
+        pendingById.remove(p.upstreamId);
+        pendingByKey.remove(p.key);
+        long now = System.nanoTime();
+        upstreamRtt.record((now - p.sentAt) / 1000);
+        if (p.cacheable) {
+            cache.put(p.key, m, length, now);
+        }
+        for (Waiter w : p.waiters) {
+            System.arraycopy(m, 0, out, 0, length);
+            DnsMessage.setId(out, w.id);
+            System.arraycopy(w.question, 0, out, DnsMessage.HEADER, w.question.length);
+            send(w.address, length);
+        }
+    }
+
+    private void checkTimeouts(long now) throws IOException {
+        Iterator<Pending> it = pendingById.values().iterator();
+        while (it.hasNext()) {
+            Pending p = it.next();
+            if (now - p.sentAt < RETRY_NANOS) {
+                continue;
+            }
+            if (p.attempts < MAX_ATTEMPTS) {
+                sendUpstream(p, now);
+                continue;
+            }
+            it.remove();
+            pendingByKey.remove(p.key);
+            timeouts++;
+            int qEnd = DnsMessage.questionEnd(p.query, p.query.length);
+            for (Waiter w : p.waiters) {
+                int n = DnsMessage.errorResponse(p.query, qEnd, DnsMessage.SERVFAIL, out);
+                DnsMessage.setId(out, w.id);
+                send(w.address, n);
+            }
+        }
+    }
+
+    public String stats() {
+        return "queries=" + queries
+                + " hits=" + cache.hits
+                + " negativeHits=" + cache.negativeHits
+                + " misses=" + cache.misses
+                + " forwarded=" + forwarded
+                + " coalesced=" + coalesced
+                + " timeouts=" + timeouts
+                + " entries=" + cache.size()
+                + " evicted=" + cache.evicted
+                + " malformed=" + malformed
+                + " sendDrops=" + sendDrops;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Usage: java DnsForwarder [port=8053] [upstream=127.0.0.1:8054] [entries=100000]
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                System.err.println("Arguments must look like key=value, got: " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", "8053"));
+        String upstream = options.getOrDefault("upstream", "fake");
+        int entries = Integer.parseInt(options.getOrDefault("entries", "100000"));
+
+        InetSocketAddress upstreamAddress;
+        if (upstream.equals("fake")) {
+            // No Internet needed: answer from the built-in fake resolver
+            FakeUpstreamDns fake = new FakeUpstreamDns(8054, 0);
+            Thread t = new Thread(fake, "fake-upstream");
+            t.setDaemon(true);
+            t.start();
+            upstreamAddress = new InetSocketAddress("127.0.0.1", 8054);
+        } else {
+            int colon = upstream.lastIndexOf(':');
+            upstreamAddress = colon < 0
+                    ? new InetSocketAddress(upstream, 53)
+                    : new InetSocketAddress(upstream.substring(0, colon),
+                                            Integer.parseInt(upstream.substring(colon + 1)));
+        }
+
+        DnsForwarder server = new DnsForwarder(port, upstreamAddress, entries);
+        System.out.println("DNS forwarder on UDP port " + server.port() + ", upstream " + upstream
+                + ", cache " + entries + " entries");
+        MetricsEndpoint.start();
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// FAKE UPSTREAM CODE – FakeUpstreamDns.java
+// ==========================================================
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FakeUpstreamDns implements Runnable {
+
+    // Deterministic answers for any name, so tests need no Internet:
+    //   A     -> 10.x.y.z derived from the name     (TTL 300)
+    //   AAAA  -> fd00::x:y derived from the name    (TTL 300)
+    //   PTR   -> host-<hash>.test                   (TTL 300)
+    //   names starting with "nx" -> NXDOMAIN        (negative TTL 30)
+    //   any other type           -> NODATA          (negative TTL 30)
+    private final DatagramChannel channel;
+    private final long delayMillis;
+    private final ScheduledExecutorService delayer;
+    private final LongAdder answered = new LongAdder();
+
+    public FakeUpstreamDns(int port, long delayMillis) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", port));
+        this.delayMillis = delayMillis;
+        this.delayer = delayMillis > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+    }
+
+    public long answered() {
+        return answered.sum();
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        byte[] out = new byte[4096];
+        try {
+            while (channel.isOpen()) {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                int n = respond(in.array(), in.position(), out);
+                if (n <= 0) {
+                    continue;
+                }
+                answered.increment();
+                if (delayer == null) {
+                    channel.send(ByteBuffer.wrap(out, 0, n), from);
+                } else {
+                    byte[] copy = java.util.Arrays.copyOf(out, n);
+                    delayer.schedule(() -> {
+                        try {
+                            channel.send(ByteBuffer.wrap(copy), from);
+                        } catch (IOException ignored) {
+                        }
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static int respond(byte[] q, int length, byte[] out) {
+        int qEnd = DnsMessage.questionEnd(q, length);
+        if (qEnd < 0 || DnsMessage.isResponse(q)) {
+            return -1;
+        }
+        String name = DnsMessage.readName(q, DnsMessage.HEADER, qEnd);
+        int type = DnsMessage.questionType(q, qEnd);
+        int hash = name.hashCode();
+
+        System.arraycopy(q, 0, out, 0, qEnd);
+        out[2] = (byte) (0x84 | (q[2] & 0x01));      // response, authoritative, RD echoed
+        out[3] = (byte) 0x80;                        // recursion available, NOERROR
+        DnsMessage.putU16(out, 6, 0);
+        DnsMessage.putU16(out, 8, 0);
+        DnsMessage.putU16(out, 10, 0);
+        int pos = qEnd;
+
+        boolean nx = name.startsWith("nx");
+        byte[] rdata = null;
+        if (!nx && type == DnsMessage.TYPE_A) {
+            rdata = new byte[] {10, (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash};
+        } else if (!nx && type == DnsMessage.TYPE_AAAA) {
+            rdata = new byte[16];
+            rdata[0] = (byte) 0xfd;
+            DnsMessage.putU32(rdata, 12, hash & 0xffffffffL);
+        } else if (!nx && type == DnsMessage.TYPE_PTR) {
+            byte[] tmp = new byte[300];
+            int len = DnsMessage.writeName(tmp, 0, "host-" + Integer.toHexString(hash) + ".test");
+            rdata = java.util.Arrays.copyOf(tmp, len);
+        }
+
+        if (rdata != null) {
+            DnsMessage.putU16(out, 6, 1);
+            out[pos++] = (byte) 0xc0;                // pointer to the question name
+            out[pos++] = DnsMessage.HEADER;
+            DnsMessage.putU16(out, pos, type);
+            DnsMessage.putU16(out, pos + 2, DnsMessage.CLASS_IN);
+            DnsMessage.putU32(out, pos + 4, 300);
+            DnsMessage.putU16(out, pos + 8, rdata.length);
+            System.arraycopy(rdata, 0, out, pos + 10, rdata.length);
+            return pos + 10 + rdata.length;
+        }
+
+        // NXDOMAIN or NODATA: SOA in the authority section carries the negative TTL
+        if (nx) {
+            out[3] = (byte) (0x80 | DnsMessage.NXDOMAIN);
+        }
+        DnsMessage.putU16(out, 8, 1);
+        pos = DnsMessage.writeName(out, pos, "test");
+        DnsMessage.putU16(out, pos, DnsMessage.TYPE_SOA);
+        DnsMessage.putU16(out, pos + 2, DnsMessage.CLASS_IN);
+        DnsMessage.putU32(out, pos + 4, 60);
+        int rdStart = pos + 10;
+        int p = DnsMessage.writeName(out, rdStart, "ns.test");
+        p = DnsMessage.writeName(out, p, "admin.test");
+        DnsMessage.putU32(out, p, 1);                // serial
+        DnsMessage.putU32(out, p + 4, 3600);         // refresh
+        DnsMessage.putU32(out, p + 8, 600);          // retry
+        DnsMessage.putU32(out, p + 12, 86400);       // expire
+        DnsMessage.putU32(out, p + 16, 30);          // minimum = negative TTL
+        p += 20;
+        DnsMessage.putU16(out, pos + 8, p - rdStart);
+        return p;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        if (delayer != null) {
+            delayer.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Usage: java FakeUpstreamDns [port] [delayMillis]
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8054;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        FakeUpstreamDns fake = new FakeUpstreamDns(port, delay);
+        System.out.println("Fake upstream DNS on 127.0.0.1:" + port + " (delay " + delay + " ms)");
+        fake.run();
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT CODE – DnsQuery.java
+// ==========================================================
+
+import java.net.*;
+
+public class DnsQuery {
+
+    // A tiny "dig": java DnsQuery www.example.test [A|AAAA|PTR] [server[:port]]
+    // For PTR the name may be an IP address; it is reversed automatically.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java DnsQuery <name> [type] [server[:port]]");
+            return;
+        }
+        String name = args[0];
+        int type = DnsMessage.typeCode(args.length > 1 ? args[1] : "A");
+        String server = args.length > 2 ? args[2] : "127.0.0.1:8053";
+        if (type == DnsMessage.TYPE_PTR && (Character.isDigit(name.charAt(0)) || name.contains(":"))) {
+            name = DnsMessage.reverseName(name);
+        }
+        int colon = server.lastIndexOf(':');
+        InetSocketAddress address = colon < 0
+                ? new InetSocketAddress(server, 53)
+                : new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+
+        byte[] buf = new byte[4096];
+        int id = (int) (System.nanoTime() & 0xffff);
+        int length = DnsMessage.writeQuery(buf, id, name, type);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(3000);
+            long start = System.nanoTime();
+            socket.send(new DatagramPacket(buf, length, address));
+            DatagramPacket reply = new DatagramPacket(new byte[4096], 4096);
+            do {
+                socket.receive(reply);
+            } while (DnsMessage.id(reply.getData()) != id);
+            long micros = (System.nanoTime() - start) / 1000;
+            print(reply.getData(), reply.getLength());
+            System.out.println(";; Query time: " + micros + " us, server " + address);
+        }
+    }
+
+    static void print(byte[] m, int length) throws UnknownHostException {
+        System.out.println(";; status: " + DnsMessage.rcodeName(DnsMessage.rcode(m))
+                + ", answers: " + DnsMessage.answers(m) + ", authority: " + DnsMessage.authorities(m));
+        int pos = DnsMessage.questionEnd(m, length);
+        int records = DnsMessage.answers(m) + DnsMessage.authorities(m);
+        for (int i = 0; i < records && pos > 0; i++) {
+            String owner = DnsMessage.readName(m, pos, length);
+            pos = DnsMessage.skipName(m, pos, length);
+            int type = DnsMessage.u16(m, pos);
+            long ttl = DnsMessage.u32(m, pos + 4);
+            int rdStart = pos + 10;
+            int rdLength = DnsMessage.u16(m, pos + 8);
+            String data;
+            if (type == DnsMessage.TYPE_A || type == DnsMessage.TYPE_AAAA) {
+                data = InetAddress.getByAddress(java.util.Arrays.copyOfRange(m, rdStart, rdStart + rdLength))
+                        .getHostAddress();
+            } else if (type == DnsMessage.TYPE_PTR || type == DnsMessage.TYPE_CNAME || type == DnsMessage.TYPE_NS
+                    || type == DnsMessage.TYPE_SOA) {
+                data = DnsMessage.readName(m, rdStart, length);
+            } else {
+                data = rdLength + " bytes";
+            }
+            System.out.println(owner + "\t" + ttl + "\tIN\t" + DnsMessage.typeName(type) + "\t" + data);
+            pos = rdStart + rdLength;
+        }
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – DnsBenchClient.java
+// ==========================================================
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DnsBenchClient {
+
+    // Usage: java DnsBenchClient [host=127.0.0.1] [port=8053] [names=1000]
+    //        [queries=1000000] [window=512] [nx=10] [type=A]
+    // Keeps `window` queries in flight over one UDP socket, choosing
+    // names from a fixed set (nx % of them do not exist).
+    public static void main(String[] args) throws Exception {
+        Map<String, String> o = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            o.put(eq < 0 ? arg : arg.substring(0, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        InetSocketAddress server = new InetSocketAddress(o.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(o.getOrDefault("port", "8053")));
+        int names = Integer.parseInt(o.getOrDefault("names", "1000"));
+        long total = Long.parseLong(o.getOrDefault("queries", "1000000"));
+        int window = Math.min(Integer.parseInt(o.getOrDefault("window", "512")), 32768);
+        int nxPercent = Integer.parseInt(o.getOrDefault("nx", "10"));
+        int type = DnsMessage.typeCode(o.getOrDefault("type", "A"));
+
+        // Pre-encode all queries; only the ID changes per send
+        byte[][] encoded = new byte[names][];
+        byte[] tmp = new byte[512];
+        for (int i = 0; i < names; i++) {
+            String name = (i % 100 < nxPercent ? "nx" : "host") + i + ".bench.test";
+            int len = DnsMessage.writeQuery(tmp, 0, name, type);
+            encoded[i] = java.util.Arrays.copyOf(tmp, len);
+        }
+
+        DatagramChannel ch = DatagramChannel.open();
+        ch.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        ch.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+        ch.connect(server);
+        ch.configureBlocking(false);
+
+        long[] sentAt = new long[65536];            // 0 = free ID
+        LatencyHistogram latency = new LatencyHistogram();
+        long[] rcodes = new long[16];
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        long sent = 0;
+        long received = 0;
+        long timeouts = 0;
+        int inFlight = 0;
+        int nextId = 0;
+        long start = System.nanoTime();
+        long lastProgress = start;
+        long nextSweep = start + 100_000_000L;
+
+        while (received + timeouts < total) {
+            // Fill the window
+            while (inFlight < window && sent < total) {
+                while (sentAt[nextId] != 0) {
+                    nextId = (nextId + 1) & 0xffff;
+                }
+                byte[] q = encoded[(int) (sent % names)];
+                DnsMessage.setId(q, nextId);
+                if (ch.write(ByteBuffer.wrap(q)) == 0) {
+                    break;                           // socket buffer full, read first
+                }
+                sentAt[nextId] = System.nanoTime();
+                nextId = (nextId + 1) & 0xffff;
+                sent++;
+                inFlight++;
+            }
+            // Drain replies
+            boolean progress = false;
+            while (true) {
+                in.clear();
+                int n;
+                try {
+                    n = ch.read(in);
+                } catch (java.net.PortUnreachableException e) {
+                    System.err.println("No DNS server at " + server);
+                    return;
+                }
+                if (n <= 0) {
+                    break;
+                }
+                int id = DnsMessage.id(in.array());
+                if (sentAt[id] == 0) {
+                    continue;                        // late answer after timeout
+                }
+                latency.record((System.nanoTime() - sentAt[id]) / 1000);
+                rcodes[DnsMessage.rcode(in.array())]++;
+                sentAt[id] = 0;
+                received++;
+                inFlight--;
+                progress = true;
+            }
+            long now = System.nanoTime();
+            if (progress) {
+                lastProgress = now;
+            } else if (now >= nextSweep) {
+                // Give up on queries older than 2 s (lost datagrams)
+                for (int id = 0; id < 65536; id++) {
+                    if (sentAt[id] != 0 && now - sentAt[id] > 2_000_000_000L) {
+                        sentAt[id] = 0;
+                        timeouts++;
+                        inFlight--;
+                    }
+                }
+                nextSweep = now + 100_000_000L;
+                if (now - lastProgress > 10_000_000_000L) {
+                    System.err.println("No replies for 10 s, giving up.");
+                    break;
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Queries: %,d sent, %,d answered, %,d timed out in %.2f s%n",
+                sent, received, timeouts, seconds);
+        System.out.printf("Throughput: %,.0f queries/s (window %d, %d names, %d%% NXDOMAIN)%n",
+                received / seconds, window, names, nxPercent);
+        System.out.printf("Latency (us): p50=%d p99=%d p99.9=%d max=%d%n",
+                latency.percentile(50), latency.percentile(99), latency.percentile(99.9), latency.max());
+        for (int r = 0; r < rcodes.length; r++) {
+            if (rcodes[r] > 0) {
+                System.out.printf("  %-8s %,d%n", DnsMessage.rcodeName(r), rcodes[r]);
+            }
+        }
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save the classes in one directory together with
+//         LatencyHistogram.java (experiment 20), Metrics.java,
+//         ServerEvents.java, MetricsEndpoint.java (experiment 21) and
+//         AsyncLog.java (experiment 22):
+//         -> DnsMessage.java, DnsCache.java, DnsForwarder.java
+//         -> FakeUpstreamDns.java, DnsQuery.java, DnsBenchClient.java
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Start the forwarder with the built-in fake upstream
+//         (port 53 needs root, so 8053 is used):
+//         java DnsForwarder
+//         or forward to a real resolver:
+//         java DnsForwarder upstream=8.8.8.8:53
+//
+// Step 4: Ask it something:
+//         java DnsQuery www.example.test A
+//         java DnsQuery www.example.test AAAA
+//         java DnsQuery 10.1.2.3 PTR
+//         java DnsQuery nx.example.test A          -> NXDOMAIN, cached 30 s
+//         Repeat a query: the TTL counts down and the time drops.
+//         (dig -p 8053 @127.0.0.1 www.example.test works too.)
+//
+// Step 5: Load test (cache hit rate ~100 % after the first round):
+//         java DnsBenchClient queries=2000000 names=1000 window=512
+//         Slow upstream, to see coalescing and the value of the cache:
+//         java FakeUpstreamDns 8054 50    and    java DnsForwarder upstream=127.0.0.1:8054
+//
+// Step 6: Counters: curl http://127.0.0.1:9100/metrics | grep dns_
+//
+// Example (forwarder, fake upstream and benchmark sharing ONE CPU):
+//   Queries: 2,000,000 sent, 2,000,000 answered, 0 timed out in 22.28 s
+//   Throughput: 89,763 queries/s (window 512, 1000 names, 10% NXDOMAIN)
+//   dns_forwarded_total 1001  -> everything else came from the cache
+//   With the benchmark on its own core the forwarder passes 100k/s.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **DNS message format (RFC 1035):**
+//    12-byte header (ID, flags, 4 counts), then question, answer,
+//    authority and additional sections. Names are length-prefixed labels
+//    ("3www7example4test0"); a two-byte pointer (top bits 11) may
+//    replace the rest of a name to save space (compression).
+//
+// 2. **Forwarder / stub resolver:**
+//    Clients send queries to us; we answer from the cache or pass the
+//    query to an upstream resolver with a new random ID, remember who
+//    asked, and relay the answer back with the client's ID.
+//
+// 3. **TTL-aware cache:**
+//    Every record says how long it may be cached (TTL). An entry lives
+//    for the smallest TTL in the answer; when served from the cache the
+//    TTLs are counted down, so clients never keep data too long.
+//
+// 4. **Negative caching (RFC 2308):**
+//    "Name does not exist" (NXDOMAIN) and "no record of this type"
+//    (NODATA) are cached too, for min(SOA TTL, SOA MINIMUM) from the
+//    authority section. Without it every typo goes upstream again.
+//
+// 5. **Bounded size, LRU eviction:**
+//    LinkedHashMap in access order drops the least recently used entry
+//    when the cache is full, so memory stays bounded.
+//
+// 6. **Non-blocking, single thread:**
+//    One selector watches the client socket and the upstream socket; a
+//    wake-up reads up to 256 datagrams from each. The cache and the
+//    pending table need no locks because only this thread touches them.
+//
+// 7. **Coalescing and spoofing:**
+//    Identical questions already in flight wait for the same upstream
+//    answer. Upstream answers must match a pending random ID *and* the
+//    question, and arrive on a connected socket, which makes forged
+//    answers harder (real resolvers also randomize the source port).
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
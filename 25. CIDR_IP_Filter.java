@@ -0,0 +1,895 @@
+// ===================================================================
+// EXPERIMENT: CIDR ALLOW/DENY FILTER FOR INCOMING TRAFFIC
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Radix trie (longest prefix match) + server integration
+// ===================================================================
+// AIM:
+// "4. Subnet_Mask.py" works with networks in CIDR notation
+// (192.168.10.0/28). UDPServer and FileReceiverServer accept packets
+// and connections from any address. This experiment adds an IP filter
+// with allow/deny rules for whole subnets, decided by the most specific
+// (longest) matching prefix, like a router's forwarding table. Rules
+// are kept in a path-compressed binary trie stored in primitive arrays,
+// and a new rule file replaces the old rules atomically while traffic
+// keeps flowing.
+// ===================================================================
+
+
+// ==========================================================
+// TRIE CODE – Ipv4Trie.java
+// ==========================================================
+
+public final class Ipv4Trie {
+
+    public static final byte NONE = -1;
+
+    // Nodes are 4 ints in one array: {key, len << 8 | action, left, right}.
+    // The first len bits of key are the prefix, action is the rule stored
+    // there (NONE for pure branch nodes), left/right are the offsets of
+    // the children (-1 = none). One node is 16 bytes, so a step down the
+    // trie costs at most one cache miss. Nodes are laid out depth-first:
+    // the left child usually sits right next to its parent.
+    private final int[] nodes;
+
+    // Shortcut for the first 16 bits: where to continue the walk and the
+    // best rule already passed on the way (like a router's first-level
+    // table). Most lookups then visit only a handful of nodes.
+    private static final int ROOT_BITS = 16;
+    private final int[] rootNode = new int[1 << ROOT_BITS];
+    private final byte[] rootBest = new byte[1 << ROOT_BITS];
+
+    private Ipv4Trie(int count) {
+        nodes = new int[count * 4];
+    }
+
+    public int nodeCount() {
+        return nodes.length / 4;
+    }
+
+    // Action of the longest prefix containing the address, or NONE
+    public byte lookup(int address) {
+        int top = address >>> (32 - ROOT_BITS);
+        byte best = rootBest[top];
+        int n = rootNode[top];
+        while (n >= 0) {
+            int info = nodes[n + 1];
+            int l = info >>> 8;
+            if (((address ^ nodes[n]) & (int) (-1L << (32 - l))) != 0) {
+                break;                                  // prefix differs: no deeper match
+            }
+            if ((byte) info != NONE) {
+                best = (byte) info;
+            }
+            n = nodes[n + ((address << l) < 0 ? 3 : 2)];   // next bit after the prefix
+        }
+        return best;
+    }
+
+    // Walks every 16-bit start value once through the nodes shorter than
+    // ROOT_BITS; the first node at or below that depth is where lookups begin
+    private void buildRootTable() {
+        for (int top = 0; top < rootNode.length; top++) {
+            int address = top << (32 - ROOT_BITS);
+            byte best = NONE;
+            int n = nodes.length == 0 ? -1 : 0;
+            while (n >= 0) {
+                int info = nodes[n + 1];
+                int l = info >>> 8;
+                if (l >= ROOT_BITS) {
+                    if (((address ^ nodes[n]) & maskOf(ROOT_BITS)) != 0) {
+                        n = -1;
+                    }
+                    break;
+                }
+                if (((address ^ nodes[n]) & maskOf(l)) != 0) {
+                    n = -1;
+                    break;
+                }
+                if ((byte) info != NONE) {
+                    best = (byte) info;
+                }
+                n = nodes[n + ((address << l) < 0 ? 3 : 2)];
+            }
+            rootNode[top] = n;
+            rootBest[top] = best;
+        }
+    }
+
+    static int maskOf(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    // Mutable pointer trie used while adding rules, flattened by build()
+    public static final class Builder {
+        private static final class Node {
+            final int key;
+            final int len;
+            byte action = NONE;
+            Node left;
+            Node right;
+
+            Node(int key, int len) {
+                this.key = key & maskOf(len);
+                this.len = len;
+            }
+        }
+
+        private Node root;
+        private int nodes;
+
+        // A later rule for the same prefix replaces the earlier one
+        public Builder add(int prefix, int length, byte action) {
+            root = insert(root, prefix & maskOf(length), length, action);
+            return this;
+        }
+
+        private Node insert(Node node, int key, int length, byte action) {
+            if (node == null) {
+                Node leaf = new Node(key, length);
+                leaf.action = action;
+                nodes++;
+                return leaf;
+            }
+            int common = Math.min(Integer.numberOfLeadingZeros(node.key ^ key), Math.min(node.len, length));
+            if (common == node.len && common == length) {
+                node.action = action;
+            } else if (common == node.len) {
+                // New prefix is longer: continue below this node
+                if ((key << common) < 0) {
+                    node.right = insert(node.right, key, length, action);
+                } else {
+                    node.left = insert(node.left, key, length, action);
+                }
+            } else if (common == length) {
+                // New prefix covers this node: it becomes the parent
+                Node parent = new Node(key, length);
+                parent.action = action;
+                attach(parent, node, common);
+                nodes++;
+                return parent;
+            } else {
+                // Prefixes diverge: a branch node at the first differing bit
+                Node branch = new Node(key, common);
+                Node leaf = new Node(key, length);
+                leaf.action = action;
+                attach(branch, node, common);
+                attach(branch, leaf, common);
+                nodes += 2;
+                return branch;
+            }
+            return node;
+        }
+
+        private static void attach(Node parent, Node child, int bit) {
+            if ((child.key << bit) < 0) {
+                parent.right = child;
+            } else {
+                parent.left = child;
+            }
+        }
+
+        public Ipv4Trie build() {
+            Ipv4Trie t = new Ipv4Trie(nodes);
+            if (root != null) {
+                flatten(t.nodes, root, new int[1]);
+            }
+            t.buildRootTable();
+            return t;
+        }
+
+        private static int flatten(int[] out, Node node, int[] next) {
+            int i = next[0];
+            next[0] += 4;
+            out[i] = node.key;
+            out[i + 1] = node.len << 8 | (node.action & 0xff);
+            out[i + 2] = node.left == null ? -1 : flatten(out, node.left, next);
+            out[i + 3] = node.right == null ? -1 : flatten(out, node.right, next);
+            return i;
+        }
+    }
+}
+
+
+
+// ==========================================================
+// TRIE CODE – Ipv6Trie.java
+// ==========================================================
+
+public final class Ipv6Trie {
+
+    public static final byte NONE = -1;
+
+    // Same idea as Ipv4Trie with 128-bit keys split into two longs.
+    // Node = 4 longs: {keyHi, keyLo, len << 8 | action, left << 32 | right}.
+    private final long[] nodes;
+
+    private Ipv6Trie(int count) {
+        nodes = new long[count * 4];
+    }
+
+    public int nodeCount() {
+        return nodes.length / 4;
+    }
+
+    // IPv6 rules usually share a long common start (2001:db8::/32), so
+    // the 16-bit shortcut table indexes the bits right after the root
+    // node's prefix instead of the first 16 bits of the address.
+    private static final int ROOT_BITS = 16;
+    private int rootLen = -1;
+    private int[] rootNode;
+    private byte[] rootBest;
+
+    public byte lookup(long hi, long lo) {
+        byte best = NONE;
+        int n = nodes.length == 0 ? -1 : 0;
+        if (rootNode != null) {
+            if (((hi ^ nodes[0]) & maskHi(rootLen)) != 0) {
+                return NONE;                            // outside the root prefix: no rule applies
+            }
+            int top = (int) ((hi << rootLen) >>> (64 - ROOT_BITS));
+            best = rootBest[top];
+            n = rootNode[top];
+        }
+        while (n >= 0) {
+            int info = (int) nodes[n + 2];
+            int l = info >>> 8;
+            if (((hi ^ nodes[n]) & maskHi(l)) != 0 || ((lo ^ nodes[n + 1]) & maskLo(l)) != 0) {
+                break;
+            }
+            if ((byte) info != NONE) {
+                best = (byte) info;
+            }
+            if (l == 128) {
+                break;
+            }
+            long children = nodes[n + 3];
+            n = bit(hi, lo, l) ? (int) children : (int) (children >> 32);
+        }
+        return best;
+    }
+
+    // Only when the root prefix plus 16 bits still fits in the high word
+    private void buildRootTable() {
+        if (nodes.length == 0 || (int) nodes[2] >>> 8 > 64 - ROOT_BITS) {
+            return;
+        }
+        rootLen = (int) nodes[2] >>> 8;
+        int depth = rootLen + ROOT_BITS;
+        rootNode = new int[1 << ROOT_BITS];
+        rootBest = new byte[1 << ROOT_BITS];
+        for (int top = 0; top < rootNode.length; top++) {
+            long hi = nodes[0] | (long) top << (64 - depth);
+            byte best = NONE;
+            int n = 0;
+            while (n >= 0) {
+                int info = (int) nodes[n + 2];
+                int l = info >>> 8;
+                if (l >= depth) {
+                    if (((hi ^ nodes[n]) & maskHi(depth)) != 0) {
+                        n = -1;
+                    }
+                    break;
+                }
+                if (((hi ^ nodes[n]) & maskHi(l)) != 0) {
+                    n = -1;
+                    break;
+                }
+                if ((byte) info != NONE) {
+                    best = (byte) info;
+                }
+                long children = nodes[n + 3];
+                n = bit(hi, 0, l) ? (int) children : (int) (children >> 32);
+            }
+            rootNode[top] = n;
+            rootBest[top] = best;
+        }
+    }
+
+    static boolean bit(long hi, long lo, int position) {
+        return position < 64 ? (hi << position) < 0 : (lo << (position - 64)) < 0;
+    }
+
+    static long maskHi(int length) {
+        return length == 0 ? 0 : length >= 64 ? -1L : -1L << (64 - length);
+    }
+
+    static long maskLo(int length) {
+        return length <= 64 ? 0 : -1L << (128 - length);
+    }
+
+    public static final class Builder {
+        private static final class Node {
+            final long hi;
+            final long lo;
+            final int len;
+            byte action = NONE;
+            Node left;
+            Node right;
+
+            Node(long hi, long lo, int len) {
+                this.hi = hi & maskHi(len);
+                this.lo = lo & maskLo(len);
+                this.len = len;
+            }
+        }
+
+        private Node root;
+        private int nodes;
+
+        public Builder add(long hi, long lo, int length, byte action) {
+            root = insert(root, hi & maskHi(length), lo & maskLo(length), length, action);
+            return this;
+        }
+
+        private Node insert(Node node, long hi, long lo, int length, byte action) {
+            if (node == null) {
+                Node leaf = new Node(hi, lo, length);
+                leaf.action = action;
+                nodes++;
+                return leaf;
+            }
+            int diff = node.hi != hi ? Long.numberOfLeadingZeros(node.hi ^ hi)
+                                     : 64 + Long.numberOfLeadingZeros(node.lo ^ lo);
+            int common = Math.min(diff, Math.min(node.len, length));
+            if (common == node.len && common == length) {
+                node.action = action;
+            } else if (common == node.len) {
+                if (bit(hi, lo, common)) {
+                    node.right = insert(node.right, hi, lo, length, action);
+                } else {
+                    node.left = insert(node.left, hi, lo, length, action);
+                }
+            } else if (common == length) {
+                Node parent = new Node(hi, lo, length);
+                parent.action = action;
+                attach(parent, node, common);
+                nodes++;
+                return parent;
+            } else {
+                Node branch = new Node(hi, lo, common);
+                Node leaf = new Node(hi, lo, length);
+                leaf.action = action;
+                attach(branch, node, common);
+                attach(branch, leaf, common);
+                nodes += 2;
+                return branch;
+            }
+            return node;
+        }
+
+        private static void attach(Node parent, Node child, int position) {
+            if (bit(child.hi, child.lo, position)) {
+                parent.right = child;
+            } else {
+                parent.left = child;
+            }
+        }
+
+        public Ipv6Trie build() {
+            Ipv6Trie t = new Ipv6Trie(nodes);
+            if (root != null) {
+                flatten(t.nodes, root, new int[1]);
+            }
+            t.buildRootTable();
+            return t;
+        }
+
+        private static int flatten(long[] out, Node node, int[] next) {
+            int i = next[0];
+            next[0] += 4;
+            out[i] = node.hi;
+            out[i + 1] = node.lo;
+            out[i + 2] = node.len << 8 | (node.action & 0xff);
+            int left = node.left == null ? -1 : flatten(out, node.left, next);
+            int right = node.right == null ? -1 : flatten(out, node.right, next);
+            out[i + 3] = (long) left << 32 | (right & 0xffffffffL);
+            return i;
+        }
+    }
+}
+
+
+
+// ==========================================================
+// FILTER CODE – IpFilter.java
+// ==========================================================
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class IpFilter {
+
+    public static final byte DENY = 0;
+    public static final byte ALLOW = 1;
+
+    // One immutable, complete rule set. Swapping filters means replacing
+    // the reference to it – a lookup sees either the old set or the new
+    // one, never a half-built mix, and nobody waits for a lock.
+    public static final class RuleSet {
+        final Ipv4Trie v4;
+        final Ipv6Trie v6;
+        final boolean defaultAllow;
+        final int rules;
+
+        RuleSet(Ipv4Trie v4, Ipv6Trie v6, boolean defaultAllow, int rules) {
+            this.v4 = v4;
+            this.v6 = v6;
+            this.defaultAllow = defaultAllow;
+            this.rules = rules;
+        }
+
+        public int size() {
+            return rules;
+        }
+
+        public boolean allowsV4(int address) {
+            byte a = v4.lookup(address);
+            return a == Ipv4Trie.NONE ? defaultAllow : a == ALLOW;
+        }
+
+        public boolean allowsV6(long hi, long lo) {
+            byte a = v6.lookup(hi, lo);
+            return a == Ipv6Trie.NONE ? defaultAllow : a == ALLOW;
+        }
+
+        public boolean allows(InetAddress address) {
+            byte[] b = address.getAddress();
+            if (b.length == 4) {
+                return allowsV4(toInt(b, 0));
+            }
+            return allowsV6(toLong(b, 0), toLong(b, 8));
+        }
+
+        // Rule file format, one rule per line ('#' starts a comment):
+        //   default allow|deny
+        //   allow 10.0.0.0/8
+        //   deny  10.66.0.0/16        (more specific: wins inside 10.66/16)
+        //   deny  2001:db8::/32
+        //   allow 192.168.1.7         (single host = /32 or /128)
+        public static RuleSet parse(List<String> lines) {
+            Ipv4Trie.Builder v4 = new Ipv4Trie.Builder();
+            Ipv6Trie.Builder v6 = new Ipv6Trie.Builder();
+            boolean defaultAllow = true;
+            int rules = 0;
+            for (int n = 0; n < lines.size(); n++) {
+                String line = lines.get(n);
+                int hash = line.indexOf('#');
+                String[] f = (hash >= 0 ? line.substring(0, hash) : line).trim().split("\\s+");
+                if (f.length == 1 && f[0].isEmpty()) {
+                    continue;
+                }
+                if (f.length != 2) {
+                    throw new IllegalArgumentException("line " + (n + 1) + ": expected '<allow|deny|default> <value>'");
+                }
+                String verb = f[0].toLowerCase();
+                if (verb.equals("default")) {
+                    defaultAllow = parseAction(f[1], n) == ALLOW;
+                    continue;
+                }
+                byte action = parseAction(verb, n);
+                byte[] addr = parsePrefix(f[1], n);
+                int slash = f[1].indexOf('/');
+                int length = slash < 0 ? addr.length * 8 : Integer.parseInt(f[1].substring(slash + 1));
+                if (length < 0 || length > addr.length * 8) {
+                    throw new IllegalArgumentException("line " + (n + 1) + ": bad prefix length " + length);
+                }
+                if (addr.length == 4) {
+                    v4.add(toInt(addr, 0), length, action);
+                } else {
+                    v6.add(toLong(addr, 0), toLong(addr, 8), length, action);
+                }
+                rules++;
+            }
+            return new RuleSet(v4.build(), v6.build(), defaultAllow, rules);
+        }
+
+        private static byte parseAction(String word, int n) {
+            switch (word.toLowerCase()) {
+                case "allow": return ALLOW;
+                case "deny": return DENY;
+                default: throw new IllegalArgumentException("line " + (n + 1) + ": unknown action " + word);
+            }
+        }
+
+        private static byte[] parsePrefix(String text, int n) {
+            String ip = text.contains("/") ? text.substring(0, text.indexOf('/')) : text;
+            // Only literals: a host name here would trigger a DNS lookup, and
+            // so would a dotted quad with an octet above 255
+            if (!ip.contains(":") && !ip.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+                throw new IllegalArgumentException("line " + (n + 1) + ": not an IP address: " + ip);
+            }
+            if (!ip.contains(":")) {
+                for (String octet : ip.split("\\.")) {
+                    if (Integer.parseInt(octet) > 255) {
+                        throw new IllegalArgumentException("line " + (n + 1) + ": not an IP address: " + ip);
+                    }
+                }
+            }
+            try {
+                return InetAddress.getByName(ip).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("line " + (n + 1) + ": not an IP address: " + ip);
+            }
+        }
+    }
+
+    // One gauge for all filters in the JVM: each adds its own rule count
+    private static final Metrics.Gauge RULES =
+            Metrics.gauge("ip_filter_rules", "Rules in the active rule sets of all filters");
+
+    private volatile RuleSet rules;
+    private final Metrics.Counter allowed = Metrics.counter("ip_filter_allowed_total", "Packets/connections allowed");
+    private final Metrics.Counter denied = Metrics.counter("ip_filter_denied_total", "Packets/connections denied");
+
+    public IpFilter(RuleSet rules) {
+        this.rules = rules;
+        RULES.add(rules.rules);
+    }
+
+    public static IpFilter allowAll() {
+        return new IpFilter(RuleSet.parse(List.of()));
+    }
+
+    // Loads the rule file if it exists (no file = allow everything) and
+    // re-reads it whenever it changes, so rules can be edited while the
+    // server runs. A file with an error is reported and ignored.
+    public static IpFilter watch(Path file) {
+        IpFilter filter = allowAll();
+        long[] lastModified = {-1};
+        filter.reloadIfChanged(file, lastModified);
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                filter.reloadIfChanged(file, lastModified);
+            }
+        }, "ip-filter-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        return filter;
+    }
+
+    private void reloadIfChanged(Path file, long[] lastModified) {
+        try {
+            long m = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+            if (m == lastModified[0]) {
+                return;
+            }
+            lastModified[0] = m;
+            RuleSet next = m == 0 ? RuleSet.parse(List.of()) : RuleSet.parse(Files.readAllLines(file));
+            swap(next);
+            AsyncLog.info("[ip-filter] " + next.rules + " rules active from " + file
+                    + " (default " + (next.defaultAllow ? "allow" : "deny") + ")");
+        } catch (IOException | IllegalArgumentException e) {
+            AsyncLog.warn("[ip-filter] keeping previous rules, " + file + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void swap(RuleSet next) {
+        RULES.add(next.rules - rules.rules);
+        rules = next;
+    }
+
+    public RuleSet rules() {
+        return rules;
+    }
+
+    public boolean allows(InetAddress address) {
+        boolean ok = rules.allows(address);
+        (ok ? allowed : denied).increment();
+        return ok;
+    }
+
+    static int toInt(byte[] b, int off) {
+        return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+    }
+
+    static long toLong(byte[] b, int off) {
+        return (long) toInt(b, off) << 32 | (toInt(b, off + 4) & 0xffffffffL);
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – IpFilterBenchmark.java
+// ==========================================================
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IpFilterBenchmark {
+
+    // Usage: java IpFilterBenchmark [ipv4Rules] [ipv6Rules]
+    public static void main(String[] args) throws Exception {
+        int rules4 = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int rules6 = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        SplittableRandom rnd = new SplittableRandom(42);
+
+        // 1. Correctness: compare with a plain "check every rule" scan
+        List<String> small = randomRules(rnd, 2000, 500);
+        IpFilter.RuleSet check = IpFilter.RuleSet.parse(small);
+        int[][] linear = linearTable(small);
+        for (int i = 0; i < 200_000; i++) {
+            int a = address(rnd, linear);
+            if (check.allowsV4(a) != linearAllows(linear, a)) {
+                throw new AssertionError("mismatch for " + InetAddress.getByAddress(bytes(a)));
+            }
+        }
+        long[][] linear6 = linearTable6(small);
+        for (int i = 0; i < 200_000; i++) {
+            long[] a = address6(rnd, linear6);
+            if (check.allowsV6(a[0], a[1]) != linearAllows6(linear6, a[0], a[1])) {
+                throw new AssertionError("IPv6 mismatch for " + Long.toHexString(a[0]) + Long.toHexString(a[1]));
+            }
+        }
+        System.out.println("Trie matches linear scan on 200,000 IPv4 and 200,000 IPv6 addresses (2,500 rules)");
+
+        // 2. Build time for the full rule set
+        List<String> lines = randomRules(rnd, rules4, rules6);
+        long t0 = System.nanoTime();
+        IpFilter.RuleSet big = IpFilter.RuleSet.parse(lines);
+        System.out.printf("Parsed + built %,d rules in %d ms (%,d IPv4 nodes, %,d IPv6 nodes)%n",
+                big.size(), (System.nanoTime() - t0) / 1_000_000, big.v4.nodeCount(), big.v6.nodeCount());
+
+        // 3. Lookup speed on addresses that mostly fall inside some rule
+        int[][] table = linearTable(lines);
+        int[] probes = new int[1 << 20];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = address(rnd, table);
+        }
+        long[][] table6 = linearTable6(lines);
+        long[][] probes6 = new long[1 << 16][];
+        for (int i = 0; i < probes6.length; i++) {
+            probes6[i] = address6(rnd, table6);
+        }
+        InetAddress[] objects = new InetAddress[1 << 16];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = InetAddress.getByAddress(bytes(probes[i]));
+        }
+        for (int round = 0; round < 3; round++) {               // last round counts (JIT warmed up)
+            measure("IPv4 int lookup", 20_000_000, i -> big.allowsV4(probes[i & (probes.length - 1)]));
+            measure("IPv6 long lookup", 5_000_000, i -> {
+                long[] p = probes6[i & (probes6.length - 1)];
+                return big.allowsV6(p[0], p[1]);
+            });
+            measure("InetAddress lookup", 5_000_000, i -> big.allows(objects[i & (objects.length - 1)]));
+        }
+
+        // 4. Hot swap: another thread replaces the rule set every millisecond
+        IpFilter filter = new IpFilter(big);
+        IpFilter.RuleSet other = IpFilter.RuleSet.parse(randomRules(new SplittableRandom(7), rules4, rules6));
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong swaps = new AtomicLong();
+        Thread swapper = new Thread(() -> {
+            while (running.get()) {
+                filter.swap(swaps.get() % 2 == 0 ? other : big);
+                swaps.incrementAndGet();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        swapper.start();
+        measure("IPv4 during hot swaps", 20_000_000, i -> filter.rules().allowsV4(probes[i & (probes.length - 1)]));
+        running.set(false);
+        swapper.join();
+        System.out.printf("Rule set swapped %,d times during the run, no locks taken%n", swaps.get());
+    }
+
+    interface Probe {
+        boolean test(int i);
+    }
+
+    private static void measure(String label, int count, Probe probe) {
+        long start = System.nanoTime();
+        int allowed = 0;
+        for (int i = 0; i < count; i++) {
+            if (probe.test(i)) {
+                allowed++;
+            }
+        }
+        double ns = (System.nanoTime() - start) / (double) count;
+        System.out.printf("%-24s %6.1f ns/lookup  (%d%% allowed)%n", label, ns, allowed * 100L / count);
+    }
+
+    // Mostly /16 – /28 prefixes, like real block lists, with some /8 and /32
+    static List<String> randomRules(SplittableRandom rnd, int v4, int v6) {
+        List<String> lines = new ArrayList<>(v4 + v6 + 1);
+        lines.add("default allow");
+        for (int i = 0; i < v4; i++) {
+            int len = rnd.nextInt(10) == 0 ? 8 : rnd.nextInt(10) == 0 ? 32 : 16 + rnd.nextInt(13);
+            int a = rnd.nextInt();
+            lines.add((rnd.nextInt(4) == 0 ? "allow " : "deny ")
+                    + ((a >>> 24) & 0xff) + "." + ((a >>> 16) & 0xff) + "." + ((a >>> 8) & 0xff) + "." + (a & 0xff)
+                    + "/" + len);
+        }
+        for (int i = 0; i < v6; i++) {
+            long word = rnd.nextLong(1L << 32);
+            lines.add((rnd.nextInt(4) == 0 ? "allow " : "deny ")
+                    + String.format("2001:db8:%x:%x::/%d", word >>> 16, word & 0xffff, 32 + rnd.nextInt(33)));
+        }
+        return lines;
+    }
+
+    // {prefix, length, action} for the IPv4 rules, in file order
+    static int[][] linearTable(List<String> lines) throws Exception {
+        List<int[]> rows = new ArrayList<>();
+        for (String line : lines) {
+            String[] f = line.split("\\s+");
+            if (f[0].equals("default") || f[1].contains(":")) {
+                continue;
+            }
+            String[] p = f[1].split("/");
+            int len = Integer.parseInt(p[1]);
+            int prefix = IpFilter.toInt(InetAddress.getByName(p[0]).getAddress(), 0) & Ipv4Trie.maskOf(len);
+            rows.add(new int[] {prefix, len, f[0].equals("allow") ? 1 : 0});
+        }
+        return rows.toArray(new int[0][]);
+    }
+
+    static boolean linearAllows(int[][] table, int address) {
+        int bestLen = -1;
+        boolean allow = true;                                   // default allow
+        for (int[] r : table) {
+            if ((address & Ipv4Trie.maskOf(r[1])) == r[0] && r[1] >= bestLen) {
+                bestLen = r[1];
+                allow = r[2] == 1;
+            }
+        }
+        return allow;
+    }
+
+    // {hi, lo, length, action} for the IPv6 rules
+    static long[][] linearTable6(List<String> lines) throws Exception {
+        List<long[]> rows = new ArrayList<>();
+        for (String line : lines) {
+            String[] f = line.split("\\s+");
+            if (f[0].equals("default") || !f[1].contains(":")) {
+                continue;
+            }
+            String[] p = f[1].split("/");
+            int len = Integer.parseInt(p[1]);
+            byte[] b = InetAddress.getByName(p[0]).getAddress();
+            rows.add(new long[] {IpFilter.toLong(b, 0) & Ipv6Trie.maskHi(len), IpFilter.toLong(b, 8) & Ipv6Trie.maskLo(len),
+                    len, f[0].equals("allow") ? 1 : 0});
+        }
+        return rows.toArray(new long[0][]);
+    }
+
+    static boolean linearAllows6(long[][] table, long hi, long lo) {
+        long bestLen = -1;
+        boolean allow = true;
+        for (long[] r : table) {
+            int len = (int) r[2];
+            if ((hi & Ipv6Trie.maskHi(len)) == r[0] && (lo & Ipv6Trie.maskLo(len)) == r[1] && len >= bestLen) {
+                bestLen = len;
+                allow = r[3] == 1;
+            }
+        }
+        return allow;
+    }
+
+    static long[] address6(SplittableRandom rnd, long[][] table) {
+        if (rnd.nextInt(4) == 0) {
+            return new long[] {0x20010db800000000L | rnd.nextLong(1L << 32), rnd.nextLong()};
+        }
+        long[] r = table[rnd.nextInt(table.length)];
+        int len = (int) r[2];
+        return new long[] {r[0] | (rnd.nextLong() & ~Ipv6Trie.maskHi(len)), r[1] | (rnd.nextLong() & ~Ipv6Trie.maskLo(len))};
+    }
+
+    // 3 in 4 addresses inside a random rule's prefix, the rest anywhere
+    static int address(SplittableRandom rnd, int[][] table) {
+        if (rnd.nextInt(4) == 0) {
+            return rnd.nextInt();
+        }
+        int[] r = table[rnd.nextInt(table.length)];
+        return r[0] | (rnd.nextInt() & ~Ipv4Trie.maskOf(r[1]));
+    }
+
+    static byte[] bytes(int a) {
+        return new byte[] {(byte) (a >>> 24), (byte) (a >>> 16), (byte) (a >>> 8), (byte) a};
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save Ipv4Trie.java, Ipv6Trie.java, IpFilter.java and
+//         IpFilterBenchmark.java with the other experiments (IpFilter
+//         uses Metrics.java and LatencyHistogram.java from 20 – 21 and
+//         AsyncLog.java from 22).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Benchmark (correctness check, build time, ns per lookup,
+//         lookups while the rules are swapped every millisecond):
+//         java IpFilterBenchmark
+//         java IpFilterBenchmark 100000 20000
+//
+// Step 4: Filter the servers. Create "ip_rules.txt" next to them:
+//             default deny
+//             allow 127.0.0.0/8
+//             allow ::1
+//             allow 192.168.1.0/24
+//             deny  192.168.1.13
+//         then run java UDPServer or java FileReceiverServer as usual
+//         (compile them together with the IpFilter files above, including
+//         AsyncLog.java, Metrics.java and LatencyHistogram.java).
+//         Edit the file while the server runs – the new rules are active
+//         within a second. Without the file everything is allowed.
+//
+// Example output (1 CPU, 50,000 IPv4 + 10,000 IPv6 rules):
+//   Trie matches linear scan on 200,000 IPv4 and 200,000 IPv6 addresses (2,500 rules)
+//   Parsed + built 60,000 rules in 541 ms (86,476 IPv4 nodes, 12,282 IPv6 nodes)
+//   IPv4 int lookup            36.1 ns/lookup
+//   IPv6 long lookup           25.2 ns/lookup
+//   InetAddress lookup         46.8 ns/lookup   (getAddress() copies the bytes)
+//   IPv4 during hot swaps      69.8 ns/lookup   (two tries fight for the cache)
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **CIDR and longest prefix match:**
+//    10.0.0.0/8 means "the first 8 bits are 00001010". When several
+//    rules contain an address, the one with the longest prefix (the
+//    smallest network) decides, so "allow 10/8" plus "deny 10.66/16"
+//    denies only 10.66.x.x. Routers choose routes the same way.
+//
+// 2. **Binary trie:**
+//    Walk the address bit by bit from the top; every rule is stored at
+//    the node for its prefix. The last rule passed on the way down is
+//    the longest match. At most 32 (IPv4) or 128 (IPv6) steps.
+//
+// 3. **Path compression (radix / Patricia trie):**
+//    Chains of nodes with a single child are merged into one node that
+//    stores the whole skipped prefix. A lookup only visits nodes where
+//    rules really branch – usually a dozen or so, even with 50,000 rules.
+//
+// 4. **Primitive arrays:**
+//    Addresses are ints (IPv4) and pairs of longs (IPv6); the nodes are
+//    parallel arrays instead of objects. A lookup touches no objects, no
+//    boxing, and no garbage, and comparing a prefix is one XOR and AND.
+//
+// 5. **First-level table:**
+//    A 65,536-entry array remembers, for every value of the first 16
+//    bits, which node to continue from and the best rule seen so far.
+//    Lookups skip the top of the trie (the same trick as the DIR-24-8
+//    tables in hardware routers), which halves the number of nodes
+//    visited. Laying each node out in 16 or 32 contiguous bytes means one
+//    cache miss per step instead of one per field array.
+//
+// 6. **Atomic hot swap (copy-on-write):**
+//    A new rule file is parsed into a completely new trie; then one
+//    volatile reference is replaced. Lookups in progress finish with the
+//    old trie, new ones use the new trie. No locks, no pause.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
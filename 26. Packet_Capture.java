@@ -0,0 +1,533 @@
+// ===================================================================
+// EXPERIMENT: IN-PROCESS PACKET CAPTURE WITH PCAP EXPORT
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Off-heap ring buffer + pcap writer/reader
+// ===================================================================
+// AIM:
+// In "14 facebook wireshark ..." we watched TCP and HTTP packets with
+// Wireshark. On a server machine we often cannot run Wireshark or
+// tcpdump (no root, no GUI, TLS-encrypted traffic). This experiment lets
+// the servers record their own traffic: the last few thousand payloads
+// with timestamps and addresses go into a fixed-size ring buffer outside
+// the Java heap, and can be downloaded at any time as a .pcap file that
+// Wireshark opens like a normal capture. When capture is switched off
+// the servers pay one volatile read per packet and copy nothing.
+// ===================================================================
+
+
+// ==========================================================
+// CAPTURE CODE – PacketCapture.java
+// ==========================================================
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PacketCapture {
+
+    public static final byte TCP = 6;
+    public static final byte UDP = 17;
+
+    // pcap link type for "raw IP, no Ethernet header"
+    static final int LINKTYPE_RAW = 101;
+
+    // Slot layout in the ring (every slot has the same size):
+    //   0 timestamp (µs since 1970)   8 original length   12 captured length
+    //  16 protocol   17 inbound?   18 IPv6?   20 source port   22 destination port
+    //  24 source address (16 bytes, IPv4 in the first 4)   40 destination address
+    //  56 payload (up to snapLength bytes)
+    static final int HEADER = 56;
+
+    // A connection or datagram endpoint pair, built once per connection
+    // (or per datagram, only while capturing)
+    public static final class Flow {
+        final byte protocol;
+        final boolean ipv6;
+        final byte[] local;
+        final byte[] remote;
+        final int localPort;
+        final int remotePort;
+
+        private Flow(byte protocol, SocketAddress local, SocketAddress remote) {
+            InetSocketAddress l = (InetSocketAddress) local;
+            InetSocketAddress r = (InetSocketAddress) remote;
+            this.protocol = protocol;
+            this.remote = r.getAddress().getAddress();
+            // A socket bound to "any" reports :: even for IPv4 peers
+            this.local = l.getAddress().isAnyLocalAddress() ? new byte[this.remote.length] : l.getAddress().getAddress();
+            this.ipv6 = this.local.length == 16 || this.remote.length == 16;
+            this.localPort = l.getPort();
+            this.remotePort = r.getPort();
+        }
+
+        public static Flow tcp(SocketAddress local, SocketAddress remote) {
+            return new Flow(TCP, local, remote);
+        }
+
+        public static Flow udp(SocketAddress local, SocketAddress remote) {
+            return new Flow(UDP, local, remote);
+        }
+    }
+
+    private static PacketCapture shared;
+
+    private final ByteBuffer ring;     // direct: outside the heap, never scanned by the GC
+    private final int snapLength;
+    private final int slotSize;
+    private final int slots;
+    private final long startMicros = System.currentTimeMillis() * 1000;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean enabled;
+    private long next;                 // sequence number of the next packet (guarded by this)
+
+    public PacketCapture(int bufferBytes, int snapLength) {
+        if (bufferBytes <= 0 || snapLength < 0 || snapLength > 65535) {
+            throw new IllegalArgumentException("ring " + bufferBytes + " bytes, snap length " + snapLength);
+        }
+        this.snapLength = snapLength;
+        this.slotSize = (HEADER + snapLength + 7) & ~7;
+        this.slots = Math.max(1, bufferBytes / slotSize);
+        this.ring = ByteBuffer.allocateDirect(slots * slotSize);
+    }
+
+    // One capture per JVM, configured with -Dcapture=on (start enabled),
+    // -Dcapture.mb (ring size, default 8) and -Dcapture.snaplen (bytes
+    // kept per packet, default 1024). Adds /pcap, and the POST-only
+    // /pcap/start and /pcap/stop, to the metrics endpoint of experiment 21.
+    public static synchronized PacketCapture shared() {
+        if (shared == null) {
+            long ringBytes = (long) Integer.getInteger("capture.mb", 8) << 20;
+            if (ringBytes <= 0 || ringBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("capture.mb must be between 1 and 2047");
+            }
+            PacketCapture c = new PacketCapture((int) ringBytes, Integer.getInteger("capture.snaplen", 1024));
+            c.enabled = "on".equals(System.getProperty("capture"));
+            Metrics.counter("capture_packets_total", "Packets recorded by the capture ring", c::recorded);
+            Metrics.gauge("capture_enabled", "1 while packets are being captured", () -> c.enabled ? 1 : 0);
+            MetricsEndpoint.register("/pcap", "application/vnd.tcpdump.pcap", c::toPcap);
+            MetricsEndpoint.registerAction("/pcap/start", "text/plain", () -> c.toggle(true));
+            MetricsEndpoint.registerAction("/pcap/stop", "text/plain", () -> c.toggle(false));
+            shared = c;
+        }
+        return shared;
+    }
+
+    private byte[] toggle(boolean on) {
+        setEnabled(on);
+        return ("capture " + (on ? "started" : "stopped") + ", " + capacity()
+                + " packets kept, snap length " + snapLength + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Call sites check this first, so nothing is built or copied while off
+    public boolean enabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public int capacity() {
+        return slots;
+    }
+
+    public synchronized long recorded() {
+        return next;
+    }
+
+    // Bytes src[off .. off+len) were received (inbound) or sent on the flow
+    public void record(Flow flow, boolean inbound, byte[] src, int off, int len) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            int slot = header(flow, inbound, len);
+            ring.put(slot + HEADER, src, off, Math.min(len, snapLength));
+        }
+    }
+
+    // Same for a buffer region [from, to); the buffer's position is not touched
+    public void record(Flow flow, boolean inbound, ByteBuffer src, int from, int to) {
+        if (!enabled || to <= from) {
+            return;
+        }
+        synchronized (this) {
+            int slot = header(flow, inbound, to - from);
+            ring.put(slot + HEADER, src, from, Math.min(to - from, snapLength));
+        }
+    }
+
+    // Overwrites the oldest slot. The servers record from one thread each,
+    // so the lock is uncontended and costs a few nanoseconds.
+    private int header(Flow flow, boolean inbound, int len) {
+        int slot = (int) (next++ % slots) * slotSize;
+        ring.putLong(slot, startMicros + (System.nanoTime() - startNanos) / 1000);
+        ring.putInt(slot + 8, len);
+        ring.putInt(slot + 12, Math.min(len, snapLength));
+        ring.put(slot + 16, flow.protocol);
+        ring.put(slot + 17, (byte) (inbound ? 1 : 0));
+        ring.put(slot + 18, (byte) (flow.ipv6 ? 1 : 0));
+        ring.putShort(slot + 20, (short) (inbound ? flow.remotePort : flow.localPort));
+        ring.putShort(slot + 22, (short) (inbound ? flow.localPort : flow.remotePort));
+        putAddress(slot + 24, inbound ? flow.remote : flow.local, flow.ipv6);
+        putAddress(slot + 40, inbound ? flow.local : flow.remote, flow.ipv6);
+        return slot;
+    }
+
+    private void putAddress(int at, byte[] address, boolean ipv6) {
+        if (ipv6 && address.length == 4) {
+            // Mixed flow (IPv4 client on a dual-stack socket): use ::ffff:a.b.c.d
+            ring.put(at + 10, (byte) 0xff).put(at + 11, (byte) 0xff);
+            ring.put(at + 12, address);
+            for (int i = 0; i < 10; i++) {
+                ring.put(at + i, (byte) 0);
+            }
+        } else {
+            ring.put(at, address);
+        }
+    }
+
+    // The ring as a pcap file, oldest packet first
+    public byte[] toPcap() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writePcap(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // cannot happen for a byte array
+        }
+        return out.toByteArray();
+    }
+
+    public void writePcap(OutputStream target) throws IOException {
+        // Copy the ring under the lock (a memcpy), format it afterwards so
+        // the servers are held up for as short a time as possible
+        byte[] copy;
+        long first;
+        long count;
+        synchronized (this) {
+            count = Math.min(next, slots);
+            first = next - count;
+            copy = new byte[ring.capacity()];
+            ring.get(0, copy);
+        }
+        ByteBuffer snapshot = ByteBuffer.wrap(copy);
+
+        DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(target, 1 << 16));
+        out.writeInt(0xa1b2c3d4);     // magic, big-endian, microsecond timestamps
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);              // time zone: UTC
+        out.writeInt(0);
+        out.writeInt(40 + 20 + snapLength);   // snap length: IPv6 + TCP header and the kept payload
+        out.writeInt(LINKTYPE_RAW);
+
+        // TCP has no sequence numbers in the ring; number the bytes of each
+        // direction so Wireshark can follow and reassemble the stream
+        Map<String, long[]> sequence = new HashMap<>();
+        for (long seq = first; seq < first + count; seq++) {
+            int slot = (int) (seq % slots) * slotSize;
+            long micros = snapshot.getLong(slot);
+            int origLen = snapshot.getInt(slot + 8);
+            int capLen = snapshot.getInt(slot + 12);
+            byte protocol = snapshot.get(slot + 16);
+            boolean ipv6 = snapshot.get(slot + 18) == 1;
+            int srcPort = snapshot.getShort(slot + 20) & 0xffff;
+            int dstPort = snapshot.getShort(slot + 22) & 0xffff;
+            byte[] src = new byte[ipv6 ? 16 : 4];
+            byte[] dst = new byte[ipv6 ? 16 : 4];
+            snapshot.get(slot + 24, src);
+            snapshot.get(slot + 40, dst);
+
+            int l4 = protocol == TCP ? 20 : 8;
+            int ip = ipv6 ? 40 : 20;
+            out.writeInt((int) (micros / 1_000_000));
+            out.writeInt((int) (micros % 1_000_000));
+            out.writeInt(ip + l4 + capLen);
+            out.writeInt(ip + l4 + origLen);
+
+            if (ipv6) {
+                out.writeInt(0x60000000);
+                out.writeShort(Math.min(65535, l4 + origLen));   // a 16-bit field: larger records would wrap
+                out.writeByte(protocol);
+                out.writeByte(64);            // hop limit
+                out.write(src);
+                out.write(dst);
+            } else {
+                byte[] h = new byte[20];
+                ByteBuffer b = ByteBuffer.wrap(h);
+                b.put((byte) 0x45).put((byte) 0).putShort((short) Math.min(65535, ip + l4 + origLen));
+                b.putShort((short) seq).putShort((short) 0x4000);   // id, don't fragment
+                b.put((byte) 64).put(protocol).putShort((short) 0).put(src).put(dst);
+                b.putShort(10, ipChecksum(h));
+                out.write(h);
+            }
+
+            if (protocol == TCP) {
+                String key = Integer.toHexString(java.util.Arrays.hashCode(src)) + ":" + srcPort
+                        + ">" + Integer.toHexString(java.util.Arrays.hashCode(dst)) + ":" + dstPort;
+                String reverse = Integer.toHexString(java.util.Arrays.hashCode(dst)) + ":" + dstPort
+                        + ">" + Integer.toHexString(java.util.Arrays.hashCode(src)) + ":" + srcPort;
+                long[] mine = sequence.computeIfAbsent(key, k -> new long[] {1000});
+                long[] theirs = sequence.computeIfAbsent(reverse, k -> new long[] {1000});
+                out.writeShort(srcPort);
+                out.writeShort(dstPort);
+                out.writeInt((int) mine[0]);
+                out.writeInt((int) theirs[0]);  // acknowledge what the peer has sent so far
+                out.writeShort(0x5018);         // header length 20, flags PSH+ACK
+                out.writeShort(65535);          // window
+                out.writeInt(0);                // checksum (not computed), urgent pointer
+                mine[0] += origLen;
+            } else {
+                out.writeShort(srcPort);
+                out.writeShort(dstPort);
+                out.writeShort(Math.min(65535, 8 + origLen));
+                out.writeShort(0);              // checksum (not computed)
+            }
+            out.write(copy, slot + HEADER, capLen);
+        }
+        out.flush();
+    }
+
+    static short ipChecksum(byte[] header) {
+        int sum = 0;
+        for (int i = 0; i < header.length; i += 2) {
+            sum += (header[i] & 0xff) << 8 | (header[i + 1] & 0xff);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+}
+
+
+
+// ==========================================================
+// READER CODE – PcapDump.java
+// ==========================================================
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+public class PcapDump {
+
+    // Usage: java PcapDump <file.pcap | http://127.0.0.1:9100/pcap>
+    // Prints the packets one per line, like "tcpdump -r file -A"
+    public static void main(String[] args) throws Exception {
+        String source = args.length > 0 ? args[0] : "http://127.0.0.1:9100/pcap";
+        try (InputStream raw = source.startsWith("http") ? new URL(source).openStream()
+                                                         : Files.newInputStream(Path.of(source))) {
+            DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(raw));
+            int magic = in.readInt();
+            boolean swapped = magic == 0xd4c3b2a1;
+            if (magic != 0xa1b2c3d4 && !swapped) {
+                throw new IOException("not a pcap file (magic " + Integer.toHexString(magic) + ")");
+            }
+            in.skipNBytes(16);
+            int linkType = order(in.readInt(), swapped);
+            if (linkType != PacketCapture.LINKTYPE_RAW) {
+                throw new IOException("only raw IP captures (link type 101) are decoded, got " + linkType);
+            }
+            SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+            int packets = 0;
+            while (true) {
+                int sec;
+                try {
+                    sec = order(in.readInt(), swapped);
+                } catch (EOFException end) {
+                    break;
+                }
+                int usec = order(in.readInt(), swapped);
+                int capLen = order(in.readInt(), swapped);
+                int origLen = order(in.readInt(), swapped);
+                byte[] p = new byte[capLen];
+                in.readFully(p);
+                packets++;
+                System.out.printf("%s.%06d %s%n", time.format(new Date(sec * 1000L)), usec, describe(p, origLen));
+            }
+            System.out.println(packets + " packets");
+        }
+    }
+
+    private static int order(int v, boolean swapped) {
+        return swapped ? Integer.reverseBytes(v) : v;
+    }
+
+    static String describe(byte[] p, int origLen) throws IOException {
+        boolean ipv6 = (p[0] & 0xf0) == 0x60;
+        int ipLen = ipv6 ? 40 : (p[0] & 0x0f) * 4;
+        int protocol = p[ipv6 ? 6 : 9];
+        InetAddress src = InetAddress.getByAddress(java.util.Arrays.copyOfRange(p, ipv6 ? 8 : 12, ipv6 ? 24 : 16));
+        InetAddress dst = InetAddress.getByAddress(java.util.Arrays.copyOfRange(p, ipv6 ? 24 : 16, ipv6 ? 40 : 20));
+        int srcPort = (p[ipLen] & 0xff) << 8 | (p[ipLen + 1] & 0xff);
+        int dstPort = (p[ipLen + 2] & 0xff) << 8 | (p[ipLen + 3] & 0xff);
+        int l4 = protocol == PacketCapture.TCP ? 20 : 8;
+        int payload = origLen - ipLen - l4;
+        StringBuilder text = new StringBuilder();
+        for (int i = ipLen + l4; i < p.length && text.length() < 60; i++) {
+            int c = p[i] & 0xff;
+            text.append(c >= 32 && c < 127 ? (char) c : '.');
+        }
+        String info = protocol == PacketCapture.TCP
+                ? "TCP seq " + Integer.toUnsignedString(readInt(p, ipLen + 4)) : "UDP";
+        return String.format("%s:%d > %s:%d %s len %d  %s", src.getHostAddress(), srcPort,
+                dst.getHostAddress(), dstPort, info, payload, text);
+    }
+
+    private static int readInt(byte[] p, int at) {
+        return (p[at] & 0xff) << 24 | (p[at + 1] & 0xff) << 16 | (p[at + 2] & 0xff) << 8 | (p[at + 3] & 0xff);
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – CaptureBenchmark.java
+// ==========================================================
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CaptureBenchmark {
+
+    // Usage: java CaptureBenchmark [payloadBytes]
+    // Cost per packet with capture off and on, then writes capture.pcap
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        PacketCapture capture = new PacketCapture(8 << 20, 1024);
+        PacketCapture.Flow flow = PacketCapture.Flow.tcp(new InetSocketAddress("127.0.0.1", 5000),
+                new InetSocketAddress("127.0.0.1", 40001));
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) ('a' + i % 26);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+
+        for (int round = 0; round < 3; round++) {            // the last round counts (JIT warmed up)
+            capture.setEnabled(false);
+            double off = run(capture, flow, payload, buffer, 20_000_000);
+            capture.setEnabled(true);
+            double on = run(capture, flow, payload, buffer, 5_000_000);
+            System.out.printf("capture off: %5.1f ns/packet   capture on: %6.1f ns/packet (%d-byte payload)%n",
+                    off, on, size);
+        }
+        System.out.printf("ring keeps the last %,d packets (%d MB off-heap)%n", capture.capacity(), 8);
+
+        Files.write(Path.of("capture.pcap"), capture.toPcap());
+        System.out.println("wrote capture.pcap – open it in Wireshark or run: java PcapDump capture.pcap");
+    }
+
+    private static double run(PacketCapture capture, PacketCapture.Flow flow, byte[] payload,
+                              ByteBuffer buffer, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if ((i & 1) == 0) {
+                capture.record(flow, true, payload, 0, payload.length);
+            } else {
+                capture.record(flow, false, buffer, 0, buffer.limit());
+            }
+        }
+        return (System.nanoTime() - start) / (double) count;
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save PacketCapture.java, PcapDump.java and CaptureBenchmark.java
+//         with the other experiments (PacketCapture uses Metrics.java and
+//         MetricsEndpoint.java from 21).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Cost of capturing (and a sample capture.pcap):
+//         java CaptureBenchmark
+//         java PcapDump capture.pcap
+//
+// Step 4: Capture a running server. Start it with capture on …
+//         java -Dcapture=on ChatServer
+//         java -Dcapture=on UDPServer
+//         … or switch capture on and off while it runs:
+//         curl -X POST http://127.0.0.1:9100/pcap/start
+//         curl -X POST http://127.0.0.1:9100/pcap/stop
+//         (POST only: a GET, e.g. from a browser, gets 405 and changes nothing)
+//
+// Step 5: Download the last packets and open them in Wireshark:
+//         curl -o chat.pcap http://127.0.0.1:9100/pcap
+//         wireshark chat.pcap        (Analyze → Follow → TCP Stream works)
+//         java PcapDump chat.pcap    (text view without Wireshark)
+//
+// Options: -Dcapture.mb=8 (ring size), -Dcapture.snaplen=1024 (bytes kept
+//          per packet; longer payloads are truncated like tcpdump -s)
+//
+// Example output (1 CPU):
+//   capture off:   0.6 ns/packet   capture on:  127.8 ns/packet (200-byte payload)
+//   ring keeps the last 7,767 packets (8 MB off-heap)
+//   13:40:21.910029 127.0.0.1:5000 > 127.0.0.1:40001 TCP seq 777600 len 200  abcdefgh…
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **What is recorded:**
+//    Application payloads as the server reads and writes them, with the
+//    time, protocol and both addresses/ports (the 5-tuple). For TLS
+//    connections (experiment 19) this is the decrypted text – something
+//    Wireshark on the wire cannot show without the keys.
+//
+// 2. **Synthesized headers:**
+//    Java sockets never see IP/TCP/UDP headers, so the pcap writer
+//    creates them (link type 101 = raw IP). TCP sequence numbers are
+//    counted per direction so Wireshark can follow the stream; the
+//    TCP/UDP checksums are left at 0 (Wireshark does not check them by
+//    default). SYN/FIN, retransmissions and ACK-only packets are not
+//    visible – use tcpdump for those.
+//
+// 3. **Off-heap ring buffer:**
+//    A direct ByteBuffer with fixed-size slots. Packet n goes to slot
+//    n % slots, overwriting the oldest one, so memory use never grows and
+//    the garbage collector never scans or copies the captured bytes.
+//
+// 4. **Cost when off:**
+//    record() returns after reading one volatile boolean; callers check
+//    enabled() before even building a Flow, so a disabled capture copies
+//    nothing and allocates nothing.
+//
+// 5. **pcap format:**
+//    24-byte file header (magic a1b2c3d4, version 2.4, link type), then
+//    per packet: seconds, microseconds, captured length, original length,
+//    packet bytes. Every tool (Wireshark, tcpdump -r, tshark) reads it.
+//    The header's snap length is -Dcapture.snaplen plus the largest
+//    synthesized header (IPv6 + TCP, 60 bytes), so no record claims to be
+//    longer than the file allows.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,1120 @@
+// ===================================================================
+// EXPERIMENT: HTTP/1.1 FILE SERVER WITH KEEP-ALIVE, RANGES AND SENDFILE
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: HTTP server + concurrent downloader / benchmark
+// ===================================================================
+// AIM:
+// FileReceiverServer and FileSenderClient (experiment 8) use our own
+// protocol, so every user needs our client. "10. HTTP_&_FTP.pkz" shows
+// the standard way: HTTP. This experiment serves a directory over
+// HTTP/1.1 so curl, wget and browsers can download files. It supports
+// persistent (keep-alive) and pipelined connections, Range requests for
+// resuming and parallel downloads, sends file bodies with
+// FileChannel.transferTo (sendfile: no copy through Java), and keeps an
+// LRU cache of open file handles and their metadata. HttpDownloader
+// measures it with many concurrent connections.
+// ===================================================================
+
+
+// ==========================================================
+// CACHE CODE – FileHandleCache.java
+// ==========================================================
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FileHandleCache implements Closeable {
+
+    // An open file plus everything a response header needs. Shared by all
+    // requests for the same file; reference-counted so an entry evicted
+    // while a download is still running is closed only when it finishes.
+    public static final class Handle {
+        public final Path path;
+        public final FileChannel channel;
+        public final long size;
+        public final String etag;
+        public final String lastModified;
+        public final String contentType;
+        final long modified;
+        long checkedAt;
+        int refs;
+        boolean evicted;
+
+        Handle(Path path, FileChannel channel, BasicFileAttributes attrs) {
+            this.path = path;
+            this.channel = channel;
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime().toMillis();
+            this.etag = "\"" + Long.toHexString(modified) + "-" + Long.toHexString(size) + "\"";
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME
+                    .format(Instant.ofEpochMilli(modified).atOffset(ZoneOffset.UTC));
+            this.contentType = contentType(path.getFileName().toString());
+        }
+    }
+
+    private final int capacity;
+    private final long validityNanos;
+    private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(64, 0.75f, true);
+    private final Metrics.Counter hits = Metrics.counter("http_handle_cache_hits_total", "Requests served from an open handle");
+    private final Metrics.Counter misses = Metrics.counter("http_handle_cache_misses_total", "Files opened");
+    private final Metrics.Counter revalidations =
+            Metrics.counter("http_handle_cache_revalidations_total", "Cached handles checked against the file system");
+
+    // validityMillis: how long cached metadata is trusted before the file
+    // is stat()ed again (like nginx open_file_cache_valid)
+    public FileHandleCache(int capacity, long validityMillis) {
+        this.capacity = capacity;
+        this.validityNanos = validityMillis * 1_000_000L;
+        Metrics.gauge("http_open_file_handles", "Files held open by the handle cache", this::openHandles);
+    }
+
+    // Open handles are kept in access order; the least recently used one
+    // goes when the cache is full. Files are opened under the lock, which
+    // is fine for a local disk but would serialize opens on slow storage.
+    public synchronized Handle acquire(Path path) throws IOException {
+        long now = System.nanoTime();
+        Handle h = handles.get(path);
+        if (h != null && now - h.checkedAt > validityNanos) {
+            revalidations.increment();
+            BasicFileAttributes attrs = readAttributes(path, h);
+            if (attrs.size() != h.size || attrs.lastModifiedTime().toMillis() != h.modified) {
+                evict(handles.remove(path));           // changed on disk: reopen below
+                h = null;
+            } else {
+                h.checkedAt = now;
+            }
+        }
+        if (h != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.isDirectory()) {
+                throw new FileSystemException(path.toString(), null, "is a directory");
+            }
+            h = new Handle(path, FileChannel.open(path, StandardOpenOption.READ), attrs);
+            h.checkedAt = now;
+            handles.put(path, h);
+            Iterator<Handle> eldest = handles.values().iterator();
+            while (handles.size() > capacity) {
+                evict(eldest.next());
+                eldest.remove();
+            }
+        }
+        h.refs++;
+        return h;
+    }
+
+    private BasicFileAttributes readAttributes(Path path, Handle cached) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            evict(handles.remove(path));               // deleted: forget it, report the error
+            throw e;
+        }
+    }
+
+    public synchronized void release(Handle h) {
+        if (--h.refs == 0 && h.evicted) {
+            closeQuietly(h);
+        }
+    }
+
+    private void evict(Handle h) {
+        h.evicted = true;
+        if (h.refs == 0) {
+            closeQuietly(h);
+        }
+    }
+
+    public synchronized long openHandles() {
+        return handles.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Map.Entry<Path, Handle> e : handles.entrySet()) {
+            evict(e.getValue());
+        }
+        handles.clear();
+    }
+
+    private static void closeQuietly(Handle h) {
+        try {
+            h.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static String contentType(String name) {
+        String ext = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        switch (ext) {
+            case "txt": case "log": case "java": case "py": return "text/plain; charset=utf-8";
+            case "html": case "htm": return "text/html; charset=utf-8";
+            case "css": return "text/css";
+            case "js": return "text/javascript";
+            case "json": return "application/json";
+            case "png": return "image/png";
+            case "jpg": case "jpeg": return "image/jpeg";
+            case "gif": return "image/gif";
+            case "pdf": return "application/pdf";
+            case "zip": return "application/zip";
+            case "pcap": return "application/vnd.tcpdump.pcap";
+            default: return "application/octet-stream";
+        }
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – HttpFileServer.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+public class HttpFileServer implements Closeable {
+
+    static final int MAX_HEADER = 16 * 1024;       // request line + headers
+    static final int SMALL_BODY = 16 * 1024;       // sent together with the header
+    static final int IDLE_TIMEOUT_MILLIS = 15_000; // idle keep-alive connections are closed
+
+    private static final AsyncLog.Limiter ACCESS_LOG =
+            AsyncLog.limiter("Access log", AsyncLog.Level.INFO, 50);
+
+    private final Path root;
+    private final ServerSocketChannel serverChannel;
+    private final FileHandleCache handles;
+    private final ExecutorService connections = VirtualThreads.newExecutor();
+    private volatile boolean running = true;
+
+    private final Metrics.Counter requests = Metrics.counter("http_requests_total", "Requests answered");
+    private final Metrics.Counter partial = Metrics.counter("http_partial_responses_total", "206 responses (Range)");
+    private final Metrics.Counter notModified = Metrics.counter("http_not_modified_total", "304 responses");
+    private final Metrics.Counter errors = Metrics.counter("http_errors_total", "4xx and 5xx responses");
+    private final Metrics.Counter bytesOut = Metrics.counter("http_body_bytes_out_total", "Body bytes sent");
+    private final Metrics.Counter accepted = Metrics.counter("http_connections_total", "Connections accepted");
+    private final Metrics.Gauge open = Metrics.gauge("http_open_connections", "Connections currently open");
+    private final LatencyHistogram serveTime = Metrics.histogram("http_request_micros", "Time to answer one request");
+
+    public HttpFileServer(Path root, int port, int maxHandles) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.handles = new FileHandleCache(maxHandles, 1000);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Accept loop; every connection gets its own (virtual) thread that
+    // reads requests one after another, so pipelined requests are simply
+    // answered in order.
+    public void run() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                accepted.increment();
+                connections.execute(() -> serve(channel));
+            } catch (IOException e) {
+                if (running) {
+                    AsyncLog.warn("[http] accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public Thread start() {
+        Thread t = new Thread(this::run, "http-accept");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        connections.shutdownNow();
+        handles.close();
+    }
+
+    private static final class Request {
+        String method;
+        String target;
+        boolean http11;
+        final Map<String, String> headers = new HashMap<>();
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        open.increment();
+        String peer = "?";
+        try (SocketChannel ch = channel) {
+            peer = String.valueOf(ch.getRemoteAddress());
+            ch.socket().setTcpNoDelay(true);
+            ch.socket().setSoTimeout(IDLE_TIMEOUT_MILLIS);   // honoured by the socket's input stream
+            InputStream in = new BufferedInputStream(ch.socket().getInputStream(), 8192);
+            ByteBuffer out = ByteBuffer.allocateDirect(MAX_HEADER + SMALL_BODY);
+            boolean keepAlive = true;
+            while (keepAlive && running) {
+                Request r;
+                try {
+                    r = readRequest(in);
+                } catch (IllegalArgumentException bad) {
+                    sendError(ch, out, 400, "Bad Request", bad.getMessage(), false, false);
+                    break;
+                }
+                if (r == null) {
+                    break;                                // client closed the connection
+                }
+                long start = System.nanoTime();
+                keepAlive = handle(r, ch, out, peer);
+                requests.increment();
+                serveTime.record((System.nanoTime() - start) / 1000);
+            }
+        } catch (SocketTimeoutException idle) {
+            // keep-alive connection unused for IDLE_TIMEOUT_MILLIS
+        } catch (IOException e) {
+            AsyncLog.debug("[http] " + peer + ": " + e.getMessage());
+        } finally {
+            open.decrement();
+        }
+    }
+
+    // Reads one request head. Returns null on a clean end of stream.
+    private static Request readRequest(InputStream in) throws IOException {
+        int[] budget = {MAX_HEADER};
+        String line = readLine(in, budget);
+        while (line != null && line.isEmpty()) {
+            line = readLine(in, budget);                 // tolerate blank lines between requests
+        }
+        if (line == null) {
+            return null;
+        }
+        String[] parts = line.split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("malformed request line");
+        }
+        Request r = new Request();
+        r.method = parts[0];
+        r.target = parts[1];
+        r.http11 = parts[2].equals("HTTP/1.1");
+        String header;
+        while (!(header = requireLine(readLine(in, budget))).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("malformed header");
+            }
+            r.headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+        }
+        // GET/HEAD bodies are meaningless; skip one if a client sends it
+        String length = r.header("content-length");
+        if (length != null) {
+            in.skipNBytes(Long.parseLong(length));
+        } else if (r.header("transfer-encoding") != null) {
+            throw new IllegalArgumentException("request bodies are not supported");
+        }
+        return r;
+    }
+
+    // A peer that closes right after a header line ends mid-request too
+    private static String requireLine(String line) throws IOException {
+        if (line == null) {
+            throw new IOException("connection closed inside a request");
+        }
+        return line;
+    }
+
+    private static String readLine(InputStream in, int[] budget) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (sb.length() == 0) {
+                    return null;
+                }
+                throw new IOException("connection closed inside a request");
+            }
+            if (--budget[0] < 0) {
+                throw new IllegalArgumentException("request header too large");
+            }
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Answers one request; returns whether the connection stays open
+    private boolean handle(Request r, SocketChannel ch, ByteBuffer out, String peer) throws IOException {
+        String connection = String.valueOf(r.header("connection")).toLowerCase();
+        boolean keepAlive = r.http11 ? !connection.equals("close") : connection.equals("keep-alive");
+        boolean head = r.method.equals("HEAD");
+        if (!head && !r.method.equals("GET")) {
+            return sendError(ch, out, 405, "Method Not Allowed", "only GET and HEAD", false, keepAlive);
+        }
+
+        Path file = resolve(r.target);
+        if (file == null) {
+            return sendError(ch, out, 403, "Forbidden", "outside the served directory", head, keepAlive);
+        }
+        FileHandleCache.Handle h;
+        try {
+            h = handles.acquire(file);
+        } catch (NoSuchFileException e) {
+            return sendError(ch, out, 404, "Not Found", r.target, head, keepAlive);
+        } catch (AccessDeniedException e) {
+            return sendError(ch, out, 403, "Forbidden", r.target, head, keepAlive);
+        } catch (IOException e) {
+            if (Files.isDirectory(file)) {
+                return sendListing(ch, out, r.target, file, head, keepAlive);
+            }
+            return sendError(ch, out, 500, "Internal Server Error", e.getMessage(), head, keepAlive);
+        }
+        try {
+            return sendFile(r, ch, out, h, head, keepAlive, peer);
+        } finally {
+            handles.release(h);
+        }
+    }
+
+    // Maps "/dir/a%20b.txt?x=1" to root/dir/a b.txt; null if it escapes root
+    private Path resolve(String target) {
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            int slash = target.indexOf('/', target.indexOf("//") + 2);
+            target = slash < 0 ? "/" : target.substring(slash);
+        }
+        int query = target.indexOf('?');
+        if (query >= 0) {
+            target = target.substring(0, query);
+        }
+        String decoded;
+        try {
+            decoded = URLDecoder.decode(target.replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!decoded.startsWith("/") || decoded.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path p = root.resolve(decoded.substring(1)).normalize();
+        return p.startsWith(root) ? p : null;
+    }
+
+    private boolean sendFile(Request r, SocketChannel ch, ByteBuffer out, FileHandleCache.Handle h,
+                             boolean head, boolean keepAlive, String peer) throws IOException {
+        String ifNoneMatch = r.header("if-none-match");
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(h.etag))) {
+            notModified.increment();
+            StringBuilder sb = status(304, "Not Modified", keepAlive, r.http11);
+            sb.append("ETag: ").append(h.etag).append("\r\n\r\n");
+            writeHead(ch, out, sb);
+            return keepAlive;
+        }
+
+        long start = 0;
+        long length = h.size;
+        int status = 200;
+        String rangeHeader = r.header("range");
+        String ifRange = r.header("if-range");
+        if (rangeHeader != null && (ifRange == null || ifRange.equals(h.etag) || ifRange.equals(h.lastModified))) {
+            long[] range = parseRange(rangeHeader, h.size);
+            if (range == UNSATISFIABLE) {
+                errors.increment();
+                StringBuilder sb = status(416, "Range Not Satisfiable", keepAlive, r.http11);
+                sb.append("Content-Range: bytes */").append(h.size).append("\r\n");
+                sb.append("Content-Length: 0\r\n\r\n");
+                writeHead(ch, out, sb);
+                return keepAlive;
+            }
+            if (range != null) {
+                status = 206;
+                start = range[0];
+                length = range[1] - range[0] + 1;
+                partial.increment();
+            }
+        }
+
+        StringBuilder sb = status(status, status == 206 ? "Partial Content" : "OK", keepAlive, r.http11);
+        sb.append("Content-Type: ").append(h.contentType).append("\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        if (status == 206) {
+            sb.append("Content-Range: bytes ").append(start).append('-').append(start + length - 1)
+              .append('/').append(h.size).append("\r\n");
+        }
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("ETag: ").append(h.etag).append("\r\n");
+        sb.append("Last-Modified: ").append(h.lastModified).append("\r\n\r\n");
+
+        out.clear();
+        out.put(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (head) {
+            writeFully(ch, out);
+        } else if (length <= SMALL_BODY) {
+            // Small body: one write for header + body instead of two packets
+            out.limit(out.position() + (int) length);
+            long pos = start;
+            while (out.hasRemaining()) {
+                int n = h.channel.read(out, pos);
+                if (n < 0) {
+                    throw new IOException(h.path + " shrank while being sent");
+                }
+                pos += n;
+            }
+            writeFully(ch, out);
+        } else {
+            // Large body: header, then sendfile straight from the page cache
+            writeFully(ch, out);
+            long pos = start;
+            long end = start + length;
+            while (pos < end) {
+                long n = h.channel.transferTo(pos, end - pos, ch);
+                if (n <= 0) {
+                    throw new IOException(h.path + " shrank while being sent");
+                }
+                pos += n;
+            }
+        }
+        if (!head) {
+            bytesOut.add(length);
+        }
+        if (ACCESS_LOG.allow()) {
+            AsyncLog.info("[http] " + peer + " " + r.method + " " + r.target + " " + status + " " + length);
+        }
+        return keepAlive;
+    }
+
+    static final long[] UNSATISFIABLE = new long[0];
+
+    // Single "bytes=a-b", "bytes=a-" or "bytes=-n" range → {first, last}.
+    // null = ignore the header and send the whole file (also for multiple
+    // ranges, which the standard allows a server to do).
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            if (a.isEmpty()) {
+                long suffix = Long.parseLong(b);       // last n bytes
+                if (suffix <= 0 || size == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] {Math.max(0, size - suffix), size - 1};
+            }
+            long first = Long.parseLong(a);
+            long last = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+            if (first > last) {
+                return null;                           // invalid syntax: ignored
+            }
+            if (first >= size) {
+                return UNSATISFIABLE;
+            }
+            return new long[] {first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private boolean sendListing(SocketChannel ch, ByteBuffer out, String target, Path dir,
+                                boolean head, boolean keepAlive) throws IOException {
+        String base = target.endsWith("/") ? target : target + "/";
+        StringBuilder html = new StringBuilder("<html><body><h3>Index of ").append(escapeHtml(base))
+                .append("</h3><pre>\n");
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            int shown = 0;
+            for (Path p : entries) {
+                if (shown++ == 500) {
+                    html.append("…\n");
+                    break;
+                }
+                String name = p.getFileName().toString() + (Files.isDirectory(p) ? "/" : "");
+                html.append("<a href=\"").append(escapeHtml(base))
+                    .append(java.net.URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20")
+                            .replace("%2F", "/")).append("\">")
+                    .append(escapeHtml(name)).append("</a>\n");
+            }
+        }
+        html.append("</pre></body></html>\n");
+        byte[] body = html.toString().getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = status(200, "OK", keepAlive, true);
+        sb.append("Content-Type: text/html; charset=utf-8\r\n");
+        sb.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        writeHeadAndBody(ch, sb, head ? new byte[0] : body);
+        return keepAlive;
+    }
+
+    private static String escapeHtml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    // A HEAD request gets the same headers, Content-Length included, but no body
+    private boolean sendError(SocketChannel ch, ByteBuffer out, int code, String reason, String detail,
+                              boolean head, boolean keepAlive) throws IOException {
+        errors.increment();
+        byte[] body = (code + " " + reason + ": " + detail + "\n").getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = status(code, reason, keepAlive, true);
+        if (code == 405) {
+            sb.append("Allow: GET, HEAD\r\n");
+        }
+        sb.append("Content-Type: text/plain; charset=utf-8\r\n");
+        sb.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        writeHeadAndBody(ch, sb, head ? new byte[0] : body);
+        return keepAlive;
+    }
+
+    private static StringBuilder status(int code, String reason, boolean keepAlive, boolean http11) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        sb.append("Date: ").append(HttpDate.now()).append("\r\n");
+        sb.append("Server: cn-lab\r\n");
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        } else if (!http11) {
+            sb.append("Connection: keep-alive\r\n");
+        }
+        return sb;
+    }
+
+    private static void writeHead(SocketChannel ch, ByteBuffer out, StringBuilder head) throws IOException {
+        out.clear();
+        out.put(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        writeFully(ch, out);
+    }
+
+    private static void writeHeadAndBody(SocketChannel ch, StringBuilder head, byte[] body) throws IOException {
+        ByteBuffer[] parts = {ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1)),
+                              ByteBuffer.wrap(body)};
+        while (parts[0].hasRemaining() || parts[1].hasRemaining()) {
+            ch.write(parts);
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            ch.write(out);
+        }
+    }
+
+    // The Date header changes once a second; formatting it per request
+    // would cost more than the rest of a small response.
+    static final class HttpDate {
+        private static volatile long second = -1;
+        private static volatile String text;
+
+        static String now() {
+            long s = System.currentTimeMillis() / 1000;
+            String t = text;
+            if (s != second || t == null) {
+                t = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+                text = t;
+                second = s;
+            }
+            return t;
+        }
+    }
+
+    // Usage: java HttpFileServer [root=.] [port=8000] [handles=256]
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "" : a.substring(eq + 1));
+        }
+        Path root = Path.of(opts.getOrDefault("root", "."));
+        HttpFileServer server = new HttpFileServer(root, Integer.parseInt(opts.getOrDefault("port", "8000")),
+                Integer.parseInt(opts.getOrDefault("handles", "256")));
+        MetricsEndpoint.start();
+        System.out.println("Serving " + server.root + " on http://127.0.0.1:" + server.port() + "/");
+        server.run();
+    }
+}
+
+
+
+// ==========================================================
+// CLIENT / BENCHMARK CODE – HttpDownloader.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+public class HttpDownloader {
+
+    // A minimal HTTP/1.1 client connection: enough to send several
+    // requests before reading the answers (pipelining).
+    static final class Connection implements AutoCloseable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final String host;
+
+        Connection(String host, int port) throws IOException {
+            this.host = host;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        static byte[] request(String method, String host, String path, String extraHeaders) {
+            return (method + " " + path + " HTTP/1.1\r\nHost: " + host + "\r\n" + extraHeaders + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        void send(byte[] request) throws IOException {
+            out.write(request);
+        }
+
+        // Reads one response head; the body is left in the stream
+        Response readHead() throws IOException {
+            String statusLine = line();
+            if (statusLine == null) {
+                throw new IOException("server closed the connection");
+            }
+            Response r = new Response();
+            r.status = Integer.parseInt(statusLine.split(" ")[1]);
+            String h;
+            while (true) {
+                h = line();
+                if (h == null) {
+                    throw new IOException("server closed the connection inside a response head");
+                }
+                if (h.isEmpty()) {
+                    break;
+                }
+                int colon = h.indexOf(':');
+                r.headers.put(h.substring(0, colon).toLowerCase(), h.substring(colon + 1).trim());
+            }
+            r.length = Long.parseLong(r.headers.getOrDefault("content-length", "0"));
+            return r;
+        }
+
+        // Reads a whole response; the body goes to sink (may be null = discard)
+        Response read(boolean head, FileChannel sink, long position) throws IOException {
+            Response r = readHead();
+            if (head) {
+                return r;
+            }
+            byte[] buf = new byte[64 * 1024];
+            long left = r.length;
+            while (left > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n < 0) {
+                    throw new IOException("connection closed inside a body");
+                }
+                if (sink != null) {
+                    ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+                    while (b.hasRemaining()) {
+                        position += sink.write(b, position);
+                    }
+                }
+                left -= n;
+            }
+            return r;
+        }
+
+        private String line() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return sb.length() == 0 ? null : sb.toString();
+                }
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    static final class Response {
+        int status;
+        long length;
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    // Usage:
+    //   java HttpDownloader                                  (self-contained demo)
+    //   java HttpDownloader <url> [parallel=4] [out=file]    (range download)
+    //   java HttpDownloader bench <url> [connections=8] [pipeline=16] [seconds=5]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        List<String> plain = new ArrayList<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            if (eq < 0) {
+                plain.add(a);
+            } else {
+                opts.put(a.substring(0, eq), a.substring(eq + 1));
+            }
+        }
+        if (plain.isEmpty()) {
+            demo();
+        } else if (plain.get(0).equals("bench")) {
+            URI uri = URI.create(plain.get(1));
+            int connections = Integer.parseInt(opts.getOrDefault("connections", "8"));
+            int pipeline = Integer.parseInt(opts.getOrDefault("pipeline", "16"));
+            int seconds = Integer.parseInt(opts.getOrDefault("seconds", "5"));
+            requestRate(uri, connections, 0, seconds);
+            requestRate(uri, connections, 1, seconds);
+            requestRate(uri, connections, pipeline, seconds);
+        } else {
+            URI uri = URI.create(plain.get(0));
+            String name = Path.of(uri.getPath()).getFileName().toString();
+            Path out = Path.of(opts.getOrDefault("out", name));
+            download(uri, Integer.parseInt(opts.getOrDefault("parallel", "4")), out);
+        }
+    }
+
+    // Splits the file into `parallel` ranges fetched over separate connections
+    // and written at their offsets. Returns MB/s.
+    static double download(URI uri, int requested, Path out) throws Exception {
+        String host = uri.getHost();
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        long size;
+        boolean ranges;
+        try (Connection c = new Connection(host, port)) {
+            c.send(Connection.request("HEAD", host, uri.getRawPath(), ""));
+            Response r = c.read(true, null, 0);
+            if (r.status != 200) {
+                throw new IOException("HEAD " + uri + " -> " + r.status);
+            }
+            size = r.length;
+            ranges = "bytes".equals(r.headers.get("accept-ranges"));
+        }
+        int parallel = ranges ? requested : 1;         // without ranges: one plain GET
+        long start = System.nanoTime();
+        try (FileChannel file = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ExecutorService pool = VirtualThreads.newExecutor();
+            List<Future<?>> parts = new ArrayList<>();
+            long part = (size + parallel - 1) / Math.max(1, parallel);
+            for (long first = 0; first < size; first += part) {
+                long from = first;
+                long to = Math.min(size, first + part) - 1;
+                parts.add(pool.submit(() -> {
+                    try (Connection c = new Connection(host, port)) {
+                        c.send(Connection.request("GET", host, uri.getRawPath(),
+                                parallel == 1 ? "" : "Range: bytes=" + from + "-" + to + "\r\n"));
+                        Response r = c.read(false, file, from);
+                        if (r.status != (parallel == 1 ? 200 : 206)) {
+                            throw new IOException("range " + from + "-" + to + " -> " + r.status);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : parts) {
+                f.get();
+            }
+            pool.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mbps = size / seconds / (1 << 20);
+        System.out.printf("%-40s %,d bytes with %d connection(s): %.0f ms, %.0f MB/s%n",
+                uri.getPath() + " -> " + out.getFileName(), size, parallel, seconds * 1000, mbps);
+        return mbps;
+    }
+
+    // pipeline = 0: new connection per request, 1: keep-alive, n: n requests in flight
+    static double requestRate(URI uri, int connections, int pipeline, int seconds) throws Exception {
+        String host = uri.getHost();
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        AtomicLong done = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService pool = VirtualThreads.newExecutor();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            workers.add(pool.submit(() -> {
+                if (pipeline == 0) {
+                    byte[] req = Connection.request("GET", host, uri.getRawPath(), "Connection: close\r\n");
+                    while (System.nanoTime() < deadline) {
+                        try (Connection c = new Connection(host, port)) {
+                            c.send(req);
+                            c.read(false, null, 0);
+                            done.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+                byte[] one = Connection.request("GET", host, uri.getRawPath(), "");
+                byte[] burst = new byte[one.length * pipeline];
+                for (int k = 0; k < pipeline; k++) {
+                    System.arraycopy(one, 0, burst, k * one.length, one.length);
+                }
+                try (Connection c = new Connection(host, port)) {
+                    while (System.nanoTime() < deadline) {
+                        c.send(burst);                     // all requests in one write
+                        for (int k = 0; k < pipeline; k++) {
+                            c.read(false, null, 0);
+                        }
+                        done.addAndGet(pipeline);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> w : workers) {
+            w.get();
+        }
+        pool.shutdown();
+        double rate = done.get() / (double) seconds;
+        String mode = pipeline == 0 ? "new connection per request" : pipeline == 1 ? "keep-alive"
+                : "keep-alive, " + pipeline + " pipelined";
+        System.out.printf("%-34s %d connections: %,10.0f requests/s%n", mode, connections, rate);
+        return rate;
+    }
+
+    // Starts a server on a temporary directory and runs every test against it
+    static void demo() throws Exception {
+        // Thousands of requests per second: keep the access log out of the
+        // console unless asked for (must be set before AsyncLog is loaded)
+        if (System.getProperty("log.level") == null) {
+            System.setProperty("log.level", "WARN");
+        }
+        Path dir = Files.createTempDirectory("cn-http");
+        Path big = dir.resolve("big.bin");
+        byte[] block = new byte[1 << 20];
+        new java.util.SplittableRandom(1).nextBytes(block);
+        try (OutputStream o = Files.newOutputStream(big)) {
+            for (int i = 0; i < 64; i++) {
+                block[0] = (byte) i;
+                o.write(block);
+            }
+        }
+        Files.writeString(dir.resolve("small.txt"), "hello from the HTTP file server\n".repeat(32));
+
+        try (HttpFileServer server = new HttpFileServer(dir, 0, 256)) {
+            server.start();
+            String base = "http://127.0.0.1:" + server.port() + "/";
+            System.out.println("Serving " + dir + " at " + base);
+
+            System.out.println("\n-- Downloads (64 MB, sendfile on the server) --");
+            for (int round = 0; round < 2; round++) {
+                download(URI.create(base + "big.bin"), 1, dir.resolve("copy1.bin"));
+                download(URI.create(base + "big.bin"), 4, dir.resolve("copy4.bin"));
+            }
+            System.out.println("checksums: original " + crc(big) + ", 1 connection " + crc(dir.resolve("copy1.bin"))
+                    + ", 4 ranges " + crc(dir.resolve("copy4.bin")));
+
+            System.out.println("\n-- Small file (1 KB) request rate --");
+            URI small = URI.create(base + "small.txt");
+            requestRate(small, 4, 0, 3);
+            requestRate(small, 4, 1, 3);
+            requestRate(small, 4, 16, 3);
+
+            System.out.println("\n-- Range and cache behaviour --");
+            try (Connection c = new Connection("127.0.0.1", server.port())) {
+                check(c, "bytes=-100", "", 206, 100);
+                check(c, "bytes=100-199", "", 206, 100);
+                check(c, "bytes=1000-1999", "", 206, 24);
+                check(c, "bytes=99999999-", "", 416, 0);
+                check(c, "bytes=0-0,5-9", "", 200, 1024);
+                c.send(Connection.request("HEAD", "127.0.0.1", "/small.txt", ""));
+                String etag = c.read(true, null, 0).headers.get("etag");
+                check(c, null, "If-None-Match: " + etag + "\r\n", 304, 0);
+                c.send(Connection.request("GET", "127.0.0.1", "/../etc/passwd", ""));
+                System.out.println("GET /../etc/passwd                       -> " + c.read(false, null, 0).status);
+            }
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Files.delete(p);
+            }
+        }
+        Files.delete(dir);
+        System.out.println("\nHandle cache: " + scrape("http_handle_cache_hits_total") + " hits, "
+                + scrape("http_handle_cache_misses_total") + " misses");
+    }
+
+    private static void check(Connection c, String range, String extra, int expectStatus, long expectLength)
+            throws IOException {
+        c.send(Connection.request("GET", "127.0.0.1", "/small.txt",
+                (range == null ? "" : "Range: " + range + "\r\n") + extra));
+        Response r = c.read(false, null, 0);
+        System.out.printf("%-40s -> %d, %d bytes %s%s%n", range != null ? "Range: " + range : extra.trim(),
+                r.status, r.length, r.headers.getOrDefault("content-range", ""),
+                r.status == expectStatus && r.length == expectLength ? "" : "   UNEXPECTED");
+    }
+
+    private static String crc(Path p) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel ch = FileChannel.open(p)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+            while (ch.read(buf) > 0) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static String scrape(String name) {
+        for (String line : Metrics.render().split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return line.substring(name.length() + 1);
+            }
+        }
+        return "?";
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save FileHandleCache.java, HttpFileServer.java and
+//         HttpDownloader.java with the other experiments. They use
+//         VirtualThreads.java (17), LatencyHistogram.java (20), Metrics.java
+//         and MetricsEndpoint.java (21) and AsyncLog.java (22).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Self-contained demo (temporary directory, server and client in
+//         one process: downloads, request rates, Range cases):
+//         java HttpDownloader
+//
+// Step 4: Serve a real directory:
+//         java HttpFileServer root=. port=8000
+//         curl -O http://127.0.0.1:8000/file_to_send.txt
+//         curl -r 0-99 http://127.0.0.1:8000/file_to_send.txt     (first 100 bytes)
+//         curl -C - -O http://127.0.0.1:8000/big.iso               (resume)
+//         java HttpDownloader http://127.0.0.1:8000/big.iso parallel=4
+//         java HttpDownloader bench http://127.0.0.1:8000/file_to_send.txt connections=8 pipeline=16
+//
+// Example output of the demo (1 CPU, loopback):
+//   /big.bin -> copy1.bin     67,108,864 bytes with 1 connection(s): 80 ms, 802 MB/s
+//   /big.bin -> copy4.bin     67,108,864 bytes with 4 connection(s): 77 ms, 830 MB/s
+//   new connection per request   4 connections:   5,328 requests/s
+//   keep-alive                   4 connections:  23,651 requests/s
+//   keep-alive, 16 pipelined     4 connections:  32,704 requests/s
+//   Range: bytes=-100            -> 206, 100 bytes bytes 924-1023/1024
+//   Range: bytes=99999999-       -> 416, 0 bytes bytes */1024
+//   GET /../etc/passwd           -> 403
+//   Handle cache: 185069 hits, 2 misses
+//   (Parallel ranges pay off on real networks where one TCP connection
+//    cannot fill the link; on one CPU over loopback they only break even.)
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Keep-alive (persistent connections):**
+//    HTTP/1.1 keeps the TCP connection open after a response, so the next
+//    request skips the 3-way handshake and slow start. HTTP/1.0 clients
+//    must ask with "Connection: keep-alive". Idle connections are closed
+//    after 15 s.
+//
+// 2. **Pipelining:**
+//    A client may send several requests without waiting for the answers;
+//    the server must answer in the same order. Reading requests one after
+//    another from the connection's stream gives that for free. Many small
+//    requests then share a few TCP segments instead of one round trip each.
+//
+// 3. **Range requests:**
+//    "Range: bytes=1000-1999" asks for part of a file; the answer is
+//    206 Partial Content with Content-Range. Used to resume a broken
+//    download (curl -C -) and to download one file over several
+//    connections. A range beyond the end gives 416. If-Range makes sure
+//    the parts come from the same version of the file (ETag).
+//
+// 4. **Zero copy (sendfile):**
+//    FileChannel.transferTo() lets the kernel move file pages from the
+//    page cache to the socket; the bytes never enter the Java heap. Very
+//    small bodies are instead read into the header buffer so header and
+//    body leave in one packet.
+//
+// 5. **File handle cache:**
+//    Opening a file and reading its size/date costs system calls on every
+//    request. An LRU map keeps the last N files open with their metadata
+//    and re-checks them on disk at most once a second. Handles are
+//    reference-counted so an evicted file is closed only after its last
+//    download finishes.
+//
+// 6. **Conditional requests:**
+//    Every response carries an ETag (date + size). A client that sends it
+//    back in If-None-Match gets 304 Not Modified and no body.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,914 @@
+// ===================================================================
+// EXPERIMENT: DIRECTORY TREE SYNCHRONIZATION OVER TCP
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Fork/join scanner + multi-connection sync client/server
+// ===================================================================
+// AIM:
+// FileSenderClient (experiment 8) sends one fixed file. This experiment
+// copies a whole directory tree and, on later runs, only what changed
+// (like rsync). The sender scans its tree with a fork/join scanner and
+// compares size, modification time and CRC32C against a manifest from
+// the receiver. Changed files go into a work queue drained by several
+// transfer workers with their own connections. Small files are batched
+// into one frame, large files are streamed into ".part" files, so a
+// crash or lost connection resumes where it stopped instead of starting
+// over.
+// ===================================================================
+
+
+// ==========================================================
+// SCANNER CODE – TreeScanner.java
+// ==========================================================
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
+
+public class TreeScanner extends RecursiveTask<List<TreeScanner.Entry>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // One regular file, path relative to the tree root with '/' separators
+    public static final class Entry {
+        public final String path;
+        public final long size;
+        public final long modified;   // milliseconds since 1970
+        public long crc = -1;         // -1 = not computed
+
+        public Entry(String path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    // Files the sync itself creates in the receiver's tree
+    static boolean internal(String name) {
+        return name.endsWith(".part") || name.equals(TreeSyncServer.HASH_CACHE);
+    }
+
+    private final Path root;
+    private final Path dir;
+
+    private TreeScanner(Path root, Path dir) {
+        this.root = root;
+        this.dir = dir;
+    }
+
+    // Every directory is its own task: sibling directories are listed in
+    // parallel, and an idle worker steals subdirectories from busy ones.
+    @Override
+    protected List<Entry> compute() {
+        List<Entry> files = new ArrayList<>();
+        List<TreeScanner> subdirs = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                BasicFileAttributes a = Files.readAttributes(child, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (a.isDirectory()) {
+                    TreeScanner task = new TreeScanner(root, child);
+                    task.fork();
+                    subdirs.add(task);
+                } else if (a.isRegularFile() && !internal(child.getFileName().toString())) {
+                    files.add(new Entry(relative(root, child), a.size(), a.lastModifiedTime().toMillis()));
+                }
+                // symbolic links and special files are skipped
+            }
+        } catch (IOException e) {
+            AsyncLog.warn("[scan] skipping " + dir + ": " + e.getMessage());
+        }
+        for (TreeScanner task : subdirs) {
+            files.addAll(task.join());
+        }
+        return files;
+    }
+
+    public static List<Entry> scan(Path root, ForkJoinPool pool) {
+        return pool.invoke(new TreeScanner(root, root));
+    }
+
+    // Fills in the CRC of the given entries, several files at a time
+    public static void hash(Path root, List<Entry> entries, ForkJoinPool pool) throws IOException {
+        try {
+            pool.submit(() -> entries.parallelStream().forEach(e -> {
+                try {
+                    e.crc = crc(root.resolve(e.path), e.size);
+                } catch (IOException ex) {
+                    throw new java.io.UncheckedIOException(ex);
+                }
+            })).get();
+        } catch (InterruptedException | java.util.concurrent.ExecutionException e) {
+            throw new IOException("hashing failed: " + e.getCause(), e);
+        }
+    }
+
+    // CRC32C of the first `length` bytes (uses the CPU's CRC instruction)
+    public static long crc(Path file, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel ch = FileChannel.open(file)) {
+            long left = length;
+            while (left > 0) {
+                buf.clear().limit((int) Math.min(buf.capacity(), left));
+                int n = ch.read(buf);
+                if (n < 0) {
+                    break;
+                }
+                buf.flip();
+                crc.update(buf);
+                left -= n;
+            }
+        }
+        return crc.getValue();
+    }
+
+    static String relative(Path root, Path file) {
+        return root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+}
+
+
+
+// ==========================================================
+// RECEIVER CODE – TreeSyncServer.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
+
+public class TreeSyncServer {
+
+    // Frame types (one byte, then the fields listed)
+    static final byte MANIFEST = 'M';   // →            reply: count, {path, size, modified, crc}
+    static final byte FILE = 'F';       // path, size, modified   reply: resume offset, then bytes, crc → ack
+    static final byte BATCH = 'B';      // count, {path, size, modified, bytes, crc} → ack
+    static final byte TOUCH = 'T';      // path, modified → ack (same content, only the date differs)
+    static final byte DELETE = 'D';     // path → ack
+    static final byte OK = 'K';
+    static final byte ERROR = 'E';      // followed by a message
+
+    static final String HASH_CACHE = ".treesync-hashes";
+    static final int DEFAULT_PORT = 12350;
+
+    private final Path root;
+    private final ForkJoinPool scanPool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final Metrics.Counter filesIn = Metrics.counter("treesync_files_received_total", "Files written");
+    private final Metrics.Counter bytesIn = Metrics.counter("treesync_bytes_received_total", "File bytes received");
+    private final Metrics.Counter resumed = Metrics.counter("treesync_resumed_total", "Transfers resumed from a .part file");
+    private final Metrics.Counter failed = Metrics.counter("treesync_checksum_failures_total", "Files rejected by CRC");
+
+    public TreeSyncServer(Path root) throws IOException {
+        this.root = Files.createDirectories(root).toAbsolutePath().normalize();
+    }
+
+    public void run(int port) throws IOException {
+        ExecutorService connections = VirtualThreads.newExecutor();
+        try (ServerSocket ss = new ServerSocket(port)) {
+            System.out.println("Tree sync receiver on port " + port + ", writing to " + root);
+            while (true) {
+                Socket s = ss.accept();
+                connections.execute(() -> serve(s));
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 256 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+                try {
+                    switch (type) {
+                        case MANIFEST: sendManifest(out); break;
+                        case FILE: receiveFile(in, out); break;
+                        case BATCH: receiveBatch(in); break;
+                        case TOUCH: touch(in); break;
+                        case DELETE: delete(in); break;
+                        default: throw new IOException("unknown frame type " + type);
+                    }
+                    if (type != MANIFEST) {
+                        out.writeByte(OK);
+                    }
+                } catch (IllegalArgumentException e) {
+                    out.writeByte(ERROR);      // bad path or checksum: tell the sender, keep the connection
+                    out.writeUTF(e.getMessage());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // sender went away; a half-received large file stays as .part
+        }
+    }
+
+    // Scans the tree and hashes it. Hashes are cached in a file keyed by
+    // size and date, so only new or modified files are read again.
+    private synchronized void sendManifest(DataOutputStream out) throws IOException {
+        long start = System.nanoTime();
+        List<TreeScanner.Entry> files = TreeScanner.scan(root, scanPool);
+        Map<String, long[]> cache = loadHashCache();
+        List<TreeScanner.Entry> toHash = new ArrayList<>();
+        for (TreeScanner.Entry e : files) {
+            long[] c = cache.get(e.path);
+            if (c != null && c[0] == e.size && c[1] == e.modified) {
+                e.crc = c[2];
+            } else {
+                toHash.add(e);
+            }
+        }
+        TreeScanner.hash(root, toHash, scanPool);
+        saveHashCache(files);
+
+        out.writeInt(files.size());
+        for (TreeScanner.Entry e : files) {
+            out.writeUTF(e.path);
+            out.writeLong(e.size);
+            out.writeLong(e.modified);
+            out.writeLong(e.crc);
+        }
+        AsyncLog.info(String.format("[manifest] %d files (%d hashed) in %d ms", files.size(), toHash.size(),
+                (System.nanoTime() - start) / 1_000_000));
+    }
+
+    private Map<String, long[]> loadHashCache() throws IOException {
+        Map<String, long[]> cache = new HashMap<>();
+        Path f = root.resolve(HASH_CACHE);
+        if (Files.exists(f)) {
+            for (String line : Files.readAllLines(f)) {
+                String[] p = line.split(" ", 4);
+                if (p.length == 4) {
+                    cache.put(p[3], new long[] {Long.parseLong(p[0]), Long.parseLong(p[1]), Long.parseLong(p[2])});
+                }
+            }
+        }
+        return cache;
+    }
+
+    private void saveHashCache(List<TreeScanner.Entry> files) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (TreeScanner.Entry e : files) {
+            sb.append(e.size).append(' ').append(e.modified).append(' ').append(e.crc).append(' ')
+              .append(e.path).append('\n');
+        }
+        Path tmp = root.resolve(HASH_CACHE + ".part");
+        Files.writeString(tmp, sb);
+        Files.move(tmp, root.resolve(HASH_CACHE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A large file is written to "<name>.<size>-<date>.part". The name ties
+    // the partial data to one version of the source file: if the sender
+    // comes back with the same version, the transfer resumes at the end of
+    // the .part file; a changed source gets a fresh .part and the parts of
+    // older versions are deleted.
+    private void receiveFile(DataInputStream in, DataOutputStream out) throws IOException {
+        String relative = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        if (resolveOrNull(relative) == null) {
+            // Reply "already have everything" so only the CRC follows, and
+            // read it: the next frame must start where the sender thinks
+            out.writeLong(size);
+            out.flush();
+            in.readLong();
+        }
+        Path target = resolve(relative);
+        Path part = partFile(target, size, modified);
+        Files.createDirectories(target.getParent());
+        deleteStaleParts(target, part);
+        long offset = Files.exists(part) ? Math.min(Files.size(part), size) : 0;
+        out.writeLong(offset);
+        out.flush();
+        if (offset > 0) {
+            resumed.increment();
+        }
+
+        CRC32C crc = new CRC32C();
+        if (offset > 0) {
+            updateCrc(crc, part, offset);               // the CRC covers the whole file
+        }
+        try (FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ch.truncate(offset);
+            ch.position(offset);
+            copy(in, ch, size - offset, crc);
+        }
+        finish(part, target, modified, crc.getValue(), in.readLong());
+    }
+
+    // Many small files in one frame: one round trip instead of one per file
+    private void receiveBatch(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        IllegalArgumentException firstError = null;
+        for (int i = 0; i < count; i++) {
+            Path target = resolveOrNull(in.readUTF());
+            long size = in.readLong();
+            long modified = in.readLong();
+            if (target == null) {
+                in.skipNBytes(size + 8);
+                firstError = new IllegalArgumentException("path outside the tree");
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            Path part = partFile(target, size, modified);
+            CRC32C crc = new CRC32C();
+            try (FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                copy(in, ch, size, crc);
+            }
+            try {
+                finish(part, target, modified, crc.getValue(), in.readLong());
+            } catch (IllegalArgumentException e) {
+                firstError = e;                          // read the rest of the frame, then report
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    private void finish(Path part, Path target, long modified, long crc, long expected) throws IOException {
+        if (crc != expected) {
+            Files.deleteIfExists(part);
+            failed.increment();
+            throw new IllegalArgumentException("checksum mismatch for " + root.relativize(target));
+        }
+        Files.setLastModifiedTime(part, FileTime.fromMillis(modified));
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        filesIn.increment();
+    }
+
+    private void copy(DataInputStream in, FileChannel ch, long length, CRC32C crc) throws IOException {
+        byte[] buf = new byte[256 * 1024];
+        while (length > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, length));
+            if (n < 0) {
+                throw new IOException("connection closed during a file");
+            }
+            crc.update(buf, 0, n);
+            ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+            while (b.hasRemaining()) {
+                ch.write(b);
+            }
+            length -= n;
+            bytesIn.add(n);
+        }
+    }
+
+    private static void updateCrc(CRC32C crc, Path file, long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        try (FileChannel ch = FileChannel.open(file)) {
+            while (length > 0) {
+                buf.clear().limit((int) Math.min(buf.capacity(), length));
+                int n = ch.read(buf);
+                if (n < 0) {
+                    break;
+                }
+                buf.flip();
+                crc.update(buf);
+                length -= n;
+            }
+        }
+    }
+
+    private void touch(DataInputStream in) throws IOException {
+        String relative = in.readUTF();
+        long modified = in.readLong();                  // read the whole frame before validating
+        Files.setLastModifiedTime(resolve(relative), FileTime.fromMillis(modified));
+    }
+
+    private void delete(DataInputStream in) throws IOException {
+        Files.deleteIfExists(resolve(in.readUTF()));
+    }
+
+    static Path partFile(Path target, long size, long modified) {
+        return target.resolveSibling(target.getFileName() + "." + size + "-" + modified + ".part");
+    }
+
+    // "<name>.<size>-<date>.part" files of target other than keep: left by
+    // a version of the source that will never be resumed
+    private static void deleteStaleParts(Path target, Path keep) throws IOException {
+        String prefix = target.getFileName() + ".";
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(target.getParent(), prefix + "*.part")) {
+            for (Path p : dir) {
+                String key = p.getFileName().toString().substring(prefix.length());
+                if (!p.equals(keep) && key.matches("\\d+--?\\d+\\.part")) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    private Path resolve(String relative) {
+        Path p = resolveOrNull(relative);
+        if (p == null) {
+            throw new IllegalArgumentException("path outside the tree: " + relative);
+        }
+        return p;
+    }
+
+    // Never write outside the root, whatever the sender sends
+    private Path resolveOrNull(String relative) {
+        Path p = root.resolve(relative).normalize();
+        return p.startsWith(root) && !p.equals(root) && !TreeScanner.internal(p.getFileName().toString()) ? p : null;
+    }
+
+    // Usage: java TreeSyncServer [dir=received_tree] [port=12350]
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = TreeSyncClient.options(args);
+        MetricsEndpoint.start();
+        new TreeSyncServer(Path.of(opts.getOrDefault("dir", "received_tree")))
+                .run(Integer.parseInt(opts.getOrDefault("port", String.valueOf(DEFAULT_PORT))));
+    }
+}
+
+
+
+// ==========================================================
+// SENDER CODE – TreeSyncClient.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+public class TreeSyncClient {
+
+    static final long SMALL_FILE = 64 * 1024;       // batched below this size
+    static final long BATCH_BYTES = 1024 * 1024;    // per batch frame
+    static final int BATCH_FILES = 256;
+    static final int MAX_ATTEMPTS = 4;
+
+    // One unit of work for a transfer worker
+    static final class Job {
+        final byte type;
+        final List<TreeScanner.Entry> files;   // BATCH: several, FILE/TOUCH/DELETE: one
+        long bytes;
+        int attempts;
+
+        Job(byte type, List<TreeScanner.Entry> files) {
+            this.type = type;
+            this.files = files;
+            for (TreeScanner.Entry e : files) {
+                bytes += type == TreeSyncServer.TOUCH || type == TreeSyncServer.DELETE ? 0 : e.size;
+            }
+        }
+    }
+
+    private static final Job STOP = new Job((byte) 0, List.of());
+
+    private final Path root;
+    private final String host;
+    private final int port;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong filesDone = new AtomicLong();
+    private final AtomicLong resumedBytes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final long abortAfter;
+    private volatile String failure;
+
+    TreeSyncClient(Path root, String host, int port, long abortAfter) {
+        this.root = root;
+        this.host = host;
+        this.port = port;
+        this.abortAfter = abortAfter;
+    }
+
+    // Usage: java TreeSyncClient src=<dir> [host=127.0.0.1] [port=12350]
+    //        [workers=4] [checksum=false] [delete=false] [abortAfter=<bytes>]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = options(args);
+        Path src = Path.of(opts.getOrDefault("src", ".")).toAbsolutePath().normalize();
+        TreeSyncClient client = new TreeSyncClient(src, opts.getOrDefault("host", "127.0.0.1"),
+                Integer.parseInt(opts.getOrDefault("port", String.valueOf(TreeSyncServer.DEFAULT_PORT))),
+                parseSize(opts.getOrDefault("abortAfter", "0")));
+        boolean ok = client.sync(Integer.parseInt(opts.getOrDefault("workers", "4")),
+                Boolean.parseBoolean(opts.getOrDefault("checksum", "false")),
+                Boolean.parseBoolean(opts.getOrDefault("delete", "false")));
+        System.exit(ok ? 0 : 1);
+    }
+
+    boolean sync(int workers, boolean checksum, boolean delete) throws Exception {
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+        // 1. Receiver's manifest and our own scan
+        Map<String, TreeScanner.Entry> remote = new HashMap<>();
+        try (Socket s = connect()) {
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            out.writeByte(TreeSyncServer.MANIFEST);
+            out.flush();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                TreeScanner.Entry e = new TreeScanner.Entry(in.readUTF(), in.readLong(), in.readLong());
+                e.crc = in.readLong();
+                remote.put(e.path, e);
+            }
+        }
+        long scanStart = System.nanoTime();
+        List<TreeScanner.Entry> local = TreeScanner.scan(root, pool);
+        long scanMillis = (System.nanoTime() - scanStart) / 1_000_000;
+
+        // 2. Compare. Same size and date → unchanged (rsync's quick check).
+        //    Same size, other date → hash to tell a real change from a touch.
+        List<TreeScanner.Entry> send = new ArrayList<>();
+        List<TreeScanner.Entry> suspect = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (TreeScanner.Entry e : local) {
+            seen.add(e.path);
+            TreeScanner.Entry r = remote.get(e.path);
+            if (r == null || r.size != e.size) {
+                send.add(e);
+            } else if (checksum || r.modified != e.modified) {
+                suspect.add(e);
+            }
+        }
+        TreeScanner.hash(root, suspect, pool);
+        List<Job> touches = new ArrayList<>();
+        for (TreeScanner.Entry e : suspect) {
+            if (e.crc != remote.get(e.path).crc) {
+                send.add(e);
+            } else if (e.modified != remote.get(e.path).modified) {
+                touches.add(new Job(TreeSyncServer.TOUCH, List.of(e)));
+            }
+        }
+        List<Job> deletes = new ArrayList<>();
+        if (delete) {
+            for (TreeScanner.Entry r : remote.values()) {
+                if (!seen.contains(r.path)) {
+                    deletes.add(new Job(TreeSyncServer.DELETE, List.of(r)));
+                }
+            }
+        }
+
+        // 3. Jobs, largest first: big files start early and the small
+        //    batches fill the gaps at the end, so workers finish together
+        send.sort(Comparator.comparingLong((TreeScanner.Entry e) -> e.size).reversed());
+        List<Job> jobs = new ArrayList<>();
+        List<TreeScanner.Entry> batch = new ArrayList<>();
+        long batchBytes = 0;
+        long total = 0;
+        for (TreeScanner.Entry e : send) {
+            total += e.size;
+            if (e.size >= SMALL_FILE) {
+                jobs.add(new Job(TreeSyncServer.FILE, List.of(e)));
+                continue;
+            }
+            batch.add(e);
+            batchBytes += e.size;
+            if (batchBytes >= BATCH_BYTES || batch.size() == BATCH_FILES) {
+                jobs.add(new Job(TreeSyncServer.BATCH, batch));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            jobs.add(new Job(TreeSyncServer.BATCH, batch));
+        }
+        jobs.addAll(touches);
+        jobs.addAll(deletes);
+        System.out.printf("Scanned %d local files in %d ms; receiver has %d. To send: %d files (%,d bytes) "
+                        + "in %d jobs, %d date-only, %d deletes, %d unchanged%n",
+                local.size(), scanMillis, remote.size(), send.size(), total, jobs.size() - touches.size()
+                        - deletes.size(), touches.size(), deletes.size(),
+                local.size() - send.size() - touches.size());
+
+        // 4. Workers, each with its own connection
+        pending.set(jobs.size());
+        queue.addAll(jobs);
+        if (jobs.isEmpty()) {
+            queue.add(STOP);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < Math.min(workers, Math.max(1, jobs.size())); i++) {
+            Thread t = new Thread(this::work, "sync-worker-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        pool.shutdown();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Done in %.2f s: %d files, %,d bytes sent (%.1f MB/s), %,d bytes skipped by resume, "
+                        + "%d retries%n", seconds, filesDone.get(), bytesSent.get(),
+                bytesSent.get() / seconds / (1 << 20), resumedBytes.get(), retries.get());
+        if (failure != null) {
+            System.out.println("FAILED: " + failure);
+        }
+        return failure == null;
+    }
+
+    // Takes jobs until the queue is finished. A broken connection puts the
+    // job back (the receiver keeps the .part, so the retry resumes) and
+    // reconnects with a growing pause.
+    private void work() {
+        Socket socket = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == STOP) {
+                queue.add(STOP);                        // let the other workers see it too
+                break;
+            }
+            try {
+                if (socket == null) {
+                    socket = connect();
+                    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256 * 1024));
+                }
+                run(job, in, out);
+                filesDone.addAndGet(job.type == TreeSyncServer.BATCH || job.type == TreeSyncServer.FILE
+                        ? job.files.size() : 0);
+                done();
+            } catch (IOException e) {
+                closeQuietly(socket);
+                socket = null;
+                if (++job.attempts >= MAX_ATTEMPTS) {
+                    failure = job.files.get(0).path + ": " + e.getMessage();
+                    done();
+                } else {
+                    retries.incrementAndGet();
+                    System.out.println("[retry " + job.attempts + "] " + job.files.get(0).path + ": " + e.getMessage());
+                    sleep(200L << job.attempts);
+                    queue.add(job);
+                }
+            } catch (IllegalStateException rejected) {
+                failure = rejected.getMessage();       // receiver refused: retrying will not help
+                done();
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    private void done() {
+        if (pending.decrementAndGet() == 0) {
+            queue.add(STOP);
+        }
+    }
+
+    private void run(Job job, DataInputStream in, DataOutputStream out) throws IOException {
+        TreeScanner.Entry first = job.files.get(0);
+        out.writeByte(job.type);
+        switch (job.type) {
+            case TreeSyncServer.FILE:
+                out.writeUTF(first.path);
+                out.writeLong(first.size);
+                out.writeLong(first.modified);
+                out.flush();
+                long offset = in.readLong();            // > 0: the receiver already has that much
+                resumedBytes.addAndGet(offset);
+                out.writeLong(sendFile(first, offset, out));
+                break;
+            case TreeSyncServer.BATCH:
+                out.writeInt(job.files.size());
+                for (TreeScanner.Entry e : job.files) {
+                    out.writeUTF(e.path);
+                    out.writeLong(e.size);
+                    out.writeLong(e.modified);
+                    out.writeLong(sendFile(e, 0, out));
+                }
+                break;
+            case TreeSyncServer.TOUCH:
+                out.writeUTF(first.path);
+                out.writeLong(first.modified);
+                break;
+            default:
+                out.writeUTF(first.path);
+        }
+        out.flush();
+        int reply = in.readByte();
+        if (reply == TreeSyncServer.ERROR) {
+            String message = in.readUTF();
+            if (message.startsWith("checksum")) {
+                throw new IOException(message);          // changed while sending: try again
+            }
+            throw new IllegalStateException(message);
+        }
+    }
+
+    // Sends bytes [offset, size) and returns the CRC of the whole file.
+    // The size is fixed by the frame header: a file that shrinks while it
+    // is sent is padded and then fails the receiver's CRC check.
+    private long sendFile(TreeScanner.Entry e, long offset, DataOutputStream out) throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buf = new byte[256 * 1024];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        try (FileChannel ch = FileChannel.open(root.resolve(e.path))) {
+            long pos = 0;
+            while (pos < e.size) {
+                bb.clear().limit((int) Math.min(buf.length, e.size - pos));
+                int n = ch.read(bb, pos);
+                if (n <= 0) {
+                    n = bb.remaining();
+                    java.util.Arrays.fill(buf, 0, n, (byte) 0);
+                }
+                crc.update(buf, 0, n);
+                if (pos + n > offset) {
+                    int skip = (int) Math.max(0, offset - pos);
+                    out.write(buf, skip, n - skip);
+                    long sent = bytesSent.addAndGet(n - skip);
+                    if (abortAfter > 0 && sent >= abortAfter && sent - (n - skip) < abortAfter) {
+                        out.flush();
+                        System.out.println("abortAfter reached: simulating a crash");
+                        Runtime.getRuntime().halt(3);
+                    }
+                }
+                pos += n;
+            }
+        }
+        return crc.getValue();
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket(host, port);
+        s.setTcpNoDelay(true);
+        return s;
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            if (s != null) {
+                s.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    // "500", "64k", "20m", "1g"
+    static long parseSize(String s) {
+        if (s.isEmpty()) {
+            throw new NumberFormatException("empty size");
+        }
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        long mult = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(mult == 1 ? s : s.substring(0, s.length() - 1)) * mult;
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save TreeScanner.java, TreeSyncServer.java and TreeSyncClient.java
+//         with the other experiments (they use VirtualThreads.java from 17,
+//         AsyncLog.java from 22, Metrics.java and MetricsEndpoint.java from 21).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Start the receiver (terminal 1):
+//         java TreeSyncServer dir=received_tree
+//
+// Step 4: Send a directory (terminal 2):
+//         java TreeSyncClient src=my_project workers=4
+//         Run it again: only changed files are sent. Options:
+//           checksum=true   compare CRCs even when size and date match
+//           delete=true     remove files the sender no longer has
+//
+// Step 5: Crash and resume:
+//         java TreeSyncClient src=big_tree abortAfter=50m   (stops after 50 MB)
+//         java TreeSyncClient src=big_tree                  (continues the .part files)
+//
+// Example (900 small files + 3 x 40 MB, loopback, 1 CPU):
+//   $ java TreeSyncClient src=tree abortAfter=50m
+//   Scanned 903 local files in 74 ms; receiver has 0. To send: 903 files
+//     (133,593,465 bytes) in 11 jobs, 0 date-only, 0 deletes, 0 unchanged
+//   abortAfter reached: simulating a crash
+//   $ java TreeSyncClient src=tree
+//   Scanned 903 local files in 46 ms; receiver has 56. To send: 847 files
+//     (132,540,138 bytes) in 10 jobs, 0 date-only, 0 deletes, 56 unchanged
+//   Done in 0.69 s: 847 files, 80,635,626 bytes sent (111.9 MB/s),
+//     51,904,512 bytes skipped by resume, 0 retries
+//   $ touch tree/a/x/f1; echo hi >> tree/c/x/f3; rm tree/b/x/f2
+//   $ java TreeSyncClient src=tree delete=true
+//   Scanned 902 local files in 77 ms; receiver has 903. To send: 1 files
+//     (6,087 bytes) in 1 jobs, 1 date-only, 1 deletes, 900 unchanged
+//
+//   Receiver:
+//   [manifest] 903 files (847 hashed) in 265 ms
+//   [manifest] 903 files (2 hashed) in 22 ms      <- hash cache
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Fork/join scanning:**
+//    Listing directories is mostly waiting for the file system. Each
+//    directory becomes a task; subdirectories are forked so several
+//    directories are listed at once and idle threads steal work. The
+//    same pool hashes files in parallel.
+//
+// 2. **Quick check, then checksums:**
+//    Equal size and modification time are taken as "unchanged" without
+//    reading the file (rsync does the same). Only files whose date
+//    changed but size did not are hashed, to tell a real edit from a
+//    touch. The receiver caches its hashes, so a manifest after the first
+//    one only hashes new files. CRC32C is hardware-accelerated.
+//
+// 3. **Work queue and workers:**
+//    Several TCP connections in parallel hide per-file round trips and
+//    use more of the network than one connection. Largest jobs go first
+//    (longest-processing-time scheduling) so no worker is left with one
+//    huge file at the end.
+//
+// 4. **Batching small files:**
+//    Sending 1,000 tiny files one by one costs 1,000 round trips. A batch
+//    frame carries up to 256 files / 1 MB and gets one acknowledgement.
+//
+// 5. **Crash safety and resume:**
+//    Data goes into "<name>.<size>-<date>.part" and is renamed onto the
+//    real name only after the CRC matched, so a reader never sees a half
+//    file. After a crash the next run finds the .part and continues from
+//    its length; the name guarantees the partial data belongs to the same
+//    version of the source file. Parts of other versions are deleted
+//    when a new one starts, so they do not pile up.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,660 @@
+// ===================================================================
+// EXPERIMENT: TRANSFER SCHEDULER – PRIORITIES AND FAIR BANDWIDTH
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Multi-upload file server with a bandwidth scheduler
+// ===================================================================
+// AIM:
+// FileReceiverServer (experiment 8) takes one upload. When a server
+// takes many uploads at once and they share a limited link, one huge
+// transfer makes small, urgent ones wait. This experiment adds a
+// scheduler that decides which upload may read its next chunk:
+//   - every transfer has a priority class, and the class gives it a weight;
+//   - bandwidth is divided by weighted fair queuing (WFQ);
+//   - token buckets limit the total rate and, optionally, each transfer;
+//   - almost-finished transfers get a boost (shortest job first), so
+//     small files complete quickly;
+//   - the current rate of every transfer is shown at /transfers.
+// A load test compares the small-file latency with first-come scheduling.
+// ===================================================================
+
+
+// ==========================================================
+// SCHEDULER CODE – TransferScheduler.java
+// ==========================================================
+
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+public class TransferScheduler {
+
+    public enum Priority {
+        URGENT(16), NORMAL(4), BULK(1);
+
+        final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    // Tokens are bytes. A bucket may go into debt by one chunk, so a chunk
+    // larger than the burst is still granted and simply paid for later.
+    static final class TokenBucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long bytesPerSecond) {
+            this.perNano = bytesPerSecond > 0 ? bytesPerSecond / 1e9 : 0;
+            this.burst = Math.max(64 * 1024, bytesPerSecond / 100.0);    // 10 ms worth
+            this.tokens = burst;
+        }
+
+        boolean unlimited() {
+            return perNano == 0;
+        }
+
+        boolean ready(long now) {
+            if (unlimited()) {
+                return true;
+            }
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+            return tokens > 0;
+        }
+
+        void take(int bytes) {
+            tokens -= bytes;
+        }
+
+        long nanosUntilReady() {
+            return unlimited() || tokens > 0 ? 0 : (long) (-tokens / perNano) + 1;
+        }
+    }
+
+    public final class Transfer implements AutoCloseable {
+        final long id;
+        final String name;
+        final Priority priority;
+        final long size;
+        final TokenBucket bucket;
+        final long started = System.nanoTime();
+        long granted;
+        double lastFinish;                 // virtual finish time of its previous chunk
+        long windowStart = started;
+        long windowBytes;
+        double rate;                       // bytes per second, smoothed
+
+        Transfer(long id, String name, Priority priority, long size, long maxBytesPerSecond) {
+            this.id = id;
+            this.name = name;
+            this.priority = priority;
+            this.size = size;
+            this.bucket = new TokenBucket(maxBytesPerSecond);
+        }
+
+        // Blocks until the scheduler lets this transfer read `bytes` more
+        public void acquire(int bytes) throws InterruptedException {
+            TransferScheduler.this.acquire(this, bytes);
+        }
+
+        boolean boosted() {
+            return fair && size - granted <= shortJob;
+        }
+
+        double weight() {
+            return priority.weight * (boosted() ? SHORT_JOB_BOOST : 1);
+        }
+
+        public long elapsedMicros() {
+            return (System.nanoTime() - started) / 1000;
+        }
+
+        @Override
+        public void close() {
+            active.remove(id);
+        }
+    }
+
+    // One waiting chunk
+    private static final class Request {
+        final Transfer transfer;
+        final int bytes;
+        final double finish;
+        final long seq;
+        boolean granted;
+
+        Request(Transfer transfer, int bytes, double finish, long seq) {
+            this.transfer = transfer;
+            this.bytes = bytes;
+            this.finish = finish;
+            this.seq = seq;
+        }
+    }
+
+    static final int SHORT_JOB_BOOST = 8;
+
+    private final boolean fair;
+    private final long shortJob;
+    private final long perTransferLimit;
+    private final TokenBucket global;
+    private final TreeSet<Request> waiting = new TreeSet<>(
+            Comparator.comparingDouble((Request r) -> r.finish).thenComparingLong(r -> r.seq));
+    private final Map<Long, Transfer> active = new ConcurrentSkipListMap<>();
+    private double virtualTime;
+    private long seq;
+    private long nextId;
+    private final Metrics.Counter[] classBytes = new Metrics.Counter[Priority.values().length];
+
+    // fair=false serves chunks first come, first served (for comparison).
+    // shortJob: transfers with at most this many bytes left are boosted.
+    public TransferScheduler(long globalBytesPerSecond, long perTransferLimit, long shortJob, boolean fair) {
+        this.global = new TokenBucket(globalBytesPerSecond);
+        this.perTransferLimit = perTransferLimit;
+        this.shortJob = shortJob;
+        this.fair = fair;
+        for (Priority p : Priority.values()) {
+            classBytes[p.ordinal()] = Metrics.counter("transfer_" + p.name().toLowerCase(Locale.ROOT) + "_bytes_total",
+                    "Bytes granted to " + p + " transfers");
+        }
+        Metrics.gauge("transfer_active", "Transfers in progress", () -> active.size());
+    }
+
+    public synchronized Transfer open(String name, Priority priority, long size) {
+        Transfer t = new Transfer(++nextId, name, priority, size, perTransferLimit);
+        t.lastFinish = virtualTime;
+        active.put(t.id, t);
+        return t;
+    }
+
+    // Weighted fair queuing, self-clocked: a chunk of n bytes finishes at
+    // max(now, previous finish of the same transfer) + n / weight in
+    // virtual time, and chunks are granted in finish-time order. A
+    // transfer with weight 4 thus gets four chunks for every one of a
+    // weight-1 transfer while both are busy, and an idle transfer cannot
+    // save up credit because it restarts from the current virtual time.
+    synchronized void acquire(Transfer t, int bytes) throws InterruptedException {
+        double finish = fair
+                ? Math.max(virtualTime, t.lastFinish) + bytes / t.weight()
+                : seq;                                   // arrival order
+        t.lastFinish = finish;
+        Request r = new Request(t, bytes, finish, seq++);
+        waiting.add(r);
+        try {
+            while (true) {
+                dispatch();
+                if (r.granted) {
+                    return;
+                }
+                long nanos = nextWakeup();
+                if (nanos == 0) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                }
+            }
+        } finally {
+            if (!r.granted) {
+                waiting.remove(r); // interrupted: never dispatch a chunk nobody sends
+            }
+        }
+    }
+
+    // Grants waiting chunks in finish order while the global bucket has
+    // tokens. A transfer over its own limit is skipped, not waited for, so
+    // it cannot hold up the others (no head-of-line blocking).
+    private void dispatch() {
+        long now = System.nanoTime();
+        boolean any = false;
+        for (var it = waiting.iterator(); it.hasNext() && global.ready(now); ) {
+            Request r = it.next();
+            Transfer t = r.transfer;
+            if (!t.bucket.ready(now)) {
+                continue;
+            }
+            it.remove();
+            global.take(r.bytes);
+            t.bucket.take(r.bytes);
+            virtualTime = Math.max(virtualTime, r.finish);
+            r.granted = true;
+            any = true;
+            grant(t, r.bytes, now);
+        }
+        if (any) {
+            notifyAll();
+        }
+    }
+
+    // 0 = nothing to wait for but another thread's grant
+    private long nextWakeup() {
+        if (waiting.isEmpty()) {
+            return 0;
+        }
+        if (global.nanosUntilReady() > 0) {
+            return global.nanosUntilReady();
+        }
+        long min = Long.MAX_VALUE;
+        for (Request r : waiting) {
+            min = Math.min(min, r.transfer.bucket.nanosUntilReady());
+        }
+        return Math.max(min, 1);
+    }
+
+    private void grant(Transfer t, int bytes, long now) {
+        t.granted += bytes;
+        t.windowBytes += bytes;
+        classBytes[t.priority.ordinal()].add(bytes);
+        long window = now - t.windowStart;
+        if (window >= 250_000_000L) {
+            double current = t.windowBytes * 1e9 / window;
+            t.rate = t.rate == 0 ? current : 0.5 * t.rate + 0.5 * current;
+            t.windowStart = now;
+            t.windowBytes = 0;
+        }
+    }
+
+    // Table of the running transfers, also served at /transfers
+    public String describe() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                "%-4s %-24s %-7s %6s %10s %10s %9s%n", "id", "name", "class", "weight", "size", "done", "MB/s"));
+        long now = System.nanoTime();
+        for (Transfer t : active.values()) {
+            double rate;
+            double weight;
+            long granted;
+            synchronized (this) {
+                granted = t.granted;
+                weight = t.weight();
+                rate = t.rate != 0 ? t.rate : granted * 1e9 / Math.max(1, now - t.started);
+            }
+            sb.append(String.format(Locale.ROOT, "%-4d %-24s %-7s %6.0f %10d %9.1f%% %9.2f%n",
+                    t.id, t.name, t.priority, weight, t.size, 100.0 * granted / Math.max(1, t.size),
+                    rate / (1 << 20)));
+        }
+        return sb.toString();
+    }
+
+    public void publish() {
+        MetricsEndpoint.register("/transfers", "text/plain; charset=utf-8",
+                () -> describe().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // "key=value" arguments; a bare "key" means key=true
+    static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    // "500", "64k", "20m", "1g"
+    static long parseSize(String s) {
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        long mult = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(mult == 1 ? s : s.substring(0, s.length() - 1)) * mult;
+    }
+}
+
+
+
+// ==========================================================
+// SERVER CODE – ScheduledReceiverServer.java
+// ==========================================================
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+public class ScheduledReceiverServer {
+
+    static final int DEFAULT_PORT = 12346;
+    static final int CHUNK = 64 * 1024;     // bytes granted per scheduling decision
+    static final int READ_TIMEOUT_MILLIS = 30_000;  // an upload silent this long is dropped
+
+    private final TransferScheduler scheduler;
+    private final Path dir;                 // null = discard the data (load tests)
+    private final LatencyHistogram[] duration = new LatencyHistogram[TransferScheduler.Priority.values().length];
+    private ServerSocket serverSocket;
+
+    public ScheduledReceiverServer(TransferScheduler scheduler, Path dir) {
+        this.scheduler = scheduler;
+        this.dir = dir;
+        for (TransferScheduler.Priority p : TransferScheduler.Priority.values()) {
+            duration[p.ordinal()] = Metrics.histogram(
+                    "transfer_" + p.name().toLowerCase(Locale.ROOT) + "_duration_micros",
+                    "Time from the first to the last byte of " + p + " uploads");
+        }
+    }
+
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        ExecutorService connections = VirtualThreads.newExecutor();
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket s = serverSocket.accept();
+                    connections.execute(() -> serve(s));
+                } catch (IOException e) {
+                    // closed by stop()
+                }
+            }
+            connections.shutdown();
+        }, "scheduled-receiver-accept");
+        acceptor.start();
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+    }
+
+    // Upload: name (UTF), size (long), priority (byte), then the bytes.
+    // Reply: one byte 'K' when everything is stored. A bad header closes
+    // the connection without a reply.
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            // Only counts time spent in read(): waiting for the scheduler's grant is not a timeout
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(s.getInputStream());   // unbuffered: never read ahead
+            String name = fileName(in.readUTF());
+            long size = in.readLong();
+            int p = in.readByte();
+            if (size < 0 || p < 0 || p >= TransferScheduler.Priority.values().length) {
+                throw new IOException("bad upload header");
+            }
+            TransferScheduler.Priority priority = TransferScheduler.Priority.values()[p];
+            byte[] buf = new byte[CHUNK];
+            try (TransferScheduler.Transfer t = scheduler.open(name, priority, size);
+                 OutputStream file = dir == null ? OutputStream.nullOutputStream()
+                         : new FileOutputStream(dir.resolve(name).toFile())) {
+                long left = size;
+                while (left > 0) {
+                    int n = (int) Math.min(CHUNK, left);
+                    t.acquire(n);                 // the scheduler decides who reads next;
+                    in.readFully(buf, 0, n);      // a waiting upload is held back by TCP flow control
+                    file.write(buf, 0, n);
+                    left -= n;
+                }
+                duration[priority.ordinal()].record(t.elapsedMicros());
+            }
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            out.writeByte('K');
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // client gave up; the transfer has been closed
+        }
+    }
+
+    // Last path element only, so an upload cannot leave dir. "", "/" and
+    // ".." name no file; text that is no path at all (NUL) is rejected too.
+    static String fileName(String sent) throws IOException {
+        Path name;
+        try {
+            name = Path.of(sent).getFileName();
+        } catch (InvalidPathException e) {
+            throw new IOException("bad file name: " + e.getMessage());
+        }
+        if (name == null || name.toString().isEmpty() || name.toString().equals("..")) {
+            throw new IOException("bad file name \"" + sent + "\"");
+        }
+        return name.toString();
+    }
+
+    // Usage: java ScheduledReceiverServer [port=12346] [dir=uploads]
+    //        [rate=20m] [perTransfer=0] [shortJob=1m] [fair=true]
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opts = TransferScheduler.options(args);
+        TransferScheduler scheduler = new TransferScheduler(
+                TransferScheduler.parseSize(opts.getOrDefault("rate", "20m")),
+                TransferScheduler.parseSize(opts.getOrDefault("perTransfer", "0")),
+                TransferScheduler.parseSize(opts.getOrDefault("shortJob", "1m")),
+                Boolean.parseBoolean(opts.getOrDefault("fair", "true")));
+        Path dir = Files.createDirectories(Path.of(opts.getOrDefault("dir", "uploads")));
+        MetricsEndpoint.start();
+        scheduler.publish();
+        int port = Integer.parseInt(opts.getOrDefault("port", String.valueOf(DEFAULT_PORT)));
+        new ScheduledReceiverServer(scheduler, dir).start(port);
+        System.out.println("Receiving uploads on port " + port + " into " + dir.toAbsolutePath()
+                + "; live rates at http://127.0.0.1:9100/transfers");
+    }
+}
+
+
+
+// ==========================================================
+// LOAD TEST CODE – TransferLoadTest.java
+// ==========================================================
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferLoadTest {
+
+    // Uploads `size` bytes and returns the time until the server confirmed
+    static long upload(int port, String name, long size, TransferScheduler.Priority priority) throws IOException {
+        long start = System.nanoTime();
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            out.writeUTF(name);
+            out.writeLong(size);
+            out.writeByte(priority.ordinal());
+            byte[] chunk = new byte[64 * 1024];
+            for (long left = size; left > 0; left -= chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+            out.flush();
+            if (new DataInputStream(s.getInputStream()).read() != 'K') {
+                throw new IOException("no confirmation for " + name);
+            }
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    // Same load twice: a few endless BULK uploads plus a steady stream of
+    // small NORMAL uploads and the odd URGENT one, all through one 20 MB/s
+    // link. Prints the small-file latency for first-come and for WFQ.
+    // Usage: java TransferLoadTest [rate=20m] [bulk=3] [small=256k] [every=40] [seconds=6]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = TransferScheduler.options(args);
+        long rate = TransferScheduler.parseSize(opts.getOrDefault("rate", "20m"));
+        int bulk = Integer.parseInt(opts.getOrDefault("bulk", "3"));
+        long small = TransferScheduler.parseSize(opts.getOrDefault("small", "256k"));
+        int every = Integer.parseInt(opts.getOrDefault("every", "40"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "6"));
+        System.setProperty("metrics.port", "0");
+
+        System.out.printf("%d bulk uploads + one %d KB upload every %d ms, link %d MB/s, %d s per run%n%n",
+                bulk, small >> 10, every, rate >> 20, seconds);
+        System.out.printf("%-6s %-7s %7s %9s %9s %9s %9s%n", "mode", "class", "uploads", "p50 ms", "p99 ms",
+                "max ms", "bulk MB/s");
+        for (boolean fair : new boolean[] {false, true}) {
+            run(fair, rate, bulk, small, every, seconds);
+        }
+    }
+
+    private static void run(boolean fair, long rate, int bulk, long small, int every, int seconds)
+            throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(rate, 0, 1 << 20, fair);
+        ScheduledReceiverServer server = new ScheduledReceiverServer(scheduler, null);
+        int port = ScheduledReceiverServer.DEFAULT_PORT;
+        server.start(port);
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong bulkBytes = new AtomicLong();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < bulk; i++) {
+            int n = i;
+            Thread t = new Thread(() -> {
+                try {
+                    long size = 8L << 20;
+                    while (System.nanoTime() < end) {
+                        upload(port, "bulk-" + n + ".iso", size, TransferScheduler.Priority.BULK);
+                        bulkBytes.addAndGet(size);
+                    }
+                } catch (IOException e) {
+                    System.out.println("bulk upload failed: " + e);
+                }
+            }, "bulk-" + n);
+            t.start();
+            threads.add(t);
+        }
+        LatencyHistogram normal = new LatencyHistogram();
+        LatencyHistogram urgent = new LatencyHistogram();
+        Thread snapshot = new Thread(() -> {
+            try {
+                Thread.sleep(seconds * 500L);
+                if (fair) {
+                    System.out.print("\n  /transfers halfway through:\n  "
+                            + scheduler.describe().replace("\n", "\n  ").stripTrailing() + "\n\n");
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        snapshot.start();
+        int count = 0;
+        ExecutorService smallUploads = VirtualThreads.newExecutor();
+        while (System.nanoTime() < end) {
+            TransferScheduler.Priority p = ++count % 10 == 0 ? TransferScheduler.Priority.URGENT
+                    : TransferScheduler.Priority.NORMAL;
+            String name = "doc-" + count + ".txt";
+            smallUploads.execute(() -> {
+                try {
+                    (p == TransferScheduler.Priority.URGENT ? urgent : normal).record(upload(port, name, small, p));
+                } catch (IOException e) {
+                    System.out.println("small upload failed: " + e);
+                }
+            });
+            Thread.sleep(every);
+        }
+        smallUploads.shutdown();
+        smallUploads.awaitTermination(1, TimeUnit.MINUTES);
+        for (Thread t : threads) {
+            t.join();
+        }
+        snapshot.join();
+        server.stop();
+
+        String mode = fair ? "wfq" : "fifo";
+        double bulkRate = bulkBytes.get() / (double) seconds / (1 << 20);
+        for (Object[] row : new Object[][] {{"NORMAL", normal}, {"URGENT", urgent}}) {
+            LatencyHistogram h = (LatencyHistogram) row[1];
+            System.out.printf("%-6s %-7s %7d %9.1f %9.1f %9.1f %9.1f%n", mode, row[0], h.count(),
+                    h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.max() / 1000.0, bulkRate);
+        }
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save TransferScheduler.java, ScheduledReceiverServer.java and
+//         TransferLoadTest.java with the other experiments (they use
+//         LatencyHistogram.java from 20, Metrics.java and
+//         MetricsEndpoint.java from 21 and VirtualThreads.java from 17).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Compare first-come scheduling with WFQ under mixed load:
+//         java TransferLoadTest
+//
+// Step 4: Or run the server on its own (20 MB/s shared, each upload at
+//         most 10 MB/s) and watch the rates while uploads run:
+//         java ScheduledReceiverServer rate=20m perTransfer=10m
+//         curl http://127.0.0.1:9100/transfers
+//
+// Example (1 CPU, loopback):
+//   3 bulk uploads + one 256 KB upload every 40 ms, link 20 MB/s, 6 s per run
+//
+//   mode   class   uploads    p50 ms    p99 ms    max ms bulk MB/s
+//   fifo   NORMAL      134      58.4      61.4      62.0      16.0
+//   fifo   URGENT       14      59.4      60.6      60.6      16.0
+//
+//     /transfers halfway through:
+//     id   name                     class   weight       size       done      MB/s
+//     43   bulk-0.iso               BULK         1    8388608      75.0%      4.53
+//     49   bulk-2.iso               BULK         1    8388608      73.4%      4.61
+//     50   bulk-1.iso               BULK         1    8388608      73.4%      4.61
+//
+//   wfq    NORMAL      135      14.8      23.0      24.8      16.0
+//   wfq    URGENT       14      15.1      18.9      18.9      16.0
+//
+//   A 256 KB file needs 12.5 ms at 20 MB/s. First-come gives it one
+//   chunk in four (the three bulk uploads take the rest); WFQ with the
+//   boost gives it almost the whole link for those 12.5 ms.
+//
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why the server schedules reads:**
+//    A receiver controls its share of a link by how fast it reads. An
+//    upload whose chunk is not granted leaves data in the socket buffer;
+//    the TCP window closes and the sender slows down by itself.
+//
+// 2. **Weighted fair queuing:**
+//    Each chunk gets a virtual finish time: start + size / weight. Chunks
+//    are served in that order, which gives every busy transfer bandwidth
+//    in proportion to its weight (URGENT 16, NORMAL 4, BULK 1). Unlike
+//    strict priority, BULK never stops completely.
+//
+// 3. **Token buckets:**
+//    The global bucket is the link rate the scheduler hands out; a
+//    per-transfer bucket caps one upload. Tokens refill continuously up
+//    to a 10 ms burst. A transfer over its own cap is skipped instead of
+//    blocking the queue.
+//
+// 4. **Shortest job first:**
+//    A transfer with less than 1 MB left gets 8 times its weight. Small
+//    files then finish in a few chunks, which lowers the average and the
+//    tail latency of small uploads a lot and costs the big ones little.
+//
+// 5. **Measuring:**
+//    /transfers shows each transfer's class, effective weight, progress
+//    and rate (averaged over 250 ms windows). Per-class byte counters and
+//    duration histograms are in /metrics.
+//
+// 6. **Read timeout:**
+//    Each upload socket has a 30 s read timeout, so a client that stops
+//    sending holds its scheduler slot and thread for at most that long.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
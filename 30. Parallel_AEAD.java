@@ -0,0 +1,684 @@
+// ===================================================================
+// EXPERIMENT: PARALLEL AUTHENTICATED ENCRYPTION FOR FILE TRANSFER
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Chunked AES-GCM streams with a worker pool
+// ===================================================================
+// AIM:
+// Some files must be encrypted end-to-end, whatever the transport. If
+// FileSenderClient (experiment 8) encrypted in its read/write loop, the
+// network would sit idle while the CPU works, and one core would limit
+// the speed. Here the stream is cut into chunks; each chunk is encrypted
+// with AES-GCM on a worker pool, and a sequenced queue of results feeds
+// the socket in the original order. The receiver decrypts in parallel
+// the same way. Each chunk has its own nonce and authentication tag, and
+// the chunk number and a "last chunk" flag are authenticated too, so
+// reordered, repeated, changed or cut-off data is always detected.
+// ===================================================================
+
+
+// ==========================================================
+// FORMAT CODE – AeadFormat.java
+// ==========================================================
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Stream layout:
+//   header: magic "GCM1", PBKDF2 iterations (int), chunk size (int),
+//           salt (16 bytes), nonce prefix (4 bytes)
+//   frames: last flag (byte), ciphertext length (int), ciphertext + 16-byte tag
+// The last frame has flag 1 (it may be empty); a stream that ends
+// without it was cut off.
+public final class AeadFormat {
+
+    static final int MAGIC = 0x47434D31;          // "GCM1"
+    static final int DEFAULT_CHUNK = 256 * 1024;
+    static final int MAX_CHUNK = 4 << 20;         // receivers queue several chunks per stream
+    static final int ITERATIONS = 200_000;        // PBKDF2 work factor: slows down password guessing
+    static final int SALT_BYTES = 16;
+    static final int PREFIX_BYTES = 4;
+    static final int TAG_BITS = 128;
+    static final int TAG_BYTES = TAG_BITS / 8;
+
+    static final SecureRandom RANDOM = new SecureRandom();
+
+    // Cipher objects are not thread-safe; each worker keeps its own
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static ExecutorService sharedPool;
+
+    private AeadFormat() {
+    }
+
+    // One worker per core unless -Daead.threads says otherwise
+    public static synchronized ExecutorService sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = newPool(Integer.getInteger("aead.threads", Runtime.getRuntime().availableProcessors()));
+        }
+        return sharedPool;
+    }
+
+    public static ExecutorService newPool(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "aead-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static SecretKey deriveKey(char[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        KeySpec spec = new PBEKeySpec(password, salt, iterations, 256);
+        byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        return new SecretKeySpec(key, "AES");
+    }
+
+    // 12-byte GCM nonce: random per-stream prefix + chunk number. It never
+    // repeats under one key, which GCM requires for its security.
+    static byte[] nonce(byte[] prefix, long seq) {
+        byte[] n = new byte[12];
+        System.arraycopy(prefix, 0, n, 0, PREFIX_BYTES);
+        for (int i = 0; i < 8; i++) {
+            n[4 + i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        return n;
+    }
+
+    // Authenticated but not encrypted: where the chunk belongs and whether
+    // the stream ends with it
+    static byte[] aad(long seq, boolean last) {
+        byte[] a = new byte[9];
+        for (int i = 0; i < 8; i++) {
+            a[i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        a[8] = (byte) (last ? 1 : 0);
+        return a;
+    }
+
+    static byte[] encrypt(SecretKey key, byte[] prefix, long seq, boolean last, byte[] data, int length)
+            throws GeneralSecurityException {
+        Cipher c = CIPHER.get();
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce(prefix, seq)));
+        c.updateAAD(aad(seq, last));
+        return c.doFinal(data, 0, length);
+    }
+
+    static byte[] decrypt(SecretKey key, byte[] prefix, long seq, boolean last, byte[] data)
+            throws GeneralSecurityException {
+        Cipher c = CIPHER.get();
+        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce(prefix, seq)));
+        c.updateAAD(aad(seq, last));
+        return c.doFinal(data);
+    }
+}
+
+
+
+// ==========================================================
+// ENCRYPTING STREAM CODE – AeadOutputStream.java
+// ==========================================================
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import javax.crypto.SecretKey;
+
+public class AeadOutputStream extends OutputStream {
+
+    private static final class Frame {
+        final boolean last;
+        final byte[] ciphertext;
+
+        Frame(boolean last, byte[] ciphertext) {
+            this.last = last;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private static final CompletableFuture<Frame> END = CompletableFuture.completedFuture(null);
+
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final byte[] prefix = new byte[AeadFormat.PREFIX_BYTES];
+    private final ExecutorService pool;
+    private final int chunkSize;
+    // Results in stream order. A worker may finish chunk 7 before chunk 6;
+    // the writer still waits for 6. The bound keeps memory in check and
+    // stops the producer when the network is the bottleneck.
+    private final BlockingQueue<CompletableFuture<Frame>> pending;
+    private final Thread writer;
+    private byte[] chunk;
+    private int used;
+    private long seq;
+    private boolean closed;
+    private volatile IOException failure;
+
+    public AeadOutputStream(OutputStream out, char[] password) throws IOException {
+        this(out, password, AeadFormat.DEFAULT_CHUNK, AeadFormat.sharedPool());
+    }
+
+    public AeadOutputStream(OutputStream out, char[] password, int chunkSize, ExecutorService pool)
+            throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        this.pool = pool;
+        if (chunkSize <= 0 || chunkSize > AeadFormat.MAX_CHUNK) {
+            throw new IllegalArgumentException("chunk size must be 1.." + AeadFormat.MAX_CHUNK);
+        }
+        this.chunkSize = chunkSize;
+        this.chunk = new byte[chunkSize];
+        this.pending = new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors() + 2);
+        byte[] salt = new byte[AeadFormat.SALT_BYTES];
+        AeadFormat.RANDOM.nextBytes(salt);
+        AeadFormat.RANDOM.nextBytes(prefix);
+        try {
+            this.key = AeadFormat.deriveKey(password, salt, AeadFormat.ITERATIONS);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("key derivation failed", e);
+        }
+        this.out.writeInt(AeadFormat.MAGIC);
+        this.out.writeInt(AeadFormat.ITERATIONS);
+        this.out.writeInt(chunkSize);
+        this.out.write(salt);
+        this.out.write(prefix);
+        this.writer = new Thread(this::writeFrames, "aead-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - used);
+            System.arraycopy(b, off, chunk, used, n);
+            used += n;
+            off += n;
+            len -= n;
+            if (used == chunkSize) {
+                submit(false);
+            }
+        }
+    }
+
+    // Sends what is buffered as a shorter chunk (GCM chunks may have any size)
+    @Override
+    public void flush() throws IOException {
+        if (used > 0 && !closed) {
+            submit(false);
+        }
+    }
+
+    // Sends the last chunk and waits until everything is on the wire
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        submit(true);
+        closed = true;
+        put(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        out.close();
+    }
+
+    private void submit(boolean last) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        byte[] data = chunk;
+        int length = used;
+        long n = seq++;
+        chunk = new byte[chunkSize];                     // the worker owns the old array now
+        used = 0;
+        put(CompletableFuture.supplyAsync(() -> {
+            try {
+                return new Frame(last, AeadFormat.encrypt(key, prefix, n, last, data, length));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, pool));
+    }
+
+    private void put(CompletableFuture<Frame> f) throws IOException {
+        try {
+            pending.put(f);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    // Takes the results strictly in order and writes them to the socket.
+    // After an error it keeps draining so the producer never blocks forever.
+    private void writeFrames() {
+        while (true) {
+            CompletableFuture<Frame> f;
+            try {
+                f = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (f == END) {
+                return;
+            }
+            if (failure != null) {
+                continue;
+            }
+            try {
+                Frame frame = f.get();
+                out.writeByte(frame.last ? 1 : 0);
+                out.writeInt(frame.ciphertext.length);
+                out.write(frame.ciphertext);
+                if (pending.isEmpty()) {
+                    out.flush();                          // nothing ready behind it: do not hold data back
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (ExecutionException | InterruptedException e) {
+                failure = new IOException("encryption failed", e.getCause());
+            }
+        }
+    }
+}
+
+
+
+// ==========================================================
+// DECRYPTING STREAM CODE – AeadInputStream.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+public class AeadInputStream extends InputStream {
+
+    private static final CompletableFuture<byte[]> END = CompletableFuture.completedFuture(null);
+
+    private final DataInputStream in;
+    private final SecretKey key;
+    private final byte[] prefix = new byte[AeadFormat.PREFIX_BYTES];
+    private final ExecutorService pool;
+    private final int chunkSize;
+    private final BlockingQueue<CompletableFuture<byte[]>> pending;
+    private final Thread reader;
+    private byte[] current = new byte[0];
+    private int pos;
+    private boolean eof;
+
+    public AeadInputStream(InputStream in, char[] password) throws IOException {
+        this(in, password, AeadFormat.sharedPool());
+    }
+
+    public AeadInputStream(InputStream in, char[] password, ExecutorService pool) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        this.pool = pool;
+        if (this.in.readInt() != AeadFormat.MAGIC) {
+            throw new IOException("not an encrypted stream");
+        }
+        int iterations = this.in.readInt();
+        this.chunkSize = this.in.readInt();
+        // Both values come from the sender before anything is authenticated:
+        // a free choice would let it make us run PBKDF2 for hours or queue
+        // gigabytes of chunks
+        if (iterations != AeadFormat.ITERATIONS || chunkSize <= 0 || chunkSize > AeadFormat.MAX_CHUNK) {
+            throw new IOException("bad stream header");
+        }
+        byte[] salt = new byte[AeadFormat.SALT_BYTES];
+        this.in.readFully(salt);
+        this.in.readFully(prefix);
+        try {
+            this.key = AeadFormat.deriveKey(password, salt, iterations);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("key derivation failed", e);
+        }
+        this.pending = new ArrayBlockingQueue<>(2 * Runtime.getRuntime().availableProcessors() + 2);
+        this.reader = new Thread(this::readFrames, "aead-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    // Reads frames off the socket and hands each one to a worker. The
+    // chunk number is counted here, not taken from the data, so a frame
+    // that was moved or repeated decrypts with the wrong nonce and fails.
+    private void readFrames() {
+        long seq = 0;
+        try {
+            while (true) {
+                int flag = in.read();
+                byte[] data;
+                try {
+                    if (flag < 0) {
+                        throw new EOFException();
+                    }
+                    int length = in.readInt();
+                    if (length < AeadFormat.TAG_BYTES || length > chunkSize + AeadFormat.TAG_BYTES) {
+                        throw new IOException("bad chunk length " + length);
+                    }
+                    data = new byte[length];
+                    in.readFully(data);
+                } catch (EOFException e) {
+                    throw new EOFException("stream cut off before the last chunk");
+                }
+                boolean last = flag == 1;
+                long n = seq++;
+                pending.put(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return AeadFormat.decrypt(key, prefix, n, last, data);
+                    } catch (AEADBadTagException e) {
+                        throw new IllegalStateException("chunk " + n + " failed authentication "
+                                + "(wrong password, or data changed/reordered/truncated)");
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, pool));
+                if (last) {
+                    pending.put(END);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            try {
+                pending.put(CompletableFuture.failedFuture(e));   // after the chunks already queued
+            } catch (InterruptedException closed) {
+                // nobody is reading any more
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (pos == current.length) {
+            if (eof) {
+                return -1;
+            }
+            next();
+        }
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    private void next() throws IOException {
+        try {
+            CompletableFuture<byte[]> f = pending.take();
+            if (f == END) {
+                eof = true;
+                return;
+            }
+            current = f.get();
+            pos = 0;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            eof = true;
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        in.close();
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – AeadBenchmark.java
+// ==========================================================
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+public class AeadBenchmark {
+
+    static final char[] PASSWORD = "correct horse battery staple".toCharArray();
+
+    // Usage: java AeadBenchmark [mb=128]
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0].replace("mb=", "")) : 128;
+        byte[] data = new byte[mb << 20];
+        new Random(1).nextBytes(data);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d MB, %d cores, chunk %d KB%n%n", mb, cores, AeadFormat.DEFAULT_CHUNK >> 10);
+
+        // 1. Correctness and tamper detection
+        byte[] sealed = encrypt(data, AeadFormat.newPool(cores));
+        check("round trip", () -> Arrays.equals(data, decrypt(sealed, AeadFormat.newPool(cores))));
+        int firstFrame = 4 + 4 + 4 + AeadFormat.SALT_BYTES + AeadFormat.PREFIX_BYTES;
+        int frame = 1 + 4 + AeadFormat.DEFAULT_CHUNK + AeadFormat.TAG_BYTES;
+        byte[] flipped = sealed.clone();
+        flipped[firstFrame + 3 * frame + 100] ^= 1;
+        expectFailure("one flipped bit", flipped);
+        byte[] swapped = sealed.clone();
+        System.arraycopy(sealed, firstFrame + frame, swapped, firstFrame + 2 * frame, frame);
+        System.arraycopy(sealed, firstFrame + 2 * frame, swapped, firstFrame + frame, frame);
+        expectFailure("two chunks swapped", swapped);
+        expectFailure("last chunk cut off", Arrays.copyOf(sealed, sealed.length - frame));
+        expectFailure("cut at a chunk boundary", Arrays.copyOf(sealed, firstFrame + 5 * frame));
+
+        // 2. Throughput against the number of workers
+        System.out.printf("%n%-8s %12s %12s%n", "workers", "encrypt MB/s", "decrypt MB/s");
+        for (int threads = 1; threads <= Math.max(4, cores); threads *= 2) {
+            ExecutorService pool = AeadFormat.newPool(threads);
+            encrypt(data, pool);                                      // warm-up
+            // The constructors derive the key, so the streams are built
+            // before each clock starts
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + data.length / 100);
+            OutputStream out = new AeadOutputStream(bytes, PASSWORD, AeadFormat.DEFAULT_CHUNK, pool);
+            long t0 = System.nanoTime();
+            try (out) {
+                writeAll(out, data);
+            }
+            long t1 = System.nanoTime();
+            InputStream in = new AeadInputStream(new ByteArrayInputStream(bytes.toByteArray()), PASSWORD, pool);
+            long t2 = System.nanoTime();
+            try (in) {
+                in.readAllBytes();
+            }
+            long t3 = System.nanoTime();
+            System.out.printf("%-8d %12.0f %12.0f%n", threads, mb / ((t1 - t0) / 1e9), mb / ((t3 - t2) / 1e9));
+            pool.shutdown();
+        }
+        System.out.println("\n(key derivation with " + AeadFormat.ITERATIONS
+                + " PBKDF2 rounds is excluded: it runs once per stream)");
+    }
+
+    static byte[] encrypt(byte[] data, ExecutorService pool) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + data.length / 100);
+        try (OutputStream out = new AeadOutputStream(bytes, PASSWORD, AeadFormat.DEFAULT_CHUNK, pool)) {
+            writeAll(out, data);
+        }
+        return bytes.toByteArray();
+    }
+
+    static void writeAll(OutputStream out, byte[] data) throws IOException {
+        for (int off = 0; off < data.length; off += 64 * 1024) {
+            out.write(data, off, Math.min(64 * 1024, data.length - off));
+        }
+    }
+
+    static byte[] decrypt(byte[] sealed, ExecutorService pool) throws IOException {
+        try (InputStream in = new AeadInputStream(new ByteArrayInputStream(sealed), PASSWORD, pool)) {
+            return in.readAllBytes();
+        }
+    }
+
+    interface Check {
+        boolean run() throws Exception;
+    }
+
+    static void check(String name, Check c) throws Exception {
+        System.out.printf("%-26s %s%n", name, c.run() ? "ok" : "FAILED");
+    }
+
+    static void expectFailure(String name, byte[] sealed) {
+        try {
+            decrypt(sealed, AeadFormat.sharedPool());
+            System.out.printf("%-26s NOT DETECTED%n", name);
+        } catch (IOException e) {
+            System.out.printf("%-26s detected: %s%n", name, e.getMessage());
+        }
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save AeadFormat.java, AeadOutputStream.java, AeadInputStream.java
+//         and AeadBenchmark.java next to the files of experiment 8.
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Check tamper detection and measure the speed:
+//         java AeadBenchmark
+//
+// Step 4: Encrypted file transfer (experiment 8). Give both sides the
+//         same password:
+//         java -Dtransfer.password=secret FileReceiverServer
+//         java -Dtransfer.password=secret FileSenderClient
+//         The server writes to received_file.txt.part and renames it to
+//         received_file.txt only after the final chunk authenticates.
+//         With a different password it reports "chunk 0 failed
+//         authentication" and deletes the partial file.
+//         -Daead.threads=N sets the number of workers (default: cores).
+//
+// Example output (1 CPU, so more workers cannot help here; on a
+// multi-core machine both columns grow with the worker count until the
+// memory bus or the network is the limit):
+//   128 MB, 1 cores, chunk 256 KB
+//
+//   round trip                 ok
+//   one flipped bit            detected: chunk 3 failed authentication (...)
+//   two chunks swapped         detected: chunk 1 failed authentication (...)
+//   last chunk cut off         detected: stream cut off before the last chunk
+//   cut at a chunk boundary    detected: stream cut off before the last chunk
+//
+//   workers  encrypt MB/s decrypt MB/s
+//   1                 464          401
+//   2                 789          334
+//   4                 682          418
+//
+//   (key derivation with 200000 PBKDF2 rounds is excluded: it runs once per stream)
+//
+//   Even on one core, two workers beat one: the writer copies chunk N
+//   while chunk N+1 is being encrypted.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **AES-GCM (authenticated encryption):**
+//    GCM encrypts and computes a 16-byte tag over the ciphertext and the
+//    "additional authenticated data". Decryption checks the tag first, so
+//    any change is detected. Modern CPUs do it in hardware (AES-NI,
+//    carry-less multiply) at several GB/s per core.
+//
+// 2. **Why chunks:**
+//    One GCM message over a whole file could only be checked at the very
+//    end, and could not be split between cores. Independent chunks can be
+//    encrypted in parallel and each one is verified before its bytes are
+//    handed to the program.
+//
+// 3. **Nonces and AAD:**
+//    A nonce must never repeat under the same key. Each stream gets a new
+//    random salt (so a new key) and a random prefix; the chunk number
+//    makes the rest unique. The chunk number and the last-chunk flag are
+//    the AAD: a chunk moved to another place, repeated, or a stream cut
+//    off at a chunk boundary all fail the check.
+//
+// 4. **Ordered output queue:**
+//    Workers finish out of order. Futures are queued in stream order and
+//    the writer waits on the oldest one, so the output order is right
+//    while later chunks are already being encrypted. The queue is bounded:
+//    when the network is slow, the producer waits instead of filling the
+//    memory.
+//
+// 5. **Password to key:**
+//    PBKDF2-HMAC-SHA256 with 200,000 rounds turns the password into a
+//    256-bit key. The cost is paid once per stream, but makes every
+//    password guess of an attacker expensive. The receiver accepts only
+//    its own round count and chunks up to 4 MB: the header is not yet
+//    authenticated, so a sender must not be able to pick the CPU time
+//    or memory the receiver spends on it.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
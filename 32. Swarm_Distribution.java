@@ -0,0 +1,817 @@
+// ===================================================================
+// EXPERIMENT: PEER-TO-PEER SWARM FILE DISTRIBUTION
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Tracker + peers exchanging verified file pieces (TCP)
+// ===================================================================
+// AIM:
+// Sending one file from one source to 50 hosts (experiments 8 and 9)
+// pushes 50 copies through the source's uplink, so the time grows with
+// the number of receivers. In a swarm (like BitTorrent) the file is cut
+// into pieces listed with their SHA-256 hashes in a manifest. Receivers
+// download pieces from each other and upload what they already have, so
+// every new receiver also adds upload capacity. The source only hands
+// out each piece a few times, receivers pick the rarest piece first, and
+// every piece is checked against its hash before it is used or shared.
+// ===================================================================
+
+
+// ==========================================================
+// MANIFEST CODE – SwarmManifest.java
+// ==========================================================
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+// Text file "<name>.swarm":
+//   name <file name>
+//   size <bytes>
+//   piece <bytes per piece>
+//   <SHA-256 of piece 0 in hex>
+//   ...
+public final class SwarmManifest {
+
+    public final String name;
+    public final long size;
+    public final int pieceSize;
+    private final byte[][] hashes;
+
+    private SwarmManifest(String name, long size, int pieceSize, byte[][] hashes) {
+        this.name = name;
+        this.size = size;
+        this.pieceSize = pieceSize;
+        this.hashes = hashes;
+    }
+
+    public static SwarmManifest create(Path file, int pieceSize) throws IOException {
+        long size = Files.size(file);
+        List<byte[]> hashes = new ArrayList<>();
+        byte[] buf = new byte[pieceSize];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.readNBytes(buf, 0, pieceSize)) > 0) {
+                hashes.add(sha256(buf, n));
+            }
+        }
+        return new SwarmManifest(file.getFileName().toString(), size, pieceSize, hashes.toArray(new byte[0][]));
+    }
+
+    public static SwarmManifest load(Path manifest) throws IOException {
+        List<String> lines = Files.readAllLines(manifest);
+        String name = lines.get(0).substring("name ".length());
+        long size = Long.parseLong(lines.get(1).substring("size ".length()));
+        int pieceSize = Integer.parseInt(lines.get(2).substring("piece ".length()));
+        byte[][] hashes = lines.subList(3, lines.size()).stream()
+                .filter(l -> !l.isBlank()).map(HexFormat.of()::parseHex).toArray(byte[][]::new);
+        SwarmManifest m = new SwarmManifest(name, size, pieceSize, hashes);
+        if (hashes.length != (size + pieceSize - 1) / pieceSize) {
+            throw new IOException("manifest lists " + hashes.length + " pieces, size needs " + m.pieces());
+        }
+        return m;
+    }
+
+    public void save(Path manifest) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("name ").append(name).append('\n')
+          .append("size ").append(size).append('\n')
+          .append("piece ").append(pieceSize).append('\n');
+        for (byte[] h : hashes) {
+            sb.append(HexFormat.of().formatHex(h)).append('\n');
+        }
+        Files.writeString(manifest, sb);
+    }
+
+    public int pieces() {
+        return hashes.length;
+    }
+
+    public long offset(int piece) {
+        return (long) piece * pieceSize;
+    }
+
+    public int length(int piece) {
+        return (int) Math.min(pieceSize, size - offset(piece));
+    }
+
+    // A piece is only stored and shared after it matches the manifest, so
+    // a broken or lying peer cannot spread bad data
+    public boolean verify(int piece, byte[] data) {
+        return data.length == length(piece) && Arrays.equals(hashes[piece], sha256(data, data.length));
+    }
+
+    static byte[] sha256(byte[] data, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, 0, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+
+
+// ==========================================================
+// TRACKER CODE – SwarmTracker.java
+// ==========================================================
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+// Keeps the list of peers. A peer announces "host:port" (and whether it
+// is the seed) and gets every known peer back; it repeats this every few
+// hundred milliseconds to find peers that joined later.
+public class SwarmTracker implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Boolean> peers = new ConcurrentHashMap<>();   // address → is seed
+    private final ExecutorService threads = VirtualThreads.newExecutor();
+
+    public SwarmTracker(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        threads.execute(this::acceptLoop);
+    }
+
+    public InetSocketAddress address() {
+        return new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort());
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                threads.execute(() -> serve(s));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(SwarmPeer.READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            peers.put(in.readUTF(), in.readBoolean());
+            Map<String, Boolean> snapshot = Map.copyOf(peers);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Boolean> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeBoolean(e.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            // peer went away
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        threads.shutdownNow();
+    }
+
+    // Usage: java SwarmTracker [port=6969]
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = Integer.parseInt(SwarmPeer.options(args).getOrDefault("port", "6969"));
+        new SwarmTracker(port);
+        System.out.println("Swarm tracker on port " + port);
+        Thread.currentThread().join();              // worker threads are daemons
+    }
+}
+
+
+
+// ==========================================================
+// PEER CODE – SwarmPeer.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class SwarmPeer implements AutoCloseable {
+
+    // Requests on a peer connection (the connecting side downloads)
+    static final byte BITFIELD = 'B';   // → length (int), BitSet bytes
+    static final byte GET = 'G';        // piece (int) → 'P' + bytes, or 'N' (not now)
+    static final byte PIECE = 'P';
+    static final byte NOT_NOW = 'N';
+
+    static final int ENDGAME = 4;       // pieces left when in-flight pieces may be requested twice
+    static final long RESEED_NANOS = 2_000_000_000L;
+    static final int READ_TIMEOUT_MILLIS = 30_000;  // a silent neighbour is dropped, its piece goes back
+
+    private static final Metrics.Counter uploaded = Metrics.counter("swarm_pieces_uploaded_total", "Pieces sent to other peers");
+    private static final Metrics.Counter downloaded = Metrics.counter("swarm_pieces_downloaded_total", "Verified pieces received");
+    private static final Metrics.Counter badPieces = Metrics.counter("swarm_hash_failures_total", "Pieces that did not match the manifest");
+
+    private final SwarmManifest manifest;
+    private final FileChannel file;
+    private final boolean seed;
+    private final int seedLimit;                // seed: uploads per piece, 0 = unlimited
+    private final int maxNeighbours;            // 0 = download from the seed only (no exchange)
+    private final double nanosPerByte;          // simulated uplink
+    private final InetSocketAddress tracker;
+    private final ServerSocket serverSocket;
+    private final String self;
+    private final ExecutorService threads = VirtualThreads.newExecutor();
+    private final BitSet have = new BitSet();
+    private final BitSet inFlight = new BitSet();
+    private final Map<String, BitSet> neighbourPieces = new ConcurrentHashMap<>();
+    private final Set<String> neighbours = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+    private final int[] timesSeeded;
+    private final long[] lastSeeded;
+    private final CountDownLatch complete = new CountDownLatch(1);
+    private final long started = System.nanoTime();
+    private long uplinkFreeAt;
+    private volatile long finishedNanos;
+    private volatile boolean running = true;
+    private long bytesUploaded;
+
+    public SwarmPeer(SwarmManifest manifest, Path path, boolean seed, int port, InetSocketAddress tracker,
+                     long uplinkBytesPerSecond, int seedLimit, int maxNeighbours) throws IOException {
+        this.manifest = manifest;
+        this.seed = seed;
+        this.seedLimit = seedLimit;
+        this.maxNeighbours = maxNeighbours;
+        this.tracker = tracker;
+        this.nanosPerByte = uplinkBytesPerSecond > 0 ? 1e9 / uplinkBytesPerSecond : 0;
+        this.timesSeeded = new int[manifest.pieces()];
+        this.lastSeeded = new long[manifest.pieces()];
+        if (seed) {
+            this.file = FileChannel.open(path);
+            have.set(0, manifest.pieces());
+            finishedNanos = started;
+            complete.countDown();
+        } else {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+                raf.setLength(manifest.size);
+            }
+            this.file = FileChannel.open(path, java.nio.file.StandardOpenOption.READ,
+                    java.nio.file.StandardOpenOption.WRITE);
+        }
+        this.serverSocket = new ServerSocket(port);
+        this.self = "127.0.0.1:" + serverSocket.getLocalPort();
+        threads.execute(this::acceptLoop);
+        threads.execute(this::announceLoop);
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return complete.await(timeout, unit);
+    }
+
+    public double seconds() {
+        return (finishedNanos - started) / 1e9;
+    }
+
+    public synchronized long bytesUploaded() {
+        return bytesUploaded;
+    }
+
+    // ---------------- finding peers ----------------
+
+    private void announceLoop() {
+        while (running) {
+            try (Socket s = new Socket(tracker.getAddress(), tracker.getPort())) {
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeUTF(self);
+                out.writeBoolean(seed);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                int n = in.readInt();
+                List<String> others = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    String peer = in.readUTF();
+                    if (in.readBoolean()) {
+                        connect(peer);                      // always talk to the seed
+                    } else if (!peer.equals(self)) {
+                        others.add(peer);
+                    }
+                }
+                // Random neighbours: if everybody took the same ones, the rest
+                // of the swarm would only download and never be asked for pieces
+                Collections.shuffle(others);
+                for (String peer : others) {
+                    if (maxNeighbours > 0 && neighbours.size() < maxNeighbours) {   // the seed counts too
+                        connect(peer);
+                    }
+                }
+            } catch (IOException e) {
+                // tracker not reachable right now; try again
+            }
+            sleep(300);
+        }
+    }
+
+    private void connect(String peer) {
+        if (!seed && complete.getCount() > 0 && neighbours.add(peer)) {
+            threads.execute(() -> download(peer));
+        }
+    }
+
+    // ---------------- downloading ----------------
+
+    // One connection per neighbour: ask what it has, take the rarest
+    // piece it can give us, verify, store, repeat.
+    private void download(String peer) {
+        String[] hp = peer.split(":");
+        Socket socket = null;
+        int piece = -1;                                 // in flight on this connection
+        try (Socket s = new Socket(hp[0], Integer.parseInt(hp[1]))) {
+            socket = s;
+            open.add(s);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (running && complete.getCount() > 0) {
+                out.writeByte(BITFIELD);
+                out.flush();
+                int length = in.readInt();              // toByteArray() drops trailing zero bytes
+                if (length < 0 || length > (manifest.pieces() + 7) / 8) {
+                    throw new IOException("bad bitfield length " + length + " from " + peer);
+                }
+                byte[] bits = new byte[length];
+                in.readFully(bits);
+                BitSet theirs = BitSet.valueOf(bits);
+                if (length * 8 > manifest.pieces()) {
+                    theirs.clear(manifest.pieces(), length * 8);   // padding bits name no piece
+                }
+                neighbourPieces.put(peer, theirs);
+
+                piece = choose(theirs);
+                if (piece < 0) {
+                    sleep(20);                          // nothing useful there yet
+                    continue;
+                }
+                out.writeByte(GET);
+                out.writeInt(piece);
+                out.flush();
+                if (in.readByte() == NOT_NOW) {
+                    release(piece);
+                    piece = -1;
+                    sleep(10);
+                    continue;
+                }
+                byte[] data = new byte[manifest.length(piece)];
+                in.readFully(data);
+                if (!manifest.verify(piece, data)) {
+                    badPieces.increment();
+                    release(piece);
+                    piece = -1;
+                    continue;
+                }
+                ByteBuffer b = ByteBuffer.wrap(data);
+                while (b.hasRemaining()) {
+                    file.write(b, manifest.offset(piece) + b.position());
+                }
+                store(piece);
+                piece = -1;
+            }
+        } catch (IOException e) {
+            // neighbour left or went silent; the announce loop may pick another one
+        } finally {
+            if (piece >= 0) {
+                release(piece);
+            }
+            if (socket != null) {
+                open.remove(socket);
+            }
+            neighbours.remove(peer);
+            neighbourPieces.remove(peer);
+        }
+    }
+
+    // Rarest first: of the pieces this neighbour has and we lack, take the
+    // one the fewest neighbours have (ties at random). Rare pieces get
+    // copied early, so no piece stays stuck with a single holder.
+    private synchronized int choose(BitSet theirs) {
+        BitSet candidates = (BitSet) theirs.clone();
+        candidates.andNot(have);
+        BitSet fresh = (BitSet) candidates.clone();
+        fresh.andNot(inFlight);
+        if (!fresh.isEmpty()) {
+            candidates = fresh;
+        } else if (manifest.pieces() - have.cardinality() > ENDGAME) {
+            return -1;                                  // the rest is being fetched elsewhere
+        }
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            int count = 0;
+            for (BitSet b : neighbourPieces.values()) {
+                if (b.get(i)) {
+                    count++;
+                }
+            }
+            if (count < bestCount) {
+                best = i;
+                bestCount = count;
+                ties = 1;
+            } else if (count == bestCount && ThreadLocalRandom.current().nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            inFlight.set(best);
+        }
+        return best;
+    }
+
+    private synchronized void release(int piece) {
+        inFlight.clear(piece);
+    }
+
+    private synchronized void store(int piece) {
+        inFlight.clear(piece);
+        if (have.get(piece)) {
+            return;                                     // endgame duplicate
+        }
+        have.set(piece);
+        downloaded.increment();
+        if (have.cardinality() == manifest.pieces()) {
+            finishedNanos = System.nanoTime();
+            complete.countDown();
+        }
+    }
+
+    // ---------------- uploading ----------------
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket s = serverSocket.accept();
+                open.add(s);
+                threads.execute(() -> upload(s));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void upload(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);       // both directions drop a silent neighbour
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+            byte[] buf = new byte[manifest.pieceSize];
+            while (true) {
+                int type = in.read();
+                if (type == BITFIELD) {
+                    byte[] bits;
+                    synchronized (this) {
+                        bits = have.toByteArray();
+                    }
+                    out.writeInt(bits.length);
+                    out.write(bits);
+                } else if (type == GET) {
+                    int piece = in.readInt();
+                    if (piece < 0 || piece >= manifest.pieces() || !mayUpload(piece)) {
+                        out.writeByte(NOT_NOW);
+                    } else {
+                        int len = manifest.length(piece);
+                        ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+                        while (b.hasRemaining()) {
+                            if (file.read(b, manifest.offset(piece) + b.position()) < 0) {
+                                throw new IOException("short file");
+                            }
+                        }
+                        uplink(len);
+                        out.writeByte(PIECE);
+                        out.write(buf, 0, len);
+                        uploaded.increment();
+                    }
+                } else {
+                    return;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // downloader left
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    // The seed gives each piece out at most seedLimit times; after that
+    // the receivers have to get it from each other. If a piece has not
+    // been handed out for a while although someone asks for it, its
+    // holders may have left, so the seed sends it once more.
+    private boolean mayUpload(int piece) {
+        synchronized (this) {
+            if (!have.get(piece)) {
+                return false;
+            }
+            if (!seed || seedLimit <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (timesSeeded[piece] >= seedLimit && now - lastSeeded[piece] < RESEED_NANOS) {
+                return false;
+            }
+            timesSeeded[piece]++;
+            lastSeeded[piece] = now;
+            return true;
+        }
+    }
+
+    // Simulated uplink: uploads queue behind each other at the configured
+    // rate, like packets behind a slow home or office connection
+    private void uplink(int bytes) {
+        long wait;
+        synchronized (this) {
+            bytesUploaded += bytes;
+            if (nanosPerByte == 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            uplinkFreeAt = Math.max(now, uplinkFreeAt) + (long) (bytes * nanosPerByte);
+            wait = uplinkFreeAt - now;
+        }
+        sleep(wait / 1_000_000);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(Math.max(0, millis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (Socket s : open) {
+            s.close();
+        }
+        threads.shutdownNow();
+        file.close();
+    }
+
+    // Usage:
+    //   java SwarmPeer make file=<file> [piece=256k]          writes <file>.swarm
+    //   java SwarmPeer seed file=<file> [port=7000] [tracker=127.0.0.1:6969] [seedLimit=2]
+    //   java SwarmPeer get manifest=<file>.swarm [dir=.] [port=0] [tracker=...] [neighbours=6]
+    //   Optional for seed and get: uplink=8m (simulated upload rate)
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = options(args);
+        String[] tr = opts.getOrDefault("tracker", "127.0.0.1:6969").split(":");
+        InetSocketAddress tracker = new InetSocketAddress(tr[0], Integer.parseInt(tr[1]));
+        long uplink = parseSize(opts.getOrDefault("uplink", "0"));
+        int port = Integer.parseInt(opts.getOrDefault("port", "0"));
+        if (opts.containsKey("make")) {
+            Path file = Path.of(opts.get("file"));
+            SwarmManifest m = SwarmManifest.create(file, (int) parseSize(opts.getOrDefault("piece", "256k")));
+            m.save(Path.of(file + ".swarm"));
+            System.out.println("Wrote " + file + ".swarm: " + m.pieces() + " pieces");
+        } else if (opts.containsKey("seed")) {
+            Path file = Path.of(opts.get("file"));
+            SwarmManifest m = SwarmManifest.load(Path.of(file + ".swarm"));
+            SwarmPeer p = new SwarmPeer(m, file, true, Integer.parseInt(opts.getOrDefault("port", "7000")), tracker,
+                    uplink, Integer.parseInt(opts.getOrDefault("seedLimit", "2")), 0);
+            System.out.println("Seeding " + m.name + " on " + p.self);
+            Thread.currentThread().join();
+        } else {
+            SwarmManifest m = SwarmManifest.load(Path.of(opts.get("manifest")));
+            Path target = Path.of(opts.getOrDefault("dir", ".")).resolve(m.name);
+            try (SwarmPeer p = new SwarmPeer(m, target, false, port, tracker, uplink, 0,
+                    Integer.parseInt(opts.getOrDefault("neighbours", "6")))) {
+                p.await(1, TimeUnit.HOURS);
+                System.out.printf("Downloaded %s in %.2f s (uploaded %,d bytes to others)%n",
+                        target, p.seconds(), p.bytesUploaded());
+                sleep(Long.parseLong(opts.getOrDefault("linger", "5")) * 1000);   // keep seeding a little
+            }
+        }
+    }
+
+    // "key=value" arguments; a bare "key" means key=true
+    static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    // "500", "64k", "20m", "1g"
+    static long parseSize(String s) {
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        long mult = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(mult == 1 ? s : s.substring(0, s.length() - 1)) * mult;
+    }
+}
+
+
+
+// ==========================================================
+// DEMO CODE – SwarmDemo.java
+// ==========================================================
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class SwarmDemo {
+
+    // Usage: java SwarmDemo [peers=4,8,16,32] [size=8m] [piece=64k] [uplink=8m]
+    //                       [neighbours=6] [seedLimit=2] [central=16]
+    // Every peer (and the source) uploads at most `uplink` bytes/s.
+    // "central": the source sends the whole file to every receiver.
+    // "swarm":   receivers also exchange pieces.
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = SwarmPeer.options(args);
+        long size = SwarmPeer.parseSize(opts.getOrDefault("size", "8m"));
+        int piece = (int) SwarmPeer.parseSize(opts.getOrDefault("piece", "64k"));
+        long uplink = SwarmPeer.parseSize(opts.getOrDefault("uplink", "8m"));
+        int neighbours = Integer.parseInt(opts.getOrDefault("neighbours", "6"));
+        int seedLimit = Integer.parseInt(opts.getOrDefault("seedLimit", "2"));
+        int centralMax = Integer.parseInt(opts.getOrDefault("central", "16"));
+        System.setProperty("metrics.port", "0");
+
+        Path dir = Files.createDirectories(Path.of("swarm_demo"));
+        Path source = dir.resolve("release.bin");
+        byte[] data = new byte[(int) size];
+        new Random(3).nextBytes(data);
+        Files.write(source, data);
+        SwarmManifest manifest = SwarmManifest.create(source, piece);
+        System.out.printf("%,d bytes in %d pieces, uplink %d MB/s per peer, %d neighbours, seed gives each "
+                + "piece out %d times%n%n", size, manifest.pieces(), uplink >> 20, neighbours, seedLimit);
+        System.out.printf("%-9s %-8s %9s %12s %15s%n", "receivers", "mode", "seconds", "ideal central",
+                "seed uploaded");
+
+        for (String n : opts.getOrDefault("peers", "4,8,16,32").split(",")) {
+            int receivers = Integer.parseInt(n.trim());
+            for (boolean swarm : new boolean[] {false, true}) {
+                if (!swarm && receivers > centralMax) {
+                    continue;
+                }
+                run(manifest, source, dir, receivers, swarm, uplink, swarm ? seedLimit : 0,
+                        swarm ? neighbours : 0, size);
+            }
+        }
+    }
+
+    private static void run(SwarmManifest manifest, Path source, Path dir, int receivers, boolean swarm,
+                            long uplink, int seedLimit, int neighbours, long size) throws Exception {
+        try (SwarmTracker tracker = new SwarmTracker(0)) {
+            SwarmPeer seed = new SwarmPeer(manifest, source, true, 0, tracker.address(), uplink, seedLimit, 0);
+            List<SwarmPeer> peers = new ArrayList<>();
+            for (int i = 0; i < receivers; i++) {
+                peers.add(new SwarmPeer(manifest, dir.resolve("peer-" + i).resolve(manifest.name), false, 0,
+                        tracker.address(), uplink, 0, neighbours));
+            }
+            double slowest = 0;
+            for (SwarmPeer p : peers) {
+                if (!p.await(5, TimeUnit.MINUTES)) {
+                    throw new IllegalStateException("a receiver did not finish");
+                }
+                slowest = Math.max(slowest, p.seconds());
+            }
+            for (int i = 0; i < receivers; i++) {
+                if (Files.mismatch(source, dir.resolve("peer-" + i).resolve(manifest.name)) != -1) {
+                    throw new IllegalStateException("peer " + i + " has a different file");
+                }
+            }
+            System.out.printf("%-9d %-8s %9.2f %12.2f %12.1f x%n", receivers, swarm ? "swarm" : "central",
+                    slowest, (double) receivers * size / uplink, seed.bytesUploaded() / (double) size);
+            for (SwarmPeer p : peers) {
+                p.close();
+            }
+            seed.close();
+        }
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save SwarmManifest.java, SwarmTracker.java, SwarmPeer.java and
+//         SwarmDemo.java with the other experiments (they use
+//         VirtualThreads.java from 17, LatencyHistogram.java from 20 and
+//         Metrics.java from 21).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Everything on localhost in one program:
+//         java SwarmDemo
+//
+// Step 4: Or by hand, one terminal per program:
+//         java SwarmPeer make file=release.iso
+//         java SwarmTracker
+//         java SwarmPeer seed file=release.iso uplink=8m
+//         java SwarmPeer get manifest=release.iso.swarm dir=peer1 uplink=8m
+//         java SwarmPeer get manifest=release.iso.swarm dir=peer2 uplink=8m
+//         ...
+//
+// Example output (1 CPU, loopback; "ideal central" = receivers x size / uplink):
+//   8,388,608 bytes in 128 pieces, uplink 8 MB/s per peer, 6 neighbours,
+//   seed gives each piece out 2 times
+//
+//   receivers mode       seconds ideal central   seed uploaded
+//   4         central       4.02         4.00          4.0 x
+//   4         swarm         1.16         4.00          1.1 x
+//   8         central       7.99         8.00          8.0 x
+//   8         swarm         1.24         8.00          1.2 x
+//   16        central      16.02        16.00         16.0 x
+//   16        swarm         1.40        16.00          1.3 x
+//   32        swarm         1.81        32.00          1.6 x
+//
+//   Central time doubles with the receivers; the swarm stays close to
+//   one copy's time (1 s at 8 MB/s) and the seed sends about one copy.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why one source does not scale:**
+//    N receivers need N copies. If all copies leave through the source's
+//    uplink, the time is N × size / uplink: 50 hosts take 50 times longer
+//    than one.
+//
+// 2. **Swarming:**
+//    Receivers upload the pieces they already have to each other. Each new
+//    receiver adds its own uplink, so the total upload capacity grows
+//    with the swarm and the time stays nearly flat. The source only needs
+//    to send about one copy (here each piece at most twice).
+//
+// 3. **Rarest first:**
+//    A receiver asks for the piece that the fewest of its neighbours
+//    have. Rare pieces get copied early, so pieces spread evenly and no
+//    piece depends on one peer (or the seed) at the end.
+//
+// 4. **Piece hashes:**
+//    The manifest holds the SHA-256 of each piece. A piece is checked
+//    before it is written or offered to others, so corruption cannot
+//    spread through the swarm.
+//
+// 5. **Endgame:**
+//    For the last few pieces a receiver may ask several neighbours for
+//    the same piece, so one slow neighbour cannot hold up the finish.
+//
+// 6. **Read timeouts:**
+//    Every socket (tracker, download and upload side) has a 30 s read
+//    timeout. A neighbour that goes silent is dropped and the piece it
+//    owed goes back to the pool.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,839 @@
+// ===================================================================
+// EXPERIMENT: BANDWIDTH-DELAY PRODUCT AUTOTUNING FOR TCP TRANSFERS
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/WAN, emulated on localhost)
+// PROGRAM TYPE: Self-tuning transfer streams + delay/bandwidth proxy
+// ===================================================================
+// AIM:
+// A sender can only have one "window" of unacknowledged data in flight.
+// To fill a path it must keep bandwidth × round-trip time bytes (the
+// bandwidth-delay product, BDP) on the way: 100 Mbit/s with 60 ms RTT
+// needs 750 KB. FileSenderClient and FileReceiverServer (experiment 8)
+// use default socket buffers, 4 KB writes and Nagle's algorithm, which
+// can waste a long path when the kernel's buffer limits are below the
+// BDP. Here the sender measures the RTT (ping/pong frames) and the
+// delivery rate (receiver acknowledgements) during the transfer, and
+// sizes the send buffer and the write size from the BDP, growing them as
+// the measurements change; the receiver sizes its buffer before the
+// handshake. A proxy adds delay and a bandwidth limit on one machine.
+// ===================================================================
+
+
+// ==========================================================
+// TUNER CODE – BdpAutotuner.java
+// ==========================================================
+
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Decides write size and send buffer from the measurements. Works like
+// the model-based part of TCP BBR:
+//   bandwidth = highest delivery rate of the last 10 intervals
+//   RTT       = lowest ping time seen
+//   window    = 2 × bandwidth × RTT
+// The window is not enforced by the program – TCP's own congestion and
+// flow control do that – it only sizes SO_SNDBUF, which must hold every
+// unacknowledged byte. The factor 2 leaves room to grow: if the path can
+// take more, the next interval delivers more and the buffer follows.
+// When the path gets slower the old maximum ages out of the 10
+// intervals and the target shrinks again.
+public class BdpAutotuner {
+
+    static final int MIN_WINDOW = 64 * 1024;
+    static final int MAX_WINDOW = 64 << 20;
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int MAX_CHUNK = 1 << 20;
+
+    private final long[] rateSamples = new long[10];
+    private int sampleCount;
+    private long minRtt = Long.MAX_VALUE;
+    private long lastAcked;
+    private long lastTick = System.nanoTime();
+    private long started;
+    private int window;
+    private int chunk;
+    private long firstSecondBytes = -1;
+
+    public BdpAutotuner() {
+        this.window = MIN_WINDOW;
+        this.chunk = MIN_CHUNK;
+    }
+
+    public synchronized int window() {
+        return window;
+    }
+
+    public synchronized int chunk() {
+        return chunk;
+    }
+
+    public synchronized long minRttNanos() {
+        return minRtt;
+    }
+
+    public synchronized void rttSample(long nanos) {
+        minRtt = Math.min(minRtt, nanos);
+    }
+
+    // Called about every 50 ms with the total acknowledged so far.
+    // Returns true when the window changed enough to resize the buffers.
+    public synchronized boolean tick(long acked, long now) {
+        long elapsed = now - lastTick;
+        if (elapsed < Math.max(50_000_000L, minRtt == Long.MAX_VALUE ? 0 : minRtt)) {
+            return false;
+        }
+        if (started == 0 && acked > 0) {
+            started = lastTick;                            // key setup etc. is not counted
+        }
+        if (started != 0 && firstSecondBytes < 0 && now - started >= 1_000_000_000L) {
+            firstSecondBytes = acked;
+        }
+        rateSamples[sampleCount++ % rateSamples.length] = (long) ((acked - lastAcked) * 1e9 / elapsed);
+        lastAcked = acked;
+        lastTick = now;
+        if (minRtt == Long.MAX_VALUE) {
+            return false;
+        }
+        long bdp = bdp();
+        int target = (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, 2 * bdp));
+        if (Math.abs(target - window) < window / 4) {
+            return false;                                  // small changes are not worth a syscall
+        }
+        window = target;
+        chunk = (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, Long.highestOneBit(Math.max(1, bdp / 16))));
+        return true;
+    }
+
+    public synchronized long bandwidth() {
+        long max = 0;
+        for (int i = 0; i < Math.min(sampleCount, rateSamples.length); i++) {
+            max = Math.max(max, rateSamples[i]);
+        }
+        return max;
+    }
+
+    public synchronized long bdp() {
+        return minRtt == Long.MAX_VALUE ? 0 : (long) (bandwidth() * (minRtt / 1e9));
+    }
+
+    // Bytes acknowledged during the first second after data started to
+    // flow, while the initial (untuned) sizes were in use most of the time
+    public synchronized long firstSecondBytes() {
+        return firstSecondBytes;
+    }
+
+    // System.nanoTime() of the interval in which data first arrived, or 0
+    public synchronized long dataStarted() {
+        return started;
+    }
+
+    public synchronized String describe() {
+        return String.format("rtt=%.1f ms bw=%.1f MB/s bdp=%d KB window=%d KB chunk=%d KB",
+                minRtt == Long.MAX_VALUE ? 0 : minRtt / 1e6, bandwidth() / 1048576.0, bdp() >> 10,
+                window >> 10, chunk >> 10);
+    }
+
+    // Linux caps SO_SNDBUF/SO_RCVBUF at net.core.wmem_max/rmem_max, and a
+    // buffer set by the program is no longer grown by the kernel's own
+    // autotuning. Asking for more than the cap would lock in a smaller
+    // buffer than the kernel would have used, so such requests are skipped.
+    static long kernelLimit(String name) {
+        try {
+            // readString() trusts the size of /proc files (0) and can cut the value short
+            try (BufferedReader reader = Files.newBufferedReader(Path.of("/proc/sys/net/core/" + name))) {
+                return Long.parseLong(reader.readLine().trim());
+            }
+        } catch (Exception e) {
+            return Long.MAX_VALUE;                         // not Linux: no known cap
+        }
+    }
+
+    // Largest buffer the kernel grows a socket to by itself: the third
+    // value of /proc/sys/net/ipv4/tcp_rmem or tcp_wmem
+    static long kernelAutotuneLimit(String name) {
+        try (BufferedReader reader = Files.newBufferedReader(Path.of("/proc/sys/net/ipv4/" + name))) {
+            String[] values = reader.readLine().trim().split("\\s+");
+            return Long.parseLong(values[2]);
+        } catch (Exception e) {
+            return Long.MAX_VALUE;                         // not Linux: leave the OS defaults alone
+        }
+    }
+}
+
+
+
+// ==========================================================
+// SENDER STREAM CODE – TunedOutputStream.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+// Frames, sender → receiver:
+//   'D' length (int) bytes     data
+//   'P' time (long)            ping, echoed as 'O'
+//   'E'                        end of data
+// receiver → sender:
+//   'O' time (long)            pong
+//   'A' total (long)           bytes consumed so far
+public class TunedOutputStream extends OutputStream {
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final BdpAutotuner tuner;
+    private final Thread ackReader;
+    private final Thread ticker;
+    private final long started = System.nanoTime();
+    private final long sndbufLimit = BdpAutotuner.kernelLimit("wmem_max");
+    private byte[] chunk;
+    private int used;
+    private long sent;
+    private long acked;
+    private boolean closed;
+    private volatile IOException failure;
+
+    public TunedOutputStream(Socket socket, BdpAutotuner tuner) throws IOException {
+        this.socket = socket;
+        this.tuner = tuner;
+        socket.setTcpNoDelay(true);     // frames are already large; pings must not wait behind Nagle
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        this.chunk = new byte[tuner.chunk()];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.ackReader = new Thread(() -> readAcks(in), "tuned-acks");
+        this.ackReader.setDaemon(true);
+        this.ackReader.start();
+        this.ticker = new Thread(this::tickLoop, "tuned-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+        AsyncLog.info("[autotune] start: " + tuner.describe() + ", SO_SNDBUF=" + socket.getSendBufferSize());
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, chunk.length - used);
+            System.arraycopy(b, off, chunk, used, n);
+            used += n;
+            off += n;
+            len -= n;
+            if (used == chunk.length) {
+                sendChunk();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (used > 0) {
+            sendChunk();
+        }
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    // Ends the stream and waits until the receiver has consumed everything
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        synchronized (out) {
+            out.writeByte('E');
+            out.flush();
+        }
+        try {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + 30_000;
+                while (acked < sent && failure == null && System.currentTimeMillis() < deadline) {
+                    wait(100);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            ticker.interrupt();
+        }
+        logSummary();
+        socket.close();
+    }
+
+    // No window of its own: TCP already stops the sender when the path or
+    // the receiver is full, and a second limit on top only slows it down
+    private void sendChunk() throws IOException {
+        int len = used;
+        if (failure != null) {
+            throw failure;
+        }
+        synchronized (this) {
+            sent += len;
+        }
+        synchronized (out) {
+            out.writeByte('D');
+            out.writeInt(len);
+            out.write(chunk, 0, len);
+            out.flush();
+        }
+        used = 0;
+        if (chunk.length != tuner.chunk()) {
+            chunk = new byte[tuner.chunk()];
+        }
+    }
+
+    private void readAcks(DataInputStream in) {
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == 'O') {
+                    tuner.rttSample(System.nanoTime() - in.readLong());
+                } else if (type == 'A') {
+                    long total = in.readLong();
+                    synchronized (this) {
+                        acked = total;
+                        notifyAll();
+                    }
+                } else {
+                    throw new IOException(type < 0 ? "receiver closed the connection" : "bad frame " + type);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!closed || acked < sent) {
+                    failure = e;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // Every 50 ms: a ping, a new estimate, and a new send buffer if needed
+    private void tickLoop() {
+        try {
+            while (true) {
+                Thread.sleep(50);
+                synchronized (out) {
+                    out.writeByte('P');
+                    out.writeLong(System.nanoTime());
+                    out.flush();
+                }
+                long ackedNow;
+                synchronized (this) {
+                    ackedNow = acked;
+                }
+                if (tuner.tick(ackedNow, System.nanoTime())) {
+                    applySendBuffer(tuner.window());
+                    AsyncLog.info("[autotune] " + tuner.describe() + ", SO_SNDBUF=" + socket.getSendBufferSize());
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            // stream closed
+        }
+    }
+
+    // SO_SNDBUF may change at any time: it only limits how much the
+    // sender's kernel keeps for retransmission, not the window scale
+    private void applySendBuffer(int window) throws IOException {
+        if (window > socket.getSendBufferSize() && window <= sndbufLimit) {
+            try {
+                socket.setSendBufferSize(window);
+            } catch (SocketException e) {
+                AsyncLog.warn("[autotune] SO_SNDBUF not changed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void logSummary() {
+        long now = System.nanoTime();
+        double seconds = (now - started) / 1e9;
+        long first = tuner.firstSecondBytes();
+        double flowing = (now - tuner.dataStarted()) / 1e9;
+        String gain = "";
+        if (first > 0 && flowing > 2) {
+            double firstRate = first;
+            double restRate = (sent - first) / (flowing - 1.0);
+            gain = String.format(", first second %.1f MB/s, after that %.1f MB/s (x%.1f)",
+                    firstRate / 1048576, restRate / 1048576, restRate / firstRate);
+        }
+        AsyncLog.info(String.format("[autotune] done: %,d bytes in %.2f s = %.1f MB/s%s; final %s", sent, seconds,
+                sent / seconds / 1048576, gain, tuner.describe()));
+    }
+
+    public long bytesSent() {
+        return sent;
+    }
+}
+
+
+
+// ==========================================================
+// RECEIVER STREAM CODE – TunedInputStream.java
+// ==========================================================
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+// Counterpart of TunedOutputStream: returns the data, answers pings and
+// acknowledges what the program has read (the acknowledgements give the
+// sender its delivery rate).
+public class TunedInputStream extends InputStream {
+
+    static final int ACK_EVERY = 32 * 1024;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int remaining;
+    private long consumed;
+    private long lastAck;
+    private boolean eof;
+
+    // The receive window's scale factor is agreed in the handshake, so a
+    // larger SO_RCVBUF has to be set on the listening socket before bind();
+    // accepted sockets inherit it. Linux grows the buffer by itself up to
+    // tcp_rmem[2], and setting SO_RCVBUF switches that off, so it is only
+    // set when the kernel would stop below the largest window the sender
+    // may want and rmem_max allows more.
+    public static ServerSocket listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        long wanted = Math.min(BdpAutotuner.MAX_WINDOW, BdpAutotuner.kernelLimit("rmem_max"));
+        if (wanted > BdpAutotuner.kernelAutotuneLimit("tcp_rmem")) {
+            try {
+                serverSocket.setReceiveBufferSize((int) wanted);
+            } catch (SocketException e) {
+                AsyncLog.warn("[autotune] SO_RCVBUF not changed: " + e.getMessage());
+            }
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    public TunedInputStream(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);                      // pongs and acks go out at once
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 256 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (remaining == 0) {
+            if (eof || !nextFrame()) {
+                return -1;
+            }
+        }
+        int n = in.read(b, off, Math.min(len, remaining));
+        if (n < 0) {
+            throw new IOException("connection closed inside a data frame");
+        }
+        remaining -= n;
+        consumed += n;
+        if (consumed - lastAck >= ACK_EVERY || remaining == 0) {
+            out.writeByte('A');
+            out.writeLong(consumed);
+            out.flush();
+            lastAck = consumed;
+        }
+        return n;
+    }
+
+    // Handles control frames; returns false at the end of the stream
+    private boolean nextFrame() throws IOException {
+        int type = in.read();
+        switch (type) {
+            case 'D':
+                remaining = in.readInt();
+                if (remaining <= 0 || remaining > BdpAutotuner.MAX_CHUNK) {
+                    throw new IOException("bad data frame length " + remaining);
+                }
+                return true;
+            case 'P':
+                out.writeByte('O');
+                out.writeLong(in.readLong());
+                out.flush();
+                return true;
+            case 'E':
+                eof = true;
+                return false;
+            default:
+                throw new IOException(type < 0 ? "connection closed before the end frame" : "bad frame " + type);
+        }
+    }
+
+    public long bytesReceived() {
+        return consumed;
+    }
+}
+
+
+
+// ==========================================================
+// PROXY CODE – DelayProxy.java
+// ==========================================================
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+
+// Forwards TCP connections like a long, narrow path: each direction gets
+// half the RTT as delay, and the forward direction a bandwidth limit.
+// Used instead of "tc netem", which needs root and is Linux-only.
+// Like a router, it holds at most one BDP per direction (at least
+// 64 KB); beyond that it stops reading and TCP's flow control pushes
+// back on the sender instead of the proxy buffering without limit.
+public class DelayProxy implements AutoCloseable {
+
+    static final int MIN_QUEUE = 64 * 1024;
+
+    private static final class Packet {
+        final byte[] data;
+        final int length;
+        final long release;
+
+        Packet(byte[] data, int length, long release) {
+            this.data = data;
+            this.length = length;
+            this.release = release;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final long oneWayNanos;
+    private final double nanosPerByte;
+    private final int queueBytes;
+
+    public DelayProxy(int port, String targetHost, int targetPort, long rttMillis, long bytesPerSecond)
+            throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.oneWayNanos = rttMillis * 1_000_000L / 2;
+        this.nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+        long bdp = bytesPerSecond > 0 ? bytesPerSecond * rttMillis / 1000 : 4 << 20;
+        this.queueBytes = (int) Math.max(MIN_QUEUE, Math.min(bdp, Integer.MAX_VALUE));
+        Thread t = new Thread(this::acceptLoop, "delay-proxy");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                pipe(client, server, nanosPerByte);
+                pipe(server, client, 0);
+            } catch (IOException e) {
+                // closed, or target not reachable
+            }
+        }
+    }
+
+    // Reader stamps each piece with the time it leaves the bottleneck plus
+    // the propagation delay; writer sends it at that time. The semaphore
+    // counts the bytes on the way and holds the reader back when they
+    // reach queueBytes.
+    private void pipe(Socket from, Socket to, double nanosPerByte) throws IOException {
+        BlockingQueue<Packet> queue = new LinkedBlockingQueue<>();
+        Semaphore space = new Semaphore(queueBytes);
+        InputStream in = from.getInputStream();
+        OutputStream out = to.getOutputStream();
+        Thread reader = new Thread(() -> {
+            long linkFree = 0;
+            try {
+                while (true) {
+                    byte[] buf = new byte[16 * 1024];
+                    int n = in.read(buf);
+                    if (n < 0) {
+                        break;
+                    }
+                    space.acquire(n);
+                    long now = System.nanoTime();
+                    linkFree = Math.max(now, linkFree) + (long) (n * nanosPerByte);
+                    queue.add(new Packet(buf, n, linkFree + oneWayNanos));
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed
+            }
+            queue.add(new Packet(null, -1, 0));
+        }, "delay-proxy-in");
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Packet p = queue.take();
+                    if (p.length < 0) {
+                        to.shutdownOutput();
+                        break;
+                    }
+                    long wait;
+                    while ((wait = p.release - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(p.data, 0, p.length);
+                    space.release(p.length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // closed
+            }
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {
+            }
+        }, "delay-proxy-out");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    // Usage: java DelayProxy [listen=12347] [target=127.0.0.1:12345] [rtt=60] [rate=40m]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = options(args);
+        String[] target = opts.getOrDefault("target", "127.0.0.1:12345").split(":");
+        DelayProxy proxy = new DelayProxy(Integer.parseInt(opts.getOrDefault("listen", "12347")), target[0],
+                Integer.parseInt(target[1]), Long.parseLong(opts.getOrDefault("rtt", "60")),
+                parseSize(opts.getOrDefault("rate", "40m")));
+        System.out.println("Forwarding port " + proxy.port() + " to " + target[0] + ":" + target[1]);
+        Thread.currentThread().join();
+    }
+
+    // "key=value" arguments; a bare "key" means key=true
+    static Map<String, String> options(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        return opts;
+    }
+
+    // "500", "64k", "20m", "1g"
+    static long parseSize(String s) {
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        long mult = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(mult == 1 ? s : s.substring(0, s.length() - 1)) * mult;
+    }
+}
+
+
+
+// ==========================================================
+// DEMO CODE – AutotuneDemo.java
+// ==========================================================
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class AutotuneDemo {
+
+    // Usage: java AutotuneDemo [rtt=60] [rate=40m] [seconds=6]
+    // Sends for a fixed time through the proxy, once as experiment 8 does
+    // (default buffers, 4 KB writes, Nagle on) and once with the
+    // autotuner, and prints the throughput of each.
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = DelayProxy.options(args);
+        long rtt = Long.parseLong(opts.getOrDefault("rtt", "60"));
+        long rate = DelayProxy.parseSize(opts.getOrDefault("rate", "40m"));
+        int seconds = Integer.parseInt(opts.getOrDefault("seconds", "6"));
+        System.out.printf("Path: %d ms RTT, %d MB/s -> BDP %d KB%n%n", rtt, rate >> 20, rate * rtt / 1000 >> 10);
+
+        double plain;
+        try (ServerSocket receiver = new ServerSocket(0);
+             DelayProxy proxy = new DelayProxy(0, "127.0.0.1", receiver.getLocalPort(), rtt, rate)) {
+            plain = run(receiver, proxy.port(), null, seconds);
+        }
+        BdpAutotuner tuner = new BdpAutotuner();
+        double tuned;
+        try (ServerSocket receiver = TunedInputStream.listen(0);
+             DelayProxy proxy = new DelayProxy(0, "127.0.0.1", receiver.getLocalPort(), rtt, rate)) {
+            tuned = run(receiver, proxy.port(), tuner, seconds);
+        }
+        AsyncLog.flush();
+        System.out.printf("%n%-34s %8s%n", "sender", "MB/s");
+        System.out.printf("%-34s %8.1f%n", "experiment 8 (4 KB writes)", plain);
+        System.out.printf("%-34s %8.1f   (%s)%n", "autotuned", tuned, tuner.describe());
+    }
+
+    // tuner == null: the plain stream of experiment 8. The rate counts
+    // the bytes the receiver got until it saw the end of the stream.
+    static double run(ServerSocket receiver, int port, BdpAutotuner tuner, int seconds) throws Exception {
+        BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+        Thread sink = new Thread(() -> {
+            long n = -1;
+            try (Socket s = receiver.accept();
+                 InputStream in = tuner == null ? s.getInputStream() : new TunedInputStream(s)) {
+                n = in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                // counted as a failed run
+            }
+            received.add(n);
+        });
+        sink.setDaemon(true);
+        sink.start();
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            OutputStream out = tuner == null ? s.getOutputStream() : new TunedOutputStream(s, tuner);
+            byte[] data = new byte[tuner == null ? 4096 : 64 * 1024];
+            while (System.nanoTime() < end) {
+                out.write(data);
+            }
+            out.close();
+        }
+        long bytes = received.take();
+        return bytes / ((System.nanoTime() - start) / 1e9) / 1048576;
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save BdpAutotuner.java, TunedOutputStream.java,
+//         TunedInputStream.java, DelayProxy.java and AutotuneDemo.java
+//         next to the files of experiment 8 (they use AsyncLog.java from
+//         22).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: The plain stream of experiment 8 against the autotuner on a
+//         60 ms, 40 MB/s path:
+//         java AutotuneDemo
+//
+// Step 4: Experiment 8 over the emulated path (three terminals):
+//         java -Dtransfer.autotune=true FileReceiverServer
+//         java DelayProxy listen=12347 target=127.0.0.1:12345 rtt=60 rate=40m
+//         java -Dtransfer.autotune=true -Dtransfer.port=12347 FileSenderClient
+//         (-Dtransfer.port points the sender at the proxy.) An 80 MB
+//         file took 2.0 s, the same as without -Dtransfer.autotune;
+//         the sender logs every change it makes:
+//         [autotune] rtt=93.0 ms bw=38.5 MB/s bdp=3669 KB window=7339 KB chunk=128 KB, ...
+//
+// Example output (java AutotuneDemo, 1 CPU):
+//   Path: 60 ms RTT, 40 MB/s -> BDP 2457 KB
+//
+//   [autotune] start: rtt=0.0 ms bw=0.0 MB/s bdp=0 KB window=64 KB chunk=16 KB, SO_SNDBUF=1969920
+//   [autotune] rtt=195.3 ms bw=40.1 MB/s bdp=8022 KB window=16045 KB chunk=256 KB, SO_SNDBUF=2097152
+//   [autotune] done: 255,524,864 bytes in 6.20 s = 39.3 MB/s, first second 44.9 MB/s,
+//              after that 38.1 MB/s (x0.8); final rtt=190.9 ms bw=40.1 MB/s ...
+//
+//   sender                                 MB/s
+//   experiment 8 (4 KB writes)             39.7
+//   autotuned                              39.3
+//
+//   No gain, and that is the honest result on this machine: the proxy
+//   ends TCP on both sides, so the kernels only ever see a loopback
+//   connection with no delay, and Linux grows their buffers on its own
+//   (tcp_wmem/tcp_rmem up to 4 MB/32 MB here). The path is limited by
+//   the proxy's one-BDP queue, which both senders fill. The tuner's
+//   pings wait behind that queue, which is why it measures 190 ms
+//   instead of 60. A gain needs a real long path (or tc netem) whose BDP
+//   is above the kernel's buffer limits.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Bandwidth-delay product:**
+//    Data needs one RTT to be acknowledged. To send at rate B the sender
+//    must have B × RTT bytes unacknowledged, and its send buffer has to
+//    hold all of them. With a smaller window W the rate is at most
+//    W / RTT: 64 KB per 60 ms is only about 1 MB/s, on any link speed.
+//
+// 2. **Measuring:**
+//    Ping frames give the RTT; the lowest value is used because queues
+//    only add delay. Acknowledgements from the receiver give the delivery
+//    rate per interval; the highest recent value is the bandwidth.
+//
+// 3. **What is tuned:**
+//    SO_SNDBUF at the sender and the size of each write, both during the
+//    transfer. The window itself is left to TCP: a second window in the
+//    program would only stop the sender earlier than TCP does. SO_RCVBUF
+//    is set once, on the listening socket before bind(), because the
+//    window scale factor is agreed in the handshake and a buffer raised
+//    later cannot be advertised in full. TCP_NODELAY is switched on: the
+//    writes are large anyway, and small ping and ack frames must not
+//    wait for Nagle's algorithm.
+//
+// 4. **Kernel limits:**
+//    Linux grows socket buffers on its own up to tcp_wmem/tcp_rmem, but
+//    stops doing so once a program sets them, and caps what a program
+//    may set at net.core.wmem_max/rmem_max. The tuner therefore only
+//    raises a buffer, only up to that cap, and leaves SO_RCVBUF alone
+//    when tcp_rmem already lets the kernel go further.
+//
+// 5. **Why a proxy:**
+//    Delay and bandwidth limits normally come from "tc netem" (root,
+//    Linux only). DelayProxy emulates the path in Java: it queues data
+//    behind a bandwidth limit and releases it after half the RTT in each
+//    direction. Its queue holds at most one BDP, so a full path pushes
+//    back on the sender through TCP flow control. It cannot make the
+//    endpoints' socket buffers matter, though: each side's TCP ends at
+//    the proxy, one loopback hop away.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
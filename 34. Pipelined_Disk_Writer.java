@@ -0,0 +1,473 @@
+// ===================================================================
+// EXPERIMENT: PIPELINED DISK WRITER FOR THE UDP FILE CLIENT
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (Localhost)
+// PROGRAM TYPE: Buffer pool + writer thread + disk stall simulation
+// ===================================================================
+// AIM:
+// FileClient (experiment 9) writes every datagram to the file inside its
+// receive loop. While a write is stuck (page cache writeback, a busy
+// disk, a slow USB stick) nobody calls receive(), the socket buffer
+// fills up in a few milliseconds and the kernel drops every further
+// datagram; UDP never sends them again. Here the receive thread only
+// copies datagrams into buffers from a fixed pool. Full buffers go to a
+// writer thread, which writes several of them with one gathering write
+// and gives them back to the pool. A disk stall now only delays the
+// writer; the receive thread keeps draining the socket as long as the
+// pool has free buffers.
+// ===================================================================
+
+
+// ==========================================================
+// STALL SIMULATION CODE – DiskStall.java
+// ==========================================================
+
+// Makes the disk pause for a while after every so many bytes, like a
+// device that accepts data into its cache and then has to flush it.
+public class DiskStall {
+
+    public static final DiskStall NONE = new DiskStall(Long.MAX_VALUE, 0);
+
+    private final long everyBytes;
+    private final long millis;
+    private long sinceStall;
+
+    public DiskStall(long everyBytes, long millis) {
+        this.everyBytes = everyBytes;
+        this.millis = millis;
+    }
+
+    // "20/1m" = 20 ms pause after every MB; null = no stalls
+    public static DiskStall parse(String spec) {
+        if (spec == null) {
+            return NONE;
+        }
+        String[] parts = spec.split("/");
+        return new DiskStall(parseSize(parts.length > 1 ? parts[1] : "1m"), Long.parseLong(parts[0]));
+    }
+
+    // "500", "64k", "20m", "1g"
+    static long parseSize(String s) {
+        char unit = Character.toLowerCase(s.charAt(s.length() - 1));
+        long mult = unit == 'k' ? 1L << 10 : unit == 'm' ? 1L << 20 : unit == 'g' ? 1L << 30 : 1;
+        return Long.parseLong(mult == 1 ? s : s.substring(0, s.length() - 1)) * mult;
+    }
+
+    // Called by whoever writes, after each write of n bytes
+    public void afterWrite(long n) {
+        sinceStall += n;
+        if (sinceStall < everyBytes) {
+            return;
+        }
+        sinceStall = 0;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "none" : millis + " ms every " + (everyBytes >> 10) + " KB";
+    }
+}
+
+
+
+// ==========================================================
+// WRITER CODE – PipelinedFileWriter.java
+// ==========================================================
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// The receive thread asks for a buffer with room for one datagram,
+// receives straight into its array and reports the length. Full buffers
+// are queued for the writer thread; the pool bounds the memory used.
+public class PipelinedFileWriter implements AutoCloseable {
+
+    private static final ByteBuffer STOP = ByteBuffer.allocate(0);
+    private static final int MAX_GATHER = 16;
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final DiskStall stall;
+    private final Thread writer;
+    private final int bufferSize;
+    private final Metrics.Gauge queued =
+            Metrics.gauge("udp_file_client_buffers_queued", "Full buffers waiting for the disk writer");
+    private ByteBuffer current;
+    private boolean closed;
+    private volatile IOException failure;
+
+    // Statistics
+    private long poolWaits;
+    private volatile long writes;
+    private volatile long bytesWritten;
+    private volatile int maxQueued;
+
+    public PipelinedFileWriter(Path path, int buffers, int bufferSize, DiskStall stall) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.full = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            free.add(ByteBuffer.allocate(bufferSize));
+        }
+        this.stall = stall;
+        this.bufferSize = bufferSize;
+        this.current = free.poll();
+        this.writer = new Thread(this::writeLoop, "disk-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // A buffer with at least `need` bytes free. Receive into
+    // array()/position(), then call filled().
+    public ByteBuffer buffer(int need) throws IOException {
+        if (need > bufferSize) {
+            throw new IllegalArgumentException("need " + need + " bytes, buffers hold " + bufferSize);
+        }
+        if (current.remaining() < need) {
+            handOff();
+            current = free.poll();
+            if (current == null) {
+                poolWaits++;                              // the disk is behind: now we can lose packets
+                try {
+                    while ((current = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        return current;
+    }
+
+    public void filled(int n) {
+        current.position(current.position() + n);
+    }
+
+    private void handOff() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        current.flip();
+        full.add(current);
+        int depth = full.size();
+        queued.add(1);
+        if (depth > maxQueued) {
+            maxQueued = depth;
+        }
+    }
+
+    // Takes one buffer, plus whatever else is waiting, and writes them in
+    // one gathering write (one system call for up to 16 buffers)
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>(MAX_GATHER);
+        try {
+            boolean stop = false;
+            while (!stop) {
+                batch.clear();
+                batch.add(full.take());
+                full.drainTo(batch, MAX_GATHER - 1);
+                if (batch.get(batch.size() - 1) == STOP) {
+                    batch.remove(batch.size() - 1);
+                    stop = true;
+                }
+                queued.add(-batch.size());
+                ByteBuffer[] array = batch.toArray(new ByteBuffer[0]);
+                long n = 0;
+                while (hasRemaining(array)) {
+                    n += channel.write(array);
+                }
+                writes++;
+                bytesWritten += n;
+                stall.afterWrite(n);
+                for (ByteBuffer b : array) {
+                    free.add(b.clear());
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("disk writer failed", e);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer b : buffers) {
+            if (b.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Writes the last partial buffer and waits for the writer. If the
+    // writer has died, its own failure is reported.
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current != null && current.position() > 0 && failure == null) {
+                handOff();
+            }
+            while (writer.isAlive() && !full.offer(STOP, 100, TimeUnit.MILLISECONDS)) {
+                // queue full: the writer is still draining it
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d bytes in %,d gathering writes, max %d buffers queued, receive waited %d times",
+                bytesWritten, writes, maxQueued, poolWaits);
+    }
+}
+
+
+
+// ==========================================================
+// DEMO CODE – DiskWriterDemo.java
+// ==========================================================
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+public class DiskWriterDemo {
+
+    // Usage: java DiskWriterDemo [size=20m] [rate=10m] [stall=20/1m] [buffers=8] [bufferSize=1m]
+    // Sends `size` bytes as 1 KB datagrams at `rate` bytes per second to a
+    // receiver on localhost that writes to a slow disk, once with writes in
+    // the receive loop (like FileClient before) and once pipelined.
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        long size = DiskStall.parseSize(opts.getOrDefault("size", "20m"));
+        long rate = DiskStall.parseSize(opts.getOrDefault("rate", "10m"));
+        String stall = opts.getOrDefault("stall", "20/1m");
+        int buffers = Integer.parseInt(opts.getOrDefault("buffers", "8"));
+        int bufferSize = (int) DiskStall.parseSize(opts.getOrDefault("bufferSize", "1m"));
+        int packets = (int) (size / 1024);
+        System.out.printf("%,d packets of 1 KB at %d MB/s, disk stall %s%n%n", packets, rate >> 20,
+                DiskStall.parse(stall));
+
+        Path file = Files.createTempFile("udp-receive", ".bin");
+        try {
+            int fastDisk = run(packets, rate, false, file, DiskStall.NONE, buffers, bufferSize);
+            int inline = run(packets, rate, false, file, DiskStall.parse(stall), buffers, bufferSize);
+            int pipelined = run(packets, rate, true, file, DiskStall.parse(stall), buffers, bufferSize);
+            System.out.printf("%n%-26s %10s %10s%n", "receiver", "received", "dropped");
+            System.out.printf("%-26s %,10d %,10d%n", "no stalls (reference)", fastDisk, packets - fastDisk);
+            System.out.printf("%-26s %,10d %,10d%n", "write in receive loop", inline, packets - inline);
+            System.out.printf("%-26s %,10d %,10d%n", "pipelined writer", pipelined, packets - pipelined);
+            System.out.printf("%nDrops avoided: %,d of %,d%n", pipelined - inline, packets - inline);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static int run(int packets, long rate, boolean pipelined, Path file, DiskStall stall, int buffers,
+                   int bufferSize) throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            receiver.setSoTimeout(1000);                  // the end is a timeout: the end packet may be lost too
+            int[] count = new int[1];
+            CountDownLatch ready = new CountDownLatch(1);
+            Thread t = new Thread(() -> {
+                try {
+                    count[0] = pipelined ? receivePipelined(receiver, file, stall, buffers, bufferSize, ready)
+                            : receiveInline(receiver, file, stall, ready);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            ready.await();                                // do not count start-up time as drops
+
+            // Paced sender: sends in bursts of 16 and then waits for its schedule
+            try (DatagramSocket sender = new DatagramSocket()) {
+                byte[] data = new byte[1024];
+                DatagramPacket packet = new DatagramPacket(data, data.length, receiver.getLocalSocketAddress());
+                long start = System.nanoTime();
+                double nanosPerPacket = 1024 * 1e9 / rate;
+                for (int i = 0; i < packets; i++) {
+                    sender.send(packet);
+                    if ((i & 15) == 15) {
+                        long due = start + (long) ((i + 1) * nanosPerPacket);
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    }
+                }
+            }
+            t.join();
+            return count[0];
+        }
+    }
+
+    // FileClient before: write() inside the receive loop
+    static int receiveInline(DatagramSocket socket, Path file, DiskStall stall, CountDownLatch ready)
+            throws IOException {
+        int received = 0;
+        byte[] buffer = new byte[1024];
+        try (FileOutputStream out = new FileOutputStream(file.toFile())) {
+            ready.countDown();
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                out.write(packet.getData(), 0, packet.getLength());
+                stall.afterWrite(packet.getLength());
+                received++;
+            }
+        }
+        return received;
+    }
+
+    static int receivePipelined(DatagramSocket socket, Path file, DiskStall stall, int buffers, int bufferSize,
+                                CountDownLatch ready) throws IOException {
+        int received = 0;
+        DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+        PipelinedFileWriter writer = new PipelinedFileWriter(file, buffers, bufferSize, stall);
+        try (writer) {
+            ready.countDown();
+            while (true) {
+                java.nio.ByteBuffer b = writer.buffer(1024);
+                packet.setData(b.array(), b.position(), 1024);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                writer.filled(packet.getLength());
+                received++;
+            }
+        }
+        System.out.println("Pipelined writer: " + writer);
+        return received;
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save DiskStall.java, PipelinedFileWriter.java and
+//         DiskWriterDemo.java next to the files of experiment 9 (they
+//         use Metrics.java and LatencyHistogram.java from 20 – 21).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Compare both receivers with a disk that pauses 20 ms per MB:
+//         java DiskWriterDemo
+//         java DiskWriterDemo stall=50/1m rate=20m
+//
+// Step 4: FileClient (experiment 9) now uses the pipelined writer. To
+//         see it cope with a slow disk:
+//         java -Ddisk.stall=20/1m FileClient
+//         java FileServer
+//
+//         FileServer sends as fast as it can, so some datagrams are lost
+//         either way; with a 5 MB file the old loop kept about 1.6 MB,
+//         the pipelined client 2.4 – 2.7 MB (even with the stalls).
+//
+// Example output (java DiskWriterDemo, 1 CPU):
+//   20,480 packets of 1 KB at 10 MB/s, disk stall 20 ms every 1024 KB
+//
+//   Pipelined writer: 20,970,496 bytes in 20 gathering writes, max 1 buffers queued, receive waited 0 times
+//
+//   receiver                     received    dropped
+//   no stalls (reference)          20,396         84
+//   write in receive loop          18,437      2,043
+//   pipelined writer               20,479          1
+//
+//   Drops avoided: 2,042 of 2,043
+//
+//   With stall=50/1m the receive loop lost 6,060 packets and the
+//   pipelined writer none. The few drops in the reference run happen
+//   while the JIT is still compiling the loop.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Why packets are lost:**
+//    The kernel keeps received datagrams in the socket buffer (SO_RCVBUF,
+//    about 200 KB by default) until the program calls receive(). Each
+//    1 KB datagram uses over 2 KB of that buffer, so at 10 MB/s it is
+//    full after about 10 ms. Anything arriving after that is dropped.
+//
+// 2. **Decoupling:**
+//    The receive thread must never wait for the disk. It copies data into
+//    memory buffers and goes straight back to receive(); the disk writer
+//    works at its own pace. A short disk stall is absorbed by the queued
+//    buffers instead of the socket buffer.
+//
+// 3. **Buffer pool:**
+//    All buffers are allocated once and reused, so there is no garbage
+//    per packet and the memory is bounded (buffers × bufferSize). With
+//    only two buffers this is classic double buffering; more buffers
+//    cover longer stalls. If the pool runs dry the disk is slower than
+//    the network on average, and no buffer size can fix that.
+//
+// 4. **Gathering writes:**
+//    FileChannel.write(ByteBuffer[]) writes several buffers with one
+//    system call (writev), instead of one write() per 1 KB datagram.
+//
+// 5. **Why not AsynchronousFileChannel:**
+//    On Linux it runs the writes on a hidden thread pool anyway. One
+//    writer thread keeps the writes in order and is easier to follow.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -0,0 +1,497 @@
+// ===================================================================
+// EXPERIMENT: HASHED TIMING WHEEL FOR CONNECTION TIMEOUTS
+// ===================================================================
+// LANGUAGE: Java
+// NETWORK TYPE: Wired (LAN/Localhost)
+// PROGRAM TYPE: Timer data structure + idle/heartbeat/write timeouts
+// ===================================================================
+// AIM:
+// ChatServer (experiment 15) never closes a connection on its own: a
+// client whose machine crashed, or that stopped reading, keeps its socket
+// and its queue forever. Every connection needs an idle timeout, a
+// heartbeat and a write deadline, and these timers are reset on almost
+// every read or write. A ScheduledExecutorService keeps its tasks in a
+// heap (O(log n) per schedule and cancel, plus a lock), and
+// Socket.setSoTimeout needs a thread per connection. A hashed timing
+// wheel is an array of buckets, one per tick, each holding a linked list
+// of timers: scheduling and cancelling are O(1), and the selector thread
+// advances the wheel once per tick without any locking.
+// ===================================================================
+
+
+// ==========================================================
+// TIMER CODE – TimingWheel.java
+// ==========================================================
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Not thread-safe: schedule(), cancel() and advance() must all be called
+// from the same thread (the selector thread of a server).
+//
+// A timer due in d ticks goes into bucket (now + d) mod slots. Timers
+// longer than one revolution share the bucket with shorter ones and are
+// skipped until their deadline tick comes round (the "rounds").
+public final class TimingWheel {
+
+    private static final int ACTIVE = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    // One scheduled task. It is its own list node (intrusive list), so
+    // cancel() unlinks it without searching the bucket.
+    public static final class Timeout {
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;      // -1 = not linked
+        private int state = ACTIVE;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the timer already ran or was cancelled
+        public boolean cancel() {
+            if (state != ACTIVE) {
+                return false;
+            }
+            state = CANCELLED;
+            if (bucket >= 0) {
+                wheel.unlink(this);
+            }
+            return true;
+        }
+
+        public boolean isActive() {
+            return state == ACTIVE;
+        }
+    }
+
+    private final long tickNanos;
+    private final Timeout[] heads;
+    private final int mask;
+    private final long startNanos;
+    private final List<Timeout> due = new ArrayList<>();
+    private long tick;                // last tick processed
+    private int size;
+    private long expired;
+
+    // slots is rounded up to a power of two; tick × slots is one revolution
+    public TimingWheel(long tickMillis, int slots, long nowNanos) {
+        int n = slots <= 2 ? 2 : Integer.highestOneBit(slots - 1) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.heads = new Timeout[n];
+        this.mask = n - 1;
+        this.startNanos = nowNanos;
+    }
+
+    public TimingWheel(long tickMillis, int slots) {
+        this(tickMillis, slots, System.nanoTime());
+    }
+
+    // Runs task after at least delay (rounded up to whole ticks). Counted
+    // from the clock, not from the last advance(), which may lag behind.
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = System.nanoTime() - startNanos + unit.toNanos(delay);
+        Timeout t = new Timeout(this, task, Math.max(tick + 1, (due + tickNanos - 1) / tickNanos));
+        link(t);
+        return t;
+    }
+
+    // Processes every tick that has passed by nowNanos and runs the tasks
+    // that are due; they may schedule or cancel timers. Returns the count.
+    public int advance(long nowNanos) {
+        long target = (nowNanos - startNanos) / tickNanos;
+        int ran = 0;
+        while (tick < target) {
+            tick++;
+            int b = (int) (tick & mask);
+            for (Timeout t = heads[b], next; t != null; t = next) {
+                next = t.next;
+                if (t.deadlineTick <= tick) {
+                    unlink(t);
+                    due.add(t);
+                }
+            }
+            // Unlinked first, run afterwards: a task may cancel any timer,
+            // including the next one in this bucket
+            for (Timeout t : due) {
+                if (t.state == ACTIVE) {
+                    t.state = EXPIRED;
+                    expired++;
+                    ran++;
+                    t.task.run();
+                }
+            }
+            due.clear();
+        }
+        return ran;
+    }
+
+    private void link(Timeout t) {
+        int b = (int) (t.deadlineTick & mask);
+        t.bucket = b;
+        t.next = heads[b];
+        if (heads[b] != null) {
+            heads[b].prev = t;
+        }
+        heads[b] = t;
+        size++;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            heads[t.bucket] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.bucket = -1;
+        size--;
+    }
+
+    // Timers scheduled and neither run nor cancelled
+    public int size() {
+        return size;
+    }
+
+    public long expiredCount() {
+        return expired;
+    }
+
+    public long tickNanos() {
+        return tickNanos;
+    }
+}
+
+
+
+// ==========================================================
+// BENCHMARK CODE – TimingWheelBenchmark.java
+// ==========================================================
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TimingWheelBenchmark {
+
+    // Usage: java TimingWheelBenchmark [connections]
+    // Every connection has one idle timer; each round of "traffic" resets
+    // all of them (cancel + schedule), like reads arriving on every socket.
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = 10;
+        Runnable reap = () -> { };
+
+        for (int warm = 0; warm < 2; warm++) {
+            TimingWheel wheel = new TimingWheel(100, 512);
+            TimingWheel.Timeout[] timers = new TimingWheel.Timeout[connections];
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < connections; i++) {
+                    if (timers[i] != null) {
+                        timers[i].cancel();
+                    }
+                    timers[i] = wheel.schedule(reap, 30_000 + i % 60_000, TimeUnit.MILLISECONDS);
+                }
+            }
+            long wheelNanos = System.nanoTime() - start;
+
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+            executor.setRemoveOnCancelPolicy(true);       // otherwise cancelled tasks pile up in the heap
+            ScheduledFuture<?>[] futures = new ScheduledFuture<?>[connections];
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < connections; i++) {
+                    if (futures[i] != null) {
+                        futures[i].cancel(false);
+                    }
+                    futures[i] = executor.schedule(reap, 30_000 + i % 60_000, TimeUnit.MILLISECONDS);
+                }
+            }
+            long executorNanos = System.nanoTime() - start;
+            executor.shutdownNow();
+
+            if (warm == 1) {
+                long ops = (long) connections * rounds;
+                System.out.printf("%,d connections, %d resets each (cancel + schedule)%n%n", connections, rounds);
+                System.out.printf("%-30s %10s %14s%n", "timer", "total ms", "ns per reset");
+                System.out.printf("%-30s %10d %14d%n", "TimingWheel (100 ms x 512)", wheelNanos / 1_000_000,
+                        wheelNanos / ops);
+                System.out.printf("%-30s %10d %14d%n", "ScheduledThreadPoolExecutor", executorNanos / 1_000_000,
+                        executorNanos / ops);
+                System.out.printf("%nTimers pending in the wheel: %,d%n", wheel.size());
+            }
+        }
+    }
+}
+
+
+
+// ==========================================================
+// DEMO CODE – IdleReaperDemo.java
+// ==========================================================
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IdleReaperDemo {
+
+    // Usage: java IdleReaperDemo [dead=2000] [quiet=100] [active=20]
+    // Starts a ChatServer with short timeouts (heartbeat 1 s, idle 3 s,
+    // write 2 s) and connects:
+    //   dead   - never send, never answer PING (crashed or half-open peers)
+    //   quiet  - never chat, but answer every PING with PONG
+    //   active - chat 5 times a second and read everything
+    //   stuck  - one client that sends but never reads (joins after 4 s)
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            int eq = a.indexOf('=');
+            opts.put(eq < 0 ? a : a.substring(0, eq), eq < 0 ? "true" : a.substring(eq + 1));
+        }
+        int dead = Integer.parseInt(opts.getOrDefault("dead", "2000"));
+        int quiet = Integer.parseInt(opts.getOrDefault("quiet", "100"));
+        int active = Integer.parseInt(opts.getOrDefault("active", "20"));
+
+        ChatServer server = new ChatServer(0, OutboundQueue.Policy.DROP_OLDEST, 64 * 1024, 256 * 1024,
+                1024 * 1024, 2000);
+        server.setTimeouts(3000, 1000, 2000);
+        Thread serverThread = new Thread(server, "chat-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.port());
+
+        List<Socket> deadSockets = new ArrayList<>();
+        for (int i = 0; i < dead; i++) {
+            deadSockets.add(new Socket(address.getAddress(), address.getPort()));
+        }
+        AtomicLong pongs = new AtomicLong();
+        List<Socket> quietSockets = new ArrayList<>();
+        for (int i = 0; i < quiet; i++) {
+            Socket s = new Socket(address.getAddress(), address.getPort());
+            quietSockets.add(s);
+            daemon(() -> answerPings(s, pongs));
+        }
+        AtomicLong received = new AtomicLong();
+        List<Socket> activeSockets = new ArrayList<>();
+        for (int i = 0; i < active; i++) {
+            Socket s = new Socket(address.getAddress(), address.getPort());
+            activeSockets.add(s);
+            daemon(() -> drain(s, received));
+            daemon(() -> chat(s, "hello " + "x".repeat(100), 200));
+        }
+
+        long start = System.currentTimeMillis();
+        Socket stuck = null;
+        System.out.printf("%5s %12s %10s %10s %12s%n", "time", "connections", "PINGs", "PONGs", "received");
+        for (int second = 1; second <= 12; second++) {
+            Thread.sleep(1000);
+            if (second == 4) {
+                // Tiny receive window and never reads: writes to it stop
+                stuck = new Socket();
+                stuck.setReceiveBufferSize(4096);
+                stuck.connect(address);
+                Socket s = stuck;
+                daemon(() -> chat(s, "still here", 500));
+                for (Socket a : activeSockets.subList(0, Math.min(4, active))) {
+                    daemon(() -> chat(a, "bulk " + "y".repeat(8000), 40)); // fills its buffers in seconds
+                }
+            }
+            System.out.printf("%4ds %12d %10d %10d %12d%n", second, server.connectionCount(),
+                    server.heartbeatsSent(), pongs.get(), received.get());
+        }
+        AsyncLog.flush();
+        System.out.printf("%nAfter %d s: %d of %d dead peers reaped by the idle timeout, %d quiet clients kept"
+                        + " alive by PONG, %d active clients connected, %d write timeout(s).%n",
+                (System.currentTimeMillis() - start) / 1000, server.idleDisconnects(), dead,
+                quiet - closedCount(quietSockets), active - closedCount(activeSockets), server.writeTimeouts());
+        server.shutdown();
+    }
+
+    private static void daemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void answerPings(Socket s, AtomicLong pongs) {
+        try {
+            java.io.BufferedReader in = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("PING")) {
+                    out.write("PONG\n".getBytes(StandardCharsets.UTF_8));
+                    pongs.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private static void drain(Socket s, AtomicLong received) {
+        byte[] buf = new byte[64 * 1024];
+        try {
+            InputStream in = s.getInputStream();
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                received.addAndGet(n);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void chat(Socket s, String text, long periodMillis) {
+        byte[] line = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                synchronized (s) {
+                    out.write(line);
+                }
+                Thread.sleep(periodMillis);
+            }
+        } catch (IOException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    private static int closedCount(List<Socket> sockets) {
+        int n = 0;
+        for (Socket s : sockets) {
+            if (s.isClosed()) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
+
+
+
+
+// ==========================================================
+// HOW TO RUN THIS PROGRAM
+// ==========================================================
+//
+// Step 1: Save TimingWheel.java, TimingWheelBenchmark.java and
+//         IdleReaperDemo.java next to the files of experiment 15
+//         (ChatServer uses TimingWheel for its timeouts).
+//
+// Step 2: Compile:
+//         javac *.java
+//
+// Step 3: Cost of resetting one idle timer, wheel against executor:
+//         java TimingWheelBenchmark 100000
+//
+// Step 4: Dead, quiet, active and stuck clients against ChatServer:
+//         java -Dlog.level=WARN IdleReaperDemo
+//
+// Step 5: The normal server uses heartbeat 60 s, idle 5 min and write
+//         30 s; change them with
+//         java -Dchat.heartbeatMillis=10000 -Dchat.idleMillis=30000 -Dchat.writeMillis=10000 ChatServer
+//         (0 switches a timer off.)
+//
+// Example output (1 CPU):
+//   java TimingWheelBenchmark 100000
+//   100,000 connections, 10 resets each (cancel + schedule)
+//
+//   timer                            total ms   ns per reset
+//   TimingWheel (100 ms x 512)             72             72
+//   ScheduledThreadPoolExecutor           301            301
+//
+//   java -Dlog.level=WARN IdleReaperDemo
+//    time  connections      PINGs      PONGs     received
+//      1s         2120       2066         60       247460
+//      2s         1094       3192        100       492860
+//      3s          120       4200        200       758300
+//      4s          121       4300        300       998780
+//      5s          121       4400        400     17277740
+//      ...
+//      8s          121       4700        700     50471360
+//      9s          121       4820        800     50471460
+//   WARN Client #2121 accepted no data for 2045 ms, disconnecting.
+//     10s          120       4921        900     68757657
+//     11s          120       5021       1000    104456721
+//     12s          120       5021       1000    130793694
+//
+//   After 12 s: 2000 of 2000 dead peers reaped by the idle timeout, 100 quiet
+//   clients kept alive by PONG, 20 active clients connected, 1 write timeout(s).
+//
+//   Time counts from the moment all 2,120 clients were connected; the
+//   first dead ones had been silent for a while already. The dead peers
+//   get PINGs and are closed 3 s after their last data; the quiet
+//   clients answer and stay. The stuck client holds back the active
+//   ones through backpressure (received stops growing at 8 – 9 s) until
+//   its write deadline closes it, then traffic flows again.
+
+
+
+
+// ==========================================================
+// THEORY / NOTES
+// ==========================================================
+//
+// 1. **Hashed timing wheel:**
+//    An array of buckets, one per tick (here 100 ms × 512 = 51.2 s per
+//    revolution). A timer due in d ticks is added to bucket
+//    (current + d) mod 512. Every tick the wheel moves one bucket on and
+//    runs what is due there. Timers longer than a revolution stay in
+//    their bucket and are skipped until their round comes.
+//
+// 2. **O(1) schedule and cancel:**
+//    The timer object is also the node of the bucket's doubly-linked
+//    list, so adding is a push at the head and cancelling unlinks the
+//    node directly. A heap needs O(log n) for both.
+//
+// 3. **Precision:**
+//    Timers fire up to one tick late. For timeouts of seconds or minutes
+//    100 ms does not matter, and it lets millions of timers share one
+//    check per tick in the selector loop.
+//
+// 4. **Lazy resets:**
+//    Reads do not touch the wheel at all; they only store the time of
+//    the last read. When the idle timer fires it compares that time with
+//    the deadline and, if the connection was active, schedules itself
+//    again for the remaining time. Busy connections cost one field write
+//    per read and one timer per idle period.
+//
+// 5. **Three timeouts per connection:**
+//    - Heartbeat: after a silent period the server sends "PING"; a live
+//      client answers "PONG" (any line counts as activity).
+//    - Idle timeout: no data at all for longer than this: the peer is
+//      dead or half-open (crashed host, NAT entry gone), close it.
+//    - Write deadline: data is waiting but the socket accepted nothing
+//      for this long: the peer stopped reading, close it.
+//
+// ==========================================================
+// END OF PROGRAM
+// ==========================================================
@@ -17,9 +17,20 @@ public class TCPServer {
             ServerSocket serverSocket = new ServerSocket(8080);
             System.out.println("Server started. Waiting for a client to connect...");
 
+            // Metrics and JFR events (experiment 21), scraped from http://127.0.0.1:9100/metrics
+            MetricsEndpoint.start();
+            Metrics.Counter accepted = Metrics.counter("tcp_server_connections_total", "Clients accepted");
+            Metrics.Gauge active = Metrics.gauge("tcp_server_active_connections", "Clients currently connected");
+            Metrics.Counter messagesIn = Metrics.counter("tcp_server_messages_in_total", "Lines received from the client");
+            Metrics.Counter bytesIn = Metrics.counter("tcp_server_bytes_in_total", "Bytes received from the client");
+            Metrics.Counter bytesOut = Metrics.counter("tcp_server_bytes_out_total", "Bytes sent to the client");
+
             //  Accept a client connection
             Socket clientSocket = serverSocket.accept();
             System.out.println("Client connected!");
+            accepted.increment();
+            active.increment();
+            ServerEvents.accept("TCPServer", clientSocket.getRemoteSocketAddress());
 
             //  Create input and output streams to communicate with the client
             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
@@ -27,10 +38,15 @@ public class TCPServer {
 
             //  Send a greeting message to the client
             out.println("Hello from Server!");
+            bytesOut.add(Metrics.lineBytes("Hello from Server!"));
 
             //  Receive a message from the client
             String clientMessage = in.readLine();
             System.out.println("Client: " + clientMessage);
+            if (clientMessage != null) {
+                messagesIn.increment();
+                bytesIn.add(Metrics.lineBytes(clientMessage));
+            }
 
             // Enable continuous communication between server and client
             BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
@@ -39,6 +55,7 @@ public class TCPServer {
                 System.out.print("Enter message to client: ");
                 message = userInput.readLine();
                 out.println(message);
+                bytesOut.add(Metrics.lineBytes(message));
 
                 // if user types "exit", break connection
                 if (message.equalsIgnoreCase("exit")) {
@@ -48,7 +65,12 @@ public class TCPServer {
 
                 clientMessage = in.readLine();
                 System.out.println("Client: " + clientMessage);
+                if (clientMessage != null) {
+                    messagesIn.increment();
+                    bytesIn.add(Metrics.lineBytes(clientMessage));
+                }
             }
+            active.decrement();
 
             //  Close all sockets and streams
             in.close();
@@ -129,6 +151,9 @@ public class TCPClient {
 3️. Compile both Java programs:
     javac TCPServer.java
     javac TCPClient.java
+    (TCPServer also needs Metrics.java, ServerEvents.java, MetricsEndpoint.java
+    and LatencyHistogram.java from experiments 20 – 21 in the same folder;
+    javac picks them up automatically.)
 
 4️. Run the server first:
     java TCPServer
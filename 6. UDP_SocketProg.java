@@ -6,6 +6,11 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 
 public class UDPServer {
+    // Per-datagram lines go through the async logger (experiment 22),
+    // at most 100 per second so a flood of packets is not slowed by the console
+    private static final AsyncLog.Limiter RECEIVE_LOG =
+            AsyncLog.limiter("Received from client", AsyncLog.Level.INFO, 100);
+
     public static void main(String[] args) {
         try {
             // STEP 1: Create a DatagramSocket and bind it to a specific port (12345)
@@ -13,6 +18,25 @@ public class UDPServer {
             DatagramSocket serverSocket = new DatagramSocket(12345);
             System.out.println("UDP Server is running... Waiting for client data...");
 
+            // Metrics and JFR events (experiment 21), scraped from http://127.0.0.1:9100/metrics
+            // Drops and queue depth come from the kernel: the server never sees lost datagrams.
+            MetricsEndpoint.start();
+            Metrics.Counter datagramsIn = Metrics.counter("udp_server_datagrams_in_total", "Datagrams received");
+            Metrics.Counter bytesIn = Metrics.counter("udp_server_bytes_in_total", "Payload bytes received");
+            LatencyHistogram handleTime = Metrics.histogram("udp_server_handle_micros", "Time to process one datagram");
+            Metrics.gauge("udp_server_kernel_drops", "Datagrams dropped by the kernel (receive buffer full)",
+                    () -> Metrics.udpDrops(12345));
+            Metrics.gauge("udp_server_receive_queue_bytes", "Bytes waiting in the socket receive buffer",
+                    () -> Metrics.udpReceiveQueue(12345));
+
+            // Allow/deny rules by subnet (experiment 25), re-read when "ip_rules.txt" changes
+            IpFilter filter = IpFilter.watch(java.nio.file.Path.of("ip_rules.txt"));
+
+            // Recent datagrams as a pcap download (experiment 26), off unless
+            // -Dcapture=on or /pcap/start. The socket is bound to all
+            // addresses, so the capture shows 0.0.0.0 as the destination.
+            PacketCapture capture = PacketCapture.shared();
+
             // STEP 2: Buffer (byte array) to store received data
             byte[] receiveData = new byte[1024];
 
@@ -23,17 +47,31 @@ public class UDPServer {
                 // STEP 4: Wait and receive packet from client
                 // (This is a blocking call — it waits until data is received)
                 serverSocket.receive(receivePacket);
+                if (!filter.allows(receivePacket.getAddress())) {
+                    continue;                           // denied source: drop without processing
+                }
+                if (capture.enabled()) {
+                    capture.record(PacketCapture.Flow.udp(serverSocket.getLocalSocketAddress(),
+                                    receivePacket.getSocketAddress()), true,
+                            receivePacket.getData(), receivePacket.getOffset(), receivePacket.getLength());
+                }
+                long receivedAt = System.nanoTime();
+                datagramsIn.increment();
+                bytesIn.add(receivePacket.getLength());
 
                 // STEP 5: Convert received bytes into string message
                 String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
 
                 // STEP 6: Display the message and client’s IP/port
-                System.out.println("\nReceived from client: " + message);
-                System.out.println("Client IP: " + receivePacket.getAddress() + 
-                                   ", Port: " + receivePacket.getPort());
+                if (RECEIVE_LOG.allow()) {
+                    AsyncLog.info("\nReceived from client: " + message);
+                    AsyncLog.info("Client IP: " + receivePacket.getAddress() +
+                                  ", Port: " + receivePacket.getPort());
+                }
 
                 // STEP 7: Clear buffer for next message
                 receiveData = new byte[1024];
+                handleTime.record((System.nanoTime() - receivedAt) / 1000);
             }
 
         } catch (Exception e) {
@@ -50,12 +88,15 @@ public class UDPServer {
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
 
 public class UDPClient {
     public static void main(String[] args) {
         try {
             // STEP 1: Get the server’s IP address (localhost for same system)
-            InetAddress serverAddress = InetAddress.getByName("localhost");
+            // The lookup runs in the background through the caching resolver
+            // (experiment 24) while the socket and message are prepared
+            CompletableFuture<InetAddress> serverLookup = CachingResolver.shared().resolveFirst("localhost");
 
             // STEP 2: Create DatagramSocket for client (no need to bind to port)
             DatagramSocket clientSocket = new DatagramSocket();
@@ -66,6 +107,7 @@ public class UDPClient {
 
             // STEP 4: Create a DatagramPacket to send data to the server
             // Format: DatagramPacket(data, length, destination_IP, destination_port)
+            InetAddress serverAddress = serverLookup.join();
             DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length,
                     serverAddress, 12345);
 
@@ -116,6 +158,15 @@ public class UDPClient {
 // 3️ Compile both files using javac:
 //     javac UDPServer.java
 //     javac UDPClient.java
+//     (UDPServer also needs Metrics.java, ServerEvents.java, MetricsEndpoint.java
+//      and LatencyHistogram.java from experiments 20 – 21 in the same folder;
+//      counters are then served at http://127.0.0.1:9100/metrics,
+//      and AsyncLog.java from experiment 22 for its log lines;
+//      and Ipv4Trie.java, Ipv6Trie.java, IpFilter.java from experiment 25,
+//      which apply the rules in "ip_rules.txt" if that file exists;
+//      and PacketCapture.java from experiment 26: java -Dcapture=on UDPServer
+//      keeps recent datagrams, download them from /pcap on the metrics port;
+//      UDPClient needs CachingResolver.java from experiment 24)
 //
 // 4️ Run the server first (it must be listening before client sends data):
 //     java UDPServer
@@ -17,9 +17,20 @@ public class Server {
         try (ServerSocket serverSocket = new ServerSocket(8080)) {
             System.out.println("Server started. Waiting for client connection...");
 
+            // Metrics and JFR events (experiment 21), scraped from http://127.0.0.1:9100/metrics
+            MetricsEndpoint.start();
+            Metrics.Counter accepted = Metrics.counter("hello_server_connections_total", "Clients accepted");
+            Metrics.Gauge active = Metrics.gauge("hello_server_active_connections", "Clients currently connected");
+            Metrics.Counter messagesIn = Metrics.counter("hello_server_messages_in_total", "Lines received from the client");
+            Metrics.Counter bytesIn = Metrics.counter("hello_server_bytes_in_total", "Bytes received from the client");
+            Metrics.Counter bytesOut = Metrics.counter("hello_server_bytes_out_total", "Bytes sent to the client");
+
             // Wait for the client to connect
             try (Socket clientSocket = serverSocket.accept()) {
                 System.out.println("Client connected successfully!");
+                accepted.increment();
+                active.increment();
+                ServerEvents.accept("Server", clientSocket.getRemoteSocketAddress());
 
                 // Create input and output streams for communication
                 BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
@@ -27,10 +38,15 @@ public class Server {
 
                 // Step 1: Send a greeting message to the client
                 out.println("Hello from Server!");
+                bytesOut.add(Metrics.lineBytes("Hello from Server!"));
 
                 // Step 2: Receive response from client
                 String clientMessage = in.readLine();
                 System.out.println("Client: " + clientMessage);
+                if (clientMessage != null) {
+                    messagesIn.increment();
+                    bytesIn.add(Metrics.lineBytes(clientMessage));
+                }
 
                 // Step 3: Enable two-way communication
                 BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in));
@@ -40,6 +56,7 @@ public class Server {
                     System.out.print("Enter message to client: ");
                     message = userInput.readLine();   // Read from server’s console
                     out.println(message);              // Send to client
+                    bytesOut.add(Metrics.lineBytes(message));
 
                     if (message.equalsIgnoreCase("exit")) {
                         System.out.println("Connection closed by server.");
@@ -49,7 +66,12 @@ public class Server {
                     // Receive client response
                     clientMessage = in.readLine();
                     System.out.println("Client: " + clientMessage);
+                    if (clientMessage != null) {
+                        messagesIn.increment();
+                        bytesIn.add(Metrics.lineBytes(clientMessage));
+                    }
                 }
+                active.decrement();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -143,6 +165,9 @@ public class Client {
 // Step 3: Compile both files using the terminal:
 //         javac Server.java
 //         javac Client.java
+//         (Server also needs Metrics.java, ServerEvents.java, MetricsEndpoint.java
+//          and LatencyHistogram.java from experiments 20 – 21 in the same
+//          directory; counters are served at http://127.0.0.1:9100/metrics)
 //
 // Step 4: First, run the server program:
 //         java Server
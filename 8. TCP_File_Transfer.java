@@ -13,37 +13,112 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 public class FileReceiverServer {
+    static final int READ_TIMEOUT_MILLIS = 30_000; // a client silent this long is dropped
+
     public static void main(String[] args) {
         int port = 12345; // Port number for the server
         String saveFilePath = "received_file.txt"; // File where received data will be stored
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        // With -Dtransfer.autotune=true the receive buffer is sized before
+        // bind(), while the window scale can still follow it (experiment 33)
+        try (ServerSocket serverSocket = Boolean.getBoolean("transfer.autotune")
+                ? TunedInputStream.listen(port) : new ServerSocket(port)) {
             System.out.println("Server is running and listening on port " + port + "...");
 
-            // Wait until a client connects
+            // Metrics and JFR events (experiment 21), scraped from http://127.0.0.1:9100/metrics
+            MetricsEndpoint.start();
+            Metrics.Counter accepted = Metrics.counter("file_receiver_connections_total", "Clients accepted");
+            Metrics.Gauge active = Metrics.gauge("file_receiver_active_connections", "Transfers in progress");
+            Metrics.Counter bytesIn = Metrics.counter("file_receiver_bytes_in_total", "File bytes received");
+            Metrics.Counter files = Metrics.counter("file_receiver_files_total", "Files received completely");
+            LatencyHistogram writeTime = Metrics.histogram("file_receiver_disk_write_micros", "Time to write one buffer to disk");
+
+            // Allow/deny rules by subnet (experiment 25), re-read when "ip_rules.txt" changes
+            IpFilter filter = IpFilter.watch(Path.of("ip_rules.txt"));
+
+            // Wait until an allowed client connects; denied ones are closed at once
             Socket socket = serverSocket.accept();
+            while (!filter.allows(socket.getInetAddress())) {
+                System.out.println("Rejected connection from " + socket.getRemoteSocketAddress());
+                socket.close();
+                socket = serverSocket.accept();
+            }
             System.out.println("Client connected.");
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            accepted.increment();
+            active.increment();
+            ServerEvents.accept("FileReceiverServer", socket.getRemoteSocketAddress());
+            ServerEvents.Transfer transfer =
+                    ServerEvents.beginTransfer("FileReceiverServer", socket.getRemoteSocketAddress(), "in");
+            long received = 0;
+            long reads = 0;
 
             // Create input stream to receive bytes from client
             InputStream inputStream = socket.getInputStream();
 
-            // Create output stream to write received bytes to a file
-            FileOutputStream fileOutputStream = new FileOutputStream(saveFilePath);
+            // With -Dtransfer.autotune=true the sender measures RTT and
+            // bandwidth from this stream's pongs and acks (experiment 33)
+            if (Boolean.getBoolean("transfer.autotune")) {
+                inputStream = new TunedInputStream(socket);
+            }
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+            // With -Dtransfer.password the data arrives encrypted in chunks
+            // (experiment 30), checked and decrypted on all cores
+            String password = System.getProperty("transfer.password");
+            if (password != null) {
+                inputStream = new AeadInputStream(inputStream, password.toCharArray());
+            }
 
-            // Continuously read bytes from client until end of stream
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                fileOutputStream.write(buffer, 0, bytesRead);
+            // Encrypted data is written to a temporary file that replaces
+            // the saved file only after the final chunk has authenticated
+            Path writePath = Path.of(password != null ? saveFilePath + ".part" : saveFilePath);
+            try {
+                if (Boolean.getBoolean("transfer.sparse")) {
+                    // DATA/SKIP frames (experiment 31): skipped zero ranges become holes
+                    SparseTransfer.Stats stats = SparseTransfer.receive(inputStream, writePath);
+                    System.out.println("Sparse transfer: " + stats);
+                    bytesIn.add(stats.dataBytes);
+                    received = stats.dataBytes;
+                    reads = stats.frames;
+                } else {
+                    // Create output stream to write received bytes to a file
+                    try (FileOutputStream fileOutputStream = new FileOutputStream(writePath.toFile())) {
+                        byte[] buffer = new byte[4096];
+                        int bytesRead;
+
+                        // Continuously read bytes from client until end of stream
+                        while ((bytesRead = inputStream.read(buffer)) != -1) {
+                            long writeStart = System.nanoTime();
+                            fileOutputStream.write(buffer, 0, bytesRead);
+                            writeTime.record((System.nanoTime() - writeStart) / 1000);
+                            bytesIn.add(bytesRead);
+                            received += bytesRead;
+                            reads++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (password != null) {
+                    Files.deleteIfExists(writePath);
+                }
+                throw e;
+            }
+            if (password != null) {
+                Files.move(writePath, Path.of(saveFilePath), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
             }
+            ServerEvents.endTransfer(transfer, received, reads);
+            files.increment();
+            active.decrement();
 
             System.out.println("File received successfully and saved as: " + saveFilePath);
 
             // Close resources
-            fileOutputStream.close();
             socket.close();
         } catch (IOException ex) {
             System.out.println("Server exception: " + ex.getMessage());
@@ -64,10 +139,13 @@ import java.net.*;
 public class FileSenderClient {
     public static void main(String[] args) {
         String hostname = "localhost"; // Server IP address or hostname
-        int port = 12345; // Server port
+        int port = Integer.getInteger("transfer.port", 12345); // Server port (or a DelayProxy in front of it)
         String filePath = "file_to_send.txt"; // Path of the file to send
 
-        try (Socket socket = new Socket(hostname, port)) {
+        // Resolved through the shared caching resolver (experiment 24): the
+        // address comes from the cache when possible, and IPv6/IPv4 are
+        // tried in parallel (Happy Eyeballs) instead of one after another
+        try (Socket socket = CachingResolver.shared().connect(hostname, port, 5000)) {
             System.out.println("Connected to server.");
 
             // Create stream to read file
@@ -76,14 +154,38 @@ public class FileSenderClient {
             // Get output stream to send data to server
             OutputStream outputStream = socket.getOutputStream();
 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+            // With -Dtransfer.autotune=true RTT and bandwidth are measured
+            // while sending, and the send buffer and write size follow the
+            // bandwidth-delay product (experiment 33)
+            if (Boolean.getBoolean("transfer.autotune")) {
+                outputStream = new TunedOutputStream(socket, new BdpAutotuner());
+            }
+
+            // With -Dtransfer.password the file is encrypted in chunks on all
+            // cores while earlier chunks are already being sent (experiment 30)
+            String password = System.getProperty("transfer.password");
+            if (password != null) {
+                outputStream = new AeadOutputStream(outputStream, password.toCharArray());
+            }
 
-            // Read file and send bytes to server in chunks
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
+            if (Boolean.getBoolean("transfer.sparse")) {
+                // Zero blocks and holes go out as SKIP frames (experiment 31)
+                OutputStream buffered = new BufferedOutputStream(outputStream, 64 * 1024);
+                System.out.println("Sparse transfer: "
+                        + SparseTransfer.send(java.nio.file.Path.of(filePath), buffered));
+            } else {
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+
+                // Read file and send bytes to server in chunks
+                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, bytesRead);
+                }
             }
 
+            // Sends the last (authenticated) chunk when encrypting
+            outputStream.close();
+
             System.out.println("File sent successfully!");
 
             // Close resources
@@ -139,15 +241,65 @@ public class FileSenderClient {
 // Step 4: In the first terminal, compile and run the server:
 //         javac FileReceiverServer.java
 //         java FileReceiverServer
+//         (Needs Metrics.java, ServerEvents.java, MetricsEndpoint.java and
+//          LatencyHistogram.java from experiments 20 – 21 in the same directory,
+//          plus Ipv4Trie.java, Ipv6Trie.java and IpFilter.java from experiment
+//          25, which apply the rules in "ip_rules.txt" if that file exists,
+//          and AsyncLog.java from experiment 22, which IpFilter logs through.
+//          AeadFormat.java and AeadInputStream.java from experiment 30 are
+//          needed too; they decrypt when -Dtransfer.password is set.
+//          SparseTransfer.java from experiment 31 handles
+//          -Dtransfer.sparse=true, and TunedInputStream.java with
+//          BdpAutotuner.java from experiment 33 handles
+//          -Dtransfer.autotune=true.)
 //
 // Step 5: In the second terminal, compile and run the client:
 //         javac FileSenderClient.java
 //         java FileSenderClient
+//         (Needs CachingResolver.java from experiment 24 and the files it
+//          uses: VirtualThreads.java, DnsMessage.java; and AeadFormat.java
+//          and AeadOutputStream.java from experiment 30, which encrypt when
+//          -Dtransfer.password is set; SparseTransfer.java from experiment
+//          31 with Metrics.java and LatencyHistogram.java from 20 – 21 for
+//          -Dtransfer.sparse=true; TunedOutputStream.java and
+//          BdpAutotuner.java from experiment 33 with AsyncLog.java from
+//          experiment 22 for -Dtransfer.autotune=true.)
 //
 // Step 6: The client will send "file_to_send.txt" to the server.
 //         The server will save it as "received_file.txt".
 //
 // Step 7: Verify that the file content matches in both files.
+//
+// (To let anyone download files with curl or a browser instead of
+//  FileSenderClient, use HttpFileServer from experiment 27:
+//  java HttpFileServer root=. port=8000
+//  curl -O http://127.0.0.1:8000/received_file.txt)
+//
+// (To copy a whole directory and later only what changed, use the tree
+//  sync of experiment 28:
+//  java TreeSyncServer dir=received_tree
+//  java TreeSyncClient src=my_folder workers=4)
+//
+// (To encrypt the file end-to-end, start both programs with the same
+//  -Dtransfer.password=... ; see experiment 30.)
+//
+// (For VM images and other mostly-empty files, add -Dtransfer.sparse=true
+//  on both sides: zero blocks are skipped and arrive as holes; see
+//  experiment 31.)
+//
+// (To send one file to many hosts without overloading the sender, use
+//  the swarm mode of experiment 32: receivers share pieces with each
+//  other.)
+//
+// (On long or fast paths, start both programs with
+//  -Dtransfer.autotune=true: the socket buffers and write size are sized
+//  to the bandwidth-delay product; see experiment 33. To try it on one machine,
+//  compile DelayProxy.java from experiment 33 (it needs no other files),
+//  run java DelayProxy listen=12347 rtt=60 rate=40m and start the client
+//  with -Dtransfer.port=12347.)
+//
+// (For many uploads at once with priorities and a shared bandwidth
+//  limit, see ScheduledReceiverServer in experiment 29.)
 
 
 
@@ -209,6 +361,11 @@ public class FileSenderClient {
 //    | Example Protocols | HTTP, FTP                    | DNS, Video Streaming        |
 //    | Suitable For      | File Transfer, Web, Email    | Real-time data, gaming      |
 //
+// 11. **Read Timeout:**
+//    A blocking read() waits forever for a client that stops sending
+//    without closing. setSoTimeout(30 s) makes such a read throw
+//    SocketTimeoutException, so the server gives up on that client.
+//
 // ==========================================================
 // END OF JAVA PROGRAM
 // ==========================================================
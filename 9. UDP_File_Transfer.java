@@ -19,8 +19,14 @@
 import java.io.*;
 import java.net.*;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 public class FileServer {
+    // Per-packet lines go through the async logger (experiment 22),
+    // at most 50 per second so a large file is not slowed by the console
+    private static final AsyncLog.Limiter PACKET_LOG =
+            AsyncLog.limiter("Sent packet", AsyncLog.Level.INFO, 50);
+
     public static void main(String[] args) {
         DatagramSocket socket = null;
         Scanner scanner = new Scanner(System.in);
@@ -29,6 +35,10 @@ public class FileServer {
             // Define the server port
             int port = 9876;
 
+            // Start resolving the client address now (experiment 24), so the
+            // lookup happens while the user is typing the file path
+            CompletableFuture<InetAddress> clientLookup = CachingResolver.shared().resolveFirst("127.0.0.1");
+
             // Get the file path from user
             System.out.print("Enter the path of the file to send: ");
             String filePath = scanner.nextLine();
@@ -44,10 +54,20 @@ public class FileServer {
             fileInputStream.close();
 
             // Client address and port (localhost for demo)
-            InetAddress clientAddress = InetAddress.getByName("127.0.0.1");
+            InetAddress clientAddress = clientLookup.join();
             int packetSize = 1024; // bytes per packet
             int totalPackets = (int) Math.ceil(fileData.length / (double) packetSize);
 
+            // Metrics and JFR events (experiment 21), scraped from http://127.0.0.1:9100/metrics
+            MetricsEndpoint.start();
+            Metrics.Counter packetsOut = Metrics.counter("udp_file_server_packets_out_total", "Datagrams sent");
+            Metrics.Counter bytesOut = Metrics.counter("udp_file_server_bytes_out_total", "File bytes sent");
+            Metrics.Gauge pending = Metrics.gauge("udp_file_server_pending_packets", "Packets of the current file not yet sent");
+            LatencyHistogram sendTime = Metrics.histogram("udp_file_server_send_micros", "Time spent in one send() call");
+            pending.add(totalPackets);
+            ServerEvents.Transfer transfer = ServerEvents.beginTransfer("FileServer",
+                    clientAddress.getHostAddress() + ":" + port, "out");
+
             // Send the file in chunks (packets)
             for (int i = 0; i < totalPackets; i++) {
                 int start = i * packetSize;
@@ -59,19 +79,29 @@ public class FileServer {
 
                 // Create and send packet
                 DatagramPacket packet = new DatagramPacket(packetData, length, clientAddress, port);
+                long sendStart = System.nanoTime();
                 socket.send(packet);
-                System.out.println("Sent packet " + (i + 1) + " of " + totalPackets);
+                sendTime.record((System.nanoTime() - sendStart) / 1000);
+                packetsOut.increment();
+                bytesOut.add(length);
+                pending.decrement();
+                if (PACKET_LOG.allow()) {
+                    AsyncLog.info("Sent packet " + (i + 1) + " of " + totalPackets);
+                }
             }
 
             // Send an empty packet as end-of-transfer signal
             byte[] endSignal = new byte[0];
             DatagramPacket endPacket = new DatagramPacket(endSignal, 0, clientAddress, port);
             socket.send(endPacket);
+            packetsOut.increment();
+            ServerEvents.endTransfer(transfer, fileData.length, totalPackets + 1);
 
-            System.out.println("File sent successfully via UDP.");
+            AsyncLog.info("File sent successfully via UDP.");
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            AsyncLog.flush();
             scanner.close();
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -91,9 +121,12 @@ import java.net.*;
 import java.util.Scanner;
 
 public class FileClient {
+    private static final AsyncLog.Limiter PACKET_LOG =
+            AsyncLog.limiter("Received packet", AsyncLog.Level.INFO, 50);
+
     public static void main(String[] args) {
         DatagramSocket socket = null;
-        FileOutputStream fileOutputStream = null;
+        PipelinedFileWriter fileWriter = null;
         Scanner scanner = new Scanner(System.in);
 
         try {
@@ -106,15 +139,21 @@ public class FileClient {
 
             // Create socket to receive data
             socket = new DatagramSocket(port);
-            byte[] receiveBuffer = new byte[1024];
+            DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+            long packets = 0;
 
-            // Open output stream to save received data
-            fileOutputStream = new FileOutputStream(outputFilePath);
-            System.out.println("Receiving file...");
+            // Disk writes run on their own thread (experiment 34): this loop
+            // only receives into pooled 1 MB buffers, so a slow disk does not
+            // stop it from draining the socket. -Ddisk.stall=20/1m simulates
+            // a disk that pauses 20 ms after every MB.
+            fileWriter = new PipelinedFileWriter(java.nio.file.Path.of(outputFilePath), 8, 1 << 20,
+                    DiskStall.parse(System.getProperty("disk.stall")));
+            AsyncLog.info("Receiving file...");
 
             while (true) {
-                // Receive packets
-                DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+                // Receive packets straight into the current buffer
+                java.nio.ByteBuffer buffer = fileWriter.buffer(1024);
+                packet.setData(buffer.array(), buffer.position(), 1024);
                 socket.receive(packet);
 
                 // Check for empty packet (end of file signal)
@@ -122,23 +161,29 @@ public class FileClient {
                     break;
                 }
 
-                // Write received data to file
-                fileOutputStream.write(packet.getData(), 0, packet.getLength());
-                System.out.println("Received packet of size " + packet.getLength());
+                // Hand the received data to the disk writer
+                fileWriter.filled(packet.getLength());
+                packets++;
+                if (PACKET_LOG.allow()) {
+                    AsyncLog.info("Received packet of size " + packet.getLength());
+                }
             }
 
-            System.out.println("File received successfully via UDP.");
+            AsyncLog.info("File received successfully via UDP: " + packets + " packets");
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            scanner.close();
-            if (fileOutputStream != null) {
+            // Writes the last buffer and waits for the disk
+            if (fileWriter != null) {
                 try {
-                    fileOutputStream.close();
+                    fileWriter.close();
+                    AsyncLog.info("Written to disk: " + fileWriter);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            AsyncLog.flush();
+            scanner.close();
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -186,6 +231,16 @@ public class FileClient {
 // 5. In the second terminal, compile and run the server:
 //      javac FileServer.java
 //      java FileServer
+//      (Needs Metrics.java, ServerEvents.java, MetricsEndpoint.java and
+//       LatencyHistogram.java from experiments 20 – 21 in the same directory.)
+//      Both programs log through AsyncLog.java (experiment 22); run with
+//      -Dlog.level=WARN to hide the per-packet lines completely.
+//      FileClient writes to disk through PipelinedFileWriter.java and
+//      DiskStall.java (experiment 34); start it with -Ddisk.stall=20/1m
+//      to simulate a slow disk without losing packets.
+//      FileServer resolves the client through CachingResolver.java
+//      (experiment 24); replace "127.0.0.1" with a host name to send to
+//      another machine.
 //      (Enter the path of the file to send, e.g. sample.txt)
 //
 // 6. Observe the console logs – the server will send data in packets,